@@ -0,0 +1,481 @@
+package org.magellan.faleiro;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the tasks that finished and of the state changes of jobs since the last
+ * snapshot written to Zookeeper.
+ *
+ * Records are appended to a file mapped in memory, so journaling a result costs a copy into the
+ * page cache and no system call. The pages are written back by the operating system and survive
+ * a crash of the scheduler, but not of the host. When a scheduler restarts it replays the journal
+ * on top of the snapshot it restored, so the tasks that finished after the snapshot are not run
+ * again.
+ *
+ * The journal uses two files of the same capacity. Records go to the active one. Once a snapshot
+ * holds every record up to some sequence number, compact() copies the newer records to the other
+ * file, which becomes the active one, and clears the first. A file starts with the sequence number
+ * up to which records are obsolete and the term of the leader that wrote it, followed by records
+ * of the form
+ *
+ *     length (int) | crc32 of the rest (int) | sequence number (long) | payload
+ *
+ * A record with a length of 0 or a wrong checksum ends a file. Records are replayed in the order
+ * of their sequence numbers, so a crash during compact() at worst replays a record twice.
+ *
+ * Once the active file is three quarters full the flush listener is told, so that a snapshot is
+ * written and the journal compacted. A file that fills up all the same, because the snapshots
+ * fail, is grown up to maxCapacity bytes. Records are only dropped beyond that.
+ *
+ * The records only hold on top of the snapshots written by the same leader. The leader stores
+ * its term in the root node as well, and a new leader that finds another term there discards the
+ * journal with reset() instead of replaying it.
+ */
+public class CompletionJournal implements Closeable {
+    private static final Logger log = Logger.getLogger(CompletionJournal.class.getName());
+
+    /**
+     * Receives the records of the journal in the order they were appended
+     */
+    public interface Visitor {
+        void taskFinished(long jobId, int taskIndex, double fitness, String location, long timeMillis);
+
+        void stateChanged(long jobId, MagellanJob.JobState state);
+    }
+
+    static final String FILE_PREFIX = "journal-";
+
+    // Sequence number up to which records are obsolete, and term
+    private static final int HEADER_SIZE = 16;
+    // length, crc and sequence number
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private static final byte TASK_FINISHED = 1;
+    private static final byte STATE_CHANGED = 2;
+
+    private final RandomAccessFile[] files = new RandomAccessFile[2];
+    private final MappedByteBuffer[] buffers = new MappedByteBuffer[2];
+    // End of the records of each file
+    private final int[] ends = new int[2];
+    private final int maxCapacity;
+
+    private volatile Runnable flushListener = null;
+
+    // All guarded by this
+    private int capacity;
+    private boolean flushRequested = false;
+    private int active = 0;
+    private long nextSequence = 1;
+    private long obsoleteThrough = 0;
+    private long term = 0;
+    private long firstSequence = -1;    // of the active file, -1 if it is empty
+    private long dropped = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens the journal in a directory, creating it if needed. The files are not grown.
+     * @param dir
+     * @param capacity : size of each of the two files in bytes
+     * @throws IOException
+     */
+    public CompletionJournal(File dir, int capacity) throws IOException {
+        this(dir, capacity, capacity);
+    }
+
+    /**
+     * Opens the journal in a directory, creating it if needed
+     * @param dir
+     * @param capacity : initial size of each of the two files in bytes
+     * @param maxCapacity : size each file may grow to when snapshots cannot keep up
+     * @throws IOException
+     */
+    public CompletionJournal(File dir, int capacity, int maxCapacity) throws IOException {
+        if(capacity < HEADER_SIZE + RECORD_HEADER_SIZE + 64) {
+            throw new IllegalArgumentException("Journal capacity too small: " + capacity);
+        }
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create journal directory " + dir);
+        }
+        this.maxCapacity = Math.max(capacity, maxCapacity);
+        long[] maxSequence = new long[2];
+        for(int i = 0; i < 2; i++) {
+            files[i] = new RandomAccessFile(new File(dir, FILE_PREFIX + i), "rw");
+            // Files grown before the restart keep their size
+            capacity = (int) Math.max(capacity, Math.min(files[i].length(), Integer.MAX_VALUE));
+        }
+        this.capacity = capacity;
+        for(int i = 0; i < 2; i++) {
+            buffers[i] = files[i].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            obsoleteThrough = Math.max(obsoleteThrough, buffers[i].getLong(0));
+            term = Math.max(term, buffers[i].getLong(8));
+            maxSequence[i] = scan(i, null);
+        }
+        active = maxSequence[1] > maxSequence[0] ? 1 : 0;
+        nextSequence = Math.max(Math.max(maxSequence[0], maxSequence[1]), obsoleteThrough) + 1;
+        firstSequence = firstLiveSequence(active);
+        log.log(Level.CONFIG, "Journal opened in " + dir + ". Next record is " + nextSequence + " of term " + term);
+    }
+
+    /**
+     * Records that a task finished
+     * @param jobId
+     * @param taskIndex
+     * @param fitness
+     * @param location
+     * @return false if the record was dropped because the journal is full or closed
+     */
+    public boolean taskFinished(long jobId, int taskIndex, double fitness, String location) {
+        byte[] loc = location.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 4 + 8 + 8 + 4 + loc.length);
+        payload.put(TASK_FINISHED).putLong(jobId).putInt(taskIndex).putDouble(fitness)
+                .putLong(System.currentTimeMillis()).putInt(loc.length).put(loc);
+        return append(payload.array());
+    }
+
+    /**
+     * Records the new state of a job
+     * @param jobId
+     * @param state
+     * @return false if the record was dropped because the journal is full or closed
+     */
+    public boolean stateChanged(long jobId, MagellanJob.JobState state) {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 1);
+        payload.put(STATE_CHANGED).putLong(jobId).put((byte) state.ordinal());
+        return append(payload.array());
+    }
+
+    /**
+     * Registers a callback that asks for a snapshot to be written soon. It is run once the active
+     * file is three quarters full, and again after every compaction that leaves it so.
+     * @param listener
+     */
+    public void setFlushListener(Runnable listener) {
+        flushListener = listener;
+    }
+
+    private boolean append(byte[] payload) {
+        boolean appended;
+        boolean requestFlush = false;
+        synchronized (this) {
+            appended = appendRecord(payload);
+            if(!flushRequested && !closed && (!appended || ends[active] > capacity / 4 * 3)) {
+                flushRequested = requestFlush = true;
+            }
+        }
+        // Outside the lock, the listener may take locks of its own
+        Runnable listener = flushListener;
+        if(requestFlush && listener != null) {
+            listener.run();
+        }
+        return appended;
+    }
+
+    private boolean appendRecord(byte[] payload) {
+        if(closed) {
+            return false;
+        }
+        int end = ends[active];
+        // A zero length after the record marks the end of the file
+        int needed = end + RECORD_HEADER_SIZE + payload.length + 4;
+        if(needed > capacity && !grow(needed)) {
+            if(dropped++ % 1000 == 0) {
+                log.log(Level.SEVERE, "Journal is full at " + capacity + " bytes. Dropped " + dropped
+                        + " records. Finished work since the last snapshot is lost if the scheduler fails");
+            }
+            return false;
+        }
+        MappedByteBuffer buffer = buffers[active];
+        long sequence = nextSequence++;
+        CRC32 crc = new CRC32();
+        crc.update(longBytes(sequence));
+        crc.update(payload);
+
+        buffer.putLong(end + 8, sequence);
+        ByteBuffer view = buffer.duplicate();
+        view.position(end + RECORD_HEADER_SIZE);
+        view.put(payload);
+        buffer.putInt(end + RECORD_HEADER_SIZE + payload.length, 0);
+        buffer.putInt(end + 4, (int) crc.getValue());
+        // Written last so that a torn record is never read
+        buffer.putInt(end, payload.length);
+        ends[active] = end + RECORD_HEADER_SIZE + payload.length;
+        if(firstSequence < 0) {
+            firstSequence = sequence;
+        }
+        return true;
+    }
+
+    /**
+     * Maps both files with a larger size, up to maxCapacity
+     * @param needed : size the active file needs
+     * @return false if the files cannot grow to that size
+     */
+    private boolean grow(int needed) {
+        if(needed > maxCapacity) {
+            return false;
+        }
+        int grown = (int) Math.min(maxCapacity, Math.max(needed, 2L * capacity));
+        try {
+            for(int i = 0; i < 2; i++) {
+                buffers[i].force();
+                buffers[i] = files[i].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, grown);
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to grow the journal to " + grown + " bytes: " + e.getMessage());
+            return false;
+        }
+        log.log(Level.WARNING, "Journal grown from " + capacity + " to " + grown + " bytes. Snapshots are behind");
+        capacity = grown;
+        return true;
+    }
+
+    /**
+     * Returns the size of each file in bytes
+     * @return
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the sequence number of the last record appended, 0 if there is none
+     * @return
+     */
+    public synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    /**
+     * Returns the term of the leader that wrote the journal, 0 if no leader set one. Terms only
+     * grow from one leader to the next.
+     * @return
+     */
+    public synchronized long getTerm() {
+        return term;
+    }
+
+    /**
+     * Sets the term of the leader that writes the journal from now on. The records already in it
+     * are kept.
+     * @param term
+     */
+    public synchronized void setTerm(long term) {
+        if(closed) {
+            return;
+        }
+        this.term = term;
+        for(MappedByteBuffer buffer : buffers) {
+            buffer.putLong(8, term);
+        }
+    }
+
+    /**
+     * Drops every record, for a leader that restored snapshots the journal does not belong to
+     * @param term : term of the leader that writes the journal from now on
+     */
+    public synchronized void reset(long term) {
+        if(closed) {
+            return;
+        }
+        for(int i = 0; i < 2; i++) {
+            clear(i);
+        }
+        obsoleteThrough = nextSequence - 1;
+        firstSequence = -1;
+        dropped = 0;
+        buffers[active].putLong(0, obsoleteThrough);
+        setTerm(term);
+    }
+
+    /**
+     * Returns the number of records dropped because the journal was full
+     * @return
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Passes the records that are not obsolete to a visitor, in the order they were appended
+     * @param visitor
+     * @return the number of records replayed
+     */
+    public synchronized int replay(Visitor visitor) {
+        List<long[]> records = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            final int file = i;
+            scan(i, (sequence, offset) -> records.add(new long[]{sequence, file, offset}));
+        }
+        records.sort(Comparator.comparingLong(r -> r[0]));
+        int replayed = 0;
+        long last = obsoleteThrough;
+        for(long[] record : records) {
+            if(record[0] <= last) {
+                // Obsolete, or copied to both files by an interrupted compaction
+                continue;
+            }
+            last = record[0];
+            try {
+                visit(buffers[(int) record[1]], (int) record[2], visitor);
+                replayed++;
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Skipping journal record " + record[0] + ": " + e);
+            }
+        }
+        return replayed;
+    }
+
+    private static void visit(MappedByteBuffer buffer, int offset, Visitor visitor) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE);
+        byte type = record.get();
+        long jobId = record.getLong();
+        switch (type) {
+            case TASK_FINISHED:
+                int taskIndex = record.getInt();
+                double fitness = record.getDouble();
+                long time = record.getLong();
+                byte[] loc = new byte[record.getInt()];
+                record.get(loc);
+                visitor.taskFinished(jobId, taskIndex, fitness, new String(loc, StandardCharsets.UTF_8), time);
+                break;
+            case STATE_CHANGED:
+                visitor.stateChanged(jobId, MagellanJob.JobState.values()[record.get()]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * Drops the records up to a sequence number once a snapshot holds them
+     * @param sequence : last sequence number held by the snapshot
+     */
+    public synchronized void compact(long sequence) {
+        flushRequested = false;
+        if(closed || firstSequence < 0 || firstSequence > sequence) {
+            return;
+        }
+        int from = active;
+        int to = 1 - active;
+        MappedByteBuffer target = buffers[to];
+        clear(to);
+        target.putLong(0, sequence);
+        target.putLong(8, term);
+        final int[] end = {HEADER_SIZE};
+        final long[] first = {-1};
+        scan(from, (seq, offset) -> {
+            if(seq <= sequence) {
+                return;
+            }
+            int length = RECORD_HEADER_SIZE + buffers[from].getInt(offset);
+            // The length is copied last so that a torn record is never read
+            for(int i = 4; i < length; i++) {
+                target.put(end[0] + i, buffers[from].get(offset + i));
+            }
+            target.putInt(end[0] + length, 0);
+            target.putInt(end[0], length - RECORD_HEADER_SIZE);
+            end[0] += length;
+            if(first[0] < 0) {
+                first[0] = seq;
+            }
+        });
+        ends[to] = end[0];
+        active = to;
+        firstSequence = first[0];
+        obsoleteThrough = sequence;
+        clear(from);
+        if(dropped > 0) {
+            log.log(Level.INFO, "Journal has room again after dropping " + dropped + " records");
+            dropped = 0;
+        }
+    }
+
+    private void clear(int file) {
+        MappedByteBuffer buffer = buffers[file];
+        int end = Math.max(ends[file], HEADER_SIZE) + 4;
+        for(int i = 0; i < Math.min(end, capacity); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        ends[file] = HEADER_SIZE;
+    }
+
+    private interface RecordConsumer {
+        void accept(long sequence, int offset);
+    }
+
+    /**
+     * Walks the valid records of a file and records where they end
+     * @param file
+     * @param consumer : receives each record, may be null
+     * @return the largest sequence number in the file, 0 if there is none
+     */
+    private long scan(int file, RecordConsumer consumer) {
+        MappedByteBuffer buffer = buffers[file];
+        int offset = HEADER_SIZE;
+        long max = 0;
+        while(offset + RECORD_HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(offset);
+            if(length <= 0 || offset + RECORD_HEADER_SIZE + length > capacity) {
+                break;
+            }
+            long sequence = buffer.getLong(offset + 8);
+            CRC32 crc = new CRC32();
+            crc.update(longBytes(sequence));
+            byte[] payload = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset + RECORD_HEADER_SIZE);
+            view.get(payload);
+            crc.update(payload);
+            if((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            if(consumer != null) {
+                consumer.accept(sequence, offset);
+            }
+            max = Math.max(max, sequence);
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        ends[file] = offset;
+        return max;
+    }
+
+    private long firstLiveSequence(int file) {
+        final long[] first = {-1};
+        scan(file, (sequence, offset) -> {
+            if(sequence > obsoleteThrough && first[0] < 0) {
+                first[0] = sequence;
+            }
+        });
+        return first[0];
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        for(int i = 0; i < 2; i++) {
+            buffers[i].force();
+            files[i].close();
+        }
+    }
+}
@@ -5,29 +5,124 @@ import com.sun.org.apache.bcel.internal.generic.NEW;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.apache.zookeeper.KeeperException.Code;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class DataMonitor implements Watcher{
+import static org.magellan.faleiro.JsonTags.Persistence;
+import static org.magellan.faleiro.JsonTags.SimpleStatus;
+
+/**
+ * Persists the state of the framework in Zookeeper and reads it back when a scheduler takes over.
+ *
+ * The state of each job is stored in a child of the storage root node named JOB_NODE_PREFIX
+ * followed by the id of the job. The root node only holds the state of the framework itself, so
+ * a write only touches the jobs whose state changed since the last one. Root nodes written by
+ * earlier versions, which hold every job under "jobs", are still read and are converted to the
+ * new layout by the first write.
+ *
+ * Jobs that are done or stopped are moved under the ARCHIVE_NODE child of the root once they are
+ * archived, so that a new leader only reads the jobs that may still change. The final state of
+ * an archived job is stored in a JOB_NODE_PREFIX node and its simple status in a
+ * STATUS_NODE_PREFIX node, which are only read when the JobArchive is asked for them.
+ *
+ * Every node is written with SnapshotCodec, so states larger than the size limit of a node are
+ * compressed and split into chunks that are stored in children of the node. The chunks of the
+ * previous version are deleted in the same transaction that commits the new manifest.
+ *
+ * The framework and its jobs count the changes to their state. Only the jobs whose count moved
+ * since their last write are serialized, and the nodes of all of them are written with pipelined
+ * asynchronous requests. Writes are scheduled by the changes themselves: important ones, such as
+ * a job finishing, are written within URGENT_DELAY milliseconds, others are coalesced for up to
+ * COMMIT_DELAY milliseconds. When there is nothing to write the monitor checks less and less
+ * often, from every WRITE_DELAY milliseconds up to every MAX_IDLE_DELAY milliseconds.
+ *
+ * Results processed between two writes are kept in a CompletionJournal on the local disk. Once
+ * the changed nodes have been written, the records they hold are dropped from the journal, and a
+ * journal that fills up asks for a write of its own. The root node holds the term of the leader
+ * that journals, and is written before the nodes of the jobs, so that a job node is never newer
+ * than the term the journal is checked against.
+ */
+public class DataMonitor implements Watcher, JobArchive.Store {
 
     private ZookeeperService m_zk;
 
     final public int WRITE_DELAY = 5000;
 
+    // Delay before writing an important change
+    static final long URGENT_DELAY = EnvConfig.getLong("ZK_URGENT_DELAY_MILLIS", 50);
+
+    // Longest time other changes wait so that bursts of them are written at once
+    static final long COMMIT_DELAY = EnvConfig.getLong("ZK_COMMIT_DELAY_MILLIS", 1000);
+
+    // Longest time between two checks for changes when nothing changes
+    static final long MAX_IDLE_DELAY = EnvConfig.getLong("ZK_MAX_IDLE_DELAY_MILLIS", 60000);
+
+    // Children of the root node that hold the state of a job
+    static final String JOB_NODE_PREFIX = "job-";
+
+    // Child of the root node that holds the archived jobs, and the nodes in it that hold their status
+    static final String ARCHIVE_NODE = "archive";
+    static final String STATUS_NODE_PREFIX = "status-";
+
     private String m_znode;
 
+    // State of the framework last written to the root node, without the jobs
     private byte prevData[];
 
+    // Digest of the state of each job last written to its node
+    private final Map<Long, byte[]> jobDigests = new ConcurrentHashMap<>();
+
+    // Version of the state of each job and of the framework last written, see persistState()
+    private final Map<Long, Long> writtenVersions = new ConcurrentHashMap<>();
+    private long writtenFrameworkVersion = -1;
+    // Last journal record held by the node of each job, and by every node
+    private final Map<Long, Long> journaledThrough = new ConcurrentHashMap<>();
+    private long compactedThrough = 0;
+
+    // The next write scheduled, and the System.nanoTime() it runs at. Guarded by flush_lock.
+    private final Object flush_lock = new Object();
+    private ScheduledExecutorService persistenceExecutor = null;
+    private ScheduledFuture<?> nextFlush = null;
+    private long nextFlushAt = 0;
+    private long idleDelay = WRITE_DELAY;
+
+    // Largest chunk written to a node. Zookeeper refuses nodes of more than 1 MB by default.
+    private int chunkSize = EnvConfig.getInt("ZK_CHUNK_SIZE", 512 * 1024);
+
+    // Manifest last written to or read from each node, needed to version and clean up chunks
+    private final Map<String, SnapshotCodec.Manifest> manifests = new ConcurrentHashMap<>();
+
     private JSONObject initialState = null;
 
+    // Journal of the results processed since the last snapshot. May be null.
+    private volatile CompletionJournal journal = null;
+
     private MagellanFramework mframework;
 
     private static final Logger log = Logger.getLogger(DataMonitor.class.getName());
@@ -39,50 +134,735 @@ public class DataMonitor implements Watcher{
         log.log(Level.CONFIG, "DataMonitor created. Storage root node is " + znode);
     }
 
-    public void initialize(){
+    /**
+     * Reads the previous state from Zookeeper and starts persisting the state of the framework
+     * on the given executor
+     * @param persistenceExecutor
+     */
+    public void initialize(ScheduledExecutorService persistenceExecutor){
+        final String node = m_zk.createNode(m_znode, false, false);
+
+        prevData = null;
+        jobDigests.clear();
+        writtenVersions.clear();
+        writtenFrameworkVersion = -1;
+        manifests.clear();
+        initialState = readState(true);
+        if(initialState != null) {
+            log.log( Level.INFO, "Discovered previous state");
+        } else {
+            log.log( Level.INFO, "Previous state does not exist in Zookeeper");
+        }
+
+        startWriting(persistenceExecutor);
+        log.log(Level.INFO, "Finished Initializing DataMonitor");
+    }
+
+    /**
+     * Starts persisting the state of the framework on the given executor without reading the
+     * previous state. Used once a StateReplica has read it.
+     * @param persistenceExecutor
+     */
+    public void startWriting(ScheduledExecutorService persistenceExecutor) {
+        synchronized (flush_lock) {
+            this.persistenceExecutor = persistenceExecutor;
+            idleDelay = WRITE_DELAY;
+        }
+        scheduleFlush(WRITE_DELAY);
+    }
+
+    /**
+     * Returns the path of the node the state is stored under
+     * @return
+     */
+    String getStorageRoot() {
+        return m_znode;
+    }
+
+    /**
+     * Returns the id of the job stored in a child of the root node
+     * @param child : name of the child
+     * @return the id, or -1 if the child does not hold a job
+     */
+    static long jobIdOf(String child) {
+        if(!child.startsWith(JOB_NODE_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(child.substring(JOB_NODE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the state stored in the root node. The next write leaves the node alone if the
+     * state did not change.
+     * @return the state, or null if none is stored
+     */
+    JSONObject readFrameworkState() {
+        byte[] data = readSnapshot(m_znode);
+        if(data == null) {
+            return null;
+        }
+        try {
+            JSONObject state = new JSONObject(new String(data, "UTF-8"));
+            prevData = state.toString().getBytes("UTF-8");
+            return state;
+        } catch (JSONException | UnsupportedEncodingException e) {
+            log.log(Level.WARNING, "Ignoring unreadable state in " + m_znode + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the state of a job from a child of the root node. The job is not written again until
+     * it changes, like a job restored by initialize().
+     * @param child : name of the child
+     * @return the state, or null if the node does not hold a committed state
+     * @throws JSONException if the state is not valid JSON
+     */
+    JSONObject readJob(String child) throws KeeperException, InterruptedException {
+        String node = jobNode(child);
+        byte[] data = readSnapshots(Collections.singletonList(node)).get(node);
+        if(data == null) {
+            return null;
+        }
+        try {
+            JSONObject job = new JSONObject(new String(data, "UTF-8"));
+            long jobId = job.optLong(SimpleStatus.JOB_ID, -1);
+            if(jobId < 0) {
+                // Created to hold chunks but never committed
+                return null;
+            }
+            restored(jobId, job, data);
+            return job;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records that a job was read back and is held by a job at version 0. Jobs that are done or
+     * stopped go to the archive and are not written again, so nothing is recorded for them.
+     * @param jobId
+     * @param job : the state read
+     * @param data : the state as stored
+     */
+    private void restored(long jobId, JSONObject job, byte[] data) {
+        MagellanJob.JobState state = MagellanJob.stateOf(job);
+        if(state != null && state.isTerminal()) {
+            return;
+        }
+        jobDigests.put(jobId, digest(data));
+        writtenVersions.put(jobId, 0L);
+    }
+
+    /**
+     * Returns true if the node of a job holds a given version of its state
+     * @param jobId
+     * @param version : as returned by MagellanJob.getStateVersion()
+     * @return
+     */
+    boolean isWritten(long jobId, long version) {
+        Long written = writtenVersions.get(jobId);
+        return written != null && written == version;
+    }
+
+    /**
+     * Forgets what was written for a job that will not change anymore. Its node is left as is.
+     * @param jobId
+     */
+    void forget(long jobId) {
+        jobDigests.remove(jobId);
+        writtenVersions.remove(jobId);
+        journaledThrough.remove(jobId);
+    }
+
+    /**
+     * Moves the final state of a job to the archive node. The state and the status are written
+     * first, then the node of the job is deleted with its chunks. A leader that fails in between
+     * restores the job from its node and archives it again.
+     * @param jobId
+     * @param snapshot : the state of the job
+     * @param status : the simple status of the job
+     * @throws IOException if the job could not be archived. Its node may then be left as is.
+     */
+    @Override
+    public void archive(long jobId, String snapshot, JSONObject status) throws IOException {
+        try {
+            ZookeeperService.await(m_zk.createAsync(archiveRoot(), EMPTY_STATE));
+            writeArchived(archivedNode(STATUS_NODE_PREFIX, jobId), status.toString());
+            writeArchived(archivedNode(JOB_NODE_PREFIX, jobId), snapshot);
+
+            String node = jobNode(jobId);
+            List<Op> delete = new ArrayList<>();
+            try {
+                for(String chunk : ZookeeperService.await(m_zk.getChildrenAsync(node))) {
+                    delete.add(Op.delete(node + "/" + chunk, -1));
+                }
+                delete.add(Op.delete(node, -1));
+                m_zk.multi(delete);
+            } catch (KeeperException.NoNodeException e) {
+                // Archived from the root node of an earlier version, or already deleted
+            }
+            manifests.remove(node);
+        } catch (KeeperException e) {
+            throw new IOException("Failed to archive job " + jobId + " in Zookeeper: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while archiving job " + jobId);
+        }
+    }
+
+    private void writeArchived(String node, String state) throws KeeperException, InterruptedException {
         try {
+            writeSnapshot(node, state.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            // Archived nodes are written once
+            manifests.remove(node);
+        }
+    }
 
-            final String node = m_zk.createNode(m_znode, false, false);
-            byte[] retrievedState = m_zk.getData(m_znode);
+    /**
+     * Lists the jobs in the archive node
+     * @return the ids of the archived jobs
+     * @throws IOException
+     */
+    @Override
+    public Set<Long> listArchived() throws IOException {
+        Set<Long> jobIds = new HashSet<>();
+        try {
+            for(String child : ZookeeperService.await(m_zk.getChildrenAsync(archiveRoot()))) {
+                long jobId = jobIdOf(child);
+                if(jobId >= 0) {
+                    jobIds.add(jobId);
+                }
+            }
+        } catch (KeeperException.NoNodeException e) {
+            // Nothing was archived yet
+        } catch (KeeperException e) {
+            throw new IOException("Failed to list the archived jobs: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while listing the archived jobs");
+        }
+        return jobIds;
+    }
 
-            if(retrievedState!=null) {
+    /**
+     * Reads the status of archived jobs with pipelined requests
+     * @param jobIds
+     * @return the status of each job that has a readable one
+     * @throws IOException
+     */
+    @Override
+    public Map<Long, JSONObject> readArchivedStatuses(Collection<Long> jobIds) throws IOException {
+        List<String> nodes = new ArrayList<>();
+        for(long jobId : jobIds) {
+            nodes.add(archivedNode(STATUS_NODE_PREFIX, jobId));
+        }
+        Map<Long, JSONObject> statuses = new HashMap<>();
+        try {
+            for(Map.Entry<String, byte[]> status : readSnapshots(nodes).entrySet()) {
+                manifests.remove(status.getKey());
                 try {
-                    initialState = new JSONObject(new String(retrievedState, "US-ASCII"));
-                    prevData = initialState.toString().getBytes("UTF-8");
-                    log.log( Level.INFO, "Discovered previous state");
-                }catch (JSONException e){
-                    log.log( Level.INFO, "Previous state does not exist in Zookeeper");
-                    initialState = null;
-                    prevData = null;
-                }
-            }
-            // Create a thread that will write the system state of the magellan framework
-            // every couple seconds to zookeeper.
-            new Thread(){
-                public void run(){
-                    while(true) {
-                        try {
-                            Thread.sleep(WRITE_DELAY);
-                            persistState();
-                        } catch (InterruptedException e) {
-                            log.log(Level.SEVERE, e.getMessage());
-                        }
+                    JSONObject s = new JSONObject(new String(status.getValue(), "UTF-8"));
+                    statuses.put(s.getLong(SimpleStatus.JOB_ID), s);
+                } catch (JSONException e) {
+                    log.log(Level.SEVERE, "Ignoring unreadable status in " + status.getKey() + ": " + e.getMessage());
+                }
+            }
+        } catch (KeeperException e) {
+            throw new IOException("Failed to read the status of archived jobs: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the status of archived jobs");
+        }
+        return statuses;
+    }
+
+    /**
+     * Reads the final state of an archived job
+     * @param jobId
+     * @return the state, or null if the job is not archived or cannot be read
+     * @throws IOException
+     */
+    @Override
+    public JSONObject readArchivedSnapshot(long jobId) throws IOException {
+        String node = archivedNode(JOB_NODE_PREFIX, jobId);
+        byte[] data = readSnapshot(node);
+        manifests.remove(node);
+        if(data == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(new String(data, "UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException("Unreadable state in " + node + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the state of the framework and of every job from Zookeeper. The state of the jobs is
+     * added to the "jobs" of the state. A job stored both in a child and in the root node by an
+     * earlier version is taken from the child, which is written first.
+     * @param restoring : true if the state is read to be restored. The jobs read are then not
+     *                    written again until they change.
+     * @return the state, or null if none is stored
+     */
+    private JSONObject readState(boolean restoring) {
+        JSONObject state = null;
+        try {
+            byte[] retrievedState = readSnapshot(m_znode);
+            if(retrievedState != null) {
+                try {
+                    state = new JSONObject(new String(retrievedState, "UTF-8"));
+                    if(restoring) {
+                        prevData = state.toString().getBytes("UTF-8");
                     }
+                } catch (JSONException e) {
+                    log.log(Level.WARNING, "Ignoring unreadable state in " + m_znode + ": " + e.getMessage());
                 }
-            }.start();
-            log.log(Level.INFO, "Finished Initializing DataMonitor");
+            }
 
+            List<String> children = m_zk.getChildren(m_znode, false);
+            if(children == null || children.isEmpty()) {
+                return state;
+            }
+
+            // Jobs written by earlier versions come first so that the children replace them
+            Map<Long, JSONObject> jobs = new LinkedHashMap<>();
+            JSONArray legacyJobs = state == null ? null : state.optJSONArray(Persistence.JOBS);
+            if(legacyJobs != null) {
+                for(int i = 0; i < legacyJobs.length(); i++) {
+                    JSONObject job = legacyJobs.getJSONObject(i);
+                    jobs.put(job.getLong(SimpleStatus.JOB_ID), job);
+                }
+            }
+
+            List<String> jobNodes = new ArrayList<>();
+            for(String child : children) {
+                if(child.startsWith(JOB_NODE_PREFIX)) {
+                    jobNodes.add(jobNode(child));
+                }
+            }
+            Map<String, byte[]> stored = readSnapshots(jobNodes);
+            int restored = 0;
+            for(Map.Entry<String, byte[]> entry : stored.entrySet()) {
+                byte[] data = entry.getValue();
+                try {
+                    JSONObject job = new JSONObject(new String(data, "UTF-8"));
+                    long jobId = job.optLong(SimpleStatus.JOB_ID, -1);
+                    if(jobId < 0) {
+                        // Created to hold chunks but never committed
+                        continue;
+                    }
+                    jobs.put(jobId, job);
+                    restored++;
+                    if(restoring) {
+                        // Jobs restored by the framework start at version 0
+                        restored(jobId, job, data);
+                    }
+                } catch (JSONException e) {
+                    log.log(Level.SEVERE, "Ignoring unreadable state in " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+            if(restored == 0) {
+                return state;
+            }
+            log.log(Level.INFO, "Discovered the state of " + restored + " jobs");
+
+            JSONArray all = new JSONArray();
+            for(JSONObject job : jobs.values()) {
+                all.put(job);
+            }
+            if(state == null) {
+                state = new JSONObject();
+            }
+            state.put(Persistence.JOBS, all);
         } catch (UnsupportedEncodingException e) {
             log.log(Level.SEVERE, e.getMessage());
+        } catch (KeeperException | InterruptedException e) {
+            log.log(Level.SEVERE, "Failed to read the state of the jobs: " + e.getMessage());
+        }
+        return state;
+    }
+
+    /**
+     * Reads the state stored in a node and checks it against its checksum
+     * @param node
+     * @return the state, or null if the node is empty, missing or fails its checks
+     */
+    private byte[] readSnapshot(String node) {
+        byte[] data = m_zk.getData(node);
+        if(data == null || data.length == 0) {
+            return null;
+        }
+        if(!SnapshotCodec.isEncoded(data)) {
+            // Written by an earlier version
+            return data;
+        }
+        try {
+            SnapshotCodec.Manifest manifest = SnapshotCodec.readManifest(data);
+            List<byte[]> chunks = new ArrayList<>(manifest.getChunks());
+            for(String chunk : manifest.getChunkNames()) {
+                chunks.add(m_zk.getData(node + "/" + chunk));
+            }
+            byte[] state = SnapshotCodec.decode(manifest, chunks);
+            manifests.put(node, manifest);
+            return state;
+        } catch (IllegalArgumentException e) {
+            log.log(Level.SEVERE, "State stored in " + node + " is unreadable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the state stored in several nodes. The nodes are read with pipelined requests, then
+     * the chunks of all of them, so reading any number of nodes costs about two round trips.
+     * @param nodes
+     * @return the state of each node that holds a readable one, in the order of nodes
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private Map<String, byte[]> readSnapshots(List<String> nodes) throws KeeperException, InterruptedException {
+        Map<String, CompletableFuture<byte[]>> reads = new LinkedHashMap<>();
+        for(String node : nodes) {
+            reads.put(node, m_zk.getDataAsync(node));
+        }
+
+        Map<String, SnapshotCodec.Manifest> chunked = new HashMap<>();
+        Map<String, List<CompletableFuture<byte[]>>> chunkReads = new HashMap<>();
+        Map<String, byte[]> states = new LinkedHashMap<>();
+        for(Map.Entry<String, CompletableFuture<byte[]>> read : reads.entrySet()) {
+            String node = read.getKey();
+            byte[] data = ZookeeperService.await(read.getValue());
+            if(data == null || data.length == 0) {
+                continue;
+            }
+            if(!SnapshotCodec.isEncoded(data)) {
+                // Written by an earlier version
+                states.put(node, data);
+                continue;
+            }
+            try {
+                SnapshotCodec.Manifest manifest = SnapshotCodec.readManifest(data);
+                List<CompletableFuture<byte[]>> chunks = new ArrayList<>(manifest.getChunks());
+                for(String chunk : manifest.getChunkNames()) {
+                    chunks.add(m_zk.getDataAsync(node + "/" + chunk));
+                }
+                chunked.put(node, manifest);
+                chunkReads.put(node, chunks);
+                // Keeps the order of the nodes
+                states.put(node, null);
+            } catch (IllegalArgumentException e) {
+                log.log(Level.SEVERE, "State stored in " + node + " is unreadable: " + e.getMessage());
+            }
+        }
+
+        for(Map.Entry<String, SnapshotCodec.Manifest> entry : chunked.entrySet()) {
+            String node = entry.getKey();
+            List<byte[]> chunks = new ArrayList<>();
+            for(CompletableFuture<byte[]> chunk : chunkReads.get(node)) {
+                chunks.add(ZookeeperService.await(chunk));
+            }
+            try {
+                states.put(node, SnapshotCodec.decode(entry.getValue(), chunks));
+                manifests.put(node, entry.getValue());
+            } catch (IllegalArgumentException e) {
+                log.log(Level.SEVERE, "State stored in " + node + " is unreadable: " + e.getMessage());
+                states.remove(node);
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Writes a state to a node. Large states are written to chunks first and then committed by
+     * replacing the manifest and deleting the chunks of the previous version in one transaction.
+     * @param node
+     * @param data
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    private void writeSnapshot(String node, byte[] data) throws KeeperException, InterruptedException {
+        SnapshotCodec.Encoded encoded = encode(node, data);
+        List<byte[]> chunks = encoded.getChunks();
+        if(!chunks.isEmpty()) {
+            // The chunks are children of the node. An existing node keeps its state until the
+            // new manifest is committed.
+            m_zk.createNode(node, false, false);
+            for(int i = 0; i < chunks.size(); i++) {
+                m_zk.putData(chunkNode(node, encoded, i), chunks.get(i));
+            }
+        }
+
+        SnapshotCodec.Manifest prev = manifests.get(node);
+        byte[] manifest = encoded.getManifest().toByteArray();
+        if(prev == null || prev.getChunks() == 0) {
+            m_zk.putData(node, manifest);
+        } else {
+            m_zk.multi(commitOps(node, manifest, prev));
+        }
+        committed(node, encoded);
+    }
+
+    /**
+     * Writes the state of several nodes like writeSnapshot() does, with pipelined requests.
+     * The chunks of every node are written first, then the manifests.
+     * @param snapshots : state of each node
+     * @return the nodes that were written. The others failed and keep their previous state.
+     * @throws InterruptedException
+     */
+    private List<String> writeSnapshots(Map<String, byte[]> snapshots) throws InterruptedException {
+        Map<String, SnapshotCodec.Encoded> encoded = new LinkedHashMap<>();
+        Map<String, List<CompletableFuture<?>>> chunkWrites = new HashMap<>();
+        for(Map.Entry<String, byte[]> snapshot : snapshots.entrySet()) {
+            String node = snapshot.getKey();
+            SnapshotCodec.Encoded e = encode(node, snapshot.getValue());
+            encoded.put(node, e);
+            List<CompletableFuture<?>> writes = new ArrayList<>();
+            if(!e.getChunks().isEmpty()) {
+                writes.add(m_zk.createAsync(node, EMPTY_STATE));
+                for(int i = 0; i < e.getChunks().size(); i++) {
+                    writes.add(m_zk.putDataAsync(chunkNode(node, e, i), e.getChunks().get(i)));
+                }
+            }
+            chunkWrites.put(node, writes);
+        }
+
+        Map<String, CompletableFuture<?>> commits = new LinkedHashMap<>();
+        for(Map.Entry<String, SnapshotCodec.Encoded> entry : encoded.entrySet()) {
+            String node = entry.getKey();
+            try {
+                for(CompletableFuture<?> write : chunkWrites.get(node)) {
+                    ZookeeperService.await(write);
+                }
+            } catch (KeeperException e) {
+                log.log(Level.SEVERE, "Failed to write the chunks of " + node + ": " + e.getMessage());
+                continue;
+            }
+            SnapshotCodec.Manifest prev = manifests.get(node);
+            byte[] manifest = entry.getValue().getManifest().toByteArray();
+            if(prev == null || prev.getChunks() == 0) {
+                commits.put(node, m_zk.putDataAsync(node, manifest));
+            } else {
+                commits.put(node, m_zk.multiAsync(commitOps(node, manifest, prev)));
+            }
+        }
+
+        List<String> written = new ArrayList<>();
+        for(Map.Entry<String, CompletableFuture<?>> commit : commits.entrySet()) {
+            String node = commit.getKey();
+            try {
+                ZookeeperService.await(commit.getValue());
+                committed(node, encoded.get(node));
+                written.add(node);
+            } catch (KeeperException e) {
+                log.log(Level.SEVERE, "Failed to write state of " + node + ": " + e.getMessage());
+            }
+        }
+        return written;
+    }
+
+    private static final byte[] EMPTY_STATE = "{}".getBytes();
+
+    private SnapshotCodec.Encoded encode(String node, byte[] data) {
+        SnapshotCodec.Manifest prev = manifests.get(node);
+        long version = prev == null ? 1 : prev.getSnapshotVersion() + 1;
+        return SnapshotCodec.encode(data, version, chunkSize);
+    }
+
+    private static String chunkNode(String node, SnapshotCodec.Encoded encoded, int index) {
+        return node + "/" + SnapshotCodec.chunkName(encoded.getManifest().getSnapshotVersion(), index);
+    }
+
+    private static List<Op> commitOps(String node, byte[] manifest, SnapshotCodec.Manifest prev) {
+        List<Op> commit = new ArrayList<>();
+        commit.add(Op.setData(node, manifest, -1));
+        for(String chunk : prev.getChunkNames()) {
+            commit.add(Op.delete(node + "/" + chunk, -1));
+        }
+        return commit;
+    }
+
+    private void committed(String node, SnapshotCodec.Encoded encoded) {
+        manifests.put(node, encoded.getManifest());
+        if(!encoded.getChunks().isEmpty()) {
+            log.log(Level.INFO, "Wrote state of " + node + " in " + encoded.getChunks().size() + " chunks");
+        }
+    }
+
+    /**
+     * Sets the journal that is compacted every time a snapshot is written
+     * @param journal : may be null
+     */
+    public void setJournal(CompletionJournal journal) {
+        this.journal = journal;
+        if(journal != null) {
+            // A filling journal is compacted by the next write
+            journal.setFlushListener(() -> requestFlush(true));
+        }
+    }
+
+    /**
+     * Sets the largest number of bytes written to a single node
+     * @param chunkSize
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    private String jobNode(String child) {
+        return m_znode + "/" + child;
+    }
+
+    private String jobNode(long jobId) {
+        return jobNode(JOB_NODE_PREFIX + jobId);
+    }
+
+    private String archiveRoot() {
+        return m_znode + "/" + ARCHIVE_NODE;
+    }
+
+    private String archivedNode(String prefix, long jobId) {
+        return archiveRoot() + "/" + prefix + jobId;
+    }
+
+    /**
+     * Writes the parts of the state of the framework that changed since they were last written.
+     * Only the jobs whose version changed are serialized. The records journaled before the
+     * snapshots were taken are then dropped from the journal, up to the last write of any job
+     * whose node could not be written.
+     * @return true if any node was written
+     */
+    public boolean persistState(){
+        JSONObject frameworkState = mframework.getFrameworkState();
+        if(frameworkState == null) {
+            return false;
+        }
+        CompletionJournal j = journal;
+        long journaled = j == null ? 0 : j.getLastSequence();
+        // Versions are read before the snapshots. A change made while a snapshot is taken moves
+        // the version again and is written the next time.
+        long frameworkVersion = mframework.getStateVersion();
+        Map<Long, Long> versions = mframework.getJobVersions();
+
+        Map<Long, JSONObject> changed = new LinkedHashMap<>();
+        if(versions != null) {
+            for(Map.Entry<Long, Long> version : versions.entrySet()) {
+                Long written = writtenVersions.get(version.getKey());
+                if(written != null && written.equals(version.getValue())) {
+                    continue;
+                }
+                JSONObject job = mframework.getJobSnapshot(version.getKey());
+                if(job != null) {
+                    changed.put(version.getKey(), job);
+                }
+            }
+        }
+
+        boolean written = false;
+        try {
+            if(frameworkVersion != writtenFrameworkVersion && writeRoot(frameworkState) != null) {
+                writtenFrameworkVersion = frameworkVersion;
+                written = true;
+            }
+            Map<Long, Boolean> persisted = writeJobs(changed.values());
+            for(Map.Entry<Long, Boolean> job : persisted.entrySet()) {
+                writtenVersions.put(job.getKey(), versions.get(job.getKey()));
+                written |= job.getValue();
+            }
+            if(j != null) {
+                // The records of a job whose write failed are kept from its last write on, so
+                // that one failing job holds back the journal but does not stop its compaction
+                long through = journaled;
+                for(Long jobId : changed.keySet()) {
+                    if(!persisted.containsKey(jobId)) {
+                        through = Math.min(through, journaledThrough.getOrDefault(jobId, compactedThrough));
+                    }
+                }
+                for(Long jobId : persisted.keySet()) {
+                    journaledThrough.put(jobId, journaled);
+                }
+                j.compact(through);
+                compactedThrough = Math.max(compactedThrough, through);
+            }
+        } catch (UnsupportedEncodingException | InterruptedException | KeeperException e) {
+            log.log(Level.SEVERE, e.getMessage());
         }
+        return written;
+    }
+
+    /**
+     * Asks for the state to be written soon
+     * @param urgent : true to write within URGENT_DELAY milliseconds, otherwise within
+     *                 COMMIT_DELAY milliseconds together with the changes that follow
+     */
+    public void requestFlush(boolean urgent) {
+        scheduleFlush(urgent ? URGENT_DELAY : COMMIT_DELAY);
     }
 
     /**
-     * Wrapper that writes current state of framework to zookeeper
-     * Used during testing
+     * Schedules a write unless one is already scheduled to run earlier
+     * @param delayMillis
      */
-    public void persistState(){
-        writeState(mframework.getVerboseSystemInfo());
+    private void scheduleFlush(long delayMillis) {
+        synchronized (flush_lock) {
+            if(persistenceExecutor == null) {
+                return;
+            }
+            long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            if(nextFlush != null) {
+                if(nextFlushAt - at <= 0) {
+                    return;
+                }
+                nextFlush.cancel(false);
+            }
+            try {
+                nextFlush = persistenceExecutor.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+                nextFlushAt = at;
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                nextFlush = null;
+            }
+        }
+    }
+
+    private void flush() {
+        synchronized (flush_lock) {
+            // Changes made from now on schedule another write
+            nextFlush = null;
+        }
+        long delay;
+        try {
+            boolean written = persistState();
+            synchronized (flush_lock) {
+                // Check less often while nothing changes
+                idleDelay = written ? WRITE_DELAY : Math.min(MAX_IDLE_DELAY, idleDelay * 2);
+                delay = idleDelay;
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Failed to persist state: " + e.getMessage());
+            delay = WRITE_DELAY;
+        }
+        scheduleFlush(delay);
+    }
+
+    /**
+     * Returns the delay until the next scheduled write, or -1 if none is scheduled
+     * @return
+     */
+    long getNextFlushDelay() {
+        synchronized (flush_lock) {
+            if(nextFlush == null) {
+                return -1;
+            }
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(nextFlushAt - System.nanoTime()));
+        }
     }
 
     /**
@@ -101,42 +881,42 @@ public class DataMonitor implements Watcher{
      *                            into a JSONObject.
      */
     public JSONObject getLatestStoredState(){
-        if(prevData == null){
-            return null;
-        }
-
-        try {
-            return new JSONObject(new String(prevData, "US-ASCII"));
-        } catch (UnsupportedEncodingException e) {
-            log.log(Level.SEVERE, e.getMessage());
-        }
-        return null;
+        return readState(false);
     }
 
     /**
-     * Synchronous method that writes state to the Zookeeper node if it is different
-     * than the last state written to the node. If it is the same, or if state is
-     * null, than the method returns without doing anything.
+     * Synchronous method that writes state to the Zookeeper nodes if it is different
+     * than the last state written to the nodes. Each job in the "jobs" of the state is
+     * written to its own node, and only if it changed. The rest of the state is written
+     * to the root node after the jobs. If nothing changed, or if state is null, than the
+     * method returns without doing anything.
      *
-     * Note
-     * @param state    JSONObject : state to be written
+     * @param state    JSONObject : state to be written, as returned by getVerboseSystemInfo()
+     * @return true if any node was written
      */
     public boolean writeState(JSONObject state) {
         if (state == null){
             return false;
         }
 
+        boolean written = false;
         try {
-            byte newData[] = state.toString().getBytes("UTF-8");
-            int empty_size = new JSONObject().toString().getBytes().length;
+            JSONArray jobs = state.optJSONArray(Persistence.JOBS);
+            if(jobs != null) {
+                List<JSONObject> all = new ArrayList<>();
+                for(int i = 0; i < jobs.length(); i++) {
+                    all.add(jobs.getJSONObject(i));
+                }
+                written = writeJobs(all).containsValue(true);
+            }
 
-            // Record changes only if the state has changed
-            if((prevData == null || !Arrays.equals(prevData, newData)) && empty_size<newData.length) {
-                log.log(Level.INFO, "Writing state to Zookeeper. Size of " + newData.length);
-                m_zk.setData(m_znode, newData);
-                prevData = newData;
-                return true;
+            JSONObject root = new JSONObject();
+            for(String key : state.keySet()) {
+                if(!key.equals(Persistence.JOBS)) {
+                    root.put(key, state.get(key));
+                }
             }
+            written |= writeRoot(root) == Boolean.TRUE;
         } catch (UnsupportedEncodingException e) {
             log.log(Level.SEVERE, e.getMessage());
         } catch (InterruptedException e) {
@@ -144,7 +924,76 @@ public class DataMonitor implements Watcher{
         } catch (KeeperException e) {
             log.log(Level.SEVERE, e.getMessage());
         }
-        return false;
+        return written;
+    }
+
+    /**
+     * Writes the state of the framework, without its jobs, to the root node if it changed
+     * @param root
+     * @return true if the node was written, false if it holds this state already, null if
+     *         the state is empty and was not written
+     */
+    private Boolean writeRoot(JSONObject root) throws UnsupportedEncodingException, KeeperException, InterruptedException {
+        byte newData[] = root.toString().getBytes("UTF-8");
+        int empty_size = new JSONObject().toString().getBytes().length;
+        if(empty_size >= newData.length) {
+            return null;
+        }
+        // Record changes only if the state has changed
+        if(prevData != null && Arrays.equals(prevData, newData)) {
+            return false;
+        }
+        log.log(Level.INFO, "Writing state to Zookeeper. Size of " + newData.length);
+        writeSnapshot(m_znode, newData);
+        prevData = newData;
+        return true;
+    }
+
+    /**
+     * Writes the state of the jobs that changed since they were last written to their nodes
+     * @param jobs : snapshots of the jobs
+     * @return for each job whose node now holds its state, true if the node was written and
+     *         false if it held the state already. Jobs that failed to be written are missing and
+     *         are tried again with the next write.
+     */
+    private Map<Long, Boolean> writeJobs(Iterable<JSONObject> jobs) throws UnsupportedEncodingException, InterruptedException {
+        Map<Long, Boolean> persisted = new HashMap<>();
+        Map<String, byte[]> snapshots = new LinkedHashMap<>();
+        Map<String, Long> ids = new HashMap<>();
+        Map<Long, byte[]> digests = new HashMap<>();
+        for(JSONObject job : jobs) {
+            long jobId = job.getLong(SimpleStatus.JOB_ID);
+            byte newData[] = job.toString().getBytes("UTF-8");
+            byte digest[] = digest(newData);
+            if(Arrays.equals(jobDigests.get(jobId), digest)) {
+                persisted.put(jobId, false);
+                continue;
+            }
+            String node = jobNode(jobId);
+            log.log(Level.FINE, "Writing state of job " + jobId + " to Zookeeper. Size of " + newData.length);
+            snapshots.put(node, newData);
+            ids.put(node, jobId);
+            digests.put(jobId, digest);
+        }
+        if(snapshots.isEmpty()) {
+            return persisted;
+        }
+
+        for(String node : writeSnapshots(snapshots)) {
+            long jobId = ids.get(node);
+            jobDigests.put(jobId, digests.get(jobId));
+            persisted.put(jobId, true);
+        }
+        return persisted;
+    }
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform provides SHA-1
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
@@ -0,0 +1,330 @@
+package org.magellan.faleiro;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.magellan.faleiro.JsonTags.History;
+
+/**
+ * Time series of the fitness scores returned by the tasks of a job.
+ *
+ * Samples are appended to fixed size chunks of primitive arrays, so a job with many tasks does not
+ * keep a boxed object per sample. Every chunk keeps the min and sum of each block of BLOCK_SIZE
+ * samples and of the whole chunk. Range queries add up these rollups and only touch raw samples
+ * at the edges of a bucket.
+ *
+ * Timestamps never decrease, so samples can be looked up by time with a binary search.
+ */
+public class EnergyHistory {
+
+    static final int CHUNK_SIZE = 1024;
+    static final int BLOCK_SIZE = 64;
+    private static final int BLOCKS_PER_CHUNK = CHUNK_SIZE / BLOCK_SIZE;
+
+    // Upper bound on the number of buckets returned by a single query
+    public static final int MAX_POINTS = 1000;
+
+    // Version of the format written by encode()
+    private static final byte ENCODING_VERSION = 1;
+
+    private static class Chunk {
+        final long[] times = new long[CHUNK_SIZE];
+        final double[] values = new double[CHUNK_SIZE];
+        final double[] blockMin = new double[BLOCKS_PER_CHUNK];
+        final double[] blockSum = new double[BLOCKS_PER_CHUNK];
+        double min = Double.POSITIVE_INFINITY;
+        double sum = 0;
+        int size = 0;
+
+        Chunk() {
+            Arrays.fill(blockMin, Double.POSITIVE_INFINITY);
+        }
+    }
+
+    // Running aggregate of a range of samples
+    private static class Aggregate {
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double sum = 0;
+
+        void add(double value) {
+            add(value, value, 1);
+        }
+
+        void add(double min, double sum, int count) {
+            this.count += count;
+            this.min = Math.min(this.min, min);
+            this.sum += sum;
+        }
+    }
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    private int size = 0;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Appends a sample. A timestamp earlier than the previous sample's is moved up to it.
+     * @param time : milliseconds since the epoch
+     * @param value
+     */
+    public synchronized void add(long time, double value) {
+        if(size > 0) {
+            time = Math.max(time, timeAt(size - 1));
+        }
+        if(size % CHUNK_SIZE == 0) {
+            chunks.add(new Chunk());
+        }
+        Chunk c = chunks.get(chunks.size() - 1);
+        int offset = c.size;
+        int block = offset / BLOCK_SIZE;
+        c.times[offset] = time;
+        c.values[offset] = value;
+        c.blockMin[block] = Math.min(c.blockMin[block], value);
+        c.blockSum[block] += value;
+        c.min = Math.min(c.min, value);
+        c.sum += value;
+        c.size++;
+        size++;
+        max = Math.max(max, value);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private long timeAt(int index) {
+        return chunks.get(index / CHUNK_SIZE).times[index % CHUNK_SIZE];
+    }
+
+    private double valueAt(int index) {
+        return chunks.get(index / CHUNK_SIZE).values[index % CHUNK_SIZE];
+    }
+
+    /**
+     * Returns the index of the first sample taken at or after the given time
+     * @param time
+     * @return
+     */
+    private int lowerBound(long time) {
+        int lo = 0;
+        int hi = size;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(timeAt(mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Adds up the samples in [lo, hi), using the chunk and block rollups wherever a whole
+     * chunk or block is covered
+     */
+    private Aggregate aggregate(int lo, int hi) {
+        Aggregate agg = new Aggregate();
+        int i = lo;
+        while(i < hi) {
+            Chunk c = chunks.get(i / CHUNK_SIZE);
+            int offset = i % CHUNK_SIZE;
+            if(offset == 0 && c.size == CHUNK_SIZE && i + CHUNK_SIZE <= hi) {
+                agg.add(c.min, c.sum, CHUNK_SIZE);
+                i += CHUNK_SIZE;
+            } else if(offset % BLOCK_SIZE == 0 && offset + BLOCK_SIZE <= c.size && i + BLOCK_SIZE <= hi) {
+                int block = offset / BLOCK_SIZE;
+                agg.add(c.blockMin[block], c.blockSum[block], BLOCK_SIZE);
+                i += BLOCK_SIZE;
+            } else {
+                agg.add(c.values[offset]);
+                i++;
+            }
+        }
+        return agg;
+    }
+
+    /**
+     * Returns the samples between two points in time, downsampled to at most the given number of
+     * equally sized time buckets. Buckets without samples are left out.
+     * @param from : start of the range in milliseconds since the epoch, inclusive
+     * @param to : end of the range in milliseconds since the epoch, inclusive
+     * @param points : maximum number of buckets, capped at MAX_POINTS
+     * @return
+     */
+    public synchronized JSONObject query(long from, long to, int points) {
+        JSONObject result = new JSONObject();
+        JSONArray buckets = new JSONArray();
+        points = Math.max(1, Math.min(points, MAX_POINTS));
+
+        if(size > 0) {
+            // Do not spread the buckets over time where there can be no samples
+            from = Math.max(from, timeAt(0));
+            to = Math.min(to, timeAt(size - 1));
+        }
+        result.put(History.FROM, from);
+        result.put(History.TO, to);
+
+        if(size > 0 && from <= to) {
+            long span = to - from + 1;
+            long width = Math.max(1, (span + points - 1) / points);
+            int lo = lowerBound(from);
+            for(long start = from; start <= to && lo < size; start += width) {
+                long end = Math.min(to, start + width - 1);
+                int hi = end == Long.MAX_VALUE ? size : lowerBound(end + 1);
+                if(hi > lo) {
+                    Aggregate agg = aggregate(lo, hi);
+                    JSONObject bucket = new JSONObject();
+                    bucket.put(History.TIME, start);
+                    bucket.put(History.COUNT, agg.count);
+                    bucket.put(History.MIN, agg.min);
+                    bucket.put(History.MEAN, agg.sum / agg.count);
+                    buckets.put(bucket);
+                }
+                lo = hi;
+                if(end == to) {
+                    break;
+                }
+            }
+        }
+        result.put(History.BUCKETS, buckets);
+        return result;
+    }
+
+    /**
+     * Returns at most the given number of values, in the order they were added. If there are more
+     * samples, consecutive samples are averaged.
+     * @param points
+     * @return
+     */
+    public synchronized JSONArray downsample(int points) {
+        JSONArray values = new JSONArray();
+        if(size <= points) {
+            for(int i = 0; i < size; i++) {
+                values.put(valueAt(i));
+            }
+            return values;
+        }
+        int width = (size + points - 1) / points;
+        for(int lo = 0; lo < size; lo += width) {
+            Aggregate agg = aggregate(lo, Math.min(size, lo + width));
+            values.put(agg.sum / agg.count);
+        }
+        return values;
+    }
+
+    /**
+     * Returns a fixed size summary of the whole series
+     * @return
+     */
+    public synchronized JSONObject getSummary() {
+        JSONObject summary = new JSONObject();
+        summary.put(History.COUNT, size);
+        if(size > 0) {
+            Aggregate agg = aggregate(0, size);
+            summary.put(History.MIN, agg.min);
+            summary.put(History.MAX, max);
+            summary.put(History.MEAN, agg.sum / agg.count);
+            summary.put(History.FROM, timeAt(0));
+            summary.put(History.TO, timeAt(size - 1));
+        }
+        return summary;
+    }
+
+    /**
+     * Encodes every sample into a compact, Base64 string that can be stored in a JSON snapshot.
+     * Timestamps are stored as variable length deltas and values as 8 byte doubles.
+     * @return
+     */
+    public synchronized String encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + size * 10);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ENCODING_VERSION);
+            out.writeInt(size);
+            long prev = 0;
+            for(int i = 0; i < size; i++) {
+                long time = timeAt(i);
+                writeVarLong(out, time - prev);
+                out.writeDouble(valueAt(i));
+                prev = time;
+            }
+            out.flush();
+            return Base64.getEncoder().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes a series written by encode()
+     * @param encoded
+     * @return
+     * @throws IllegalArgumentException if the string is not a valid encoding
+     */
+    public static EnergyHistory decode(String encoded) {
+        EnergyHistory history = new EnergyHistory();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoded)));
+            byte version = in.readByte();
+            if(version != ENCODING_VERSION) {
+                throw new IllegalArgumentException("Unknown energy history encoding version " + version);
+            }
+            int count = in.readInt();
+            long time = 0;
+            for(int i = 0; i < count; i++) {
+                time += readVarLong(in);
+                history.add(time, in.readDouble());
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated energy history", e);
+        }
+        return history;
+    }
+
+    /**
+     * Builds a series from the plain array of energies persisted by earlier versions. Those did
+     * not record when each sample was taken, so every sample gets the same timestamp.
+     * @param values
+     * @param time
+     * @return
+     */
+    public static EnergyHistory fromLegacy(JSONArray values, long time) {
+        EnergyHistory history = new EnergyHistory();
+        for(int i = 0; i < values.length(); i++) {
+            history.add(time, values.getDouble(i));
+        }
+        return history;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+}
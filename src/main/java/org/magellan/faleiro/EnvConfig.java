@@ -0,0 +1,71 @@
+package org.magellan.faleiro;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads tunable parameters of the scheduler from environment variables. Every lookup takes a
+ * default which is used when the variable is not set or cannot be parsed.
+ */
+public class EnvConfig {
+    private static final Logger log = Logger.getLogger(EnvConfig.class.getName());
+
+    /**
+     * Returns the value of an environment variable as a long
+     * @param name : Name of the environment variable
+     * @param defaultValue : Value returned if the variable is missing or malformed
+     * @return
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.log(Level.WARNING, "Invalid value for " + name + ": " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of an environment variable as an int
+     * @param name : Name of the environment variable
+     * @param defaultValue : Value returned if the variable is missing or malformed
+     * @return
+     */
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * Returns the value of an environment variable as a double
+     * @param name : Name of the environment variable
+     * @param defaultValue : Value returned if the variable is missing or malformed
+     * @return
+     */
+    public static double getDouble(String name, double defaultValue) {
+        String value = System.getenv(name);
+        if(value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.log(Level.WARNING, "Invalid value for " + name + ": " + value + ". Using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of an environment variable
+     * @param name : Name of the environment variable
+     * @param defaultValue : Value returned if the variable is missing
+     * @return
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return (value == null || value.isEmpty()) ? defaultValue : value;
+    }
+}
@@ -0,0 +1,183 @@
+package org.magellan.faleiro;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Owns every thread the framework runs on. Each kind of work gets its own named executor so that
+ * the pool sizes and queue depths can be reported to operators, and so that everything can be
+ * shut down in one place.
+ *
+ * Jobs do not get a thread of their own. Their task generation runs as short steps on a shared,
+ * bounded pool, so the number of jobs is independent of the number of threads.
+ */
+public class ExecutionEngine {
+    private static final Logger log = Logger.getLogger(ExecutionEngine.class.getName());
+
+    // Executors in the order they were created. Shut down in reverse order.
+    private final Map<String, ThreadPoolExecutor> executors = new LinkedHashMap<>();
+
+    private final AtomicBoolean shutdown = new AtomicBoolean(false);
+
+    /**
+     * Creates a named pool with a fixed number of threads. When both the threads and the queue are
+     * busy, the submitting thread runs the work itself.
+     * @param name : prefix of the thread names and key in the statistics
+     * @param threads
+     * @param queueSize : maximum number of queued tasks
+     * @return
+     */
+    public synchronized ThreadPoolExecutor newExecutor(String name, int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                threadFactory(name),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        register(name, executor);
+        return executor;
+    }
+
+    /**
+     * Creates a named pool with a fixed number of threads. When both the threads and the queue are
+     * busy, the submitting thread waits for room in the queue, so work is always run by the pool
+     * in the order it was submitted.
+     * @param name : prefix of the thread names and key in the statistics
+     * @param threads
+     * @param queueSize : maximum number of queued tasks
+     * @return
+     */
+    public synchronized ThreadPoolExecutor newBlockingExecutor(String name, int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                threadFactory(name),
+                (r, e) -> {
+                    if(e.isShutdown()) {
+                        throw new RejectedExecutionException("Executor " + name + " is shut down");
+                    }
+                    try {
+                        e.getQueue().put(r);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for room in " + name, ie);
+                    }
+                });
+        register(name, executor);
+        return executor;
+    }
+
+    /**
+     * Creates a named pool for periodic work
+     * @param name : prefix of the thread names and key in the statistics
+     * @param threads
+     * @return
+     */
+    public synchronized ScheduledThreadPoolExecutor newScheduledExecutor(String name, int threads) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, threadFactory(name));
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        register(name, executor);
+        return executor;
+    }
+
+    private void register(String name, ThreadPoolExecutor executor) {
+        if(executors.containsKey(name)) {
+            throw new IllegalArgumentException("Executor already exists: " + name);
+        }
+        executors.put(name, executor);
+        log.log(Level.CONFIG, "Created executor " + name + " with " + executor.getCorePoolSize() + " threads");
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "magellan-" + name + "-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler((thread, e) ->
+                    log.log(Level.SEVERE, "Uncaught exception on " + thread.getName() + ": " + e));
+            return t;
+        };
+    }
+
+    /**
+     * Returns the size, activity and queue depth of every executor
+     * @return
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for(Map.Entry<String, ThreadPoolExecutor> e : executors.entrySet()) {
+            ThreadPoolExecutor executor = e.getValue();
+            JSONObject s = new JSONObject();
+            s.put(Stats.POOL_SIZE, executor.getPoolSize());
+            s.put(Stats.MAX_POOL_SIZE, executor.getMaximumPoolSize());
+            s.put(Stats.ACTIVE_THREADS, executor.getActiveCount());
+            s.put(Stats.QUEUE_DEPTH, executor.getQueue().size());
+            s.put(Stats.QUEUE_REMAINING, executor.getQueue().remainingCapacity());
+            s.put(Stats.COMPLETED_TASKS, executor.getCompletedTaskCount());
+            stats.put(e.getKey(), s);
+        }
+        return stats;
+    }
+
+    /**
+     * Registers a JVM shutdown hook that runs the given action and then shuts the engine down
+     * @param beforeShutdown : run first, e.g. to stop the mesos driver. May be null.
+     * @param timeoutMillis : how long to wait for each executor to drain
+     */
+    public void registerShutdownHook(final Runnable beforeShutdown, final long timeoutMillis) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(beforeShutdown != null) {
+                beforeShutdown.run();
+            }
+            shutdown(timeoutMillis);
+        }, "magellan-shutdown"));
+    }
+
+    /**
+     * Stops every executor, newest first, and waits up to timeoutMillis for each to finish the
+     * work it already accepted. Executors that do not finish in time are interrupted.
+     * Calling this more than once has no effect.
+     * @param timeoutMillis
+     */
+    public void shutdown(long timeoutMillis) {
+        if(!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+        ThreadPoolExecutor[] all;
+        String[] names;
+        synchronized (this) {
+            all = executors.values().toArray(new ThreadPoolExecutor[0]);
+            names = executors.keySet().toArray(new String[0]);
+        }
+        for(int i = all.length - 1; i >= 0; i--) {
+            all[i].shutdown();
+            try {
+                if(!all[i].awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    log.log(Level.WARNING, "Executor " + names[i] + " did not finish in time. Interrupting it");
+                    all[i].shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                all[i].shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.log(Level.INFO, "Execution engine shut down");
+    }
+
+    public boolean isShutdown() {
+        return shutdown.get();
+    }
+}
@@ -0,0 +1,284 @@
+package org.magellan.faleiro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Queueing layer that sits between the jobs and Fenzo. Every job has its own PendingTaskIndex and
+ * the window handed to Fenzo each cycle is filled using weighted Dominant Resource Fairness (DRF):
+ * the next task always comes from the job with the lowest dominant share divided by its weight.
+ *
+ * The dominant share of a job is the larger of its share of the cluster's cpus and of its memory,
+ * counting both the tasks it has running and the tasks already picked for the current window. The
+ * size of the cluster is estimated from the offers Mesos sends. Until it is known, shares are
+ * computed on the raw number of cpus in use.
+ *
+ * A job that has just been created has nothing running, so its first tasks are at the front of the
+ * next window even if other jobs have a large backlog. Paused jobs, whose share drops as their
+ * tasks finish, are left out of the window until they are resumed.
+ */
+public class FairShareQueue {
+
+    private static class JobQueue {
+        final long jobId;
+        final PendingTaskIndex tasks = new PendingTaskIndex();
+        double weight = 1.0;
+        double taskCpus = 0;
+        double taskMem = 0;
+        int runningTasks = 0;
+        // Paused jobs keep their pending tasks but are left out of the window
+        boolean paused = false;
+
+        // Number of tasks picked for the window currently being built
+        int picked = 0;
+
+        JobQueue(long jobId) {
+            this.jobId = jobId;
+        }
+    }
+
+    private final Map<Long, JobQueue> queues = new HashMap<>();
+    private final Map<String, Double> hostCpus = new HashMap<>();
+    private final Map<String, Double> hostMem = new HashMap<>();
+    private double totalCpus = 0;
+    private double totalMem = 0;
+    private int size = 0;
+
+    private JobQueue queue(long jobId) {
+        JobQueue q = queues.get(jobId);
+        if(q == null) {
+            q = new JobQueue(jobId);
+            queues.put(jobId, q);
+        }
+        return q;
+    }
+
+    /**
+     * Sets the weight of a job. A job with twice the weight of another is entitled to twice
+     * its share of the cluster.
+     * @param jobId
+     * @param weight : must be greater than 0
+     */
+    public synchronized void setWeight(long jobId, double weight) {
+        if(weight <= 0) {
+            throw new IllegalArgumentException("Job weight must be positive: " + weight);
+        }
+        queue(jobId).weight = weight;
+    }
+
+    /**
+     * Keeps the pending tasks of a job out of the window while it is paused
+     * @param jobId
+     * @param paused
+     */
+    public synchronized void setPaused(long jobId, boolean paused) {
+        if(paused) {
+            queue(jobId).paused = true;
+        } else {
+            JobQueue q = queues.get(jobId);
+            if(q != null) {
+                q.paused = false;
+            }
+        }
+    }
+
+    public synchronized double getWeight(long jobId) {
+        JobQueue q = queues.get(jobId);
+        return q == null ? 1.0 : q.weight;
+    }
+
+    /**
+     * Adds a pending task to the queue of its job
+     * @param jobId
+     * @param task
+     */
+    public synchronized void add(long jobId, MagellanTaskRequest task) {
+        JobQueue q = queue(jobId);
+        if(q.tasks.get(task.getId()) == null) {
+            size++;
+        }
+        q.tasks.add(task);
+        q.taskCpus = task.getCPUs();
+        q.taskMem = task.getMemory();
+    }
+
+    /**
+     * Returns a pending task
+     * @param jobId
+     * @param taskId
+     * @return the task or null if it is not pending
+     */
+    public synchronized MagellanTaskRequest get(long jobId, String taskId) {
+        JobQueue q = queues.get(jobId);
+        return q == null ? null : q.tasks.get(taskId);
+    }
+
+    /**
+     * Removes a pending task from the queue of its job
+     * @param jobId
+     * @param taskId
+     * @return the removed task or null if it was not pending
+     */
+    public synchronized MagellanTaskRequest remove(long jobId, String taskId) {
+        JobQueue q = queues.get(jobId);
+        if(q == null) {
+            return null;
+        }
+        MagellanTaskRequest task = q.tasks.remove(taskId);
+        if(task != null) {
+            size--;
+        }
+        return task;
+    }
+
+    /**
+     * Drops every pending task of a job
+     * @param jobId
+     * @return the ids of the tasks that were removed
+     */
+    public synchronized List<String> removeJob(long jobId) {
+        JobQueue q = queues.get(jobId);
+        if(q == null) {
+            return Collections.emptyList();
+        }
+        List<String> removed = new ArrayList<>();
+        q.tasks.removeIf(t -> removed.add(t.getId()));
+        size -= removed.size();
+        return removed;
+    }
+
+    /**
+     * Forgets a job that will not queue tasks anymore. Its queue is kept while it still has
+     * pending or running tasks.
+     * @param jobId
+     * @return true if the job is gone
+     */
+    public synchronized boolean forgetJob(long jobId) {
+        JobQueue q = queues.get(jobId);
+        if(q == null) {
+            return true;
+        }
+        if(!q.tasks.isEmpty() || q.runningTasks > 0) {
+            return false;
+        }
+        queues.remove(jobId);
+        return true;
+    }
+
+    /**
+     * Records that a task of the job has been launched and now counts against its share
+     * @param jobId
+     */
+    public synchronized void taskLaunched(long jobId) {
+        queue(jobId).runningTasks++;
+    }
+
+    /**
+     * Records that a launched task of the job has terminated
+     * @param jobId
+     */
+    public synchronized void taskFinished(long jobId) {
+        JobQueue q = queues.get(jobId);
+        if(q != null && q.runningTasks > 0) {
+            q.runningTasks--;
+        }
+    }
+
+    /**
+     * Updates the estimate of the size of the cluster with the resources one host has offered.
+     * The largest amount ever offered by a host is taken as its capacity.
+     * @param hostname
+     * @param cpus
+     * @param mem
+     */
+    public synchronized void updateCapacity(String hostname, double cpus, double mem) {
+        Double prevCpus = hostCpus.get(hostname);
+        if(prevCpus == null || cpus > prevCpus) {
+            totalCpus += cpus - (prevCpus == null ? 0 : prevCpus);
+            hostCpus.put(hostname, cpus);
+        }
+        Double prevMem = hostMem.get(hostname);
+        if(prevMem == null || mem > prevMem) {
+            totalMem += mem - (prevMem == null ? 0 : prevMem);
+            hostMem.put(hostname, mem);
+        }
+    }
+
+    private double weightedShare(JobQueue q) {
+        int tasks = q.runningTasks + q.picked;
+        double share;
+        if(totalCpus > 0 && totalMem > 0) {
+            share = Math.max(tasks * q.taskCpus / totalCpus, tasks * q.taskMem / totalMem);
+        } else {
+            share = tasks * q.taskCpus;
+        }
+        return share / q.weight;
+    }
+
+    /**
+     * Builds the window of tasks that are handed to Fenzo in the next cycle using weighted DRF.
+     * Tasks appear in the order in which they should be placed. They stay pending until they
+     * are removed.
+     * @param maxTasks : upper bound on the size of the window
+     * @return
+     */
+    public synchronized List<MagellanTaskRequest> nextWindow(int maxTasks) {
+        List<MagellanTaskRequest> window = new ArrayList<>(Math.min(maxTasks, size));
+        PriorityQueue<JobQueue> byShare = new PriorityQueue<>((a, b) -> {
+            int c = Double.compare(weightedShare(a), weightedShare(b));
+            return c != 0 ? c : Long.compare(a.jobId, b.jobId);
+        });
+        for(JobQueue q : queues.values()) {
+            q.picked = 0;
+            if(!q.tasks.isEmpty() && !q.paused) {
+                byShare.add(q);
+            }
+        }
+
+        while(window.size() < maxTasks && !byShare.isEmpty()) {
+            JobQueue q = byShare.poll();
+            window.addAll(q.tasks.nextWindow(1));
+            q.picked++;
+            if(q.picked < q.tasks.size()) {
+                byShare.add(q);
+            }
+        }
+
+        for(JobQueue q : queues.values()) {
+            q.picked = 0;
+        }
+        return window;
+    }
+
+    /**
+     * Returns the total number of pending tasks across all jobs
+     * @return
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of pending tasks of a job
+     * @param jobId
+     * @return
+     */
+    public synchronized int size(long jobId) {
+        JobQueue q = queues.get(jobId);
+        return q == null ? 0 : q.tasks.size();
+    }
+
+    /**
+     * Returns the number of launched tasks of a job that have not terminated yet
+     * @param jobId
+     * @return
+     */
+    public synchronized int runningTasks(long jobId) {
+        JobQueue q = queues.get(jobId);
+        return q == null ? 0 : q.runningTasks;
+    }
+}
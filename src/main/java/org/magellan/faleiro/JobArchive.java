@@ -0,0 +1,424 @@
+package org.magellan.faleiro;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.magellan.faleiro.JsonTags.SimpleStatus;
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Holds the jobs that are done or stopped, out of the way of the scheduling loop and of the
+ * snapshots written to Zookeeper.
+ *
+ * A job is archived as its deflated snapshot, either in a file of its own in a directory or, when
+ * no directory is given, in memory. Only the ids and the simple status of the archived jobs are
+ * kept on the heap, so listing them decodes nothing. The status of a job archived from its
+ * snapshot is taken from the fields of the snapshot, without rebuilding the job. Recently read
+ * jobs are rebuilt once and kept in a cache of cacheSize jobs, least recently used first out, so
+ * that clients polling a finished job do not decode it every time.
+ *
+ * A new leader restores many finished jobs at once. They are added with putLater(), which keeps
+ * their snapshots as they are until writePending() archives them in the background.
+ *
+ * With a Store, every job is also archived there before it is archived locally, so that the
+ * leaders that come next do not restore it. The jobs archived by earlier leaders are only looked
+ * up in the Store when the archive is first asked for its jobs, and their status and snapshot
+ * only when they are asked for. The directory only holds copies for this leader, and is cleared
+ * when the archive is opened.
+ */
+public class JobArchive {
+    private static final Logger log = Logger.getLogger(JobArchive.class.getName());
+
+    /**
+     * Keeps the archived jobs for the leaders that come next
+     */
+    public interface Store {
+        /**
+         * Stores the final state of a job
+         * @param jobId
+         * @param snapshot : as returned by MagellanJob.getStateSnapshot()
+         * @param status : as returned by MagellanJob.getSimpleStatus()
+         * @throws IOException
+         */
+        void archive(long jobId, String snapshot, JSONObject status) throws IOException;
+
+        /**
+         * @return the ids of the stored jobs
+         * @throws IOException
+         */
+        Set<Long> listArchived() throws IOException;
+
+        /**
+         * @param jobIds
+         * @return the status of each of the jobs that is stored
+         * @throws IOException
+         */
+        Map<Long, JSONObject> readArchivedStatuses(Collection<Long> jobIds) throws IOException;
+
+        /**
+         * @param jobId
+         * @return the snapshot of the job, or null if it is not stored
+         * @throws IOException
+         */
+        JSONObject readArchivedSnapshot(long jobId) throws IOException;
+    }
+
+    static final String FILE_PREFIX = "job-";
+    static final String FILE_SUFFIX = ".z";
+
+    private final File dir;     // null to archive in memory
+    private final Map<Long, byte[]> inMemory = new ConcurrentHashMap<>();
+    private final Set<Long> archived = ConcurrentHashMap.newKeySet();
+    // Simple status of each archived job, as JSON text
+    private final Map<Long, String> statuses = new ConcurrentHashMap<>();
+    // Snapshots added with putLater() that are not written yet
+    private final Map<Long, JSONObject> pending = new ConcurrentHashMap<>();
+
+    // Null to archive locally only. Its jobs are added to archived once listed.
+    private volatile Store store = null;
+    private volatile boolean listed = true;
+
+    // Guarded by itself
+    private final LinkedHashMap<Long, MagellanJob> cache;
+
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * @param dir : directory the jobs are written to, null to keep them in memory
+     * @param cacheSize : number of rebuilt jobs kept for reads
+     * @throws IOException if the directory cannot be created or cleared
+     */
+    public JobArchive(File dir, final int cacheSize) throws IOException {
+        this.dir = dir;
+        this.cache = new LinkedHashMap<Long, MagellanJob>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MagellanJob> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        if(dir == null) {
+            return;
+        }
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create archive directory " + dir);
+        }
+        File[] stale = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if(stale != null) {
+            for(File f : stale) {
+                Files.delete(f.toPath());
+            }
+        }
+        log.log(Level.CONFIG, "Archiving finished jobs in " + dir + ". Caching " + cacheSize + " of them");
+    }
+
+    /**
+     * Sets the store the jobs are archived in. The jobs it already holds are listed the first
+     * time they are needed.
+     * @param store
+     */
+    public void setStore(Store store) {
+        this.store = store;
+        listed = store == null;
+    }
+
+    /**
+     * Adds the jobs held by the store to the archived jobs, once
+     */
+    private void listStore() {
+        if(listed) {
+            return;
+        }
+        synchronized (archived) {
+            Store s = store;
+            if(listed || s == null) {
+                return;
+            }
+            try {
+                Set<Long> stored = s.listArchived();
+                archived.addAll(stored);
+                listed = true;
+                log.log(Level.INFO, "Found " + stored.size() + " jobs archived by earlier leaders");
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Failed to list the archived jobs: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Archives a job that is done or stopped. The job is kept in the cache.
+     * @param job
+     * @throws IOException
+     */
+    public void put(MagellanJob job) throws IOException {
+        put(job.getJobID(), job.getStateSnapshot().toString(), job.getSimpleStatus());
+        synchronized (cache) {
+            cache.put(job.getJobID(), job);
+        }
+    }
+
+    /**
+     * Archives the snapshot of a job that is done or stopped
+     * @param snapshot : as returned by MagellanJob.getStateSnapshot()
+     * @throws IOException
+     */
+    public void put(JSONObject snapshot) throws IOException {
+        put(snapshot.getLong(SimpleStatus.JOB_ID), snapshot.toString(), MagellanJob.simpleStatusOf(snapshot));
+    }
+
+    /**
+     * Adds the snapshot of a job that is done or stopped without writing it. The job is archived
+     * and can be read right away, from the snapshot, until writePending() writes it.
+     * @param snapshot : as returned by MagellanJob.getStateSnapshot()
+     */
+    public void putLater(JSONObject snapshot) {
+        long jobId = snapshot.getLong(SimpleStatus.JOB_ID);
+        statuses.put(jobId, MagellanJob.simpleStatusOf(snapshot).toString());
+        pending.put(jobId, snapshot);
+        archived.add(jobId);
+    }
+
+    /**
+     * Writes the snapshots added with putLater(). A snapshot that cannot be written stays in
+     * memory.
+     * @return the number of snapshots written
+     */
+    public int writePending() {
+        int written = 0;
+        for(Map.Entry<Long, JSONObject> job : pending.entrySet()) {
+            try {
+                put(job.getValue());
+                pending.remove(job.getKey());
+                written++;
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.SEVERE, "Failed to archive job " + job.getKey() + ". Keeping it in memory: " + e);
+            }
+        }
+        return written;
+    }
+
+    private void put(long jobId, String snapshot, JSONObject status) throws IOException {
+        Store s = store;
+        if(s != null) {
+            s.archive(jobId, snapshot, status);
+        }
+        byte[] data = deflate(snapshot.getBytes(StandardCharsets.UTF_8));
+        if(dir == null) {
+            byte[] prev = inMemory.put(jobId, data);
+            storedBytes.addAndGet(data.length - (prev == null ? 0 : prev.length));
+        } else {
+            // Written aside and renamed so that a reader never sees part of a file
+            File target = file(jobId);
+            File tmp = new File(dir, target.getName() + ".tmp");
+            Files.write(tmp.toPath(), data);
+            long prev = target.length();
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            storedBytes.addAndGet(data.length - prev);
+        }
+        statuses.put(jobId, status.toString());
+        archived.add(jobId);
+        synchronized (cache) {
+            cache.remove(jobId);
+        }
+    }
+
+    /**
+     * @param jobId
+     * @return true if the job is archived
+     */
+    public boolean contains(long jobId) {
+        if(archived.contains(jobId)) {
+            return true;
+        }
+        listStore();
+        return archived.contains(jobId);
+    }
+
+    /**
+     * Returns the ids of the archived jobs
+     * @return
+     */
+    public Set<Long> getJobIds() {
+        listStore();
+        return Collections.unmodifiableSet(archived);
+    }
+
+    public int size() {
+        listStore();
+        return archived.size();
+    }
+
+    /**
+     * Returns the simple status of an archived job without rebuilding it
+     * @param jobId
+     * @return the status, as returned by MagellanJob.getSimpleStatus(), or null if the job is
+     *         not archived
+     */
+    public JSONObject getSimpleStatus(long jobId) {
+        return getSimpleStatuses(Collections.singletonList(jobId)).get(jobId);
+    }
+
+    /**
+     * Returns the simple status of several archived jobs without rebuilding them. The statuses
+     * that are not known yet are read from the store at once, and kept.
+     * @param jobIds
+     * @return the status of each of the jobs that is archived
+     */
+    public Map<Long, JSONObject> getSimpleStatuses(Collection<Long> jobIds) {
+        Map<Long, JSONObject> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for(Long jobId : jobIds) {
+            String status = statuses.get(jobId);
+            if(status != null) {
+                found.put(jobId, new JSONObject(status));
+            } else if(contains(jobId)) {
+                missing.add(jobId);
+            }
+        }
+        Store s = store;
+        if(missing.isEmpty() || s == null) {
+            return found;
+        }
+        try {
+            for(Map.Entry<Long, JSONObject> status : s.readArchivedStatuses(missing).entrySet()) {
+                statuses.putIfAbsent(status.getKey(), status.getValue().toString());
+                found.put(status.getKey(), status.getValue());
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to read the status of " + missing.size() + " archived jobs: " + e.getMessage());
+        }
+        return found;
+    }
+
+    /**
+     * Returns an archived job, rebuilding it if it is not in the cache. The job is read only: it
+     * is not connected to the framework and changes to it are not persisted.
+     * @param jobId
+     * @return the job, or null if it is not archived or cannot be read
+     */
+    public MagellanJob get(long jobId) {
+        synchronized (cache) {
+            MagellanJob j = cache.get(jobId);
+            if(j != null) {
+                cacheHits.incrementAndGet();
+                return j;
+            }
+        }
+        MagellanJob j = read(jobId);
+        if(j != null) {
+            cacheMisses.incrementAndGet();
+            synchronized (cache) {
+                cache.put(jobId, j);
+            }
+        }
+        return j;
+    }
+
+    /**
+     * Rebuilds an archived job without going through the cache, for reads that go over every
+     * archived job
+     * @param jobId
+     * @return the job, or null if it is not archived or cannot be read
+     */
+    public MagellanJob read(long jobId) {
+        JSONObject snapshot = readSnapshot(jobId);
+        return snapshot == null ? null : new MagellanJob(snapshot);
+    }
+
+    /**
+     * Returns the snapshot an archived job was archived with
+     * @param jobId
+     * @return the snapshot, or null if the job is not archived or cannot be read
+     */
+    public JSONObject readSnapshot(long jobId) {
+        if(!contains(jobId)) {
+            return null;
+        }
+        JSONObject later = pending.get(jobId);
+        if(later != null) {
+            // A copy, the snapshot is still to be written
+            return new JSONObject(later.toString());
+        }
+        try {
+            byte[] data = dir == null ? inMemory.get(jobId) : readFile(jobId);
+            if(data == null) {
+                // Archived by an earlier leader
+                Store s = store;
+                return s == null ? null : s.readArchivedSnapshot(jobId);
+            }
+            return new JSONObject(new String(inflate(data), StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Failed to read archived job " + jobId + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns statistics about the archive
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put(Stats.ARCHIVED_JOBS, size());
+        stats.put(Stats.ARCHIVED_BYTES, storedBytes.get());
+        synchronized (cache) {
+            stats.put(Stats.CACHED_JOBS, cache.size());
+        }
+        stats.put(Stats.CACHE_HITS, cacheHits.get());
+        stats.put(Stats.CACHE_MISSES, cacheMisses.get());
+        return stats;
+    }
+
+    private File file(long jobId) {
+        return new File(dir, FILE_PREFIX + jobId + FILE_SUFFIX);
+    }
+
+    private byte[] readFile(long jobId) throws IOException {
+        File f = file(jobId);
+        return f.isFile() ? Files.readAllBytes(f.toPath()) : null;
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (OutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while((n = in.read(buf)) > 0) {
+                bytes.write(buf, 0, n);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
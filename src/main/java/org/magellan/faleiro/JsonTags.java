@@ -9,6 +9,8 @@ public abstract class JsonTags {
         public static final String JOB_TIME = "job_time";
         public static final String MODULE_URL = "module_url";
         public static final String MODULE_DATA = "module_data";
+        public static final String JOB_WEIGHT = "job_weight";
+        public static final String WIRE_FORMAT = "wire_format";
         public static final String JOB_ID = "job_id";
         public static final String MESSAGE = "message";
         public static final String STATUS = "status";
@@ -30,12 +32,18 @@ public abstract class JsonTags {
         public static final String TASK_DATA = "sstates";
         public static final String RESPONSE_DIVISIONS = "divisions";
         public static final String MINUTES_PER_DIVISION = "minutes_per_division";
+        public static final String DIVISION_PART = "division_part";
+        public static final String DIVISION_PARTS = "division_parts";
+        public static final String DIVISION_OFFSET = "division_offset";
+        public static final String DIVISION_TOTAL = "division_total";
     }
     // JSON tags for information desired by the client that is related to the status/progress
     // of the job.
     static class SimpleStatus {
         public static final String JOB_ID = "job_id";
         public static final String JOB_NAME = "job_name";
+        public static final String JOB_WEIGHT = "job_weight";
+        public static final String WIRE_FORMAT = "wire_format";
         public static final String JOB_COUNT = "job_count";
         public static final String JOB_STARTING_TIME = "job_starting_time";
         public static final String JOB_FINISHING_TIME = "job_finishing_time";
@@ -44,6 +52,7 @@ public abstract class JsonTags {
         public static final String BEST_LOCATION = "best_location";
         public static final String BEST_ENERGY = "best_energy";
         public static final String ENERGY_HISTORY = "energy_history";
+        public static final String ENERGY_SUMMARY = "energy_summary";
         public static final String NUM_RUNNING_TASKS = "num_running_tasks";
         public static final String NUM_FINISHED_TASKS = "num_finished_tasks";
         public static final String NUM_TOTAL_TASKS = "num_total_tasks";
@@ -60,6 +69,89 @@ public abstract class JsonTags {
         public static final String NUM_PORTS = "num_ports";
         public static final String BITFIELD_FINISHED = "bitfield_finished";
         public static final String DIVISION_IS_FINISHED = "divisions_is_finished";
+        public static final String DIVISION_PARTS = "division_parts";
+        public static final String DIVISIONS_RECEIVED = "divisions_received";
+        public static final String DIVISIONS_EXPECTED = "divisions_expected";
         public static final String RAN_BEFORE = "ran_before";
+        public static final String ENERGY_SAMPLES = "energy_samples";
+    }
+
+    // JSON tags for the energy history of a job and the parameters used to query it
+    static class History {
+        public static final String FROM = "from";
+        public static final String TO = "to";
+        public static final String POINTS = "points";
+        public static final String BUCKETS = "buckets";
+        public static final String TIME = "time";
+        public static final String COUNT = "count";
+        public static final String MIN = "min";
+        public static final String MAX = "max";
+        public static final String MEAN = "mean";
+    }
+
+    // JSON tags for the state of the framework persisted in Zookeeper
+    static class Persistence {
+        public static final String NUM_CREATED_JOBS = "num_created_jobs";
+        public static final String JOBS = "jobs";
+        public static final String LEADER_TERM = "leader_term";
+    }
+
+    // JSON tags for the operational statistics of the framework
+    static class Stats {
+        public static final String OFFERS = "offers";
+        public static final String OFFERS_RECEIVED = "offers_received";
+        public static final String OFFERS_USED = "offers_used";
+        public static final String OFFERS_DECLINED = "offers_declined";
+        public static final String OFFERS_RESCINDED = "offers_rescinded";
+        public static final String OFFERS_HELD = "offers_held";
+        public static final String REFUSE_SECONDS_TOTAL = "refuse_seconds_total";
+        public static final String IDLE_HOSTS = "idle_hosts";
+        public static final String SUPPRESSED = "suppressed";
+        public static final String SUPPRESS_CALLS = "suppress_calls";
+        public static final String REVIVE_CALLS = "revive_calls";
+        public static final String PENDING_TASKS = "pending_tasks";
+        public static final String LAUNCHED_TASKS = "launched_tasks";
+        public static final String LAUNCHES = "launches";
+        public static final String IN_FLIGHT = "in_flight";
+        public static final String QUEUE_DEPTH = "queue_depth";
+        public static final String HOST_LAUNCHES = "host_launches";
+        public static final String TASKS_LAUNCHED = "tasks_launched";
+        public static final String LAUNCH_FAILURES = "launch_failures";
+        public static final String AVG_LAUNCH_MILLIS = "avg_launch_millis";
+        public static final String EXECUTORS = "executors";
+        public static final String POOL_SIZE = "pool_size";
+        public static final String MAX_POOL_SIZE = "max_pool_size";
+        public static final String ACTIVE_THREADS = "active_threads";
+        public static final String QUEUE_REMAINING = "queue_remaining";
+        public static final String COMPLETED_TASKS = "completed_tasks";
+        public static final String STATUS_UPDATES = "status_updates";
+        public static final String UPDATES_RECEIVED = "updates_received";
+        public static final String UPDATES_PROCESSED = "updates_processed";
+        public static final String UPDATES_IGNORED = "updates_ignored";
+        public static final String UPDATES_FAILED = "updates_failed";
+        public static final String UPDATES_DROPPED = "updates_dropped";
+        public static final String MAX_QUEUE_DEPTH = "max_queue_depth";
+        public static final String AVG_QUEUE_MILLIS = "avg_queue_millis";
+        public static final String AVG_PROCESS_MILLIS = "avg_process_millis";
+        public static final String KILLS = "kills";
+        public static final String KILLS_QUEUED = "kills_queued";
+        public static final String KILLS_SENT = "kills_sent";
+        public static final String KILLS_SKIPPED = "kills_skipped";
+        public static final String KILL_BATCHES = "kill_batches";
+        public static final String STARTUP = "startup";
+        public static final String ZK_CONNECTED_MILLIS = "zk_connected_millis";
+        public static final String ELECTED_MILLIS = "elected_millis";
+        public static final String RESTORED_MILLIS = "restored_millis";
+        public static final String REGISTERED_MILLIS = "registered_millis";
+        public static final String FIRST_OFFER_MILLIS = "first_offer_millis";
+        public static final String FIRST_LAUNCH_MILLIS = "first_launch_millis";
+        public static final String TIME_TO_FIRST_OFFER_MILLIS = "time_to_first_offer_millis";
+        public static final String TIME_TO_FIRST_LAUNCH_MILLIS = "time_to_first_launch_millis";
+        public static final String ARCHIVE = "archive";
+        public static final String ARCHIVED_JOBS = "archived_jobs";
+        public static final String ARCHIVED_BYTES = "archived_bytes";
+        public static final String CACHED_JOBS = "cached_jobs";
+        public static final String CACHE_HITS = "cache_hits";
+        public static final String CACHE_MISSES = "cache_misses";
     }
 }
@@ -0,0 +1,140 @@
+package org.magellan.faleiro;
+
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Sends the kills of tasks to the Mesos driver off the thread that asked for them.
+ *
+ * Kills are queued and sent in batches of at most batchSize, one batch every intervalMillis, so
+ * that stopping a job with many running tasks neither holds up the caller nor floods the master.
+ * Tasks that have ended by the time their batch is sent are skipped.
+ */
+public class KillDispatcher {
+    private static final Logger log = Logger.getLogger(KillDispatcher.class.getName());
+
+    private final Supplier<? extends SchedulerDriver> driver;
+    private final LongPredicate isLaunched;
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final long intervalMillis;
+
+    private final ConcurrentLinkedQueue<Long> queue = new ConcurrentLinkedQueue<>();
+    // Set while a batch is scheduled so that only one dispatch runs at a time
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param driver : supplies the driver used to kill tasks
+     * @param isLaunched : returns true if the task with the given packed id is still running
+     * @param scheduler : runs the batches
+     * @param batchSize : maximum number of kills sent at once
+     * @param intervalMillis : time between two batches
+     */
+    public KillDispatcher(Supplier<? extends SchedulerDriver> driver,
+                          LongPredicate isLaunched,
+                          ScheduledExecutorService scheduler,
+                          int batchSize,
+                          long intervalMillis)
+    {
+        if(batchSize <= 0 || intervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid batch size or interval");
+        }
+        this.driver = driver;
+        this.isLaunched = isLaunched;
+        this.scheduler = scheduler;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Queues the kill of a task. Returns immediately.
+     * @param taskId : packed id of the task, see TaskIds
+     */
+    public void kill(long taskId) {
+        queue.add(taskId);
+        queued.incrementAndGet();
+        scheduleDispatch(0);
+    }
+
+    /**
+     * Returns the number of kills that have not been sent or skipped yet
+     * @return
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void scheduleDispatch(long delayMillis) {
+        if(queue.isEmpty() || !dispatching.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.schedule(this::dispatch, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            dispatching.set(false);
+            log.log(Level.WARNING, "Not sending " + queue.size() + " kills: " + e.getMessage());
+        }
+    }
+
+    private void dispatch() {
+        SchedulerDriver d = driver.get();
+        int count = 0;
+        if(d != null) {
+            Long taskId;
+            while(count < batchSize && (taskId = queue.poll()) != null) {
+                if(!isLaunched.test(taskId)) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                String id = TaskIds.toString(taskId);
+                try {
+                    d.killTask(Protos.TaskID.newBuilder().setValue(id).build());
+                    sent.incrementAndGet();
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Failed to kill task " + id + ": " + e);
+                }
+                count++;
+            }
+        }
+        if(count > 0) {
+            batches.incrementAndGet();
+            log.log(Level.FINE, "Sent " + count + " kills, " + queue.size() + " left");
+        }
+        dispatching.set(false);
+        // Kills queued while this batch was sent, or left over from it, wait for the next interval
+        scheduleDispatch(intervalMillis);
+    }
+
+    /**
+     * Returns statistics about the kills sent so far
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put(Stats.QUEUE_DEPTH, queue.size());
+        stats.put(Stats.KILLS_QUEUED, queued.get());
+        stats.put(Stats.KILLS_SENT, sent.get());
+        stats.put(Stats.KILLS_SKIPPED, skipped.get());
+        stats.put(Stats.KILL_BATCHES, batches.get());
+        return stats;
+    }
+}
@@ -0,0 +1,173 @@
+package org.magellan.faleiro;
+
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Last stage of a scheduling cycle. Once Fenzo has placed tasks and the scheduling loop has
+ * recorded the assignments, the TaskInfos for every host are built and handed to the Mesos driver
+ * on a bounded pool of threads. Hosts are launched in parallel and the scheduling loop can start
+ * its next cycle while launches are still in flight.
+ *
+ * The pool is expected to run work on the submitting thread once it is full, which slows the
+ * scheduling loop down to the rate at which the driver accepts launches.
+ */
+public class LaunchPipeline {
+    private static final Logger log = Logger.getLogger(LaunchPipeline.class.getName());
+
+    /**
+     * A task that has been assigned to a host and is ready to be launched
+     */
+    public static class Assignment {
+        final MagellanTaskRequest request;
+        final Protos.ExecutorInfo executor;
+
+        public Assignment(MagellanTaskRequest request, Protos.ExecutorInfo executor) {
+            this.request = request;
+            this.executor = executor;
+        }
+    }
+
+    private final Supplier<? extends SchedulerDriver> driver;
+    private final Executor executor;
+    private final IntConsumer launched;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong hostLaunches = new AtomicLong();
+    private final AtomicLong tasksLaunched = new AtomicLong();
+    private final AtomicLong launchFailures = new AtomicLong();
+    private final AtomicLong launchNanosTotal = new AtomicLong();
+
+    /**
+     * @param driver : supplies the driver used to launch tasks
+     * @param executor : bounded pool the launches run on
+     */
+    public LaunchPipeline(Supplier<? extends SchedulerDriver> driver, Executor executor) {
+        this(driver, executor, count -> {});
+    }
+
+    /**
+     * @param driver : supplies the driver used to launch tasks
+     * @param executor : bounded pool the launches run on
+     * @param launched : receives the number of tasks of every launch accepted by the driver
+     */
+    public LaunchPipeline(Supplier<? extends SchedulerDriver> driver, Executor executor, IntConsumer launched) {
+        this.driver = driver;
+        this.executor = executor;
+        this.launched = launched;
+    }
+
+    /**
+     * Builds the TaskInfos for the tasks assigned to a host and launches them on the given offers.
+     * Returns before the launch completes.
+     * @param hostname
+     * @param slaveID : agent the offers belong to
+     * @param offerIDs : every offer from the host that Fenzo used
+     * @param assignments : tasks to launch on the host
+     */
+    public void launch(final String hostname,
+                       final Protos.SlaveID slaveID,
+                       final List<Protos.OfferID> offerIDs,
+                       final List<Assignment> assignments)
+    {
+        inFlight.incrementAndGet();
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                List<Protos.TaskInfo> taskInfos = new ArrayList<>(assignments.size());
+                StringBuilder stringBuilder = new StringBuilder("Launching on VM " + hostname + " tasks ");
+                for(Assignment a : assignments) {
+                    taskInfos.add(getTaskInfo(slaveID, a.request, a.executor));
+                    stringBuilder.append(a.request.getId()).append(", ");
+                }
+                log.log(Level.INFO, stringBuilder.toString());
+
+                // An empty list of tasks declines the offers
+                Protos.Status status = driver.get().launchTasks(offerIDs, taskInfos);
+                if(status != Protos.Status.DRIVER_RUNNING) {
+                    log.log(Level.SEVERE, "Failed to launch tasks on " + hostname + ". Driver status is " + status);
+                    launchFailures.incrementAndGet();
+                } else {
+                    hostLaunches.incrementAndGet();
+                    tasksLaunched.addAndGet(taskInfos.size());
+                    launched.accept(taskInfos.size());
+                }
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Failed to launch tasks on " + hostname + ": " + e.getMessage());
+                launchFailures.incrementAndGet();
+            } finally {
+                launchNanosTotal.addAndGet(System.nanoTime() - start);
+                inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Packages the information we want to send over into a TaskInfo construct which we can send
+     * @param slaveID   - ID of slave where this task will run
+     * @param request   - Pending task holding the resources and the task specific data/parameters
+     *                    given to it by the job responsible for its creation
+     * @param executor  - Executor the task will run on
+     * @return
+     */
+    static Protos.TaskInfo getTaskInfo(Protos.SlaveID slaveID,
+                                       MagellanTaskRequest request,
+                                       Protos.ExecutorInfo executor)
+    {
+        Protos.TaskID pTaskId = Protos.TaskID.newBuilder().setValue(request.getId()).build();
+
+        // Create a TaskInfo object that encapsulates all the necessary information for a task
+        // to reach its destination and run successfully on the executor.
+        return Protos.TaskInfo.newBuilder()
+                .setName("task " + pTaskId.getValue())
+                .setTaskId(pTaskId)
+                .setSlaveId(slaveID)
+                .addResources(Protos.Resource.newBuilder()
+                        .setName("cpus")
+                        .setType(Protos.Value.Type.SCALAR)
+                        .setScalar(Protos.Value.Scalar.newBuilder().setValue(request.getCPUs())))
+                .addResources(Protos.Resource.newBuilder()
+                        .setName("mem")
+                        .setType(Protos.Value.Type.SCALAR)
+                        .setScalar(Protos.Value.Scalar.newBuilder().setValue(request.getMemory())))
+                .setData(request.getData())
+                .setExecutor(Protos.ExecutorInfo.newBuilder(executor))
+                .build();
+    }
+
+    /**
+     * Returns the number of hosts whose launch has been submitted but has not completed
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns statistics about the launches performed so far
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long launches = hostLaunches.get() + launchFailures.get();
+        stats.put(Stats.IN_FLIGHT, inFlight.get());
+        stats.put(Stats.HOST_LAUNCHES, hostLaunches.get());
+        stats.put(Stats.TASKS_LAUNCHED, tasksLaunched.get());
+        stats.put(Stats.LAUNCH_FAILURES, launchFailures.get());
+        stats.put(Stats.AVG_LAUNCH_MILLIS, launches == 0 ? 0 : launchNanosTotal.get() / launches / 1e6);
+        return stats;
+    }
+}
@@ -95,6 +95,16 @@ public class LeaderElection  implements Watcher{
 
     }
 
+    /**
+     * Returns the term of this scheduler as a leader, which is the sequence number of its node
+     * under the election root. A scheduler that joins later always gets a larger term.
+     * @return
+     */
+    public long getTerm(){
+        String name = m_childNodePath.substring(m_childNodePath.lastIndexOf('/') + 1);
+        return Long.parseLong(name.substring(CHILD_NODE_PREFIX.length() - 1));
+    }
+
     /**
      * Returns true if the current scheduler is the leader
      * @return
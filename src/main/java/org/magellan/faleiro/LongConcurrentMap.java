@@ -0,0 +1,256 @@
+package org.magellan.faleiro;
+
+import java.util.Arrays;
+
+/**
+ * Concurrent map from primitive longs to objects, used for the per task bookkeeping of the
+ * framework so that keys are neither boxed nor hashed as strings.
+ *
+ * Keys are spread over stripes that each hold an open addressing table guarded by its own lock,
+ * so threads working on different tasks rarely contend. Tables grow as needed. Null values are
+ * not allowed, like in ConcurrentHashMap.
+ *
+ * @param <V>
+ */
+public class LongConcurrentMap<V> {
+
+    /**
+     * Receives the entries of the map in forEach()
+     * @param <V>
+     */
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    private static final int DEFAULT_STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe<V>[] stripes;
+    private final int stripeShift;
+
+    public LongConcurrentMap() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param concurrency : expected number of threads updating the map at the same time
+     */
+    public LongConcurrentMap(int concurrency) {
+        if(concurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: " + concurrency);
+        }
+        int numStripes = Integer.highestOneBit(Math.min(concurrency, 1 << 16) * 2 - 1);
+        Stripe<V>[] s = newStripes(numStripes);
+        for(int i = 0; i < numStripes; i++) {
+            s[i] = new Stripe<>();
+        }
+        stripes = s;
+        stripeShift = 32 - Integer.numberOfTrailingZeros(numStripes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Stripe<V>[] newStripes(int n) {
+        return (Stripe<V>[]) new Stripe<?>[n];
+    }
+
+    /**
+     * Spreads the bits of a key so that sequential ids land in different stripes and slots
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private Stripe<V> stripeFor(int hash) {
+        // The high bits pick the stripe, the low bits the slot within it
+        return stripes.length == 1 ? stripes[0] : stripes[hash >>> stripeShift];
+    }
+
+    public V get(long key) {
+        int h = hash(key);
+        return stripeFor(h).get(key, h);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key
+     * @param value : must not be null
+     * @return the previous value or null
+     */
+    public V put(long key, V value) {
+        if(value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return stripeFor(h).put(key, h, value, false);
+    }
+
+    /**
+     * @param key
+     * @param value : must not be null
+     * @return the current value, or null if the value was added
+     */
+    public V putIfAbsent(long key, V value) {
+        if(value == null) {
+            throw new NullPointerException();
+        }
+        int h = hash(key);
+        return stripeFor(h).put(key, h, value, true);
+    }
+
+    /**
+     * @param key
+     * @return the removed value or null if the key was not mapped
+     */
+    public V remove(long key) {
+        int h = hash(key);
+        return stripeFor(h).remove(key, h);
+    }
+
+    public int size() {
+        int size = 0;
+        for(Stripe<V> s : stripes) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        for(Stripe<V> s : stripes) {
+            s.clear();
+        }
+    }
+
+    /**
+     * Visits the entries of the map. Each stripe is copied before its entries are visited, so the
+     * consumer may update the map and runs without holding any lock. Entries added or removed
+     * while the map is visited may or may not be seen.
+     * @param consumer
+     */
+    public void forEach(EntryConsumer<? super V> consumer) {
+        for(Stripe<V> s : stripes) {
+            long[] keys;
+            Object[] values;
+            synchronized (s) {
+                keys = Arrays.copyOf(s.keys, s.keys.length);
+                values = Arrays.copyOf(s.values, s.values.length);
+            }
+            for(int i = 0; i < values.length; i++) {
+                if(values[i] != null) {
+                    @SuppressWarnings("unchecked")
+                    V value = (V) values[i];
+                    consumer.accept(keys[i], value);
+                }
+            }
+        }
+    }
+
+    /**
+     * A linear probing table. A slot is free when its value is null. Removal shifts the following
+     * entries back instead of leaving markers, so lookups never have to skip deleted slots.
+     */
+    private static final class Stripe<V> {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        // Written under the lock, read without it by size()
+        private volatile int size = 0;
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, int hash) {
+            int mask = keys.length - 1;
+            for(int i = hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if(keys[i] == key) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for(; values[i] != null; i = (i + 1) & mask) {
+                if(keys[i] == key) {
+                    V old = (V) values[i];
+                    if(!onlyIfAbsent) {
+                        values[i] = value;
+                    }
+                    return old;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            size = size + 1;
+            // Keep the table at most half full so that probe sequences stay short
+            if(size * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for(; values[i] != null; i = (i + 1) & mask) {
+                if(keys[i] == key) {
+                    break;
+                }
+            }
+            V old = (V) values[i];
+            if(old == null) {
+                return null;
+            }
+            // Move back the entries that would no longer be found past the freed slot
+            int free = i;
+            for(int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                // The entry can fill the free slot if its home is not between the free slot and it
+                if(((j - home) & mask) >= ((j - free) & mask)) {
+                    keys[free] = keys[j];
+                    values[free] = values[j];
+                    free = j;
+                }
+            }
+            values[free] = null;
+            size = size - 1;
+            return old;
+        }
+
+        synchronized void clear() {
+            keys = new long[INITIAL_CAPACITY];
+            values = new Object[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for(int i = 0; i < oldValues.length; i++) {
+                if(oldValues[i] != null) {
+                    int j = hash(oldKeys[i]) & mask;
+                    while(values[j] != null) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+}
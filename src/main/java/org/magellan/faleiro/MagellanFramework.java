@@ -15,14 +15,17 @@ import org.apache.zookeeper.ZooKeeper;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.magellan.faleiro.JsonTags.Persistence;
+import static org.magellan.faleiro.JsonTags.Stats;
 import static org.magellan.faleiro.JsonTags.TaskData;
 import static org.magellan.faleiro.JsonTags.VerboseStatus;
 import static org.magellan.faleiro.JsonTags.SimpleStatus;
@@ -35,63 +38,39 @@ public class MagellanFramework implements Watcher {
 
         public void registered(SchedulerDriver schedulerDriver, Protos.FrameworkID frameworkID, Protos.MasterInfo masterInfo) {
             log.log(Level.FINE, "Registered! ID = " + frameworkID.getValue());
+            startup.reached(StartupTracker.Phase.REGISTERED);
+            offerManager.registered();
             fenzoScheduler.expireAllLeases();
         }
 
         public void reregistered(SchedulerDriver schedulerDriver, Protos.MasterInfo masterInfo) {
             log.log(Level.FINE, "Re-registered " + masterInfo.getId());
+            startup.reached(StartupTracker.Phase.REGISTERED);
+            offerManager.registered();
             fenzoScheduler.expireAllLeases();
         }
 
         public void resourceOffers(SchedulerDriver schedulerDriver, List<Protos.Offer> offers) {
+            offerManager.offersReceived(offers.size());
+            startup.reached(StartupTracker.Phase.FIRST_OFFER);
             for(Protos.Offer offer: offers) {
                 log.log(Level.FINE, "Adding offer " + offer.getId() + " from host " + offer.getHostname());
+                offerManager.offerHeld(offer.getId().getValue(), offer.getSlaveId().getValue());
                 leasesQueue.offer(new VMLeaseObject(offer));
             }
+            requestScheduling(false);
         }
 
         public void offerRescinded(SchedulerDriver schedulerDriver, Protos.OfferID offerID) {
+            offerManager.offerRescinded();
+            offerManager.offerReleased(offerID.getValue());
             fenzoScheduler.expireLease(offerID.getValue());
         }
 
         public void statusUpdate(SchedulerDriver schedulerDriver, Protos.TaskStatus taskStatus) {
-            switch (taskStatus.getState()) {
-                case TASK_ERROR:
-                case TASK_FAILED:
-                case TASK_LOST:
-                    log.log(Level.WARNING, "Task Failure. Reason: " + taskStatus.getMessage());
-                    try {
-                        String data = new String(taskStatus.getData().toByteArray(), "UTF-8");
-                        processData(taskStatus.getState(), taskStatus.getTaskId().getValue(), data);
-                        submittedTaskIdsToJobIds.remove(taskStatus.getTaskId().getValue());
-                    }catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                case TASK_FINISHED:
-                    // Find which job this task is associated with at forward the message to it
-                    try {
-                        String data = new String(taskStatus.getData().toByteArray(), "UTF-8");
-                        String taskID = recoverTaskId(data);
-
-                        // Process the result of the task by forwarding the data to the job
-                        // responsible for its creation
-                        processData(taskStatus.getState(), taskID, data);
-
-                        // Remove the tasks from data structures
-                        submittedTaskIdsToJobIds.remove(taskID);
-
-                        //Notify Fenzo that the task has completed and is no longer assigned
-                        String  id = launchedTasks.get(taskStatus.getTaskId().getValue());
-                        if(id!=null) {
-                            fenzoScheduler.getTaskUnAssigner().call(taskStatus.getTaskId().getValue(), id);
-                        }
-                    } catch (UnsupportedEncodingException e) {
-                        log.log(Level.SEVERE, e.getMessage());
-                    }
-                    break;
-            }
-            //launchedTasks.remove(taskStatus.getTaskId().getValue());
+            // Handled on the status update pipeline so that bursts of finishing tasks do not hold
+            // up offers and the other callbacks of the driver
+            statusPipeline.submit(jobIdOf(taskStatus.getTaskId().getValue()), taskStatus);
         }
 
         public void frameworkMessage(SchedulerDriver schedulerDriver, Protos.ExecutorID executorID, Protos.SlaveID slaveID, byte[] bytes) {
@@ -103,6 +82,7 @@ public class MagellanFramework implements Watcher {
         }
 
         public void slaveLost(SchedulerDriver schedulerDriver, Protos.SlaveID slaveID) {
+            offerManager.slaveLost(slaveID.getValue());
             fenzoScheduler.expireAllLeasesByVMId(slaveID.getValue());
         }
 
@@ -119,15 +99,98 @@ public class MagellanFramework implements Watcher {
     private MesosSchedulerDriver mesosSchedulerDriver;
     private DataMonitor dataMonitor = null;
     private  long numCreatedJobs = 0;
+    // Term of this scheduler as a leader, stored in the root node and in the journal header
+    private volatile long leaderTerm = 0;
+    // Incremented whenever the state of the framework itself, without its jobs, changes
+    private final AtomicLong stateVersion = new AtomicLong();
     private final AtomicReference<MesosSchedulerDriver> mesosDriver = new AtomicReference<>();
     private final ConcurrentHashMap<Long, MagellanJob> jobsList = new ConcurrentHashMap<>();
+    // Jobs taken over from the previous leader, started once the driver is registered
+    private volatile List<MagellanJob> restoredJobs = new ArrayList<>();
     private final BlockingQueue<VirtualMachineLease> leasesQueue = new LinkedBlockingQueue<>();
-    private final Map<String, MagellanTaskRequest> pendingTasksMap = new HashMap<>();
-    private final ConcurrentHashMap<String, Long> submittedTaskIdsToJobIds = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, String> launchedTasks = new ConcurrentHashMap<>();
-    private Watcher zookeeperWatcher = null;
+    private final FairShareQueue pendingTasks = new FairShareQueue();
+    // Keyed by the packed form of the task ids, see TaskIds
+    private final LongConcurrentMap<MagellanJob> submittedTasks = new LongConcurrentMap<>();
+    private final LongConcurrentMap<String> launchedTasks = new LongConcurrentMap<>();
+    // Launched tasks of each job, so that stopping a job does not have to look at every task
+    private final ConcurrentHashMap<Long, LongConcurrentMap<String>> launchedTasksByJob = new ConcurrentHashMap<>();
+    private final OfferManager offerManager = new OfferManager(mesosDriver::get, pendingTasks::size);
+    // Every watcher receives every event of the Zookeeper client
+    private final List<Watcher> zookeeperWatchers = new CopyOnWriteArrayList<>();
     private ZookeeperService zk = null;
 
+    // How long the scheduling loop waits after being woken up so that bursts of offers and
+    // tasks are handled in a single call to Fenzo
+    private final long SCHEDULING_BATCH_MILLIS = EnvConfig.getLong("SCHEDULING_BATCH_MILLIS", 10);
+
+    // Upper bound on the number of pending tasks handed to Fenzo in a single cycle
+    private final int SCHEDULING_WINDOW_SIZE = EnvConfig.getInt("SCHEDULING_WINDOW_SIZE", 500);
+
+    // Size of the pools that every job's task generation and every host launch run on
+    private final int JOB_THREADS = EnvConfig.getInt("JOB_THREADS", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final int JOB_QUEUE_SIZE = EnvConfig.getInt("JOB_QUEUE_SIZE", 4096);
+    private final int LAUNCH_THREADS = EnvConfig.getInt("LAUNCH_THREADS", 4);
+    private final int LAUNCH_QUEUE_SIZE = EnvConfig.getInt("LAUNCH_QUEUE_SIZE", 1024);
+
+    // How long shutdown waits for each pool to finish the work it already accepted
+    private final long SHUTDOWN_TIMEOUT_MILLIS = EnvConfig.getLong("SHUTDOWN_TIMEOUT_MILLIS", 5000);
+
+    // Journal of the tasks finished since the last snapshot, kept in JOURNAL_DIR in two files of
+    // JOURNAL_SIZE bytes. The files grow up to JOURNAL_MAX_SIZE bytes while snapshots fail.
+    private final String JOURNAL_DIR = EnvConfig.getString("JOURNAL_DIR",
+            new File(System.getProperty("java.io.tmpdir"), "magellan-journal").getPath());
+    private final int JOURNAL_SIZE = EnvConfig.getInt("JOURNAL_SIZE", 16 * 1024 * 1024);
+    private final int JOURNAL_MAX_SIZE = EnvConfig.getInt("JOURNAL_MAX_SIZE", 256 * 1024 * 1024);
+    private CompletionJournal journal = null;
+
+    // Jobs that are done or stopped are moved out of jobsList into the archive, kept in
+    // ARCHIVE_DIR once this scheduler is the leader. ARCHIVE_CACHE_SIZE of them are kept rebuilt
+    // for reads. Finished jobs are looked for every ARCHIVE_INTERVAL_MILLIS.
+    private final String ARCHIVE_DIR = EnvConfig.getString("ARCHIVE_DIR",
+            new File(System.getProperty("java.io.tmpdir"), "magellan-archive").getPath());
+    private final int ARCHIVE_CACHE_SIZE = EnvConfig.getInt("ARCHIVE_CACHE_SIZE", 64);
+    private final long ARCHIVE_INTERVAL_MILLIS = EnvConfig.getLong("ARCHIVE_INTERVAL_MILLIS", 10000);
+    private volatile JobArchive archive = newArchive(null, ARCHIVE_CACHE_SIZE);
+
+    // How long a newly elected leader waits for its replica to read the last changes of the
+    // previous leader before it reads the whole state instead
+    private final long REPLICA_CATCH_UP_MILLIS = EnvConfig.getLong("REPLICA_CATCH_UP_MILLIS", 10000);
+
+    // How long the startup waits for the Zookeeper session before it goes on regardless
+    private final long ZK_CONNECT_TIMEOUT_MILLIS = EnvConfig.getLong("ZK_CONNECT_TIMEOUT_MILLIS", 10000);
+
+    // Startup is sequenced by the phases recorded here rather than by fixed delays
+    private final StartupTracker startup = new StartupTracker();
+
+    // Every thread of the framework is owned by the execution engine
+    private final ExecutionEngine engine = new ExecutionEngine();
+    private final ThreadPoolExecutor jobExecutor = engine.newExecutor("jobs", JOB_THREADS, JOB_QUEUE_SIZE);
+    private final LaunchPipeline launchPipeline = new LaunchPipeline(mesosDriver::get,
+            engine.newExecutor("launch", LAUNCH_THREADS, LAUNCH_QUEUE_SIZE),
+            count -> startup.reached(StartupTracker.Phase.FIRST_LAUNCH));
+
+    // Status updates are handled by STATUS_THREADS single threaded partitions, each queueing up to
+    // STATUS_QUEUE_SIZE updates before the driver is held up
+    private final int STATUS_THREADS = EnvConfig.getInt("STATUS_THREADS", 4);
+    private final int STATUS_QUEUE_SIZE = EnvConfig.getInt("STATUS_QUEUE_SIZE", 4096);
+    private final StatusUpdatePipeline statusPipeline = new StatusUpdatePipeline(newStatusPartitions(),
+            this::handleStatusUpdate);
+
+    // Kills of the tasks of stopped jobs are sent in batches of KILL_BATCH_SIZE every
+    // KILL_INTERVAL_MILLIS
+    private final int KILL_BATCH_SIZE = EnvConfig.getInt("KILL_BATCH_SIZE", 100);
+    private final long KILL_INTERVAL_MILLIS = EnvConfig.getLong("KILL_INTERVAL_MILLIS", 100);
+    private final KillDispatcher killDispatcher = new KillDispatcher(mesosDriver::get,
+            launchedTasks::containsKey,
+            engine.newScheduledExecutor("kill", 1),
+            KILL_BATCH_SIZE,
+            KILL_INTERVAL_MILLIS);
+
+    // The scheduling loop sleeps on this lock until one of the flags below is raised
+    private final Object schedulingSignal_lock = new Object();
+    private boolean schedulingRequested = false;  // guarded by schedulingSignal_lock
+    private boolean rescheduleRequested = false;  // guarded by schedulingSignal_lock
+
     public MagellanFramework(){
         log.log(Level.INFO, "Printing Environment Variables:");
         log.log(Level.INFO, "PRINCIPAL: " + System.getenv("PRINCIPAL"));
@@ -140,11 +203,10 @@ public class MagellanFramework implements Watcher {
         log.log(Level.INFO, "EXECUTOR_PATH: " + System.getenv("EXECUTOR_PATH"));
 
         fenzoScheduler = new TaskScheduler.Builder()
-                .withLeaseOfferExpirySecs(1000000000)
+                .withLeaseOfferExpirySecs(offerManager.LEASE_EXPIRY_SECS)
                 .withLeaseRejectAction(new Action1<VirtualMachineLease>() {
                     public void call(VirtualMachineLease lease) {
-                        log.log(Level.INFO, "Declining offer on " + lease.hostname());
-                        mesosDriver.get().declineOffer(lease.getOffer().getId());
+                        offerManager.decline(lease);
                     }
                 })
                 .build();
@@ -158,6 +220,14 @@ public class MagellanFramework implements Watcher {
     public Protos.Status shutdownFramework() {
         log.log(Level.INFO, "Shutting down mesos driver");
         Protos.Status status = mesosSchedulerDriver.stop();
+        engine.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+        if(journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close the journal: " + e.getMessage());
+            }
+        }
         return status;
     }
 
@@ -178,19 +248,29 @@ public class MagellanFramework implements Watcher {
             log.log(Level.SEVERE, e.getMessage());
         }
 
-        // Pause for a short amount of time to let other to let other schedulers start
+        // The replica and the election need the session. Calls made without one fail or block.
         try {
-            Thread.sleep(2000);
+            if(!startup.await(StartupTracker.Phase.ZK_CONNECTED, ZK_CONNECT_TIMEOUT_MILLIS)) {
+                log.log(Level.WARNING, "Not connected to Zookeeper after " + ZK_CONNECT_TIMEOUT_MILLIS + " ms");
+            }
         } catch (InterruptedException e) {
             log.log(Level.SEVERE, e.getMessage());
         }
 
 
+        // Follow the state of the leader while waiting to take over from it
+        dataMonitor  = new DataMonitor(zk, System.getenv("ZKNODE_PATH"), this);
+        StateReplica replica = new StateReplica(zk, dataMonitor, engine.newScheduledExecutor("replica", 1));
+        zookeeperWatchers.add(replica);
+        replica.start();
+
         // Undergo leader election and block until current scheduler is leader
         LeaderElection leader = new LeaderElection(zk);
-        zookeeperWatcher = leader;
+        zookeeperWatchers.add(leader);
         leader.initialize();
         leader.blockUntilElectedLeader();
+        leaderTerm = leader.getTerm();
+        startup.reached(StartupTracker.Phase.ELECTED);
 
         Scheduler mesosScheduler = new MagellanScheduler();
 
@@ -232,57 +312,274 @@ public class MagellanFramework implements Watcher {
                     true);
         }
 
-        // Create a datamonitor which will be used to perisist the scheduler's state
-        dataMonitor  = new DataMonitor(zk, System.getenv("ZKNODE_PATH"), this);
-        zookeeperWatcher = dataMonitor;
-        dataMonitor.initialize();
+        // Results processed between two snapshots are journaled on the local disk
+        try {
+            journal = new CompletionJournal(new File(JOURNAL_DIR), JOURNAL_SIZE, JOURNAL_MAX_SIZE);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Running without a journal: " + e.getMessage());
+        }
 
-        //Retrieve previous state of scheduler if it exists and intialize the scheduler
-        //with this
-        JSONObject pstate = dataMonitor.getInitialState();
-        if(pstate != null && pstate.length()>0){
-            log.log(Level.INFO, "Restoring previous framework state from Zookeeper");
-            restorePreviousState(pstate);
-        }else{
-            log.log(Level.INFO, "No past state found on Zookeeper. Starting new framework");
+        // Finished jobs are archived on the local disk from now on, and moved out of the job nodes
+        // in Zookeeper so that the next leader does not restore them
+        archive = newArchive(new File(ARCHIVE_DIR), ARCHIVE_CACHE_SIZE);
+        archive.setStore(dataMonitor);
+
+        // The datamonitor perisists the scheduler's state
+        dataMonitor.setJournal(journal);
+        zookeeperWatchers.add(dataMonitor);
+        boolean replicated = replica.promote(REPLICA_CATCH_UP_MILLIS);
+        zookeeperWatchers.remove(replica);
+        if(replicated) {
+            // The replica already holds the jobs of the previous leader
+            JSONObject frameworkState = replica.getFrameworkState();
+            Collection<MagellanJob> jobs = replica.getJobs();
+            log.log(Level.INFO, "Taking over " + jobs.size() + " replicated jobs");
+            restoreJobs(frameworkState == null ? 0 : frameworkState.optLong(Persistence.NUM_CREATED_JOBS, 0),
+                    frameworkState == null ? -1 : frameworkState.optLong(Persistence.LEADER_TERM, 0),
+                    jobs, replica.getDormantJobs());
+            dataMonitor.startWriting(engine.newScheduledExecutor("persistence", 1));
+        } else {
+            dataMonitor.initialize(engine.newScheduledExecutor("persistence", 1));
+
+            //Retrieve previous state of scheduler if it exists and intialize the scheduler
+            //with this
+            JSONObject pstate = dataMonitor.getInitialState();
+            if(pstate != null && pstate.length()>0){
+                log.log(Level.INFO, "Restoring previous framework state from Zookeeper");
+                restorePreviousState(pstate);
+            }else{
+                log.log(Level.INFO, "No past state found on Zookeeper. Starting new framework");
+                // Whatever is left in the journal belongs to no snapshot
+                replayJournal(-1);
+            }
         }
 
         mesosDriver.set(mesosSchedulerDriver);
+        startup.reached(StartupTracker.Phase.RESTORED);
+    }
+
+    /**
+     * Opens the archive of finished jobs
+     * @param dir : directory of the archive, null to archive in memory
+     * @param cacheSize
+     * @return the archive. Archives in memory if the directory cannot be used.
+     */
+    private static JobArchive newArchive(File dir, int cacheSize) {
+        try {
+            return new JobArchive(dir, cacheSize);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Archiving finished jobs in memory: " + e.getMessage());
+        }
+        try {
+            return new JobArchive(null, cacheSize);
+        } catch (IOException e) {
+            // Nothing is done on the disk without a directory
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
      * If a previous state for the scheduler exists, restore it
      * @param jso : JSonObject from Zookeeper that contains all the necessary information about a job.
      */
-    private void restorePreviousState(JSONObject jso){
-        numCreatedJobs = jso.getInt("num_created_jobs");
+    void restorePreviousState(JSONObject jso){
+        List<CompletableFuture<MagellanJob>> active = new ArrayList<>();
+        List<JSONObject> dormant = new ArrayList<>();
+        JSONArray jobs = jso.optJSONArray(Persistence.JOBS);
+        if(jobs != null) {
+            for(int i = 0; i < jobs.length(); i++){
+                final JSONObject snapshot = jobs.getJSONObject(i);
+                MagellanJob.JobState state = MagellanJob.stateOf(snapshot);
+                if(state != null && state.isTerminal()) {
+                    dormant.add(snapshot);
+                } else {
+                    // Jobs that still have work are restored in parallel on the job pool
+                    active.add(CompletableFuture.supplyAsync(() -> new MagellanJob(snapshot), jobExecutor));
+                }
+            }
+        }
+        List<MagellanJob> restored = new ArrayList<>();
+        for(CompletableFuture<MagellanJob> job : active) {
+            try {
+                restored.add(job.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        restoreJobs(jso.optLong(Persistence.NUM_CREATED_JOBS, 0), jso.optLong(Persistence.LEADER_TERM, 0), restored, dormant);
+    }
 
-        JSONArray jobs = jso.getJSONArray("jobs");
-        for(int i = 0; i < jobs.length(); i++){
-            JSONObject jsonobject = jobs.getJSONObject(i);
-            jobsList.put(jsonobject.getLong("job_id"),new MagellanJob(jsonobject));
+    /**
+     * Takes over the jobs of a previous leader and applies the journal to them
+     * @param createdJobs : number of jobs created by the previous leaders
+     * @param snapshotTerm : term of the leader that wrote the restored state
+     * @param jobs : jobs that may still have work to do
+     * @param dormant : snapshots of the jobs that are done or stopped. They go to the archive,
+     *                  which writes them in the background and moves them out of the job
+     *                  nodes in Zookeeper.
+     */
+    private void restoreJobs(long createdJobs, long snapshotTerm, Collection<MagellanJob> jobs, Collection<JSONObject> dormant) {
+        numCreatedJobs = createdJobs;
+        restoredJobs = new ArrayList<>(jobs);
+        for(MagellanJob j : jobs) {
+            jobsList.put(j.getJobID(), adopt(j));
+            // Earlier versions wrote the framework node after the job nodes, so it may be behind them
+            numCreatedJobs = Math.max(numCreatedJobs, j.getJobID() + 1);
+        }
+        final JobArchive a = archive;
+        DataMonitor monitor = dataMonitor;
+        for(JSONObject snapshot : dormant) {
+            long jobId = snapshot.getLong(SimpleStatus.JOB_ID);
+            numCreatedJobs = Math.max(numCreatedJobs, jobId + 1);
+            a.putLater(snapshot);
+            if(monitor != null) {
+                monitor.forget(jobId);
+            }
+        }
+        log.log(Level.INFO, "Restored " + jobs.size() + " jobs. Archiving " + dormant.size() + " finished jobs");
+        if(!dormant.isEmpty()) {
+            CompletableFuture.runAsync(() -> {
+                log.log(Level.INFO, "Archived " + a.writePending() + " restored jobs");
+            }, jobExecutor);
         }
 
+        replayJournal(snapshotTerm);
+    }
+
+    /**
+     * Connects a restored job to the framework
+     * @param j
+     * @return j
+     */
+    private MagellanJob adopt(MagellanJob j) {
+        pendingTasks.setWeight(j.getJobID(), j.getWeight());
+        pendingTasks.setPaused(j.getJobID(), j.getState() == MagellanJob.JobState.PAUSED);
+        j.setPendingTasksListener(this::tasksQueued);
+        j.setChangeListener(this::jobChanged);
+        j.setJournal(journal);
+        return j;
+    }
+
+    /**
+     * Moves the jobs that are done or stopped to the archive. A job is only archived once its
+     * final state is written to Zookeeper and none of its tasks is pending or launched, so that
+     * nothing about it changes anymore.
+     * @return the number of jobs archived
+     */
+    int archiveFinishedJobs() {
+        DataMonitor monitor = dataMonitor;
+        int archived = 0;
+        for(MagellanJob j : jobsList.values()) {
+            long jobId = j.getJobID();
+            if(!j.isDone()) {
+                continue;
+            }
+            if(monitor != null && !monitor.isWritten(jobId, j.getStateVersion())) {
+                continue;
+            }
+            LongConcurrentMap<String> launched = launchedTasksByJob.get(jobId);
+            if((launched != null && launched.size() > 0) || !pendingTasks.forgetJob(jobId)) {
+                continue;
+            }
+            try {
+                archive.put(j);
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.SEVERE, "Failed to archive job " + jobId + ": " + e.getMessage());
+                continue;
+            }
+            jobsList.remove(jobId, j);
+            launchedTasksByJob.remove(jobId);
+            if(monitor != null) {
+                monitor.forget(jobId);
+            }
+            archived++;
+        }
+        if(archived > 0) {
+            log.log(Level.INFO, "Archived " + archived + " finished jobs");
+        }
+        return archived;
+    }
+
+    /**
+     * Returns a job, from the archive if it is finished and archived. Archived jobs are read
+     * only.
+     * @param jobId
+     * @return the job, or null if it does not exist
+     */
+    MagellanJob getJob(long jobId) {
+        MagellanJob j = jobsList.get(jobId);
+        return j != null ? j : archive.get(jobId);
+    }
+
+    /**
+     * Applies the tasks that finished and the changes of state recorded in the journal after the
+     * snapshot that was restored. Archived jobs are left alone. A journal written in another term
+     * than the snapshot does not follow from it and is discarded. The journal then goes on in the
+     * term of this leader, which the next write of the root node records.
+     * @param snapshotTerm : term of the leader that wrote the restored state, -1 if there is none
+     */
+    private void replayJournal(long snapshotTerm) {
+        stateVersion.incrementAndGet();
+        if(journal == null) {
+            return;
+        }
+        if(journal.getTerm() != snapshotTerm) {
+            log.log(Level.WARNING, "Discarding the journal of term " + journal.getTerm()
+                    + ". The restored state was written in term " + snapshotTerm);
+            journal.reset(leaderTerm);
+            return;
+        }
+        final int[] applied = {0};
+        int replayed = journal.replay(new CompletionJournal.Visitor() {
+            @Override
+            public void taskFinished(long jobId, int taskIndex, double fitness, String location, long timeMillis) {
+                MagellanJob j = jobsList.get(jobId);
+                if(j != null && j.replayTaskFinished(taskIndex, fitness, location, timeMillis)) {
+                    applied[0]++;
+                }
+            }
+
+            @Override
+            public void stateChanged(long jobId, MagellanJob.JobState state) {
+                MagellanJob j = jobsList.get(jobId);
+                if(j != null) {
+                    j.replayState(state);
+                    pendingTasks.setPaused(jobId, j.getState() == MagellanJob.JobState.PAUSED);
+                    applied[0]++;
+                }
+            }
+        });
+        log.log(Level.INFO, "Replayed " + replayed + " journal records. " + applied[0] + " were not in the snapshot");
+        journal.setTerm(leaderTerm);
     }
 
 
     /**
      * Callback function for zookeeper events. MagellanFramework itself wont handle the
-     * events so forward the event to the current watcher. Only one watcher can be
-     * active at a time.
+     * events so forward the event to every watcher: the leader election, the replica of the
+     * state while this scheduler is a standby and the datamonitor.
      * @param watchedEvent
      */
     @Override
     public void process(WatchedEvent watchedEvent) {
-        if(zookeeperWatcher!=null) {
-            zookeeperWatcher.process(watchedEvent);
+        if(watchedEvent.getType() == Event.EventType.None
+                && watchedEvent.getState() == Event.KeeperState.SyncConnected) {
+            startup.reached(StartupTracker.Phase.ZK_CONNECTED);
+        }
+        for(Watcher watcher : zookeeperWatchers) {
+            try {
+                watcher.process(watchedEvent);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, "Watcher failed on " + watchedEvent + ": " + e);
+            }
         }
     }
 
 
     /**
      * Starts the mesos driver in another thread which connects to the master.
-     * Starts the main framework loop in another thread
+     * Starts the main framework loop in another thread. Both threads, and the pool that
+     * jobs run on, belong to the execution engine which is shut down with the JVM.
      *
      * Call to this method is ignored if the framework is not initialized by a previous
      * call to initializeFramework() or if the framework is already running.
@@ -299,39 +596,46 @@ public class MagellanFramework implements Watcher {
         }*/
 
         // Start the driver
-        new Thread() {
-            public void run() {
-                mesosSchedulerDriver.run();
-            }
-        }.start();
-        mesosSchedulerDriver.stop();
+        engine.newExecutor("driver", 1, 1).execute(() -> mesosSchedulerDriver.run());
 
         // Start the framework
-        new Thread(() -> {
-            runFramework();
-        }).start();
+        engine.newExecutor("scheduler", 1, 1).execute(this::runFramework);
 
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            log.log(Level.SEVERE, e.getMessage());
-        }
+        // Stop the driver with failover so that a standby scheduler can take over the running tasks
+        engine.registerShutdownHook(() -> mesosSchedulerDriver.stop(true), SHUTDOWN_TIMEOUT_MILLIS);
 
-        // Start any jobs that we restored from Zookeeper
-        Iterator it = jobsList.entrySet().iterator();
-        while(it.hasNext()){
-            Map.Entry pair = (Map.Entry)it.next();
-            MagellanJob j = (MagellanJob) pair.getValue();
+        // Move finished jobs out of the way of the scheduling loop and of the snapshots
+        engine.newScheduledExecutor("archive", 1).scheduleWithFixedDelay(this::archiveFinishedJobs,
+                ARCHIVE_INTERVAL_MILLIS, ARCHIVE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Start any jobs that we restored from Zookeeper once the driver is registered
+        startup.whenReached(jobExecutor, this::startRestoredJobs,
+                StartupTracker.Phase.RESTORED, StartupTracker.Phase.REGISTERED);
+    }
+
+    /**
+     * Starts the jobs restored from Zookeeper that were running or waiting to run. Jobs created
+     * since then were started when they were created.
+     */
+    void startRestoredJobs() {
+        List<MagellanJob> restored = restoredJobs;
+        restoredJobs = new ArrayList<>();
+        int started = 0;
+        for(MagellanJob j : restored) {
+            if(jobsList.get(j.getJobID()) != j) {
+                continue;
+            }
             if(j.getState() == MagellanJob.JobState.RUNNING || j.getState() == MagellanJob.JobState.INITIALIZED)
             {
-                j.start();
+                j.start(jobExecutor);
+                started++;
             }
         }
-
+        log.log(Level.INFO, "Started " + started + " restored jobs");
     }
 
     /**
-     * Creates a job and runs it on a separate thread
+     * Creates a job with the default weight and runs it on the job pool
      *
      * @param jobName Name of job
      * @param taskName - Name of the task on the executor to run
@@ -346,11 +650,59 @@ public class MagellanFramework implements Watcher {
                           String taskName,
                           JSONObject additionalParameters)
     {
+        return createJob(jobName, taskTime, taskName, additionalParameters, MagellanJob.DEFAULT_WEIGHT);
+    }
+
+    /**
+     * Creates a job and runs it on the job pool
+     *
+     * @param jobName Name of job
+     * @param taskName - Name of the task on the executor to run
+     * @param taskTime - How long to run each task for.
+     * @param additionalParameters Additional job parameters
+     * @param weight - Share of the cluster this job is entitled to relative to other jobs.
+     *                 Must be greater than 0.
+     *
+     * @return An ID number greater or equal to 0 if successful
+     *          -1 if invalid parameters
+     */
+    public long createJob(String jobName,
+                          int taskTime,
+                          String taskName,
+                          JSONObject additionalParameters,
+                          double weight)
+    {
+        return createJob(jobName, taskTime, taskName, additionalParameters, weight, TaskPayloadCodec.Format.JSON);
+    }
+
+    /**
+     * Creates a job and runs it on the job pool
+     *
+     * @param jobName Name of job
+     * @param taskName - Name of the task on the executor to run
+     * @param taskTime - How long to run each task for.
+     * @param additionalParameters Additional job parameters
+     * @param weight - Share of the cluster this job is entitled to relative to other jobs.
+     *                 Must be greater than 0.
+     * @param format - Encoding of the data sent to the executors of the job's tasks
+     *
+     * @return An ID number greater or equal to 0 if successful
+     *          -1 if invalid parameters
+     */
+    public long createJob(String jobName,
+                          int taskTime,
+                          String taskName,
+                          JSONObject additionalParameters,
+                          double weight,
+                          TaskPayloadCodec.Format format)
+    {
 
         if (jobName == null ||
                 taskTime <= 0 ||
                 taskName == null ||
-                additionalParameters == null)
+                additionalParameters == null ||
+                !(weight > 0) ||
+                format == null)
         {
             // One or more of the parameters have invalid values
             return -1;
@@ -362,20 +714,187 @@ public class MagellanFramework implements Watcher {
                                         jobName,
                                         taskTime,
                                         taskName,
-                                        additionalParameters);
+                                        additionalParameters,
+                                        weight,
+                                        format);
+        pendingTasks.setWeight(id, weight);
         jobsList.put(id, j);
+        j.setPendingTasksListener(this::tasksQueued);
+        j.setChangeListener(this::jobChanged);
+        j.setJournal(journal);
+        stateVersion.incrementAndGet();
 
-        j.start();
+        j.start(jobExecutor);
+        jobChanged(true);
 
         return id;
     }
 
+    private List<ThreadPoolExecutor> newStatusPartitions() {
+        List<ThreadPoolExecutor> partitions = new ArrayList<>();
+        for(int i = 0; i < Math.max(1, STATUS_THREADS); i++) {
+            partitions.add(engine.newBlockingExecutor("status-" + i, 1, STATUS_QUEUE_SIZE));
+        }
+        return partitions;
+    }
+
+    /**
+     * Forwards a status update to the job of the task. Runs on the status update pipeline.
+     * Updates of the same job are handled one at a time, in the order the driver delivered them.
+     * @param taskStatus
+     * @return false if the update was ignored because the task is unknown or a terminal update
+     *         for it was already handled
+     */
+    private boolean handleStatusUpdate(Protos.TaskStatus taskStatus) {
+        long taskId = TaskIds.valueOf(taskStatus.getTaskId().getValue());
+        if(taskId == TaskIds.NONE) {
+            log.log(Level.WARNING, "Ignoring update of unknown task " + taskStatus.getTaskId().getValue());
+            return false;
+        }
+        switch (taskStatus.getState()) {
+            case TASK_RUNNING:
+                // Division tasks report the divisions found so far while they run, so the job
+                // can start annealing them before the division is complete
+                if(taskStatus.getData().isEmpty() || !launchedTasks.containsKey(taskId)) {
+                    return false;
+                }
+                try {
+                    processData(taskStatus.getState(), taskId, TaskResult.decode(taskStatus.getData()));
+                } catch (IllegalArgumentException e) {
+                    log.log(Level.SEVERE, "Malformed task data: " + e.getMessage());
+                }
+                return true;
+            case TASK_ERROR:
+            case TASK_FAILED:
+            case TASK_LOST:
+                log.log(Level.WARNING, "Task Failure. Reason: " + taskStatus.getMessage());
+                // Only the first terminal update of a launch is handled. The task is launched
+                // again under the same id if the job retries it.
+                if(!releaseTask(taskId)) {
+                    log.log(Level.FINE, "Ignoring repeated " + taskStatus.getState() + " of task " + taskStatus.getTaskId().getValue());
+                    return false;
+                }
+                // The job reschedules the task. Whatever the executor sent is not needed for that.
+                processData(taskStatus.getState(), taskId, null);
+                submittedTasks.remove(taskId);
+                requestScheduling(true);
+                return true;
+            case TASK_FINISHED:
+                if(!releaseTask(taskId)) {
+                    log.log(Level.FINE, "Ignoring repeated " + taskStatus.getState() + " of task " + taskStatus.getTaskId().getValue());
+                    return false;
+                }
+                // Find which job this task is associated with at forward the message to it
+                try {
+                    // Process the result of the task by forwarding the data to the job
+                    // responsible for its creation. The mesos task id identifies the task, the
+                    // uid in the data is not used.
+                    processData(taskStatus.getState(), taskId, TaskResult.decode(taskStatus.getData()));
+                } catch (IllegalArgumentException e) {
+                    log.log(Level.SEVERE, "Malformed task data: " + e.getMessage());
+                }
+                // Remove the tasks from data structures
+                submittedTasks.remove(taskId);
+                requestScheduling(true);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Called by a job every time it queues a new task. Makes sure offers are coming in and
+     * wakes up the scheduling loop.
+     */
+    private void tasksQueued() {
+        offerManager.reviveIfSuppressed();
+        requestScheduling(false);
+    }
+
+    /**
+     * Returns the number of tasks that are waiting to be launched for jobs that are running.
+     * Tasks of paused jobs are not counted as they will not be launched until the job resumes.
+     * @return
+     */
+    private int getPendingDemand() {
+        int demand = 0;
+        for(MagellanJob j : jobsList.values()) {
+            if(j.getState() == MagellanJob.JobState.RUNNING) {
+                demand += pendingTasks.size(j.getJobID());
+            }
+        }
+        return demand;
+    }
+
+    /**
+     * Wakes up the scheduling loop. Called when new offers arrive, when a job queues new tasks
+     * and when the state of the cluster changes in a way that could let pending tasks run.
+     * @param reschedule : if true, the next cycle runs even if it brings no new offers or tasks,
+     *                     e.g. because a task finished and freed resources on a held offer
+     */
+    private void requestScheduling(boolean reschedule) {
+        synchronized (schedulingSignal_lock) {
+            schedulingRequested = true;
+            rescheduleRequested |= reschedule;
+            schedulingSignal_lock.notify();
+        }
+    }
+
+    /**
+     * Returns how long the scheduling loop may wait for a request. While Fenzo holds offers, a
+     * cycle has to run within LEASE_EXPIRY_SECS so that the offers that expired are declined.
+     * @return the longest wait in milliseconds, 0 to wait until woken up
+     */
+    long maxSchedulingWaitMillis() {
+        return offerManager.getHeldOffers() > 0 ? offerManager.LEASE_EXPIRY_SECS * 1000 : 0;
+    }
+
+    /**
+     * Blocks until the scheduling loop is woken up or the wait times out, then waits for the
+     * batching window so that work arriving in bursts is handled by a single cycle.
+     * @param maxWaitMillis : longest wait, 0 to wait until woken up
+     * @return true if the next cycle must run even without new offers or tasks, which is the
+     *         case when the wait timed out
+     * @throws InterruptedException
+     */
+    boolean awaitSchedulingRequest(long maxWaitMillis) throws InterruptedException {
+        boolean timedOut = false;
+        synchronized (schedulingSignal_lock) {
+            long deadline = System.currentTimeMillis() + maxWaitMillis;
+            while(!schedulingRequested) {
+                if(maxWaitMillis <= 0) {
+                    schedulingSignal_lock.wait();
+                    continue;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    timedOut = true;
+                    break;
+                }
+                schedulingSignal_lock.wait(remaining);
+            }
+        }
+        if(SCHEDULING_BATCH_MILLIS > 0) {
+            Thread.sleep(SCHEDULING_BATCH_MILLIS);
+        }
+        synchronized (schedulingSignal_lock) {
+            boolean reschedule = rescheduleRequested || timedOut;
+            schedulingRequested = false;
+            rescheduleRequested = false;
+            return reschedule;
+        }
+    }
+
     /**
      *  This contains the main loop of the program. In here, the framework queries
      *  each running job in the system to get a list of tasks each job wants to run.
      *  These set of tasks are then given to Fenzo which matches available resource
      *  offers from Mesos to tasks.The resulting matches from Fenzo are then given
      *  to the Mesos Driver for execution.
+     *
+     *  The loop sleeps until it is woken up by requestScheduling(). Cycles that bring
+     *  no new offers and no new tasks are skipped. While Fenzo holds offers, the loop wakes up
+     *  by itself at least every LEASE_EXPIRY_SECS so that Fenzo declines the expired ones.
      */
     private void runFramework(){
         log.log(Level.INFO, "Running Framework");
@@ -383,6 +902,13 @@ public class MagellanFramework implements Watcher {
         List<TaskRequest> newTaskRequests = new ArrayList<>();
 
         while(true) {
+            boolean reschedule;
+            try {
+                reschedule = awaitSchedulingRequest(maxSchedulingWaitMillis());
+            } catch (InterruptedException e) {
+                log.log(Level.SEVERE, e.getMessage());
+                return;
+            }
 
             // Clear all the local data structures in preparation of a new loop
             newLeases.clear();
@@ -398,17 +924,32 @@ public class MagellanFramework implements Watcher {
                 if(j.getState() == MagellanJob.JobState.RUNNING){
                     ArrayList<MagellanTaskRequest> pending = j.getPendingTasks();
                     for(MagellanTaskRequest request : pending){
-                        pendingTasksMap.put(request.getId(),request);
-                        submittedTaskIdsToJobIds.put(request.getId(),j.getJobID());
+                        newTaskRequests.add(request);
+                        pendingTasks.add(j.getJobID(), request);
+                        submittedTasks.put(TaskIds.parse(request.getId()), j);
                         //taskIdsToTaskData.put(request.getId(), request.getData());
                     }
                 }
             }
+            if(!newTaskRequests.isEmpty()) {
+                // Covers tasks queued while offers were being suppressed at the end of the last cycle
+                offerManager.reviveIfSuppressed();
+            }
+
             // Copy all the resource offers into a local datastructure as leasesQueue is accessed by several threads
             leasesQueue.drainTo(newLeases);
+            updateClusterCapacity(newLeases);
+
+            // Nothing has changed since the last cycle so Fenzo would come up with the same answer
+            if(newLeases.isEmpty() && newTaskRequests.isEmpty() && !reschedule) {
+                continue;
+            }
 
-            // Pass our list of pending tasks as well as current resource offers to Fenzo and receive a mapping between the two
-            SchedulingResult schedulingResult = fenzoScheduler.scheduleOnce(new ArrayList<>(pendingTasksMap.values()), newLeases);
+            // Pass the next window of pending tasks as well as current resource offers to Fenzo and receive a
+            // mapping between the two
+            List<MagellanTaskRequest> window = pendingTasks.nextWindow(SCHEDULING_WINDOW_SIZE);
+            SchedulingResult schedulingResult = fenzoScheduler.scheduleOnce(window, newLeases);
+            int numLaunched = 0;
 
             // Now use the mesos driver to schedule the tasks
             Map<String,VMAssignmentResult> resultMap = schedulingResult.getResultMap();
@@ -416,53 +957,81 @@ public class MagellanFramework implements Watcher {
 
                 // We now launch tasks on a per host basis. Hosts (VMAssignmentResult) can offer multiple resource offers (called leases)
                 for(VMAssignmentResult result: resultMap.values()) {
-                    List<Protos.TaskInfo> taskInfos = new ArrayList<>();
+                    List<LaunchPipeline.Assignment> assignments = new ArrayList<>();
 
                     // Get a list of all the resource offers that will be used for this host
                     List<VirtualMachineLease> leasesUsed = result.getLeasesUsed();
-                    StringBuilder stringBuilder = new StringBuilder("Launching on VM " + leasesUsed.get(0).hostname() + " tasks ");
+                    final String hostname = leasesUsed.get(0).hostname();
                     final Protos.SlaveID slaveId = leasesUsed.get(0).getOffer().getSlaveId();
 
-                    // For each task that will be run on this host, build a TaskInfo object which will be submitted to
-                    // the mesos driver for scheduling
+                    // Record every assignment on this thread so that Fenzo and the queues are up to date
+                    // before the next cycle. The TaskInfos are built by the launch pipeline.
                     for(TaskAssignmentResult t: result.getTasksAssigned()) {
-                        Long jId= (Long)submittedTaskIdsToJobIds.get(t.getTaskId());
-                        if(jId==null){
+                        long taskId = TaskIds.parse(t.getTaskId());
+                        MagellanJob j = submittedTasks.get(taskId);
+                        if(j==null){
                             continue;
                         }
-                        MagellanJob j = jobsList.get(jId);
+                        Long jId = j.getJobID();
 
                         if(j.getState() == MagellanJob.JobState.STOP) {
                             // Just remove it. No chance for this to be re-run
-                            pendingTasksMap.remove(t.getTaskId());
-                            submittedTaskIdsToJobIds.remove(t.getTaskId());
+                            pendingTasks.remove(jId, t.getTaskId());
+                            submittedTasks.remove(taskId);
                             log.log(Level.INFO, "Not scheduling task with id: " + t.getTaskId() + ". Job is stopped.");
                         }else if (j.getState() == MagellanJob.JobState.PAUSED){
                             // Dont do anything with it. Keep it in our pendinTasksMap and dont use the resource offer
                             // It will get reclaimed by mesos
                             log.log(Level.INFO, "Not scheduling task with id: " + t.getTaskId() + ". Job is paused.");
                         } else {
-                            stringBuilder.append(t.getTaskId()).append(", ");
-                            taskInfos.add(getTaskInfo(slaveId, t.getTaskId()));
-                            // remove task from pending tasks map and put into launched tasks map
-                            pendingTasksMap.remove(t.getTaskId());
-                            launchedTasks.put(t.getTaskId(), leasesUsed.get(0).hostname());
+                            // remove task from pending tasks index and put into launched tasks map
+                            MagellanTaskRequest request = pendingTasks.remove(jId, t.getTaskId());
+                            if(request == null) {
+                                // The job was stopped after this window was handed to Fenzo
+                                continue;
+                            }
+                            assignments.add(new LaunchPipeline.Assignment(request, j.getTaskExecutor()));
+                            launchedTasks.put(taskId, hostname);
+                            launchedTasksOf(jId).put(taskId, hostname);
+                            if(j.getState() == MagellanJob.JobState.STOP) {
+                                // The job was stopped after its state was checked and may have
+                                // missed this task when it killed its launched tasks
+                                killDispatcher.kill(taskId);
+                            }
+                            pendingTasks.taskLaunched(jId);
+                            numLaunched++;
                             // Notify Fenzo that the task is being deployed to a host
-                            fenzoScheduler.getTaskAssigner().call(t.getRequest(), leasesUsed.get(0).hostname());
+                            fenzoScheduler.getTaskAssigner().call(t.getRequest(), hostname);
                         }
                     }
                     List<Protos.OfferID> offerIDs = new ArrayList<>();
                     // Get a list of all the resource offer ids used for this host.
-                    for(VirtualMachineLease l: leasesUsed)
+                    for(VirtualMachineLease l: leasesUsed) {
                         offerIDs.add(l.getOffer().getId());
+                        // Launched on, or declined by an empty launch
+                        offerManager.offerReleased(l.getOffer().getId().getValue());
+                    }
 
-                    log.log(Level.INFO, stringBuilder.toString());
-                    // Finally get the mesos driver to launch the tasks on this host
-                    mesosSchedulerDriver.launchTasks(offerIDs, taskInfos);
+                    if(!assignments.isEmpty()) {
+                        offerManager.offersUsed(hostname, offerIDs.size());
+                    }
+                    // Finally hand the host over to the launch pipeline. This returns before the
+                    // driver has launched the tasks so hosts are launched in parallel.
+                    launchPipeline.launch(hostname, slaveId, offerIDs, assignments);
                 }
             }
-            // TODO: Posibly remove/increase this?
-            try{Thread.sleep(100);}catch(InterruptedException ie){}
+
+            // The held offers may still have room for tasks that did not fit in this window
+            if(numLaunched > 0 && pendingTasks.size() > window.size()) {
+                requestScheduling(true);
+            }
+
+            // Stop receiving offers while there is nothing to run. Offers held by Fenzo are given
+            // back in the next cycle.
+            if(offerManager.suppressIfIdle(getPendingDemand())) {
+                fenzoScheduler.expireAllLeases();
+                requestScheduling(true);
+            }
         }
     }
 
@@ -473,33 +1042,45 @@ public class MagellanFramework implements Watcher {
      * are still processed when the tasks come back from the executors and the
      * statistics are updated accordingly
      *
+     * The running tasks of the job are killed in the background, so this method returns
+     * before the kills are sent.
+     *
      * @param jobID     ID of the job to stop
      */
     public void stopJob(Long jobID) {
         MagellanJob j_stop = jobsList.get(jobID);
         if(j_stop==null){
-            log.log(Level.INFO, "Trying to stop invalid jobID: " + jobID);
+            log.log(Level.INFO, archive.contains(jobID) ? "Job " + jobID + " already finished"
+                    : "Trying to stop invalid jobID: " + jobID);
+            return;
         }
         j_stop.stop();
 
-        Long j_stop_id = jobID;
-
-        Iterator it = launchedTasks.entrySet().iterator();
+        // Tasks that were never launched will not be run anymore
+        List<String> removed = pendingTasks.removeJob(jobID);
+        for(String t_id : removed) {
+            submittedTasks.remove(TaskIds.parse(t_id));
+        }
+        log.log(Level.INFO, "Removed " + removed.size() + " pending tasks of stopped job " + jobID);
 
-        while(it.hasNext()){
-            Map.Entry pair = (Map.Entry)it.next();
-            String  t_id = (String) pair.getKey();
-            Long j_id = submittedTaskIdsToJobIds.get(t_id);
-            log.log(Level.INFO, "Trying to kill j_id is: " + j_id + " j_stop_id is: " + j_stop_id);
+        LongConcurrentMap<String> launched = launchedTasksByJob.get(jobID);
+        if(launched != null) {
+            log.log(Level.INFO, "Killing " + launched.size() + " launched tasks of stopped job " + jobID);
+            launched.forEach((taskId, hostname) -> killDispatcher.kill(taskId));
+        }
+    }
 
-            if(j_id!= null && j_id.longValue() == j_stop_id.longValue() ){
-                log.log(Level.INFO, "Killing task with id: " + t_id);
-                mesosDriver.get().killTask(Protos.TaskID.newBuilder().setValue(t_id).build());
-                //submittedTaskIdsToJobIds.remove(t_id);
-                //launchedTasks.remove(t_id);
-                //fenzoScheduler.getTaskUnAssigner().call(t_id, launchedTasks.get(t_id));
-            }
+    /**
+     * Returns the index of the launched tasks of a job, creating it if needed
+     * @param jobID
+     * @return
+     */
+    private LongConcurrentMap<String> launchedTasksOf(long jobID) {
+        LongConcurrentMap<String> launched = launchedTasksByJob.get(jobID);
+        if(launched == null) {
+            launched = launchedTasksByJob.computeIfAbsent(jobID, id -> new LongConcurrentMap<>(4));
         }
+        return launched;
     }
 
     /**
@@ -514,6 +1095,7 @@ public class MagellanFramework implements Watcher {
         MagellanJob j = jobsList.get(jobID);
         if(j!=null){
             j.pause();
+            pendingTasks.setPaused(jobID, j.getState() == MagellanJob.JobState.PAUSED);
         }
     }
 
@@ -529,81 +1111,66 @@ public class MagellanFramework implements Watcher {
         MagellanJob j = jobsList.get(jobID);
         if(j!=null){
             j.resume();
+            pendingTasks.setPaused(jobID, j.getState() == MagellanJob.JobState.PAUSED);
+            if(pendingTasks.size(jobID) > 0) {
+                offerManager.reviveIfSuppressed();
+            }
+            requestScheduling(true);
         }
     }
 
 
     /**
-     * Packages the information we want to send over into a TaskInfo construct which we can send
-     * @param slaveID   - ID of slave where this task will run
-     * @param taskId    - Used to retrieve task specific data and the executor used to run
- *                        the task
-     * @return+
-     */
-    private Protos.TaskInfo getTaskInfo(Protos.SlaveID slaveID, final String taskId) {
-
-        Protos.TaskID pTaskId = Protos.TaskID.newBuilder().setValue(taskId).build();
-
-        // Create a TaskInfo object that encapsulates all the necessary information for a task
-        // to reach its destination and run successfully on the executor.
-        return Protos.TaskInfo.newBuilder()
-                .setName("task " + pTaskId.getValue())
-                .setTaskId(pTaskId)
-                .setSlaveId(slaveID)
-                .addResources(Protos.Resource.newBuilder()
-                        .setName("cpus")
-                        .setType(Protos.Value.Type.SCALAR)
-                        .setScalar(Protos.Value.Scalar.newBuilder().setValue(getCpus(taskId))))
-                .addResources(Protos.Resource.newBuilder()
-                        .setName("mem")
-                        .setType(Protos.Value.Type.SCALAR)
-                        .setScalar(Protos.Value.Scalar.newBuilder().setValue(getMem(taskId))))
-                .setData(getData(taskId))
-                .setExecutor(Protos.ExecutorInfo.newBuilder(getExecutor(taskId)))
-                .build();
-
-                // The functions below could be useful for this.
-                //.setData(ByteString.copyFromUtf8(data))
-                //.setCommand(Protos.CommandInfo.newBuilder().setValue(taskCmdGetter.call(taskId)).build())
-                //.setExecutor(ExecutorInfo.newBuilderExecutor))
-    }
-
-    /**
-     * Returns the number of cpu's requested by a task
+     * Called when a launched task reaches a terminal state. Tells Fenzo that the resources it used
+     * are free again and stops counting the task against the share of its job. Calling this more
+     * than once for the same task has no effect.
      * @param taskId
-     * @return
+     * @return true if the task was launched and has not been released before
      */
-    private double getCpus(String taskId){
-        return pendingTasksMap.get(taskId).getCPUs();
-    }
-
-    /**
-     * Returns the amount of memory requested by a task
-     * @param taskId
-     * @return
-     */
-    private double getMem(String taskId){
-        return pendingTasksMap.get(taskId).getMemory();
+    private boolean releaseTask(long taskId) {
+        String hostname = launchedTasks.remove(taskId);
+        if(hostname == null) {
+            return false;
+        }
+        LongConcurrentMap<String> launched = launchedTasksByJob.get(TaskIds.jobId(taskId));
+        if(launched != null) {
+            launched.remove(taskId);
+        }
+        fenzoScheduler.getTaskUnAssigner().call(TaskIds.toString(taskId), hostname);
+        if(submittedTasks.containsKey(taskId)) {
+            pendingTasks.taskFinished(TaskIds.jobId(taskId));
+        }
+        return true;
     }
 
     /**
-     * Returns the task specific data/parameters given to it by the job
-     * responsible for its creation.
+     * Returns the id of the job a task belongs to. Task ids start with the id of their job.
      * @param taskId
-     * @return
+     * @return the job id, or 0 if the task id does not start with one
      */
-    private ByteString getData(String taskId){
-        return pendingTasksMap.get(taskId).getData();
+    static long jobIdOf(String taskId) {
+        long id = TaskIds.valueOf(taskId);
+        return id == TaskIds.NONE ? 0 : TaskIds.jobId(id);
     }
 
     /**
-     * Given a String message in UTF-8 from an executor, returns the task number
-     * @param data
-     * @return
+     * Feeds the resources offered by each host into the cluster size estimate used for fair sharing
+     * @param leases
      */
-    private String recoverTaskId(String data){
-        JSONObject o = new JSONObject(data);
-        return (String) o.get(TaskData.UID);
+    private void updateClusterCapacity(List<VirtualMachineLease> leases) {
+        Map<String, double[]> offered = new HashMap<>();
+        for(VirtualMachineLease lease : leases) {
+            double[] resources = offered.get(lease.hostname());
+            if(resources == null) {
+                resources = new double[2];
+                offered.put(lease.hostname(), resources);
+            }
+            resources[0] += lease.cpuCores();
+            resources[1] += lease.memoryMB();
+        }
+        for(Map.Entry<String, double[]> e : offered.entrySet()) {
+            pendingTasks.updateCapacity(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
     }
 
     /**
@@ -623,24 +1190,36 @@ public class MagellanFramework implements Watcher {
     }
 
     /**
-     * Given a taskID, get the executor instance the task will run on
-     * @param taskID
-     * @return
+     * This method is used to pass the result of a finished task to the
+     * job that created the task
+     * @param taskResult    - Decoded response of the task, or null
+     * @param taskID        - Task Id of task that just finished
      */
-    private Protos.ExecutorInfo getExecutor(String taskID){
-        Long jobID = submittedTaskIdsToJobIds.get(taskID);
-        return jobsList.get(jobID).getTaskExecutor();
+    private void processData(Protos.TaskState status, long taskID, TaskResult taskResult) {
+        MagellanJob j = submittedTasks.get(taskID);
+        if(j == null) {
+            log.log(Level.WARNING, "No job for task " + TaskIds.toString(taskID));
+            return;
+        }
+        j.processResult(status, taskID, taskResult);
     }
 
     /**
-     * This method is used to pass the result of a finished task to the
-     * job that created the task
-     * @param taskResult    - Response of finished task that needs to be processed
-     * @param taskID        - Task Id of task that just finished
+     * Returns the energy history of a job between two points in time
+     * @param jobID
+     * @param from : milliseconds since the epoch, inclusive
+     * @param to : milliseconds since the epoch, inclusive
+     * @param points : maximum number of buckets to downsample the history to
+     * @return the buckets or null if the job does not exist
      */
-    private void processData(Protos.TaskState status, String taskID, String taskResult) {
-        long jobId = submittedTaskIdsToJobIds.get(taskID);
-        jobsList.get(jobId).processIncomingMessages(status, taskID, taskResult);
+    public JSONObject getJobEnergyHistory(Long jobID, long from, long to, int points) {
+        MagellanJob mj = getJob(jobID);
+
+        if(mj==null){
+            return null;
+        }
+
+        return mj.getEnergyHistory(from, to, points);
     }
 
     /**
@@ -653,24 +1232,97 @@ public class MagellanFramework implements Watcher {
         MagellanJob mj = jobsList.get(jobID);
 
         if(mj==null){
-            return null;
+            return archive.getSimpleStatus(jobID);
         }
 
         return mj.getSimpleStatus();
     }
 
+    /**
+     * Returns operational statistics of the framework as a JSONObject. Not persisted.
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put(Stats.PENDING_TASKS, pendingTasks.size());
+        stats.put(Stats.LAUNCHED_TASKS, launchedTasks.size());
+        stats.put(Stats.OFFERS, offerManager.getStats());
+        stats.put(Stats.LAUNCHES, launchPipeline.getStats());
+        stats.put(Stats.STATUS_UPDATES, statusPipeline.getStats());
+        stats.put(Stats.KILLS, killDispatcher.getStats());
+        stats.put(Stats.EXECUTORS, engine.getStats());
+        stats.put(Stats.STARTUP, startup.getStats());
+        stats.put(Stats.ARCHIVE, archive.getStats());
+        return stats;
+    }
+
     /**
      * Returns entire state/contents of framework as a JSONObject. Used to persist in zookeeper.
-     * Not for client
+     * Archived jobs are left out. Not for client
      * @return
      */
     public JSONObject getVerboseSystemInfo(){
+        JSONObject sysState = getFrameworkState();
+        sysState.put(Persistence.JOBS, getVerboseAllJobInfo());
+        return sysState;
+    }
+
+    /**
+     * Returns the state of the framework itself, without the state of its jobs. Used to persist
+     * in zookeeper.
+     * @return
+     */
+    public JSONObject getFrameworkState() {
         JSONObject sysState = new JSONObject();
-        sysState.put("num_created_jobs", numCreatedJobs);
-        sysState.put("jobs",getVerboseAllJobInfo());
+        sysState.put(Persistence.NUM_CREATED_JOBS, numCreatedJobs);
+        sysState.put(Persistence.LEADER_TERM, leaderTerm);
         return sysState;
     }
 
+    /**
+     * Returns the version of the state returned by getFrameworkState(). The version changes
+     * whenever that state does.
+     * @return
+     */
+    public long getStateVersion() {
+        return stateVersion.get();
+    }
+
+    /**
+     * Returns the version of the state of every job. The version of a job changes whenever its
+     * snapshot does, so only the jobs whose version changed need to be serialized again.
+     * @return map from the id of each job to the version of its state
+     */
+    public Map<Long, Long> getJobVersions() {
+        Map<Long, Long> versions = new HashMap<>();
+        for(MagellanJob j : jobsList.values()) {
+            versions.put(j.getJobID(), j.getStateVersion());
+        }
+        return versions;
+    }
+
+    /**
+     * Returns the internal state of a job. Used to persist in zookeeper.
+     * @param jobId
+     * @return the snapshot, or null if the job does not exist or is archived
+     */
+    public JSONObject getJobSnapshot(long jobId) {
+        MagellanJob j = jobsList.get(jobId);
+        return j == null ? null : j.getStateSnapshot();
+    }
+
+    /**
+     * Called when the state of a job changed. Important changes, such as a job finishing, are
+     * written to zookeeper right away, others are coalesced.
+     * @param important
+     */
+    private void jobChanged(boolean important) {
+        DataMonitor monitor = dataMonitor;
+        if(monitor != null) {
+            monitor.requestFlush(important);
+        }
+    }
+
 
     /**
      * Returns the status of all jobs as an JSONArray. Only returns information pertaining to
@@ -679,12 +1331,30 @@ public class MagellanFramework implements Watcher {
      */
     public JSONArray getSimpleAllJobStatuses() {
         JSONArray statusAll = new JSONArray();
+        Set<Long> listed = new HashSet<>();
 
         Iterator it = jobsList.entrySet().iterator();
         while(it.hasNext()){
             Map.Entry pair = (Map.Entry)it.next();
             MagellanJob j = (MagellanJob) pair.getValue();
             statusAll.put(j.getSimpleStatus());
+            listed.add(j.getJobID());
+        }
+
+        // After the jobs that are not archived, so that a job archived in the meantime is not missed.
+        // The archive keeps the status of its jobs, which are not rebuilt for it.
+        List<Long> archived = new ArrayList<>();
+        for(Long jobId : archive.getJobIds()) {
+            if(!listed.contains(jobId)) {
+                archived.add(jobId);
+            }
+        }
+        Map<Long, JSONObject> statuses = archive.getSimpleStatuses(archived);
+        for(Long jobId : archived) {
+            JSONObject status = statuses.get(jobId);
+            if(status != null) {
+                statusAll.put(status);
+            }
         }
 
         return statusAll;
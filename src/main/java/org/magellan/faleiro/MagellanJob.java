@@ -10,10 +10,14 @@ import org.json.JSONObject;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,8 +36,13 @@ public class MagellanJob {
     private final double NUM_DISK;
     private final int NUM_PORTS;
 
+    public static final double DEFAULT_WEIGHT = 1.0;
+
     private final long jobID;
 
+    // Share of the cluster this job is entitled to relative to the other jobs
+    private final double jobWeight;
+
     private final String jobName;
 
     private final long jobStartingTime;
@@ -56,37 +65,94 @@ public class MagellanJob {
     // Additional parameters passed in from the user
     private final JSONObject jobAdditionalParam;
 
-    // A list of the best energies found by every task run by this job.
-    //private ConcurrentLinkedDeque<Double> energyHistory = new ConcurrentLinkedDeque<>();
-    private JSONArray energyHistory = new JSONArray();
+    // Encoding of the payloads sent to the executors of this job
+    private final TaskPayloadCodec.Format payloadFormat;
+
+    // Builds the payloads of the annealing tasks. The fields shared by every task, including the
+    // additional parameters, are serialized only once per job.
+    private final TaskPayloadTemplate annealPayload;
 
-    private Object energyHistory_lock = new Object();
+    // The best energies found by every task run by this job and when they were returned
+    private EnergyHistory energyHistory = new EnergyHistory();
+
+    // Maximum number of energies included in the status of the job. The full history is
+    // available through getEnergyHistory(from, to, points).
+    private static final int STATUS_HISTORY_POINTS = 100;
 
     // This list stores tasks that are ready to be scheduled. This list is then consumed by the
     // MagellanFramework when it is ready to accept new tasks.
     private BlockingQueue<MagellanTaskRequest> pendingTasks = new LinkedBlockingQueue<>();
 
-    private JobState state = JobState.INITIALIZED;
+    // Called whenever new tasks are placed in pendingTasks so the framework can wake up its
+    // scheduling loop instead of polling every job
+    private volatile Runnable pendingTasksListener = null;
 
-    private Protos.ExecutorInfo taskExecutor;
+    /**
+     * Notified every time state of the job that is persisted changes
+     */
+    public interface ChangeListener {
+        /**
+         * @param important : true for changes that should be persisted right away, like a change
+         *                  of the state of the job or the last division arriving
+         */
+        void changed(boolean important);
+    }
+
+    // Incremented on every change to the state returned by getStateSnapshot() so that jobs that
+    // did not change are not serialized again
+    private final AtomicLong stateVersion = new AtomicLong();
+    private volatile ChangeListener changeListener = null;
+
+    // Receives the finished tasks and the changes of state so that they survive a crash of the
+    // scheduler between two snapshots. May be null.
+    private volatile CompletionJournal journal = null;
+
+    // Only changed while holding state_lock. Every change is signalled on stateChanged.
+    private volatile JobState state = JobState.INITIALIZED;
+    private final ReentrantLock state_lock = new ReentrantLock();
+    private final Condition stateChanged = state_lock.newCondition();
+
+    // Runs the steps of this job. Set when the job is started
+    private volatile Executor jobExecutor = null;
 
-    /* lock to wait for division task to complete */
-    private Object division_lock = new Object();
+    // Work that was about to run when the job was paused. It is run when the job is resumed and
+    // dropped when the job is stopped. Guarded by state_lock.
+    private final List<Runnable> pausedWork = new ArrayList<>();
+
+    // Upper bound on the number of tasks created by a single step so that jobs with many
+    // partitions do not hold on to a shared thread
+    private static final int TASKS_PER_STEP = 256;
+
+    private Protos.ExecutorInfo taskExecutor;
 
     private Object returnedResult_lock = new Object();
     private AtomicInteger retLength = new AtomicInteger(); // used to prevent constant atomic access of returnedResult
 
-    private AtomicBoolean division_is_done = new AtomicBoolean(false);
     private AtomicBoolean ran_before = new AtomicBoolean(false);
+    private AtomicBoolean allTasksSent = new AtomicBoolean(false);
+
+    // Number of division tasks the search space is split across when a job does not set its own
+    public static final int DEFAULT_DIVISION_PARTS = EnvConfig.getInt("DIVISION_PARTS", 1);
+
+    // Number of division tasks this job runs. Each one divides its own part of the search space.
+    private int divisionParts = Math.max(1, DEFAULT_DIVISION_PARTS);
+
+    // Per division task: whether it has finished, how many divisions it has returned so far and
+    // how many it announced it will return (-1 if unknown). Guarded by returnedResult_lock.
+    private BitSet divisionPartsDone = new BitSet();
+    private int[] divisionsReceived = new int[divisionParts];
+    private int[] divisionsExpected = newExpected(divisionParts);
 
-    /* task ID of division, waiting until this is returned to make more tasks */
-    private String divisionTaskId;
+    // Set while a generateTasks step is queued or running, so that divisions arriving in the
+    // meantime do not start a second one
+    private final AtomicBoolean generating = new AtomicBoolean(false);
 
-    /* json array of returned division. iterated through to make new tasks */
-    private JSONArray returnedResult;
+    /* json array of returned divisions in the order they arrived. iterated through to make new tasks */
+    private JSONArray returnedResult = new JSONArray();
 
-    private BitSet finishedTasks; // every access sync on finishedTasks_lock object
-    private Object finishedTasks_lock = new Object();
+    // Created when the first divisions arrive on a job that has not run before. Safe to read and
+    // update from any thread.
+    private volatile ThreadSafeBitSet finishedTasks;
 
     private int currentTask; //index of curent task, used to prevent getting lock on every access
     private Object curTaskObj; //current task object, used to prevent getting lock on every access
@@ -103,12 +169,54 @@ public class MagellanJob {
                        int taskTime,
                        String taskName,
                        JSONObject jso)
+    {
+        this(id, jName, taskTime, taskName, jso, DEFAULT_WEIGHT);
+    }
+
+    /**
+     *
+     * @param id Unique Job id
+     * @param jName Name of job
+     * @param taskName Name of the task we want to execute on the executor side
+     * @param jso Additional Job param
+     * @param weight Share of the cluster this job is entitled to relative to other jobs
+     */
+    public MagellanJob(long id,
+                       String jName,
+                       int taskTime,
+                       String taskName,
+                       JSONObject jso,
+                       double weight)
+    {
+        this(id, jName, taskTime, taskName, jso, weight, TaskPayloadCodec.Format.JSON);
+    }
+
+    /**
+     *
+     * @param id Unique Job id
+     * @param jName Name of job
+     * @param taskName Name of the task we want to execute on the executor side
+     * @param jso Additional Job param
+     * @param weight Share of the cluster this job is entitled to relative to other jobs
+     * @param format Encoding of the payloads sent to the executors. The binary formats must be
+     *               supported by the executor of the task.
+     */
+    public MagellanJob(long id,
+                       String jName,
+                       int taskTime,
+                       String taskName,
+                       JSONObject jso,
+                       double weight,
+                       TaskPayloadCodec.Format format)
     {
         jobID = id;
+        payloadFormat = format;
+        jobWeight = weight;
         jobName = jName;
         jobTaskTime = taskTime;
         jobTaskName = taskName;
         jobAdditionalParam = jso;
+        annealPayload = new TaskPayloadTemplate(jobTaskName, TaskData.TASK_ANNEAL, jobAdditionalParam, payloadFormat);
         taskExecutor = registerExecutor(System.getenv("EXECUTOR_PATH"));
         jobStartingTime = System.currentTimeMillis();
 
@@ -135,12 +243,37 @@ public class MagellanJob {
         NUM_DISK = j.getDouble(VerboseStatus.NUM_DISK);
         NUM_PORTS = j.getInt(VerboseStatus.NUM_PORTS);
         log.log(Level.INFO, "constructed with zookeeper object, initializing saved state..");
+        divisionParts = j.optInt(VerboseStatus.DIVISION_PARTS, 1);
+        divisionsReceived = new int[divisionParts];
+        divisionsExpected = newExpected(divisionParts);
         if(j.getBoolean(VerboseStatus.RAN_BEFORE) == true){
             String stringEncoding = j.getString(VerboseStatus.BITFIELD_FINISHED);
-            finishedTasks = BitSet.valueOf(Base64.getDecoder().decode(stringEncoding)); //in constructor, thread safe
+            finishedTasks = ThreadSafeBitSet.valueOf(Base64.getDecoder().decode(stringEncoding));
             ran_before.set(j.getBoolean(VerboseStatus.RAN_BEFORE));
-            log.log(Level.INFO,"division is done. loading: ");
+            // The divisions are restored rather than asked for again so that the bits of
+            // finishedTasks keep referring to the same divisions
+            returnedResult = j.optJSONArray(TaskData.RESPONSE_DIVISIONS);
+            if(returnedResult == null) {
+                returnedResult = new JSONArray();
+            }
+            retLength.set(returnedResult.length());
+            if(j.has(VerboseStatus.DIVISION_IS_FINISHED)) {
+                JSONArray done = j.getJSONArray(VerboseStatus.DIVISION_IS_FINISHED);
+                JSONArray received = j.getJSONArray(VerboseStatus.DIVISIONS_RECEIVED);
+                JSONArray expected = j.getJSONArray(VerboseStatus.DIVISIONS_EXPECTED);
+                for(int part = 0; part < divisionParts; part++) {
+                    divisionPartsDone.set(part, done.getBoolean(part));
+                    divisionsReceived[part] = received.getInt(part);
+                    divisionsExpected[part] = expected.getInt(part);
+                }
+            } else if(returnedResult.length() > 0) {
+                // Snapshot written when divisions were returned all at once by a single task
+                divisionPartsDone.set(0);
+                divisionsReceived[0] = returnedResult.length();
+            }
+            log.log(Level.INFO,"division has started. loading: ");
             log.log(Level.INFO, "ran_before = " + ran_before.get());
+            log.log(Level.INFO,"\treturnedResult.length = " + retLength.get() + ", division parts done = " + divisionPartsDone);
             log.log(Level.INFO,"\tfinishedTasks = " + finishedTasks);
             log.log(Level.INFO,"\tfinishedTasks as base64 = " + stringEncoding);
         }
@@ -148,14 +281,21 @@ public class MagellanJob {
         jobID = j.getInt(SimpleStatus.JOB_ID);
         jobStartingTime = j.getLong(SimpleStatus.JOB_STARTING_TIME);
         jobName = j.getString(SimpleStatus.JOB_NAME);
+        jobWeight = j.optDouble(SimpleStatus.JOB_WEIGHT, DEFAULT_WEIGHT);
         jobTaskTime = j.getInt(SimpleStatus.TASK_SECONDS);
         jobTaskName = j.getString(SimpleStatus.TASK_NAME);
         jobCurrentBestSolution = j.getString(SimpleStatus.BEST_LOCATION);
         jobBestEnergy = j.getDouble(SimpleStatus.BEST_ENERGY);
-        synchronized (energyHistory_lock) {
-            energyHistory = j.getJSONArray(SimpleStatus.ENERGY_HISTORY);
+        if(j.has(VerboseStatus.ENERGY_SAMPLES)) {
+            energyHistory = EnergyHistory.decode(j.getString(VerboseStatus.ENERGY_SAMPLES));
+        } else {
+            // Snapshot written before timestamps were recorded
+            energyHistory = EnergyHistory.fromLegacy(j.getJSONArray(SimpleStatus.ENERGY_HISTORY), jobStartingTime);
         }
         jobAdditionalParam = j.getJSONObject(SimpleStatus.ADDITIONAL_PARAMS);
+        TaskPayloadCodec.Format format = TaskPayloadCodec.Format.fromName(j.optString(SimpleStatus.WIRE_FORMAT));
+        payloadFormat = format == null ? TaskPayloadCodec.Format.JSON : format;
+        annealPayload = new TaskPayloadTemplate(jobTaskName, TaskData.TASK_ANNEAL, jobAdditionalParam, payloadFormat);
         state = (new Gson()).fromJson(j.getString(SimpleStatus.CURRENT_STATE), JobState.class);
 
 
@@ -179,170 +319,484 @@ public class MagellanJob {
     }
 
     /**
-     * Runs the main loop in a separate thread
+     * Runs the job on the given executor. The job is driven by short steps that never block: the
+     * first step queues the division tasks, and tasks are generated as the divisions arrive.
+     * Many jobs can therefore share a small pool of threads.
+     * @param executor
      */
-    public void start() {
-        state = JobState.RUNNING;
+    public void start(Executor executor) {
+        jobExecutor = executor;
+        setState(JobState.RUNNING);
+        runStep(this::submitDivisionTasks);
+    }
 
-        new Thread(() -> {
-            run();
-        }).start();
+    /**
+     * Sets the number of division tasks the search space is split across. Each task is told its
+     * part and the number of parts. Has no effect once the job has started.
+     * @param parts
+     */
+    void setDivisionParts(int parts) {
+        synchronized (returnedResult_lock) {
+            if(state != JobState.INITIALIZED || ran_before.get()) {
+                return;
+            }
+            divisionParts = Math.max(1, parts);
+            divisionsReceived = new int[divisionParts];
+            divisionsExpected = newExpected(divisionParts);
+        }
+        changed(false);
+    }
+
+    private static int[] newExpected(int parts) {
+        int[] expected = new int[parts];
+        Arrays.fill(expected, -1);
+        return expected;
     }
 
     /**
-     * This functions creates tasks that are passed to the magellan framework using an annealing approach.
-     * We determine the starting location of each task using a temperature cooling mechanism where early on
-     * in the execution of this job, more risks are taken and more tasks run in random locations in an attempt
-     * to explore more of the search space. As time increases and the temperature of the job decreases, tasks
-     * are given starting locations much closer to the global, best solution for this job so that the neighbors
-     * of the best solution are evaluated thoroughly in the hopes that they lie close to the global maximum.
+     * Changes the state of the job and wakes up every thread waiting on a state change
+     * @param newState
      */
-    private void run() {
-        /* first create the splitter task */
-        if(state == JobState.STOP) {
-            return;
+    private void setState(JobState newState) {
+        state_lock.lock();
+        try {
+            state = newState;
+            stateChanged.signalAll();
+            recordState();
+        } finally {
+            state_lock.unlock();
         }
+        notifyChanged(true);
+    }
+
+    /**
+     * Records a change to the persisted state of the job
+     * @param important : true if the change should be persisted right away
+     */
+    private void changed(boolean important) {
+        stateVersion.incrementAndGet();
+        notifyChanged(important);
+    }
 
-        while(state==JobState.PAUSED){
-            Thread.yield();
-            // wait while job is paused
+    private void notifyChanged(boolean important) {
+        ChangeListener listener = changeListener;
+        if(listener != null) {
+            listener.changed(important);
         }
+    }
 
-        try {
-            // To keep the task ids unique throughout the global job space, use the job ID to
-            // ensure uniqueness
-            String newTaskId = "" + jobID + "_" + "div";
+    /**
+     * Records a change of state in the version and in the journal. Called while holding
+     * state_lock so that the journal sees the changes in the order they were made.
+     *
+     * The version moves before the record is appended: a snapshot taken after a record was
+     * appended therefore sees the new version and holds the change, and the record can be
+     * dropped from the journal once that snapshot is written.
+     */
+    private void recordState() {
+        stateVersion.incrementAndGet();
+        CompletionJournal j = journal;
+        if(j != null) {
+            j.stateChanged(jobID, state);
+        }
+    }
 
-            // Choose the magellan specific parameters for the new task
-            //ByteString data = pickNewTaskStartingLocation(jobTaskTime, jobTaskName, newTaskId, jobAdditionalParam);
+    /**
+     * Sets the journal that records the finished tasks and the changes of state of this job
+     * @param journal : may be null
+     */
+    public void setJournal(CompletionJournal journal) {
+        this.journal = journal;
+    }
 
-            int divisions = 0;
+    /**
+     * Registers a callback that is run every time the persisted state of this job changes
+     * @param listener
+     */
+    public void setChangeListener(ChangeListener listener) {
+        changeListener = listener;
+    }
 
-            // Add the task to the pending queue until the framework requests it
-            MagellanTaskRequest newTask = new MagellanTaskRequest(
-                    newTaskId,
-                    jobName,
-                    NUM_CPU,
-                    NUM_MEM,
-                    NUM_NET_MBPS,
-                    NUM_DISK,
-                    NUM_PORTS,
-                    packTaskData(
-                            newTaskId,
-                            jobTaskName,
-                            TaskData.RESPONSE_DIVISIONS,
-                            jobAdditionalParam,
-                            divisions
-                    )
-            );
-
-            pendingTasks.put(newTask);
-            divisionTaskId = newTaskId;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        /* lock until notified that division has returned */
-        log.log(Level.INFO, "waiting for to enter division_lock sync block");
-        synchronized (division_lock) {
-            try {
-                log.log(Level.INFO, "waiting for division_is_done");
-                while (division_is_done.get() == false) {
-                    division_lock.wait();
-                }
-            } catch (InterruptedException e) {
-                log.log(Level.SEVERE, e.getMessage());
+    /**
+     * Returns a number that changes every time the state returned by getStateSnapshot() changes
+     * @return
+     */
+    public long getStateVersion() {
+        return stateVersion.get();
+    }
+
+    private void runStep(Runnable step) {
+        Executor executor = jobExecutor;
+        if(executor == null) {
+            step.run();
+        } else {
+            executor.execute(step);
+        }
+    }
+
+    /**
+     * Defers the given work until the job is resumed if the job is paused. No thread is held
+     * while the job is paused.
+     * @param step
+     * @return true if the job is paused and the caller must return
+     */
+    private boolean parkIfPaused(Runnable step) {
+        if(state != JobState.PAUSED) {
+            return false;
+        }
+        state_lock.lock();
+        try {
+            // Checked again under the lock so that a concurrent resume() cannot miss the step
+            if(state != JobState.PAUSED) {
+                return false;
             }
+            pausedWork.add(step);
+            return true;
+        } finally {
+            state_lock.unlock();
         }
+    }
 
-        if(ran_before.get() == false) {
-            /* got result of division task */
-            synchronized (returnedResult_lock) {
-                finishedTasks = new BitSet(retLength.get()); // initialize list of isFinished bits for each task. Persisted across crash.
+    /**
+     * First step of the job. Queues a splitter task for every part of the search space that has
+     * not been divided yet. Tasks are generated by generateTasks() as the divisions arrive.
+     */
+    private void submitDivisionTasks() {
+        if(state == JobState.STOP) {
+            return;
+        }
+        if(parkIfPaused(this::submitDivisionTasks)) {
+            return;
+        }
+
+        List<Integer> parts = new ArrayList<>();
+        synchronized (returnedResult_lock) {
+            for(int part = 0; part < divisionParts; part++) {
+                if(!divisionPartsDone.get(part)) {
+                    parts.add(part);
+                }
             }
-            ran_before.set(true);
         }
+        for(int part : parts) {
+            // Add the task to the pending queue until the framework requests it
+            addPendingTask(newDivisionTask(part));
+        }
+        log.log(Level.INFO, "Job " + jobID + " waiting for " + parts.size() + " division tasks");
 
+        // A revived job resumes with the divisions it had already received
+        scheduleGeneration();
+    }
+
+    /**
+     * Returns the id of the division task of a part. A job with a single part keeps the id used
+     * before divisions could be split.
+     * @param part
+     * @return
+     */
+    private String divisionTaskId(int part) {
+        // To keep the task ids unique throughout the global job space, use the job ID to
+        // ensure uniqueness
+        return TaskIds.toString(divisionParts == 1 ? TaskIds.division(jobID) : TaskIds.division(jobID, part));
+    }
+
+    /**
+     * Creates the splitter task for a part of the search space
+     * @param part
+     * @return
+     */
+    private MagellanTaskRequest newDivisionTask(int part) {
+        String newTaskId = divisionTaskId(part);
+
+        JSONObject jsonTaskData = new JSONObject();
+        jsonTaskData.put(TaskData.TASK_DIVISIONS, 0);
+        if(divisionParts > 1) {
+            jsonTaskData.put(TaskData.DIVISION_PART, part);
+            jsonTaskData.put(TaskData.DIVISION_PARTS, divisionParts);
+        }
+
+        return new MagellanTaskRequest(
+                newTaskId,
+                jobName,
+                NUM_CPU,
+                NUM_MEM,
+                NUM_NET_MBPS,
+                NUM_DISK,
+                NUM_PORTS,
+                packTaskData(
+                        jsonTaskData,
+                        newTaskId,
+                        jobTaskName,
+                        TaskData.RESPONSE_DIVISIONS,
+                        jobAdditionalParam
+                )
+        );
+    }
+
+    /**
+     * Called when a division task reports divisions, either while it is running or when it
+     * finishes. The divisions are appended to the ones already received and tasks are generated
+     * for them right away.
+     *
+     * Divisions already received, e.g. because a division task was run again, are skipped by
+     * their offset. Reports of a running task must therefore carry one. A final report without an
+     * offset holds the whole part. A report that starts past the divisions received so far is
+     * rejected, since its divisions would land at the wrong index. If it is the final report, the
+     * division task is run again to fill the gap.
+     * @param part : part of the search space the divisions belong to
+     * @param offset : position of the first division within the part, or -1 if not reported
+     * @param total : number of divisions the part will return, or -1 if not reported
+     * @param divisions
+     * @param partFinished : true if the division task has finished
+     */
+    private void divisionsReturned(int part, int offset, int total, JSONArray divisions, boolean partFinished) {
+        int added = 0;
+        boolean rerun = false;
         synchronized (returnedResult_lock) {
+            if(part < 0 || part >= divisionParts) {
+                log.log(Level.WARNING, "Job " + jobID + " received divisions for unknown part " + part + ". Ignoring them");
+                return;
+            }
+            if(divisionPartsDone.get(part)) {
+                log.log(Level.WARNING, "Job " + jobID + " received divisions for part " + part + " after it finished. Ignoring them");
+                return;
+            }
+
+            if(offset < 0) {
+                if(!partFinished) {
+                    log.log(Level.WARNING, "Job " + jobID + " received divisions of part " + part
+                            + " without an offset from a running task. Ignoring them");
+                    return;
+                }
+                offset = 0;
+            }
+            int skip = divisionsReceived[part] - offset;
+            if(skip < 0) {
+                log.log(Level.WARNING, "Job " + jobID + " is missing divisions " + divisionsReceived[part]
+                        + " to " + (offset - 1) + " of part " + part + ". Ignoring the report");
+                rerun = partFinished;
+            }
+            for(int i = skip; !rerun && skip >= 0 && i < divisions.length(); i++) {
+                returnedResult.put(divisions.get(i));
+                added++;
+            }
+            divisionsReceived[part] += added;
+            if(total >= 0) {
+                divisionsExpected[part] = total;
+            }
+            if(partFinished && skip >= 0) {
+                divisionPartsDone.set(part);
+            }
             retLength.set(returnedResult.length());
+
+            if(ran_before.get() == false) {
+                /* got the first divisions */
+                finishedTasks = new ThreadSafeBitSet(retLength.get()); // initialize list of isFinished bits for each task. Persisted across crash.
+                ran_before.set(true);
+            }
+        }
+        if(rerun) {
+            log.log(Level.WARNING, "Running the division task of part " + part + " of job " + jobID + " again");
+            requeue(newDivisionTask(part));
+            return;
         }
+        if(added == 0 && !partFinished) {
+            return;
+        }
+        log.log(Level.INFO, "Job " + jobID + " received " + added + " divisions of part " + part
+                + (partFinished ? ". Part is done" : ""));
 
-        for (currentTask = 0; currentTask < retLength.get(); currentTask++) {
+        // Divisions are expensive to compute again, so the last of them is persisted right away
+        changed(partFinished && allDivisionsReturned());
+        scheduleGeneration();
+    }
 
-            synchronized (returnedResult_lock){
-                curTaskObj = returnedResult.get(currentTask);
-            }
+    /**
+     * Returns true once every division task has finished
+     * @return
+     */
+    private boolean allDivisionsReturned() {
+        synchronized (returnedResult_lock) {
+            return divisionPartsDone.cardinality() == divisionParts;
+        }
+    }
 
-            while(state==JobState.PAUSED){
-                Thread.yield();
-                // wait while job is paused
+    /**
+     * Returns the number of divisions the job will have. Parts that are still running count with
+     * the total they announced, if any.
+     * @return
+     */
+    private int expectedDivisions() {
+        synchronized (returnedResult_lock) {
+            int total = 0;
+            for(int part = 0; part < divisionParts; part++) {
+                total += divisionPartsDone.get(part)
+                        ? divisionsReceived[part]
+                        : Math.max(divisionsReceived[part], divisionsExpected[part]);
             }
+            return total;
+        }
+    }
+
+    /**
+     * Minutes each annealing task runs for, so that all tasks together take jobTaskTime
+     * @return
+     */
+    private double minutesPerTask() {
+        return jobTaskTime / (60.0 * Math.max(1, expectedDivisions()));
+    }
+
+    /**
+     * Runs generateTasks() unless a step of it is already queued or running
+     */
+    private void scheduleGeneration() {
+        if(generating.compareAndSet(false, true)) {
+            runStep(this::generateTasks);
+        }
+    }
+
+    /**
+     * This functions creates tasks that are passed to the magellan framework using an annealing approach.
+     * We determine the starting location of each task using a temperature cooling mechanism where early on
+     * in the execution of this job, more risks are taken and more tasks run in random locations in an attempt
+     * to explore more of the search space. As time increases and the temperature of the job decreases, tasks
+     * are given starting locations much closer to the global, best solution for this job so that the neighbors
+     * of the best solution are evaluated thoroughly in the hopes that they lie close to the global maximum.
+     *
+     * At most TASKS_PER_STEP tasks are generated before the step gives its thread up to other jobs.
+     * Tasks are generated for the divisions received so far. The step ends when it catches up and
+     * is started again when more divisions arrive.
+     */
+    private void generateTasks() {
+        int stepEnd = Math.min(retLength.get(), currentTask + TASKS_PER_STEP);
+        double minutesPerTask = minutesPerTask();
+        for (; currentTask < stepEnd; currentTask++) {
 
             if(state == JobState.STOP) {
                 return;
             }
 
-            // check if this index was already completed in a previous run, if so skip it
-            boolean tmpCurrentTask;
-            synchronized (finishedTasks_lock){
-                tmpCurrentTask = finishedTasks.get(currentTask);
+            if(parkIfPaused(this::generateTasks)) {
+                return;
             }
-            if(!tmpCurrentTask){
+
+            synchronized (returnedResult_lock){
+                curTaskObj = returnedResult.get(currentTask);
+            }
+
+            // check if this index was already completed in a previous run, if so skip it
+            if(!finishedTasks.get(currentTask)){
                  /* got a list of all the partitions, create a task for each */
-                try {
-                    String newTaskId = "" + jobID + "_" + currentTask;
-
-
-                    MagellanTaskRequest newTask = new MagellanTaskRequest(
-                            newTaskId,
-                            jobName,
-                            NUM_CPU,
-                            NUM_MEM,
-                            NUM_NET_MBPS,
-                            NUM_DISK,
-                            NUM_PORTS,
-                            packTaskData(
-                                    newTaskId,
-                                    jobTaskName,
-                                    TaskData.TASK_ANNEAL,
-                                    jobTaskTime/(60.0 * retLength.get()),
-                                    jobAdditionalParam,
-                                    curTaskObj)
-                    );
-
-                    // Add the task to the pending queue until the framework requests it
-                    pendingTasks.put(newTask);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                String newTaskId = TaskIds.toString(TaskIds.anneal(jobID, currentTask));
+
+
+                MagellanTaskRequest newTask = new MagellanTaskRequest(
+                        newTaskId,
+                        jobName,
+                        NUM_CPU,
+                        NUM_MEM,
+                        NUM_NET_MBPS,
+                        NUM_DISK,
+                        NUM_PORTS,
+                        annealPayload.build(newTaskId, minutesPerTask, curTaskObj)
+                );
+
+                // Add the task to the pending queue until the framework requests it
+                addPendingTask(newTask);
             }
         }
 
-        log.log(Level.INFO, "Finished sending tasks. Waiting now. Tasks sent = " + retLength.get());
+        if(currentTask < retLength.get()) {
+            runStep(this::generateTasks);
+            return;
+        }
 
-        int tmpCardinality;
+        generating.set(false);
+        // Divisions that arrived after the check above saw the flag still set and did not start
+        // a step of their own
+        if(currentTask < retLength.get()) {
+            scheduleGeneration();
+            return;
+        }
+        if(!allDivisionsReturned()) {
+            log.log(Level.FINE, "Job " + jobID + " sent " + currentTask + " tasks. Waiting for more divisions");
+            return;
+        }
 
-        synchronized (finishedTasks_lock){
-            tmpCardinality = finishedTasks.cardinality();
+        if(allTasksSent.compareAndSet(false, true)) {
+            log.log(Level.INFO, "Finished sending tasks. Waiting now. Tasks sent = " + retLength.get());
         }
+        checkCompletion();
+    }
 
-        while(state != JobState.STOP && (retLength.get() != tmpCardinality)) {
-            // wait for all tasks to finish
-            synchronized (finishedTasks_lock){
-                tmpCardinality = finishedTasks.cardinality();
-            }
-            Thread.yield();
+    /**
+     * Marks the job as done once every task has been sent and has finished
+     */
+    private void checkCompletion() {
+        if(!allTasksSent.get() || state == JobState.STOP) {
+            return;
         }
 
-        if(state!=JobState.STOP) {
+        if(retLength.get() != finishedTasks.cardinality()) {
+            return;
+        }
+
+        state_lock.lock();
+        try {
+            // A job that was stopped in the meantime stays stopped
+            if(isDone()) {
+                return;
+            }
             state = JobState.DONE;
+            pausedWork.clear();
+            stateChanged.signalAll();
+            recordState();
+        } finally {
+            state_lock.unlock();
         }
+        notifyChanged(true);
 
         synchronized (jobBestEnergy_lock) {
             log.log(Level.INFO, "[Job " + jobID + "]" + " done. Best fitness (" + jobBestEnergy + ") achieved at location " + jobCurrentBestSolution);
         }
     }
 
+    /**
+     * Queues a task that has to be run again. If the job is paused, the task is queued once
+     * the job is resumed. If the job is stopped, it is dropped.
+     * @param task
+     */
+    private void requeue(MagellanTaskRequest task) {
+        if(state == JobState.STOP) {
+            return;
+        }
+        if(parkIfPaused(() -> requeue(task))) {
+            return;
+        }
+        addPendingTask(task);
+    }
+
+    /**
+     * Queues a task for the framework and notifies the listener that new work is available. The
+     * queue is unbounded, so the task is never dropped and the thread never waits, even when it
+     * is interrupted.
+     * @param task
+     */
+    private void addPendingTask(MagellanTaskRequest task) {
+        pendingTasks.add(task);
+        Runnable listener = pendingTasksListener;
+        if(listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registers a callback that is run every time this job queues a new task
+     * @param listener
+     */
+    public void setPendingTasksListener(Runnable listener) {
+        pendingTasksListener = listener;
+    }
+
     /**
      * Called by the magellan framework to get a list of tasks that this job wants scheduled.
      * @return
@@ -362,22 +816,40 @@ public class MagellanJob {
     }
 
     /**
-     * Called by magellan framework when a message from the executor is sent to this job. This message
-     * could indicate that the task was successful, or failed.
-     * @param taskState : Indicates the status of the task. Could be TASK_FINISHED, TASK_ERROR, TASK_FAILED,
-     *                  TASK_LOST
+     * Decodes a message from the executor and passes it to processResult()
+     * @param taskState : Indicates the status of the task
      * @param taskId : Id of the task
-     * @param data   : Data of the task
+     * @param data   : Data of the task as JSON text, or null
      */
     public void processIncomingMessages(Protos.TaskState taskState, String taskId, String data) {
-        log.log(Level.INFO, "processIncomingMessages: state: " + state + " , taskId: " + taskId);
-        log.log(Level.FINER, "data: " + data);
-        boolean isDiv = true;
-        String[] parts = taskId.split("_");
-        String strReturnedJobId = parts[0];
-        long returnedJobId = Integer.parseInt(strReturnedJobId);
-        int returnedTaskNum = 0;
-        String strReturnedTaskNum = parts[1];
+        processResult(taskState, taskId, data == null || data.isEmpty() ? null : TaskResult.decode(data));
+    }
+
+    /**
+     * Called by magellan framework when a message from the executor is sent to this job. This message
+     * could indicate that the task was successful, or failed.
+     * @param taskState : Indicates the status of the task. Could be TASK_RUNNING, TASK_FINISHED, TASK_ERROR,
+     *                  TASK_FAILED, TASK_LOST. Division tasks may send divisions with TASK_RUNNING
+     *                  before they finish.
+     * @param taskId : Id of the mesos task. The uid reported by the executor is not used.
+     * @param result : Decoded data of the task, or null if it sent none
+     * @throws IllegalArgumentException if the task id is malformed
+     */
+    public void processResult(Protos.TaskState taskState, String taskId, TaskResult result) {
+        processResult(taskState, TaskIds.parse(taskId), result);
+    }
+
+    /**
+     * Same as processResult(TaskState, String, TaskResult) for a task id in the packed form of
+     * TaskIds
+     * @param taskState
+     * @param packedTaskId
+     * @param result
+     */
+    public void processResult(Protos.TaskState taskState, long packedTaskId, TaskResult result) {
+        String taskId = TaskIds.toString(packedTaskId);
+        log.log(Level.INFO, "processResult: state: " + state + " , taskId: " + taskId);
+        long returnedJobId = TaskIds.jobId(packedTaskId);
 
         // check that task result is for me, should always be true
         if(returnedJobId != this.jobID){
@@ -385,10 +857,9 @@ public class MagellanJob {
             System.exit(-1);
         }
 
-        if(!parts[1].equals("div")) {
-            isDiv = false;
-            returnedTaskNum = Integer.parseInt(strReturnedTaskNum);
-        }
+        boolean isDiv = TaskIds.isDivision(packedTaskId);
+        int divisionPart = TaskIds.divisionPart(packedTaskId);
+        int returnedTaskNum = TaskIds.index(packedTaskId);
 
         if(taskState == Protos.TaskState.TASK_ERROR || taskState == Protos.TaskState.TASK_FAILED || taskState == Protos.TaskState.TASK_LOST){
             if(state != JobState.STOP){
@@ -398,25 +869,7 @@ public class MagellanJob {
                     String newTaskId = taskId;
                     MagellanTaskRequest newTask;
                     if(isDiv){
-                        int divisions = 0;
-
-                        // Add the task to the pending queue until the framework requests it
-                        newTask = new MagellanTaskRequest(
-                                newTaskId,
-                                jobName,
-                                NUM_CPU,
-                                NUM_MEM,
-                                NUM_NET_MBPS,
-                                NUM_DISK,
-                                NUM_PORTS,
-                                packTaskData(
-                                        newTaskId,
-                                        jobTaskName,
-                                        TaskData.RESPONSE_DIVISIONS,
-                                        jobAdditionalParam,
-                                        divisions
-                                )
-                        );
+                        newTask = newDivisionTask(divisionPart);
                     }else {
                         newTask = new MagellanTaskRequest(
                                 newTaskId,
@@ -426,66 +879,50 @@ public class MagellanJob {
                                 NUM_NET_MBPS,
                                 NUM_DISK,
                                 NUM_PORTS,
-                                packTaskData(
-                                        newTaskId,
-                                        jobTaskName,
-                                        TaskData.TASK_ANNEAL,
-                                        jobTaskTime / (60.0 * retLength.get()),
-                                        jobAdditionalParam,
-                                        returnedResult.get(returnedTaskNum)
-                                )
+                                annealPayload.build(newTaskId, minutesPerTask(), getDivision(returnedTaskNum))
                         );
                     }
-                    while(state==JobState.PAUSED){
-                        Thread.yield();
-                        // wait while job is paused
-                    }
-                    // Add the task to the pending queue until the framework requests it
-                    pendingTasks.put(newTask);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    // Add the task to the pending queue until the framework requests it. This runs on
+                    // the driver's callback thread, so a paused job defers the retry instead of waiting.
+                    requeue(newTask);
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Failed to reschedule task " + taskId + ": " + e.getMessage());
                 }
             }
             return;
         }
 
-        if(data == null){
+        if(result == null){
             return;
         }
 
-        // Retrieve the data sent by the executor
-        JSONObject js = new JSONObject(data);
-
-        String returnedTaskId = js.getString(TaskData.UID);
-
-        log.log(Level.INFO, "returnedTaskId is " + returnedTaskId);
-        log.log(Level.INFO, "divisionTaskId is " + divisionTaskId);
+        // Only division tasks report results while they are running
+        if(taskState == Protos.TaskState.TASK_RUNNING && !isDiv) {
+            return;
+        }
 
-        if(returnedTaskId.equals(divisionTaskId)) {
-            log.log(Level.INFO, "equal, now waiting for division_lock");
-            synchronized (division_lock) {
-                log.log(Level.INFO, "equal, got division_lock");
-                /* parse out the result to get list of tasks */
-                synchronized (returnedResult_lock) {
-                    returnedResult = js.getJSONArray(TaskData.RESPONSE_DIVISIONS);
-                }
-                division_is_done.set(true);
-                log.log(Level.INFO, "notifying division_lock");
-                division_lock.notify();
-            }
+        if(isDiv) {
+            /* parse out the result to get list of tasks. A running division task reports the
+               divisions found so far, a finished one the rest of them */
+            JSONArray divisions = result.getDivisions();
+            divisionsReturned(
+                    divisionPart,
+                    result.getDivisionOffset(),
+                    result.getDivisionTotal(),
+                    divisions == null ? new JSONArray() : divisions,
+                    taskState == Protos.TaskState.TASK_FINISHED);
             return;
         }
         /* not an error and not a division, get results */
-        double fitness_score = js.getDouble(TaskData.FITNESS_SCORE);
-        String best_location = js.getString(TaskData.BEST_LOCATION);
-
-        synchronized (returnedResult_lock) {
-            finishedTasks.set(returnedTaskNum); // mark task as finished. needed for zookeeper state revival
+        if(result.getFitnessScore() == null || result.getBestLocation() == null) {
+            throw new IllegalArgumentException("Result of task " + taskId + " has no fitness score or location");
         }
+        double fitness_score = result.getFitnessScore();
+        String best_location = result.getBestLocation();
 
-        synchronized (energyHistory_lock) {
-            energyHistory.put(fitness_score);
-        }
+        finishedTasks.set(returnedTaskNum); // mark task as finished. needed for zookeeper state revival
+
+        energyHistory.add(System.currentTimeMillis(), fitness_score);
         // If a better score was discovered, make this our global, best location
 
         synchronized (jobBestEnergy_lock) {
@@ -496,24 +933,131 @@ public class MagellanJob {
         }
         log.log(Level.FINE, "Job: " + getJobID() + " processed finished task");
         jobFinishingTime.set(System.currentTimeMillis());
+        // Moves the version before the record is appended, see recordState()
+        stateVersion.incrementAndGet();
+        CompletionJournal j = journal;
+        if(j != null) {
+            j.taskFinished(jobID, returnedTaskNum, fitness_score, best_location);
+        }
+        notifyChanged(false);
+        checkCompletion();
+    }
+
+    /**
+     * Applies a task that finished after the snapshot this job was restored from, as recorded in
+     * the journal
+     * @param taskIndex
+     * @param fitness
+     * @param location
+     * @param timeMillis : when the result was processed
+     * @return false if the snapshot already holds the task or does not know it
+     */
+    boolean replayTaskFinished(int taskIndex, double fitness, String location, long timeMillis) {
+        if(!ran_before.get() || taskIndex < 0 || taskIndex >= retLength.get() || !finishedTasks.set(taskIndex)) {
+            return false;
+        }
+        energyHistory.add(timeMillis, fitness);
+        synchronized (jobBestEnergy_lock) {
+            if (fitness < jobBestEnergy) {
+                jobCurrentBestSolution = location;
+                jobBestEnergy = fitness;
+            }
+        }
+        jobFinishingTime.set(timeMillis);
+        stateVersion.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Applies a change of state made after the snapshot this job was restored from, as recorded
+     * in the journal. Only used before the job is started.
+     * @param newState
+     */
+    void replayState(JobState newState) {
+        state_lock.lock();
+        try {
+            state = newState;
+            stateChanged.signalAll();
+            stateVersion.incrementAndGet();
+        } finally {
+            state_lock.unlock();
+        }
     }
 
     public void stop() {
         log.log(Level.INFO, "Job: " + getJobID() + " asked to stop");
-        state = JobState.STOP;
+        state_lock.lock();
+        try {
+            state = JobState.STOP;
+            pausedWork.clear();
+            stateChanged.signalAll();
+            recordState();
+        } finally {
+            state_lock.unlock();
+        }
+        notifyChanged(true);
     }
 
     public void pause() {
-        if(!isDone()) {
+        state_lock.lock();
+        try {
+            if(isDone()) {
+                return;
+            }
             log.log(Level.INFO, "Job: " + getJobID() + " asked to pause");
             state = JobState.PAUSED;
+            stateChanged.signalAll();
+            recordState();
+        } finally {
+            state_lock.unlock();
         }
+        notifyChanged(true);
     }
 
     public void resume(){
-        if(!isDone()) {
+        List<Runnable> resumed;
+        state_lock.lock();
+        try {
+            if(isDone()) {
+                return;
+            }
             log.log(Level.INFO, "Job: " + getJobID() + " asked to resume");
             state = JobState.RUNNING;
+            resumed = new ArrayList<>(pausedWork);
+            pausedWork.clear();
+            stateChanged.signalAll();
+            recordState();
+        } finally {
+            state_lock.unlock();
+        }
+        notifyChanged(true);
+        // Run the deferred work outside of the lock, in the order it was parked
+        for(Runnable step : resumed) {
+            runStep(step);
+        }
+    }
+
+    /**
+     * Blocks until the job is done or stopped. The waiting thread is parked and woken up by the
+     * state change, so waiting costs no cpu.
+     * @param timeout
+     * @param unit
+     * @return true if the job is done or stopped, false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        state_lock.lock();
+        try {
+            while(!isDone()) {
+                if(nanos <= 0) {
+                    return false;
+                }
+                nanos = stateChanged.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            state_lock.unlock();
         }
     }
 
@@ -534,6 +1078,9 @@ public class MagellanJob {
         jsonObj.put(VerboseStatus.NUM_DISK, NUM_DISK); // final, thread safe
         jsonObj.put(VerboseStatus.NUM_PORTS, NUM_PORTS); // final, thread safe
 
+        // The status only has a downsampled history. Keep every sample.
+        jsonObj.put(VerboseStatus.ENERGY_SAMPLES, energyHistory.encode());
+
         if(ran_before.get() == false){ //atomic object
             // if null wipe entry
             log.log(Level.FINE,"have not ran before. saving: ");
@@ -546,15 +1093,38 @@ public class MagellanJob {
             log.log(Level.FINE,"ran before. saving: ");
             log.log(Level.FINE,"\tran_before = " + ran_before.get()); //atomic object
             log.log(Level.FINE,"\treturnedResult.lenth = " + retLength.get()); //atomic object
-            synchronized (finishedTasks_lock) {
+            String finishedEncoding = Base64.getEncoder().encodeToString(finishedTasks.toByteArray());
+            if(log.isLoggable(Level.FINE)) {
                 log.log(Level.FINE, "\tfinishedTasks = " + finishedTasks);
-                log.log(Level.FINE, "\tfinishedTasks as base64 = " + (Base64.getEncoder().encodeToString(finishedTasks.toByteArray())));
-                jsonObj.put(VerboseStatus.BITFIELD_FINISHED, (Base64.getEncoder().encodeToString(finishedTasks.toByteArray())));
+                log.log(Level.FINE, "\tfinishedTasks as base64 = " + finishedEncoding);
             }
-            jsonObj.put(TaskData.RESPONSE_DIVISIONS, returnedResult);
+            jsonObj.put(VerboseStatus.BITFIELD_FINISHED, finishedEncoding);
             jsonObj.put(VerboseStatus.RAN_BEFORE, ran_before.get());
         }
 
+        synchronized (returnedResult_lock) {
+            if(ran_before.get()) {
+                // Copied because divisions keep being appended while the snapshot is written
+                JSONArray divisions = new JSONArray();
+                for(int i = 0; i < returnedResult.length(); i++) {
+                    divisions.put(returnedResult.get(i));
+                }
+                jsonObj.put(TaskData.RESPONSE_DIVISIONS, divisions);
+            }
+            JSONArray done = new JSONArray();
+            JSONArray received = new JSONArray();
+            JSONArray expected = new JSONArray();
+            for(int part = 0; part < divisionParts; part++) {
+                done.put(divisionPartsDone.get(part));
+                received.put(divisionsReceived[part]);
+                expected.put(divisionsExpected[part]);
+            }
+            jsonObj.put(VerboseStatus.DIVISION_PARTS, divisionParts);
+            jsonObj.put(VerboseStatus.DIVISION_IS_FINISHED, done);
+            jsonObj.put(VerboseStatus.DIVISIONS_RECEIVED, received);
+            jsonObj.put(VerboseStatus.DIVISIONS_EXPECTED, expected);
+        }
+
         return  jsonObj;
     }
 
@@ -566,72 +1136,59 @@ public class MagellanJob {
         JSONObject jsonObj = new JSONObject();
         jsonObj.put(SimpleStatus.JOB_ID, getJobID());
         jsonObj.put(SimpleStatus.JOB_NAME, getJobName());
+        jsonObj.put(SimpleStatus.JOB_WEIGHT, getWeight());
+        jsonObj.put(SimpleStatus.WIRE_FORMAT, getPayloadFormat().toString());
         jsonObj.put(SimpleStatus.JOB_STARTING_TIME, getStartingTime());
         jsonObj.put(SimpleStatus.JOB_FINISHING_TIME, getFinishTime());
         jsonObj.put(SimpleStatus.TASK_SECONDS, getTaskTime());
         jsonObj.put(SimpleStatus.TASK_NAME, getJobTaskName());
         jsonObj.put(SimpleStatus.BEST_LOCATION, getBestLocation());
         jsonObj.put(SimpleStatus.BEST_ENERGY, getBestEnergy());
-        synchronized (energyHistory_lock) {
-            jsonObj.put(SimpleStatus.ENERGY_HISTORY, getEnergyHistory());
-        }
-        synchronized (finishedTasks_lock) {
-            jsonObj.put(SimpleStatus.NUM_FINISHED_TASKS, getNumFinishedTasks());
-        }
+        jsonObj.put(SimpleStatus.ENERGY_HISTORY, getEnergyHistory());
+        jsonObj.put(SimpleStatus.ENERGY_SUMMARY, energyHistory.getSummary());
+        jsonObj.put(SimpleStatus.NUM_FINISHED_TASKS, getNumFinishedTasks());
         jsonObj.put(SimpleStatus.NUM_TOTAL_TASKS, getNumTotalTasks());
         jsonObj.put(SimpleStatus.ADDITIONAL_PARAMS, getJobAdditionalParam());
         jsonObj.put(SimpleStatus.CURRENT_STATE, getState());
         return jsonObj;
     }
 
+    // Keys of getSimpleStatus(), which getStateSnapshot() starts from
+    private static final String[] SIMPLE_STATUS_KEYS = {
+            SimpleStatus.JOB_ID, SimpleStatus.JOB_NAME, SimpleStatus.JOB_WEIGHT, SimpleStatus.WIRE_FORMAT,
+            SimpleStatus.JOB_STARTING_TIME, SimpleStatus.JOB_FINISHING_TIME, SimpleStatus.TASK_SECONDS,
+            SimpleStatus.TASK_NAME, SimpleStatus.BEST_LOCATION, SimpleStatus.BEST_ENERGY,
+            SimpleStatus.ENERGY_HISTORY, SimpleStatus.ENERGY_SUMMARY, SimpleStatus.NUM_FINISHED_TASKS,
+            SimpleStatus.NUM_TOTAL_TASKS, SimpleStatus.ADDITIONAL_PARAMS, SimpleStatus.CURRENT_STATE
+    };
+
+    /**
+     * Returns the simple status recorded in a snapshot without restoring the job
+     * @param snapshot : as returned by getStateSnapshot()
+     * @return the fields of getSimpleStatus() that the snapshot holds
+     */
+    static JSONObject simpleStatusOf(JSONObject snapshot) {
+        JSONObject status = new JSONObject();
+        for(String key : SIMPLE_STATUS_KEYS) {
+            Object value = snapshot.opt(key);
+            if(value != null) {
+                status.put(key, value);
+            }
+        }
+        return status;
+    }
+
     /**
      * Takes the given parameters and packages it into a json formatted Bytestring which can be
-     * packaged into a TaskInfo object by the magellan framework
+     * packaged into a TaskInfo object by the magellan framework. Used for division tasks. The
+     * payloads of annealing tasks are built by annealPayload.
+     * @param jsonTaskData : task specific fields
      * @param newTaskId
      * @param jobTaskName
      * @param command
      * @param jobAdditionalParam
-     * @param taskData
      * @return
      */
-    private ByteString packTaskData(
-            String newTaskId,
-            String jobTaskName,
-            String command,
-            double taskTime,
-            JSONObject jobAdditionalParam,
-            Object taskData
-    ){
-        JSONObject jsonTaskData = new JSONObject();
-        jsonTaskData.put(TaskData.MINUTES_PER_DIVISION, taskTime);
-        jsonTaskData.put(TaskData.TASK_DATA, taskData);
-        return packTaskData(
-                jsonTaskData,
-                newTaskId,
-                jobTaskName,
-                command,
-                jobAdditionalParam
-        );
-    }
-
-    private ByteString packTaskData(
-            String newTaskId,
-            String jobTaskName,
-            String command,
-            JSONObject jobAdditionalParam,
-            int divisions
-    ){
-        JSONObject jsonTaskData = new JSONObject();
-        jsonTaskData.put(TaskData.TASK_DIVISIONS, divisions);
-        return packTaskData(
-                jsonTaskData,
-                newTaskId,
-                jobTaskName,
-                command,
-                jobAdditionalParam
-        );
-    }
-
     private ByteString packTaskData(
             JSONObject jsonTaskData,
             String newTaskId,
@@ -643,11 +1200,29 @@ public class MagellanJob {
         jsonTaskData.put(TaskData.TASK_NAME, jobTaskName);
         jsonTaskData.put(TaskData.TASK_COMMAND, command);
         jsonTaskData.put(TaskData.JOB_DATA, jobAdditionalParam);
-        return ByteString.copyFromUtf8(jsonTaskData.toString());
+        return TaskPayloadCodec.encode(jsonTaskData, payloadFormat);
     }
 
     enum JobState{
         INITIALIZED, RUNNING, PAUSED, STOP, DONE;
+
+        /**
+         * Returns true for the states a job never leaves
+         * @return
+         */
+        boolean isTerminal() {
+            return this == DONE || this == STOP;
+        }
+    }
+
+    /**
+     * Returns the state recorded in a snapshot without restoring the job
+     * @param snapshot : as returned by getStateSnapshot()
+     * @return the state, or null if the snapshot does not record one
+     */
+    static JobState stateOf(JSONObject snapshot) {
+        String recorded = snapshot.optString(SimpleStatus.CURRENT_STATE, null);
+        return recorded == null ? null : (new Gson()).fromJson(recorded, JobState.class);
     }
 
 
@@ -658,6 +1233,10 @@ public class MagellanJob {
 
     public String getJobName() {return jobName;}
 
+    public double getWeight() {return jobWeight;}
+
+    public TaskPayloadCodec.Format getPayloadFormat() {return payloadFormat;}
+
     public double getTaskTime(){ return jobTaskTime; }
 
     public String getJobTaskName() {return jobTaskName;}
@@ -678,12 +1257,25 @@ public class MagellanJob {
 
     public Long getFinishTime() { return jobFinishingTime.get(); }
 
+    /**
+     * Returns the energies found by the tasks of this job, downsampled to at most
+     * STATUS_HISTORY_POINTS values
+     * @return
+     */
     public JSONArray getEnergyHistory() {
-        JSONArray tmpEnergyHistory;
-        synchronized (energyHistory_lock){
-            tmpEnergyHistory = energyHistory;
-        }
-        return tmpEnergyHistory;
+        return energyHistory.downsample(STATUS_HISTORY_POINTS);
+    }
+
+    /**
+     * Returns the energies found between two points in time, downsampled to at most the given
+     * number of buckets with the min and mean energy of each
+     * @param from : milliseconds since the epoch, inclusive
+     * @param to : milliseconds since the epoch, inclusive
+     * @param points
+     * @return
+     */
+    public JSONObject getEnergyHistory(long from, long to, int points) {
+        return energyHistory.query(from, to, points);
     }
 
     public Protos.ExecutorInfo getTaskExecutor() { return taskExecutor; }
@@ -698,9 +1290,20 @@ public class MagellanJob {
 
     public int getNumTasksSent(){ return currentTask;}
 
+    private Object getDivision(int index) {
+        synchronized (returnedResult_lock) {
+            return returnedResult.get(index);
+        }
+    }
+
+    /**
+     * Returns the number of tasks the job runs. While divisions are still arriving this is the
+     * number received so far, or the total announced by the division tasks if it is larger.
+     * @return
+     */
     public int getNumTotalTasks() {
         if(ran_before.get()){
-            return retLength.get();
+            return expectedDivisions();
         }else{
             return -1; // number of total tasks is unknown, job has not been divided into tasks yet
         }
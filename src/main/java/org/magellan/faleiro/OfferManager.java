@@ -0,0 +1,230 @@
+package org.magellan.faleiro;
+
+import com.netflix.fenzo.VirtualMachineLease;
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Manages the lifecycle of the resource offers held by Fenzo.
+ *
+ * Offers are only held for LEASE_EXPIRY_SECS. When Fenzo gives an offer back, it is declined with a
+ * filter so that Mesos does not send the same resources straight back. The filter is short while
+ * there are tasks waiting to be launched. While the backlog is empty it doubles with every offer
+ * declined from the same host, up to MAX_REFUSE_SECONDS, and it is reset once the host is used again.
+ *
+ * When no job has tasks waiting, offers are suppressed altogether so that the master stops sending
+ * them. They are revived as soon as a job queues new tasks.
+ *
+ * The offers Fenzo holds are tracked so that the scheduling loop knows it must run a cycle within
+ * LEASE_EXPIRY_SECS, which is when Fenzo gives expired offers back, even if nothing else happens.
+ *
+ * Counters of the offer traffic are kept so operators can see how much churn the scheduler causes.
+ */
+public class OfferManager {
+    private static final Logger log = Logger.getLogger(OfferManager.class.getName());
+
+    // How long Fenzo holds on to an offer it could not use before giving it back
+    public final long LEASE_EXPIRY_SECS = EnvConfig.getLong("LEASE_EXPIRY_SECS", 10);
+
+    // Filter applied to declined offers while tasks are waiting and for the first idle decline
+    public final double MIN_REFUSE_SECONDS = EnvConfig.getDouble("MIN_REFUSE_SECONDS", 5);
+
+    // Upper bound on the filter applied while there is nothing to launch
+    public final double MAX_REFUSE_SECONDS = EnvConfig.getDouble("MAX_REFUSE_SECONDS", 120);
+
+    private final Supplier<? extends SchedulerDriver> driver;
+    private final IntSupplier backlog;
+
+    // Number of offers from each host that were declined in a row while the backlog was empty
+    private final ConcurrentHashMap<String, Integer> idleDeclines = new ConcurrentHashMap<>();
+
+    private final AtomicLong offersReceived = new AtomicLong();
+    private final AtomicLong offersUsed = new AtomicLong();
+    private final AtomicLong offersDeclined = new AtomicLong();
+    private final AtomicLong offersRescinded = new AtomicLong();
+    private final AtomicLong refuseSecondsTotal = new AtomicLong();
+    private final AtomicLong suppressCalls = new AtomicLong();
+    private final AtomicLong reviveCalls = new AtomicLong();
+
+    // Offers handed to Fenzo and not yet used, declined or rescinded, with the agent they are from
+    private final ConcurrentHashMap<String, String> heldOffers = new ConcurrentHashMap<>();
+
+    // True while the master has been asked to stop sending offers
+    private final AtomicBoolean suppressed = new AtomicBoolean(false);
+
+    /**
+     * @param driver : supplies the driver used to decline offers
+     * @param backlog : supplies the number of tasks waiting to be launched
+     */
+    public OfferManager(Supplier<? extends SchedulerDriver> driver, IntSupplier backlog) {
+        this.driver = driver;
+        this.backlog = backlog;
+        log.log(Level.CONFIG, "Offers expire after " + LEASE_EXPIRY_SECS + "s. Declines are filtered for "
+                + MIN_REFUSE_SECONDS + "s to " + MAX_REFUSE_SECONDS + "s");
+    }
+
+    /**
+     * Records that offers were received from Mesos
+     * @param count
+     */
+    public void offersReceived(int count) {
+        offersReceived.addAndGet(count);
+    }
+
+    /**
+     * Records that an offer was handed to Fenzo
+     * @param offerId
+     * @param slaveId : agent the offer is from
+     */
+    public void offerHeld(String offerId, String slaveId) {
+        heldOffers.put(offerId, slaveId);
+    }
+
+    /**
+     * Records that Fenzo no longer holds an offer because it was used or rescinded
+     * @param offerId
+     */
+    public void offerReleased(String offerId) {
+        heldOffers.remove(offerId);
+    }
+
+    /**
+     * Records that the offers of an agent are gone with it
+     * @param slaveId
+     */
+    public void slaveLost(String slaveId) {
+        heldOffers.values().removeIf(slaveId::equals);
+    }
+
+    /**
+     * Returns the number of offers Fenzo holds
+     * @return
+     */
+    public int getHeldOffers() {
+        return heldOffers.size();
+    }
+
+    /**
+     * Records that an offer was rescinded by Mesos before it was used
+     */
+    public void offerRescinded() {
+        offersRescinded.incrementAndGet();
+    }
+
+    /**
+     * Records that tasks were launched on offers from a host. The next offer declined from this
+     * host starts with the shortest filter again.
+     * @param hostname
+     * @param numOffers : number of offers from the host that were consumed by the launch
+     */
+    public void offersUsed(String hostname, int numOffers) {
+        offersUsed.addAndGet(numOffers);
+        idleDeclines.remove(hostname);
+    }
+
+    /**
+     * Declines an offer that Fenzo gave back. Used as Fenzo's lease reject action.
+     * @param lease
+     */
+    public void decline(VirtualMachineLease lease) {
+        heldOffers.remove(lease.getOffer().getId().getValue());
+        double refuseSeconds = refuseSeconds(lease.hostname());
+        log.log(Level.FINE, "Declining offer on " + lease.hostname() + " for " + refuseSeconds + "s");
+        offersDeclined.incrementAndGet();
+        refuseSecondsTotal.addAndGet((long) refuseSeconds);
+        driver.get().declineOffer(lease.getOffer().getId(),
+                Protos.Filters.newBuilder().setRefuseSeconds(refuseSeconds).build());
+    }
+
+    /**
+     * Returns how long Mesos should hold back the resources of a declined offer from the given host
+     * and updates the per host state accordingly.
+     * @param hostname
+     * @return
+     */
+    double refuseSeconds(String hostname) {
+        if(backlog.getAsInt() > 0) {
+            idleDeclines.remove(hostname);
+            return MIN_REFUSE_SECONDS;
+        }
+        int declines = idleDeclines.merge(hostname, 1, Integer::sum);
+        double refuseSeconds = MIN_REFUSE_SECONDS * Math.pow(2, Math.min(declines - 1, 30));
+        return Math.min(refuseSeconds, MAX_REFUSE_SECONDS);
+    }
+
+    /**
+     * Called when the framework (re-)registers with a master. A new registration starts out
+     * receiving offers.
+     */
+    public void registered() {
+        suppressed.set(false);
+        // Offers of an earlier registration are expired from Fenzo
+        heldOffers.clear();
+    }
+
+    /**
+     * Asks the master to stop sending offers if there is no demand for them
+     * @param demand : number of tasks waiting to be launched
+     * @return true if offers were suppressed by this call
+     */
+    public boolean suppressIfIdle(int demand) {
+        SchedulerDriver d = driver.get();
+        if(demand > 0 || d == null || !suppressed.compareAndSet(false, true)) {
+            return false;
+        }
+        log.log(Level.INFO, "No pending tasks. Suppressing offers");
+        suppressCalls.incrementAndGet();
+        d.suppressOffers();
+        return true;
+    }
+
+    /**
+     * Asks the master to send offers again if they are currently suppressed. Called whenever
+     * new tasks become ready to be scheduled.
+     * @return true if offers were revived by this call
+     */
+    public boolean reviveIfSuppressed() {
+        SchedulerDriver d = driver.get();
+        if(d == null || !suppressed.compareAndSet(true, false)) {
+            return false;
+        }
+        log.log(Level.INFO, "New tasks are pending. Reviving offers");
+        reviveCalls.incrementAndGet();
+        d.reviveOffers();
+        return true;
+    }
+
+    public boolean isSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * Returns the offer churn counters
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put(Stats.OFFERS_RECEIVED, offersReceived.get());
+        stats.put(Stats.OFFERS_USED, offersUsed.get());
+        stats.put(Stats.OFFERS_DECLINED, offersDeclined.get());
+        stats.put(Stats.OFFERS_RESCINDED, offersRescinded.get());
+        stats.put(Stats.OFFERS_HELD, heldOffers.size());
+        stats.put(Stats.REFUSE_SECONDS_TOTAL, refuseSecondsTotal.get());
+        stats.put(Stats.IDLE_HOSTS, idleDeclines.size());
+        stats.put(Stats.SUPPRESSED, suppressed.get());
+        stats.put(Stats.SUPPRESS_CALLS, suppressCalls.get());
+        stats.put(Stats.REVIVE_CALLS, reviveCalls.get());
+        return stats;
+    }
+}
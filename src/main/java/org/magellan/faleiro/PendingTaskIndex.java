@@ -0,0 +1,100 @@
+package org.magellan.faleiro;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Index of all the tasks that are waiting to be launched. Tasks are added as jobs produce them
+ * and removed as they are launched or their job is stopped, so the index never has to be rebuilt.
+ *
+ * The scheduler only hands Fenzo a bounded window of the index every cycle. Tasks that were part
+ * of a window are moved to the back of the index so that the next window starts with tasks that
+ * Fenzo has not seen yet.
+ */
+public class PendingTaskIndex {
+
+    // Insertion ordered so that the head of the map is the next task to be offered to Fenzo
+    private final LinkedHashMap<String, MagellanTaskRequest> tasks = new LinkedHashMap<>();
+
+    /**
+     * Adds a task to the back of the index. If a task with the same id is already pending,
+     * it is replaced.
+     * @param task
+     */
+    public synchronized void add(MagellanTaskRequest task) {
+        tasks.put(task.getId(), task);
+    }
+
+    /**
+     * Returns the pending task with the given id
+     * @param taskId
+     * @return the task or null if it is not pending
+     */
+    public synchronized MagellanTaskRequest get(String taskId) {
+        return tasks.get(taskId);
+    }
+
+    /**
+     * Removes a task from the index
+     * @param taskId
+     * @return the removed task or null if it was not pending
+     */
+    public synchronized MagellanTaskRequest remove(String taskId) {
+        return tasks.remove(taskId);
+    }
+
+    /**
+     * Removes every task matching the given predicate
+     * @param filter
+     * @return number of tasks removed
+     */
+    public synchronized int removeIf(Predicate<MagellanTaskRequest> filter) {
+        int removed = 0;
+        Iterator<MagellanTaskRequest> it = tasks.values().iterator();
+        while(it.hasNext()) {
+            if(filter.test(it.next())) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the next window of at most maxTasks tasks to hand to Fenzo. The returned tasks
+     * are rotated to the back of the index; they stay pending until they are removed.
+     * @param maxTasks : upper bound on the size of the window
+     * @return
+     */
+    public synchronized List<MagellanTaskRequest> nextWindow(int maxTasks) {
+        int windowSize = Math.min(maxTasks, tasks.size());
+        List<MagellanTaskRequest> window = new ArrayList<>(windowSize);
+        if(windowSize == tasks.size()) {
+            // The whole index fits, there is nothing to rotate
+            window.addAll(tasks.values());
+            return window;
+        }
+
+        Iterator<Map.Entry<String, MagellanTaskRequest>> it = tasks.entrySet().iterator();
+        while(window.size() < windowSize) {
+            window.add(it.next().getValue());
+            it.remove();
+        }
+        for(MagellanTaskRequest task : window) {
+            tasks.put(task.getId(), task);
+        }
+        return window;
+    }
+
+    public synchronized int size() {
+        return tasks.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+}
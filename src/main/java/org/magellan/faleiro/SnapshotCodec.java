@@ -0,0 +1,291 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the state persisted in a Zookeeper node so that it fits below the size limit of a node.
+ *
+ * The state is deflated. If the result is small it is stored in the node itself. Otherwise it is
+ * split into chunks of at most chunkSize bytes that are stored in children of the node, and the
+ * node only holds a manifest that names the chunks by the version of the snapshot they belong
+ * to. The chunks of a new version are written before the manifest, so replacing the manifest
+ * commits the new version at once and a reader never sees a mix of two versions.
+ *
+ * The node starts with a byte that cannot start a JSON document, followed by the fields of the
+ * manifest written with CodedOutputStream like TaskPayloadCodec does. The CRC32 and length of
+ * the uncompressed state are checked when the state is read back. Nodes written by earlier
+ * versions hold plain JSON text and are recognized by their first byte.
+ */
+public class SnapshotCodec {
+
+    // First byte of an encoded node. JSON text never starts with it.
+    static final byte MAGIC = 0;
+    static final byte FORMAT_VERSION = 1;
+
+    // Field numbers of the manifest
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int LENGTH = 2;
+    private static final int CRC = 3;
+    private static final int CHUNKS = 4;
+    private static final int INLINE_DATA = 5;
+
+    private static final String CHUNK_PREFIX = "chunk-";
+
+    /**
+     * Content of an encoded node
+     */
+    public static class Manifest {
+        final long snapshotVersion;
+        final int length;
+        final long crc;
+        final int chunks;
+        final ByteString inlineData;    // null if the data is in chunks
+
+        Manifest(long snapshotVersion, int length, long crc, int chunks, ByteString inlineData) {
+            this.snapshotVersion = snapshotVersion;
+            this.length = length;
+            this.crc = crc;
+            this.chunks = chunks;
+            this.inlineData = inlineData;
+        }
+
+        public long getSnapshotVersion() { return snapshotVersion; }
+
+        /**
+         * @return the number of chunks, 0 if the data is stored in the node
+         */
+        public int getChunks() { return chunks; }
+
+        /**
+         * Returns the names of the children that hold the chunks, in order
+         * @return
+         */
+        public List<String> getChunkNames() {
+            List<String> names = new ArrayList<>(chunks);
+            for(int i = 0; i < chunks; i++) {
+                names.add(chunkName(snapshotVersion, i));
+            }
+            return names;
+        }
+
+        public byte[] toByteArray() {
+            try {
+                ByteString.Output bytes = ByteString.newOutput();
+                CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+                out.writeRawByte(MAGIC);
+                out.writeRawByte(FORMAT_VERSION);
+                out.writeInt64(SNAPSHOT_VERSION, snapshotVersion);
+                out.writeInt32(LENGTH, length);
+                out.writeFixed32(CRC, (int) crc);
+                out.writeInt32(CHUNKS, chunks);
+                if(inlineData != null) {
+                    out.writeBytes(INLINE_DATA, inlineData);
+                }
+                out.flush();
+                return bytes.toByteString().toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * A snapshot ready to be written: the content of the node and of each chunk
+     */
+    public static class Encoded {
+        final Manifest manifest;
+        final List<byte[]> chunks;
+
+        Encoded(Manifest manifest, List<byte[]> chunks) {
+            this.manifest = manifest;
+            this.chunks = chunks;
+        }
+
+        public Manifest getManifest() { return manifest; }
+
+        public List<byte[]> getChunks() { return chunks; }
+    }
+
+    /**
+     * Returns the name of the child holding a chunk of a snapshot
+     * @param snapshotVersion
+     * @param index
+     * @return
+     */
+    public static String chunkName(long snapshotVersion, int index) {
+        return CHUNK_PREFIX + snapshotVersion + "-" + index;
+    }
+
+    /**
+     * Compresses a state and splits it into chunks if needed
+     * @param data : the state
+     * @param snapshotVersion : version that names the chunks. Must differ from the version of
+     *                          the snapshot that is replaced.
+     * @param chunkSize : maximum number of bytes in the node and in each chunk
+     * @return
+     */
+    public static Encoded encode(byte[] data, long snapshotVersion, int chunkSize) {
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        byte[] compressed = deflate(data);
+
+        List<byte[]> chunks = new ArrayList<>();
+        ByteString inline = null;
+        if(compressed.length <= chunkSize) {
+            inline = ByteString.copyFrom(compressed);
+        } else {
+            for(int offset = 0; offset < compressed.length; offset += chunkSize) {
+                int end = Math.min(compressed.length, offset + chunkSize);
+                byte[] chunk = new byte[end - offset];
+                System.arraycopy(compressed, offset, chunk, 0, chunk.length);
+                chunks.add(chunk);
+            }
+        }
+        return new Encoded(new Manifest(snapshotVersion, data.length, crc.getValue(), chunks.size(), inline), chunks);
+    }
+
+    /**
+     * Returns true if the content of a node was written by encode(). Otherwise it is plain text.
+     * @param nodeData
+     * @return
+     */
+    public static boolean isEncoded(byte[] nodeData) {
+        return nodeData != null && nodeData.length > 0 && nodeData[0] == MAGIC;
+    }
+
+    /**
+     * Reads the manifest stored in a node
+     * @param nodeData
+     * @return
+     * @throws IllegalArgumentException if the node does not hold a manifest
+     */
+    public static Manifest readManifest(byte[] nodeData) {
+        if(!isEncoded(nodeData)) {
+            throw new IllegalArgumentException("Not an encoded snapshot");
+        }
+        try {
+            CodedInputStream in = CodedInputStream.newInstance(nodeData);
+            in.readRawByte(); // MAGIC
+            byte version = in.readRawByte();
+            if(version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown snapshot format " + version);
+            }
+            long snapshotVersion = 0;
+            int length = 0;
+            long crc = 0;
+            int chunks = 0;
+            ByteString inline = null;
+            int tag;
+            while((tag = in.readTag()) != 0) {
+                switch (tag >>> 3) {
+                    case SNAPSHOT_VERSION: snapshotVersion = in.readInt64(); break;
+                    case LENGTH:           length = in.readInt32(); break;
+                    case CRC:              crc = in.readFixed32() & 0xFFFFFFFFL; break;
+                    case CHUNKS:           chunks = in.readInt32(); break;
+                    case INLINE_DATA:      inline = in.readBytes(); break;
+                    default:               in.skipField(tag);
+                }
+            }
+            if(length < 0 || chunks < 0 || (inline == null) == (chunks == 0)) {
+                throw new IllegalArgumentException("Inconsistent snapshot manifest");
+            }
+            return new Manifest(snapshotVersion, length, crc, chunks, inline);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed snapshot manifest", e);
+        }
+    }
+
+    /**
+     * Restores the state from its manifest and chunks
+     * @param manifest
+     * @param chunks : content of the chunks named by the manifest, in order. Ignored if the data
+     *                 is stored in the node.
+     * @return the state
+     * @throws IllegalArgumentException if a chunk is missing or the state fails its checks
+     */
+    public static byte[] decode(Manifest manifest, List<byte[]> chunks) {
+        byte[] compressed;
+        if(manifest.inlineData != null) {
+            compressed = manifest.inlineData.toByteArray();
+        } else {
+            if(chunks == null || chunks.size() != manifest.chunks) {
+                throw new IllegalArgumentException("Expected " + manifest.chunks + " chunks");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for(byte[] chunk : chunks) {
+                if(chunk == null) {
+                    throw new IllegalArgumentException("Missing chunk");
+                }
+                out.write(chunk, 0, chunk.length);
+            }
+            compressed = out.toByteArray();
+        }
+
+        byte[] data = inflate(compressed, manifest.length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if(crc.getValue() != manifest.crc) {
+            throw new IllegalArgumentException("Checksum mismatch in snapshot version " + manifest.snapshotVersion);
+        }
+        return data;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buf = new byte[8192];
+            while(!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[length];
+            int read = 0;
+            while(read < length) {
+                int n = inflater.inflate(data, read, length - read);
+                if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            // The end of the stream may not have been read yet when the output is exactly full
+            if(read == length && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                read++;
+            }
+            if(read != length || !inflater.finished()) {
+                throw new IllegalArgumentException("Snapshot does not have the expected length " + length);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt snapshot", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
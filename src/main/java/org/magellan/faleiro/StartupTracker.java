@@ -0,0 +1,140 @@
+package org.magellan.faleiro;
+
+import org.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Records the phases a scheduler goes through while it starts, and lets the startup wait for a
+ * phase instead of sleeping for a fixed time.
+ *
+ * Each phase is reached once, at the first call to reached(). The time it was reached is kept in
+ * milliseconds since the tracker was created. The time to the first offer and to the first launch
+ * are also reported from the election, which is what a failover costs a standby scheduler.
+ */
+public class StartupTracker {
+    private static final Logger log = Logger.getLogger(StartupTracker.class.getName());
+
+    enum Phase {
+        ZK_CONNECTED(Stats.ZK_CONNECTED_MILLIS),
+        ELECTED(Stats.ELECTED_MILLIS),
+        RESTORED(Stats.RESTORED_MILLIS),
+        REGISTERED(Stats.REGISTERED_MILLIS),
+        FIRST_OFFER(Stats.FIRST_OFFER_MILLIS),
+        FIRST_LAUNCH(Stats.FIRST_LAUNCH_MILLIS);
+
+        final String tag;
+
+        Phase(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final long startNanos = System.nanoTime();
+    // Completed with the number of milliseconds since the start. Never modified after construction.
+    private final Map<Phase, CompletableFuture<Long>> phases = new EnumMap<>(Phase.class);
+
+    public StartupTracker() {
+        for(Phase phase : Phase.values()) {
+            phases.put(phase, new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * Records that a phase was reached. Later calls for the same phase are ignored.
+     * @param phase
+     * @return true if this call reached the phase
+     */
+    public boolean reached(Phase phase) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if(!phases.get(phase).complete(millis)) {
+            return false;
+        }
+        log.log(Level.INFO, "Startup phase " + phase + " reached after " + millis + " ms");
+        return true;
+    }
+
+    /**
+     * @param phase
+     * @return true if the phase was reached
+     */
+    public boolean isReached(Phase phase) {
+        return phases.get(phase).isDone();
+    }
+
+    /**
+     * Returns when the phase was reached
+     * @param phase
+     * @return milliseconds since the start, -1 if the phase was not reached
+     */
+    public long getMillis(Phase phase) {
+        return phases.get(phase).getNow(-1L);
+    }
+
+    /**
+     * Blocks until a phase is reached
+     * @param phase
+     * @param timeoutMillis
+     * @return false if the phase was not reached in time
+     * @throws InterruptedException
+     */
+    public boolean await(Phase phase, long timeoutMillis) throws InterruptedException {
+        try {
+            phases.get(phase).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // The futures are only ever completed normally
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs an action once, after every given phase is reached
+     * @param executor : runs the action
+     * @param action
+     * @param required : phases to wait for
+     */
+    public void whenReached(Executor executor, Runnable action, Phase... required) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[required.length];
+        for(int i = 0; i < required.length; i++) {
+            futures[i] = phases.get(required[i]);
+        }
+        CompletableFuture.allOf(futures).thenRunAsync(action, executor).whenComplete((v, e) -> {
+            if(e != null) {
+                log.log(Level.SEVERE, "Startup action failed: " + e);
+            }
+        });
+    }
+
+    /**
+     * Returns when each phase was reached, -1 for the phases that were not
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for(Phase phase : Phase.values()) {
+            stats.put(phase.tag, getMillis(phase));
+        }
+        stats.put(Stats.TIME_TO_FIRST_OFFER_MILLIS, sinceElected(Phase.FIRST_OFFER));
+        stats.put(Stats.TIME_TO_FIRST_LAUNCH_MILLIS, sinceElected(Phase.FIRST_LAUNCH));
+        return stats;
+    }
+
+    private long sinceElected(Phase phase) {
+        long elected = getMillis(Phase.ELECTED);
+        long reached = getMillis(phase);
+        return elected < 0 || reached < 0 ? -1 : reached - elected;
+    }
+}
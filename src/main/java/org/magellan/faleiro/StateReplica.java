@@ -0,0 +1,276 @@
+package org.magellan.faleiro;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Persistence;
+import static org.magellan.faleiro.JsonTags.SimpleStatus;
+
+/**
+ * Keeps a live copy of the state persisted by the leader while this scheduler waits to be elected.
+ *
+ * The replica watches the storage root node, its children and the node of every job. Each event
+ * makes it read the node again through the DataMonitor, which learns what is stored as it would
+ * on a restore, and rebuild the job from it. Once elected, the scheduler takes the jobs from the
+ * replica and starts writing right away instead of reading and parsing the whole state.
+ *
+ * Nodes are read on a thread of their own, because the replies of the asynchronous reads are
+ * delivered on the event thread of the Zookeeper client. Events for a node that is already
+ * waiting to be read are dropped, so a burst of writes by the leader costs a single read.
+ * Zookeeper delivers the events of a client in order. The leader's last writes are therefore seen
+ * before the deletion of its election node, and promote() waits for the reads they caused.
+ */
+public class StateReplica implements Watcher {
+    private static final Logger log = Logger.getLogger(StateReplica.class.getName());
+
+    private final ZookeeperService m_zk;
+    private final DataMonitor reader;
+    private final String root;
+    private final ExecutorService executor;
+
+    // Nodes waiting to be read. Events for them are dropped until the read starts.
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // Only used on the executor
+    private JSONObject frameworkState = null;
+    private final Map<Long, MagellanJob> jobs = new HashMap<>();
+    private final Map<Long, JSONObject> dormantJobs = new HashMap<>();  // done or stopped
+    private final Set<Long> storedJobs = new HashSet<>();   // read from a node of their own
+    private final Set<String> watchedChildren = new HashSet<>();
+    private long reads = 0;
+
+    private volatile boolean failed = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param zk
+     * @param reader : reads and decodes the nodes, and later writes the state once promoted
+     * @param executor : single thread that reads the nodes
+     */
+    public StateReplica(ZookeeperService zk, DataMonitor reader, ExecutorService executor) {
+        this.m_zk = zk;
+        this.reader = reader;
+        this.root = reader.getStorageRoot();
+        this.executor = executor;
+    }
+
+    /**
+     * Reads the whole state and starts following its changes
+     */
+    public void start() {
+        submit(root + "/", () -> {
+            m_zk.createNode(root, false, false);
+            readRoot();
+            readChildren();
+            log.log(Level.INFO, "Replicating the state in " + root + ". " + jobs.size() + " jobs");
+        });
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        String path = event.getPath();
+        if(stopped || path == null) {
+            return;
+        }
+        Event.EventType type = event.getType();
+        if(path.equals(root)) {
+            if(type == Event.EventType.NodeChildrenChanged) {
+                submit(path + "/", this::readChildren);
+            } else if(type != Event.EventType.None) {
+                submit(path, this::readRoot);
+            }
+            return;
+        }
+        String child = path.startsWith(root + "/") ? path.substring(root.length() + 1) : null;
+        if(child == null || child.indexOf('/') >= 0 || DataMonitor.jobIdOf(child) < 0) {
+            return;
+        }
+        if(type == Event.EventType.NodeDataChanged || type == Event.EventType.NodeCreated) {
+            submit(path, () -> readJob(child));
+        } else if(type == Event.EventType.NodeDeleted) {
+            submit(path, () -> {
+                watchedChildren.remove(child);
+                long jobId = DataMonitor.jobIdOf(child);
+                jobs.remove(jobId);
+                dormantJobs.remove(jobId);
+                storedJobs.remove(jobId);
+            });
+        }
+    }
+
+    private interface Read {
+        void run() throws KeeperException, InterruptedException;
+    }
+
+    /**
+     * Queues a read of a node unless one is already queued
+     * @param key : identifies the node
+     * @param read
+     */
+    private void submit(final String key, final Read read) {
+        if(!pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                pending.remove(key);
+                if(stopped) {
+                    return;
+                }
+                try {
+                    read.run();
+                    reads++;
+                } catch (KeeperException | InterruptedException | RuntimeException e) {
+                    // The state is read in full once promoted
+                    log.log(Level.SEVERE, "Stopped replicating the state: " + e);
+                    failed = true;
+                    stopped = true;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            failed = true;
+        }
+    }
+
+    private void readRoot() {
+        // The watch is placed before the read so that no change is missed
+        m_zk.watchNode(root, true);
+        JSONObject state = reader.readFrameworkState();
+        if(state == null) {
+            return;
+        }
+        frameworkState = state;
+        // Jobs written by earlier versions in the root node, unless they have a node of their own
+        JSONArray legacyJobs = state.optJSONArray(Persistence.JOBS);
+        if(legacyJobs != null) {
+            for(int i = 0; i < legacyJobs.length(); i++) {
+                JSONObject job = legacyJobs.getJSONObject(i);
+                if(!storedJobs.contains(job.getLong(SimpleStatus.JOB_ID))) {
+                    replicate(job);
+                }
+            }
+        }
+    }
+
+    private void readChildren() throws KeeperException, InterruptedException {
+        List<String> children = m_zk.getChildren(root, true);
+        for(String child : children) {
+            if(DataMonitor.jobIdOf(child) >= 0 && watchedChildren.add(child)) {
+                readJob(child);
+            }
+        }
+    }
+
+    private void readJob(String child) throws KeeperException, InterruptedException {
+        watchedChildren.add(child);
+        m_zk.watchNode(root + "/" + child, true);
+        JSONObject job;
+        try {
+            job = reader.readJob(child);
+        } catch (JSONException e) {
+            log.log(Level.SEVERE, "Ignoring unreadable state in " + child + ": " + e.getMessage());
+            return;
+        }
+        if(job == null) {
+            return;
+        }
+        storedJobs.add(replicate(job));
+    }
+
+    /**
+     * Rebuilds a job from its snapshot. Jobs that are done or stopped are kept as their snapshot,
+     * which goes to the archive of the framework once promoted.
+     * @param snapshot
+     * @return the id of the job
+     */
+    private long replicate(JSONObject snapshot) {
+        long jobId = snapshot.getLong(SimpleStatus.JOB_ID);
+        MagellanJob.JobState state = MagellanJob.stateOf(snapshot);
+        if(state != null && state.isTerminal()) {
+            jobs.remove(jobId);
+            dormantJobs.put(jobId, snapshot);
+        } else {
+            dormantJobs.remove(jobId);
+            jobs.put(jobId, new MagellanJob(snapshot));
+        }
+        return jobId;
+    }
+
+    /**
+     * Stops following the state once this scheduler is the leader. Waits for the reads of the
+     * changes seen so far.
+     * @param timeoutMillis
+     * @return true if the replica holds the whole state. Otherwise the state has to be read again.
+     */
+    public boolean promote(long timeoutMillis) {
+        Future<?> caughtUp;
+        try {
+            caughtUp = executor.submit(() -> stopped = true);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        try {
+            caughtUp.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        } catch (ExecutionException | TimeoutException e) {
+            log.log(Level.WARNING, "Replica did not catch up: " + e);
+            failed = true;
+        }
+        stopped = true;
+        executor.shutdown();
+        if(!failed) {
+            log.log(Level.INFO, "Promoted replica with " + jobs.size() + " jobs after " + reads + " reads");
+        }
+        return !failed;
+    }
+
+    /**
+     * Returns the state of the framework without its jobs, or null if none is stored. Only valid
+     * after promote() returned true.
+     * @return
+     */
+    public JSONObject getFrameworkState() {
+        return frameworkState;
+    }
+
+    /**
+     * Returns the jobs rebuilt from the stored state that may still have work to do. Only valid after promote() returned true.
+     * @return
+     */
+    public Collection<MagellanJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Returns the snapshots of the jobs that are done or stopped. Only valid after promote()
+     * returned true.
+     * @return
+     */
+    public Collection<JSONObject> getDormantJobs() {
+        return new ArrayList<>(dormantJobs.values());
+    }
+}
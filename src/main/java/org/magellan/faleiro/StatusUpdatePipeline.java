@@ -0,0 +1,120 @@
+package org.magellan.faleiro;
+
+import org.apache.mesos.Protos;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.magellan.faleiro.JsonTags.Stats;
+
+/**
+ * Moves the handling of task status updates off the thread of the Mesos driver, which also
+ * delivers offers and every other callback.
+ *
+ * Updates are spread over partitions by job id. Each partition is expected to run one update at a
+ * time in the order they were submitted, so the updates of a job are handled in the order the
+ * driver delivered them while different jobs are handled in parallel. The partitions are expected
+ * to be bounded and to hold the driver up when they are full rather than to drop updates.
+ */
+public class StatusUpdatePipeline {
+    private static final Logger log = Logger.getLogger(StatusUpdatePipeline.class.getName());
+
+    private final List<Executor> partitions;
+    private final Predicate<Protos.TaskStatus> handler;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong queueNanosTotal = new AtomicLong();
+    private final AtomicLong processNanosTotal = new AtomicLong();
+
+    /**
+     * @param partitions : executors that each run one update at a time, in order
+     * @param handler : handles an update. Returns false if the update was ignored, e.g. because it
+     *                  is a duplicate of an update that was already handled.
+     */
+    public StatusUpdatePipeline(List<? extends Executor> partitions, Predicate<Protos.TaskStatus> handler) {
+        if(partitions.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+        this.partitions = new ArrayList<>(partitions);
+        this.handler = handler;
+    }
+
+    /**
+     * Queues an update on the partition of its job. Returns once the update is queued.
+     * @param jobId : id of the job the task belongs to. Updates of the same job are handled in
+     *                the order they are submitted.
+     * @param status
+     */
+    public void submit(long jobId, final Protos.TaskStatus status) {
+        received.incrementAndGet();
+        final long submitted = System.nanoTime();
+        int depth = queued.incrementAndGet();
+        maxQueued.accumulateAndGet(depth, Math::max);
+        Executor partition = partitions.get((int) Math.floorMod(jobId, (long) partitions.size()));
+        try {
+            partition.execute(() -> {
+                long start = System.nanoTime();
+                queued.decrementAndGet();
+                queueNanosTotal.addAndGet(start - submitted);
+                try {
+                    if(!handler.test(status)) {
+                        ignored.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Failed to handle " + status.getState() + " of task "
+                            + status.getTaskId().getValue() + ": " + e);
+                    failed.incrementAndGet();
+                } finally {
+                    processNanosTotal.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            log.log(Level.WARNING, "Dropped " + status.getState() + " of task "
+                    + status.getTaskId().getValue() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of updates that have been submitted but not started
+     * @return
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Returns statistics about the updates handled so far
+     * @return
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long done = processed.get();
+        stats.put(Stats.QUEUE_DEPTH, queued.get());
+        stats.put(Stats.MAX_QUEUE_DEPTH, maxQueued.get());
+        stats.put(Stats.UPDATES_RECEIVED, received.get());
+        stats.put(Stats.UPDATES_PROCESSED, done);
+        stats.put(Stats.UPDATES_IGNORED, ignored.get());
+        stats.put(Stats.UPDATES_FAILED, failed.get());
+        stats.put(Stats.UPDATES_DROPPED, dropped.get());
+        stats.put(Stats.AVG_QUEUE_MILLIS, done == 0 ? 0 : queueNanosTotal.get() / done / 1e6);
+        stats.put(Stats.AVG_PROCESS_MILLIS, done == 0 ? 0 : processNanosTotal.get() / done / 1e6);
+        return stats;
+    }
+}
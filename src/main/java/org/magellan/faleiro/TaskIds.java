@@ -0,0 +1,175 @@
+package org.magellan.faleiro;
+
+/**
+ * Task ids packed into a long.
+ *
+ * The high 32 bits hold the id of the job and the low 32 bits the task within the job. Annealing
+ * tasks store the index of their division, which is never negative. Division tasks store -1 when
+ * the job has a single division task and -(part + 2) for each part otherwise.
+ *
+ * Mesos and Fenzo identify tasks by strings. toString() gives the same strings the framework has
+ * always used, "3_17" for the annealing task of division 17 of job 3 and "3_div" or "3_div1" for
+ * division tasks, and parse() turns them back into the packed form.
+ */
+public class TaskIds {
+
+    // Returned by valueOf() for strings that are not task ids. Packed ids are never negative.
+    public static final long NONE = -1;
+
+    private static final int SINGLE_DIVISION = -1;
+    private static final String SEPARATOR = "_";
+    private static final String DIVISION = "div";
+
+    private TaskIds() {
+    }
+
+    /**
+     * Returns the id of the annealing task of a division
+     * @param jobId
+     * @param index : index of the division
+     * @return
+     */
+    public static long anneal(long jobId, int index) {
+        if(index < 0) {
+            throw new IllegalArgumentException("Negative division index: " + index);
+        }
+        return pack(jobId, index);
+    }
+
+    /**
+     * Returns the id of the division task of a job that divides its search space in one task
+     * @param jobId
+     * @return
+     */
+    public static long division(long jobId) {
+        return pack(jobId, SINGLE_DIVISION);
+    }
+
+    /**
+     * Returns the id of the division task of one part of the search space
+     * @param jobId
+     * @param part
+     * @return
+     */
+    public static long division(long jobId, int part) {
+        if(part < 0 || part == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid division part: " + part);
+        }
+        return pack(jobId, -(part + 2));
+    }
+
+    private static long pack(long jobId, int task) {
+        if(jobId < 0 || jobId > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Job id out of range: " + jobId);
+        }
+        return (jobId << 32) | (task & 0xFFFFFFFFL);
+    }
+
+    public static long jobId(long taskId) {
+        return taskId >>> 32;
+    }
+
+    public static boolean isDivision(long taskId) {
+        return (int) taskId < 0;
+    }
+
+    /**
+     * @param taskId
+     * @return the index of the division annealed by the task, or -1 for division tasks
+     */
+    public static int index(long taskId) {
+        return isDivision(taskId) ? -1 : (int) taskId;
+    }
+
+    /**
+     * @param taskId
+     * @return the part divided by a division task. 0 for the single division task of a job and
+     *         -1 for annealing tasks.
+     */
+    public static int divisionPart(long taskId) {
+        int task = (int) taskId;
+        if(task >= 0) {
+            return -1;
+        }
+        return task == SINGLE_DIVISION ? 0 : -task - 2;
+    }
+
+    /**
+     * Returns the string form of a task id used with Mesos and Fenzo
+     * @param taskId
+     * @return
+     */
+    public static String toString(long taskId) {
+        int task = (int) taskId;
+        if(task >= 0) {
+            return jobId(taskId) + SEPARATOR + task;
+        }
+        if(task == SINGLE_DIVISION) {
+            return jobId(taskId) + SEPARATOR + DIVISION;
+        }
+        return jobId(taskId) + SEPARATOR + DIVISION + (-task - 2);
+    }
+
+    /**
+     * Parses the string form of a task id
+     * @param taskId
+     * @return
+     * @throws IllegalArgumentException if the string is not a task id
+     */
+    public static long parse(String taskId) {
+        long id = valueOf(taskId);
+        if(id == NONE) {
+            throw new IllegalArgumentException("Not a task id: " + taskId);
+        }
+        return id;
+    }
+
+    /**
+     * Parses the string form of a task id without throwing for the ids of other frameworks
+     * @param taskId
+     * @return the packed id or NONE if the string is not a task id
+     */
+    public static long valueOf(String taskId) {
+        int separator = taskId.indexOf('_');
+        if(separator <= 0) {
+            return NONE;
+        }
+        long jobId = parseDigits(taskId, 0, separator, Integer.MAX_VALUE);
+        if(jobId < 0) {
+            return NONE;
+        }
+        int start = separator + 1;
+        if(taskId.startsWith(DIVISION, start)) {
+            start += DIVISION.length();
+            if(start == taskId.length()) {
+                return division(jobId);
+            }
+            long part = parseDigits(taskId, start, taskId.length(), Integer.MAX_VALUE - 1);
+            return part < 0 ? NONE : division(jobId, (int) part);
+        }
+        long index = parseDigits(taskId, start, taskId.length(), Integer.MAX_VALUE);
+        return index < 0 ? NONE : anneal(jobId, (int) index);
+    }
+
+    /**
+     * Parses a non-empty run of decimal digits without allocating
+     * @return the value or -1 if the characters are not digits or the value is larger than max
+     */
+    private static long parseDigits(String s, int from, int to, long max) {
+        if(from >= to) {
+            return -1;
+        }
+        long value = 0;
+        for(int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+            if(value > max) {
+                return -1;
+            }
+        }
+        return value;
+    }
+}
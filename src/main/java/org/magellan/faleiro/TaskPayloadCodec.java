@@ -0,0 +1,337 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.magellan.faleiro.JsonTags.TaskData;
+
+/**
+ * Encodes the data exchanged with the executors, either as JSON text or in a compact binary form.
+ *
+ * The binary form starts with a byte that cannot start a JSON document, followed by the fields of
+ * JsonTags.TaskData written as protobuf fields with CodedOutputStream. Numbers and strings are
+ * written as protobuf values. Fields holding JSON values, like problem_data and sstates, are
+ * written as JSON text, deflated if they are large and compression is enabled. Fields that do not
+ * have a number of their own are written as key/value pairs, so nothing is lost.
+ *
+ * Fields can be written in any order and the same field must not be written twice, so a payload
+ * can be assembled from separately encoded parts, as TaskPayloadTemplate does.
+ *
+ * Decoding detects the form used, so executors can always reply in JSON.
+ */
+public class TaskPayloadCodec {
+
+    /**
+     * Encoding of the payloads sent to the executors of a job
+     */
+    public enum Format {
+        JSON("json"), BINARY("binary"), BINARY_DEFLATE("binary_deflate");
+
+        private final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * @param name
+         * @return the format with the given name or null if there is none
+         */
+        public static Format fromName(String name) {
+            for(Format f : values()) {
+                if(f.name.equals(name)) {
+                    return f;
+                }
+            }
+            return null;
+        }
+    }
+
+    // First byte of a binary payload. JSON text never starts with it.
+    static final byte MAGIC = 0;
+    static final byte VERSION = 1;
+
+    // JSON values shorter than this are not worth deflating
+    static final int DEFLATE_THRESHOLD = 512;
+
+    // Encodings of a JSON valued field
+    private static final byte JSON_PLAIN = 0;
+    private static final byte JSON_DEFLATED = 1;
+
+    // Field numbers of the binary form
+    static final int UID = 1;
+    static final int TASK_NAME = 2;
+    static final int TASK_COMMAND = 3;
+    static final int JOB_DATA = 4;
+    static final int TASK_DATA = 5;
+    static final int MINUTES_PER_DIVISION = 6;
+    static final int TASK_DIVISIONS = 7;
+    static final int RESPONSE_DIVISIONS = 8;
+    static final int FITNESS_SCORE = 9;
+    static final int BEST_LOCATION = 10;
+    static final int DIVISION_PART = 11;
+    static final int DIVISION_PARTS = 12;
+    static final int DIVISION_OFFSET = 13;
+    static final int DIVISION_TOTAL = 14;
+    static final int OTHER = 15;
+
+    // Field numbers within an OTHER field
+    private static final int OTHER_KEY = 1;
+    private static final int OTHER_VALUE = 2;
+
+    /**
+     * Encodes a payload in the given format
+     * @param payload : fields of JsonTags.TaskData and possibly others
+     * @param format
+     * @return
+     */
+    public static ByteString encode(JSONObject payload, Format format) {
+        if(format == Format.JSON) {
+            return ByteString.copyFromUtf8(payload.toString());
+        }
+        FieldWriter writer = new FieldWriter(format);
+        writer.header();
+        for(String key : payload.keySet()) {
+            writer.field(key, payload.get(key));
+        }
+        return writer.toByteString();
+    }
+
+    /**
+     * Returns true if the payload is in the binary form
+     * @param payload
+     * @return
+     */
+    public static boolean isBinary(ByteString payload) {
+        return !payload.isEmpty() && payload.byteAt(0) == MAGIC;
+    }
+
+    /**
+     * Decodes a payload in either form
+     * @param payload
+     * @return
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static JSONObject decode(ByteString payload) {
+        if(!isBinary(payload)) {
+            return new JSONObject(payload.toStringUtf8());
+        }
+        try {
+            CodedInputStream in = payload.newCodedInput();
+            in.readRawByte(); // MAGIC
+            byte version = in.readRawByte();
+            if(version != VERSION) {
+                throw new IllegalArgumentException("Unknown payload version " + version);
+            }
+            JSONObject result = new JSONObject();
+            int tag;
+            while((tag = in.readTag()) != 0) {
+                switch (tag >>> 3) {
+                    case UID:                  result.put(TaskData.UID, in.readString()); break;
+                    case TASK_NAME:            result.put(TaskData.TASK_NAME, in.readString()); break;
+                    case TASK_COMMAND:         result.put(TaskData.TASK_COMMAND, in.readString()); break;
+                    case BEST_LOCATION:        result.put(TaskData.BEST_LOCATION, in.readString()); break;
+                    case MINUTES_PER_DIVISION: result.put(TaskData.MINUTES_PER_DIVISION, in.readDouble()); break;
+                    case FITNESS_SCORE:        result.put(TaskData.FITNESS_SCORE, in.readDouble()); break;
+                    case TASK_DIVISIONS:       result.put(TaskData.TASK_DIVISIONS, in.readInt32()); break;
+                    case DIVISION_PART:        result.put(TaskData.DIVISION_PART, in.readInt32()); break;
+                    case DIVISION_PARTS:       result.put(TaskData.DIVISION_PARTS, in.readInt32()); break;
+                    case DIVISION_OFFSET:      result.put(TaskData.DIVISION_OFFSET, in.readInt32()); break;
+                    case DIVISION_TOTAL:       result.put(TaskData.DIVISION_TOTAL, in.readInt32()); break;
+                    case JOB_DATA:             result.put(TaskData.JOB_DATA, readJson(in.readBytes())); break;
+                    case TASK_DATA:            result.put(TaskData.TASK_DATA, readJson(in.readBytes())); break;
+                    case RESPONSE_DIVISIONS:   result.put(TaskData.RESPONSE_DIVISIONS, readJson(in.readBytes())); break;
+                    case OTHER:
+                        CodedInputStream other = in.readBytes().newCodedInput();
+                        String key = null;
+                        Object value = null;
+                        int otherTag;
+                        while((otherTag = other.readTag()) != 0) {
+                            if(otherTag >>> 3 == OTHER_KEY) {
+                                key = other.readString();
+                            } else if(otherTag >>> 3 == OTHER_VALUE) {
+                                value = readJson(other.readBytes());
+                            } else {
+                                other.skipField(otherTag);
+                            }
+                        }
+                        if(key != null) {
+                            result.put(key, value);
+                        }
+                        break;
+                    default:
+                        // Written by a newer version
+                        in.skipField(tag);
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed payload", e);
+        }
+    }
+
+    /**
+     * Returns the payload as JSON text, converting it if it is in the binary form
+     * @param payload
+     * @return
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static String toJson(ByteString payload) {
+        if(!isBinary(payload)) {
+            return payload.toStringUtf8();
+        }
+        return decode(payload).toString();
+    }
+
+    private static Object readJson(ByteString bytes) throws IOException {
+        if(bytes.isEmpty()) {
+            throw new IOException("Empty json field");
+        }
+        String text;
+        if(bytes.byteAt(0) == JSON_DEFLATED) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.size() * 4);
+            try (InputStream in = new InflaterInputStream(bytes.substring(1).newInput())) {
+                byte[] buf = new byte[4096];
+                int n;
+                while((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            }
+            text = new String(out.toByteArray(), "UTF-8");
+        } else {
+            text = bytes.substring(1).toStringUtf8();
+        }
+        // Wrapped in an array so that any json value can be parsed
+        return new JSONArray("[" + text + "]").get(0);
+    }
+
+    /**
+     * Writes the fields of a binary payload. Used by encode() and by TaskPayloadTemplate to
+     * encode the parts of a payload separately.
+     */
+    static class FieldWriter {
+        private final boolean deflate;
+        private final ByteString.Output bytes = ByteString.newOutput();
+        private final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+
+        FieldWriter(Format format) {
+            deflate = format == Format.BINARY_DEFLATE;
+        }
+
+        /**
+         * Writes the bytes that mark a binary payload. Must come first.
+         */
+        FieldWriter header() {
+            try {
+                out.writeRawByte(MAGIC);
+                out.writeRawByte(VERSION);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        /**
+         * Writes a field. Null values are left out, like JSONObject.put() does.
+         * @param key : name of the field in JsonTags.TaskData
+         * @param value
+         */
+        FieldWriter field(String key, Object value) {
+            if(value == null) {
+                return this;
+            }
+            try {
+                switch (key) {
+                    case TaskData.UID:                  if(writeString(UID, value)) return this; break;
+                    case TaskData.TASK_NAME:            if(writeString(TASK_NAME, value)) return this; break;
+                    case TaskData.TASK_COMMAND:         if(writeString(TASK_COMMAND, value)) return this; break;
+                    case TaskData.BEST_LOCATION:        if(writeString(BEST_LOCATION, value)) return this; break;
+                    case TaskData.MINUTES_PER_DIVISION: if(writeDouble(MINUTES_PER_DIVISION, value)) return this; break;
+                    case TaskData.FITNESS_SCORE:        if(writeDouble(FITNESS_SCORE, value)) return this; break;
+                    case TaskData.DIVISION_PART:        if(writeInt(DIVISION_PART, value)) return this; break;
+                    case TaskData.DIVISION_PARTS:       if(writeInt(DIVISION_PARTS, value)) return this; break;
+                    case TaskData.DIVISION_OFFSET:      if(writeInt(DIVISION_OFFSET, value)) return this; break;
+                    case TaskData.DIVISION_TOTAL:       if(writeInt(DIVISION_TOTAL, value)) return this; break;
+                    case TaskData.JOB_DATA:             writeJson(JOB_DATA, value); return this;
+                    case TaskData.TASK_DATA:            writeJson(TASK_DATA, value); return this;
+                    case TaskData.RESPONSE_DIVISIONS:
+                        // The division task is sent the number of divisions and returns the divisions
+                        if(writeInt(TASK_DIVISIONS, value)) return this;
+                        writeJson(RESPONSE_DIVISIONS, value);
+                        return this;
+                }
+                // A field without a number of its own, or with a value of an unexpected type
+                FieldWriter other = new FieldWriter(deflate ? Format.BINARY_DEFLATE : Format.BINARY);
+                other.out.writeString(OTHER_KEY, key);
+                other.writeJson(OTHER_VALUE, value);
+                out.writeBytes(OTHER, other.toByteString());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        private boolean writeString(int field, Object value) throws IOException {
+            if(!(value instanceof String)) {
+                return false;
+            }
+            out.writeString(field, (String) value);
+            return true;
+        }
+
+        private boolean writeDouble(int field, Object value) throws IOException {
+            if(!(value instanceof Number)) {
+                return false;
+            }
+            out.writeDouble(field, ((Number) value).doubleValue());
+            return true;
+        }
+
+        private boolean writeInt(int field, Object value) throws IOException {
+            if(!(value instanceof Integer)) {
+                return false;
+            }
+            out.writeInt32(field, (Integer) value);
+            return true;
+        }
+
+        private void writeJson(int field, Object value) throws IOException {
+            byte[] text = JSONObject.valueToString(value).getBytes("UTF-8");
+            ByteString.Output encoded = ByteString.newOutput(text.length + 1);
+            if(deflate && text.length >= DEFLATE_THRESHOLD) {
+                encoded.write(JSON_DEFLATED);
+                // Closing the stream releases the native memory of the deflater
+                try (DeflaterOutputStream deflater = new DeflaterOutputStream(encoded)) {
+                    deflater.write(text);
+                }
+            } else {
+                encoded.write(JSON_PLAIN);
+                encoded.write(text);
+            }
+            out.writeBytes(field, encoded.toByteString());
+        }
+
+        ByteString toByteString() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteString();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.json.JSONObject;
+
+import static org.magellan.faleiro.JsonTags.TaskData;
+
+/**
+ * Builds the payloads of the tasks a job sends for a single command.
+ *
+ * Every task of a job carries the same task name, command and problem data, and the problem data
+ * can be large. These fields are serialized once, when the template is created, into a prefix in
+ * the format of the job, so the binary formats also compress the problem data only once. A payload
+ * is the prefix followed by the few fields that differ between tasks. The prefix is shared by
+ * reference between payloads and is never copied.
+ *
+ * The problem data is serialized when the template is created, so it must not be changed
+ * afterwards.
+ */
+public class TaskPayloadTemplate {
+
+    private final TaskPayloadCodec.Format format;
+
+    private final ByteString prefix;
+
+    // False if every prefix field was null, in which case the first task field needs no comma
+    private final boolean prefixHasFields;
+
+    /**
+     * @param taskName : name of the task to run on the executor side
+     * @param command : command sent to the executor
+     * @param jobData : problem data of the job. May be null.
+     */
+    public TaskPayloadTemplate(String taskName, String command, JSONObject jobData) {
+        this(taskName, command, jobData, TaskPayloadCodec.Format.JSON);
+    }
+
+    /**
+     * @param taskName : name of the task to run on the executor side
+     * @param command : command sent to the executor
+     * @param jobData : problem data of the job. May be null.
+     * @param format : encoding of the payloads
+     */
+    public TaskPayloadTemplate(String taskName, String command, JSONObject jobData, TaskPayloadCodec.Format format) {
+        this.format = format;
+        if(format != TaskPayloadCodec.Format.JSON) {
+            // Protobuf fields can be concatenated, so the binary form needs no separators
+            prefix = new TaskPayloadCodec.FieldWriter(format)
+                    .header()
+                    .field(TaskData.TASK_NAME, taskName)
+                    .field(TaskData.TASK_COMMAND, command)
+                    .field(TaskData.JOB_DATA, jobData)
+                    .toByteString();
+            prefixHasFields = true;
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{");
+        boolean hasFields = appendField(sb, TaskData.TASK_NAME, taskName, false);
+        hasFields = appendField(sb, TaskData.TASK_COMMAND, command, hasFields);
+        hasFields = appendField(sb, TaskData.JOB_DATA, jobData, hasFields);
+        prefix = ByteString.copyFromUtf8(sb.toString());
+        prefixHasFields = hasFields;
+    }
+
+    /**
+     * Builds the payload of a task. It holds the same fields as a JSONObject with the prefix
+     * fields and the given ones.
+     * @param uid : id of the task
+     * @param minutesPerDivision : how long the task runs for
+     * @param taskData : data specific to the task. May be null.
+     * @return
+     */
+    public ByteString build(String uid, double minutesPerDivision, Object taskData) {
+        if(format != TaskPayloadCodec.Format.JSON) {
+            return prefix.concat(new TaskPayloadCodec.FieldWriter(format)
+                    .field(TaskData.UID, uid)
+                    .field(TaskData.MINUTES_PER_DIVISION, minutesPerDivision)
+                    .field(TaskData.TASK_DATA, taskData)
+                    .toByteString());
+        }
+        StringBuilder sb = new StringBuilder(64);
+        boolean hasFields = appendField(sb, TaskData.UID, uid, prefixHasFields);
+        hasFields = appendField(sb, TaskData.MINUTES_PER_DIVISION, minutesPerDivision, hasFields);
+        appendField(sb, TaskData.TASK_DATA, taskData, hasFields);
+        sb.append('}');
+        return prefix.concat(ByteString.copyFromUtf8(sb.toString()));
+    }
+
+    /**
+     * Returns the serialized fields shared by every payload
+     * @return
+     */
+    ByteString getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Appends "key":value, preceded by a comma if a field was written before. Null values are left
+     * out, like JSONObject.put() does.
+     * @return true if a field has been written, including this one
+     */
+    private static boolean appendField(StringBuilder sb, String key, Object value, boolean hasFields) {
+        if(value == null) {
+            return hasFields;
+        }
+        if(hasFields) {
+            sb.append(',');
+        }
+        sb.append(JSONObject.quote(key)).append(':').append(JSONObject.valueToString(value));
+        return true;
+    }
+}
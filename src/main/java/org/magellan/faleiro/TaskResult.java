@@ -0,0 +1,173 @@
+package org.magellan.faleiro;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.protobuf.ByteString;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.magellan.faleiro.JsonTags.TaskData;
+
+/**
+ * The fields of a message from an executor that the scheduler uses.
+ *
+ * JSON messages are decoded in a single streaming pass straight from the bytes of the status
+ * update. Fields the scheduler does not use, like a copy of the problem data, are skipped without
+ * being built. Binary messages are decoded with TaskPayloadCodec.
+ */
+public class TaskResult {
+
+    private String uid = null;
+    private Double fitnessScore = null;
+    private String bestLocation = null;
+    private JSONArray divisions = null;
+    private int divisionOffset = -1;
+    private int divisionTotal = -1;
+
+    private TaskResult() {
+    }
+
+    /**
+     * Decodes a message from an executor in either wire format
+     * @param data
+     * @return
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public static TaskResult decode(ByteString data) {
+        if(TaskPayloadCodec.isBinary(data)) {
+            return fromJson(TaskPayloadCodec.decode(data));
+        }
+        TaskResult result = new TaskResult();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(data.newInput(), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if(reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case TaskData.UID:
+                        result.uid = valueToString(readValue(reader));
+                        break;
+                    case TaskData.FITNESS_SCORE:
+                        result.fitnessScore = reader.nextDouble();
+                        break;
+                    case TaskData.BEST_LOCATION:
+                        result.bestLocation = valueToString(readValue(reader));
+                        break;
+                    case TaskData.RESPONSE_DIVISIONS:
+                        Object divisions = readValue(reader);
+                        if(divisions instanceof JSONArray) {
+                            result.divisions = (JSONArray) divisions;
+                        }
+                        break;
+                    case TaskData.DIVISION_OFFSET:
+                        result.divisionOffset = reader.nextInt();
+                        break;
+                    case TaskData.DIVISION_TOTAL:
+                        result.divisionTotal = reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed task result: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a message from an executor given as JSON text
+     * @param data
+     * @return
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public static TaskResult decode(String data) {
+        return decode(ByteString.copyFromUtf8(data));
+    }
+
+    private static TaskResult fromJson(JSONObject j) {
+        TaskResult result = new TaskResult();
+        result.uid = j.has(TaskData.UID) ? valueToString(j.get(TaskData.UID)) : null;
+        result.fitnessScore = j.has(TaskData.FITNESS_SCORE) ? j.getDouble(TaskData.FITNESS_SCORE) : null;
+        result.bestLocation = j.has(TaskData.BEST_LOCATION) ? valueToString(j.get(TaskData.BEST_LOCATION)) : null;
+        result.divisions = j.optJSONArray(TaskData.RESPONSE_DIVISIONS);
+        result.divisionOffset = j.optInt(TaskData.DIVISION_OFFSET, -1);
+        result.divisionTotal = j.optInt(TaskData.DIVISION_TOTAL, -1);
+        return result;
+    }
+
+    private static String valueToString(Object value) {
+        return value instanceof String ? (String) value : JSONObject.valueToString(value);
+    }
+
+    /**
+     * Reads the next value into the types org.json uses
+     */
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    object.put(name, readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while(reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return JSONObject.stringToValue(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new IllegalStateException("Unexpected " + reader.peek());
+        }
+    }
+
+    /**
+     * @return the id the executor reported, or null. The id of the Mesos task is authoritative.
+     */
+    public String getUid() { return uid; }
+
+    /**
+     * @return the energy of the best solution found, or null for division tasks
+     */
+    public Double getFitnessScore() { return fitnessScore; }
+
+    public String getBestLocation() { return bestLocation; }
+
+    /**
+     * @return the divisions returned by a division task, or null
+     */
+    public JSONArray getDivisions() { return divisions; }
+
+    /**
+     * @return the position of the first division within its part, or -1 if not reported
+     */
+    public int getDivisionOffset() { return divisionOffset; }
+
+    /**
+     * @return the number of divisions the part will return, or -1 if not reported
+     */
+    public int getDivisionTotal() { return divisionTotal; }
+}
@@ -1,49 +1,213 @@
 package org.magellan.faleiro;
 
-import java.nio.ByteBuffer;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * Created by abilinski on 28/03/16.
+ * Lock-free bitmap used to track which tasks of a job have finished.
+ *
+ * Bits are stored in segments of atomic longs and are set with compare-and-set, so any number
+ * of threads can mark tasks as finished without locking. The number of set bits is maintained
+ * as bits are set, which makes cardinality() O(1). Segments are added as higher bits are set.
+ *
+ * toByteArray() and valueOf() use the same little-endian layout as java.util.BitSet so that
+ * bitmaps persisted by earlier versions can still be read.
  */
-public class ThreadSafeBitSet extends BitSet {
-    /*
-    private final Object lock = new Object();
-    private final BitSet mybitset;
+public class ThreadSafeBitSet {
 
-    public ThreadSafeBitSet(int varl){
-        this.mybitset = new BitSet(varl);
+    private static final int WORD_SHIFT = 6;                   // 64 bits per word
+    private static final int SEGMENT_SHIFT = 10;               // 1024 words per segment
+    private static final int SEGMENT_WORDS = 1 << SEGMENT_SHIFT;
+    private static final int BITS_PER_SEGMENT_SHIFT = WORD_SHIFT + SEGMENT_SHIFT;
+
+    // Number of attempts at a consistent snapshot before settling for a copy taken during updates
+    private static final int SNAPSHOT_ATTEMPTS = 8;
+
+    // Replaced, never modified, when the bitmap grows. Segments are shared between the old and
+    // the new array so no update is lost while growing.
+    private volatile AtomicLongArray[] segments;
+
+    private final AtomicInteger cardinality = new AtomicInteger();
+
+    public ThreadSafeBitSet() {
+        this(0);
     }
-    public ThreadSafeBitSet(){
-        this.mybitset = new BitSet();
+
+    /**
+     * @param nbits : expected number of bits. The bitmap grows beyond it if needed.
+     */
+    public ThreadSafeBitSet(int nbits) {
+        if(nbits < 0) {
+            throw new NegativeArraySizeException("nbits < 0: " + nbits);
+        }
+        int numSegments = nbits == 0 ? 1 : ((nbits - 1) >>> BITS_PER_SEGMENT_SHIFT) + 1;
+        AtomicLongArray[] s = new AtomicLongArray[numSegments];
+        for(int i = 0; i < numSegments; i++) {
+            s[i] = new AtomicLongArray(SEGMENT_WORDS);
+        }
+        segments = s;
     }
 
-    public boolean get(int i){
-        synchronized(lock){
-            return mybitset.get(i);
+    private AtomicLongArray segment(int bitIndex, boolean create) {
+        int segmentIndex = bitIndex >>> BITS_PER_SEGMENT_SHIFT;
+        AtomicLongArray[] s = segments;
+        if(segmentIndex < s.length) {
+            return s[segmentIndex];
         }
+        if(!create) {
+            return null;
+        }
+        synchronized (this) {
+            s = segments;
+            if(segmentIndex >= s.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(s, segmentIndex + 1);
+                for(int i = s.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(SEGMENT_WORDS);
+                }
+                segments = grown;
+                s = grown;
+            }
+            return s[segmentIndex];
+        }
+    }
+
+    private static int wordIndex(int bitIndex) {
+        return (bitIndex >>> WORD_SHIFT) & (SEGMENT_WORDS - 1);
     }
 
-    public int cardinality(){
-        synchronized (lock){
-            return mybitset.cardinality();
+    /**
+     * Sets a bit
+     * @param bitIndex
+     * @return true if the bit was not set before this call
+     */
+    public boolean set(int bitIndex) {
+        if(bitIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex < 0: " + bitIndex);
+        }
+        AtomicLongArray segment = segment(bitIndex, true);
+        int word = wordIndex(bitIndex);
+        long mask = 1L << bitIndex;
+        while(true) {
+            long current = segment.get(word);
+            if((current & mask) != 0) {
+                return false;
+            }
+            if(segment.compareAndSet(word, current, current | mask)) {
+                cardinality.incrementAndGet();
+                return true;
+            }
         }
     }
 
-    public void set(int i){
-        synchronized (lock){
-            mybitset.set(i);
+    public boolean get(int bitIndex) {
+        if(bitIndex < 0) {
+            throw new IndexOutOfBoundsException("bitIndex < 0: " + bitIndex);
         }
+        AtomicLongArray segment = segment(bitIndex, false);
+        return segment != null && (segment.get(wordIndex(bitIndex)) & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * Returns the number of bits set. Does not scan the bitmap.
+     * @return
+     */
+    public int cardinality() {
+        return cardinality.get();
     }
 
-    public byte[] toByteArray(){
-        synchronized (lock){
-            return mybitset.toByteArray();
+    /**
+     * Copies the words of the bitmap. The copy is consistent, i.e. it is the state of the bitmap
+     * at a single point in time, unless bits kept being set during every attempt. In that case the
+     * copy contains every bit set before the call and possibly some of the bits set during it.
+     * @return
+     */
+    private long[] snapshotWords() {
+        long[] words = null;
+        for(int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            int before = cardinality.get();
+            words = copyWords();
+            int bits = 0;
+            for(long w : words) {
+                bits += Long.bitCount(w);
+            }
+            // Bits are only ever added and the counter is incremented after the bit is set. If the
+            // copy has as many bits as the counter before and after the copy, nothing changed.
+            if(bits == before && cardinality.get() == before) {
+                return words;
+            }
         }
+        return words;
     }
 
-    public static ThreadSafeBitSet valueOf(byte[] var0) {
-        return valueOf(ByteBuffer.wrap(var0));
+    private long[] copyWords() {
+        AtomicLongArray[] s = segments;
+        long[] words = new long[s.length * SEGMENT_WORDS];
+        for(int i = 0; i < s.length; i++) {
+            for(int j = 0; j < SEGMENT_WORDS; j++) {
+                words[i * SEGMENT_WORDS + j] = s[i].get(j);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Returns a consistent snapshot of the bitmap in the byte layout of BitSet.toByteArray()
+     * @return
+     */
+    public byte[] toByteArray() {
+        long[] words = snapshotWords();
+        int lastWord = words.length - 1;
+        while(lastWord >= 0 && words[lastWord] == 0) {
+            lastWord--;
+        }
+        if(lastWord < 0) {
+            return new byte[0];
+        }
+        int len = 8 * lastWord;
+        for(long w = words[lastWord]; w != 0; w >>>= 8) {
+            len++;
+        }
+        byte[] bytes = new byte[len];
+        for(int i = 0; i < len; i++) {
+            bytes[i] = (byte) (words[i >>> 3] >>> ((i & 7) * 8));
+        }
+        return bytes;
+    }
+
+    /**
+     * Creates a bitmap from bytes in the layout of BitSet.toByteArray()
+     * @param bytes
+     * @return
+     */
+    public static ThreadSafeBitSet valueOf(byte[] bytes) {
+        ThreadSafeBitSet bitSet = new ThreadSafeBitSet(bytes.length * 8);
+        for(int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            while(b != 0) {
+                int bit = Integer.numberOfTrailingZeros(b);
+                bitSet.set(i * 8 + bit);
+                b &= b - 1;
+            }
+        }
+        return bitSet;
+    }
+
+    @Override
+    public String toString() {
+        long[] words = snapshotWords();
+        StringBuilder sb = new StringBuilder("{");
+        for(int i = 0; i < words.length; i++) {
+            long w = words[i];
+            while(w != 0) {
+                int bit = Long.numberOfTrailingZeros(w);
+                if(sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(i * 64 + bit);
+                w &= w - 1;
+            }
+        }
+        return sb.append('}').toString();
     }
-    */
 }
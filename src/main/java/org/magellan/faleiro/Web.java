@@ -7,12 +7,16 @@ import spark.Spark;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.magellan.faleiro.JsonTags.History;
 import static org.magellan.faleiro.JsonTags.WebAPI;
 
 public class Web {
     private static final Logger log = Logger.getLogger(Web.class.getName());
     private static MagellanFramework framework;
 
+    // Number of buckets returned by the history endpoint when the client does not ask for a number
+    private static final int DEFAULT_HISTORY_POINTS = 100;
+
     public static void main(String[] args) {
         MagellanFramework mf = new MagellanFramework();
         initFramework(mf);
@@ -34,6 +38,8 @@ public class Web {
         Spark.options("/api/job/:" + WebAPI.JOB_ID + "/status", Web::updateJobStatusOptions);
         Spark.get("/api/jobs", Web::getJobList);
         Spark.get("/api/job/:" + WebAPI.JOB_ID, Web::getJob);
+        Spark.get("/api/job/:" + WebAPI.JOB_ID + "/history", Web::getJobHistory);
+        Spark.get("/api/stats", Web::getStats);
     }
 
     /**
@@ -46,6 +52,11 @@ public class Web {
      *     job_time : int,
      *     module_url : String
      *     module_data : JSONObject
+     *     job_weight : double (optional, defaults to 1.0)
+     *     wire_format : ENUM("json", "binary", "binary_deflate") (optional, defaults to "json").
+     *                   Encoding of the data sent to the executor. The binary formats are
+     *                   protobuf encoded and must be supported by the module's executor.
+     *                   "binary_deflate" also compresses large problem data and divisions.
      * }
      *
      * // Job successfully created
@@ -53,7 +64,7 @@ public class Web {
      * {
      *     job_id : int
      * }
-     * // Missing parameter
+     * // Missing or Invalid parameter
      * Response(422):
      * {
      *     message : String
@@ -95,8 +106,22 @@ public class Web {
         if(moduleData == null) {
             moduleData = new JSONObject();
         }
+        double jobWeight = request.optDouble(WebAPI.JOB_WEIGHT, MagellanJob.DEFAULT_WEIGHT);
+        if(!(jobWeight > 0)) {
+            response.put(WebAPI.MESSAGE, "Invalid parameter value");
+            log.log(Level.WARNING, "(422) : " + response.getString(WebAPI.MESSAGE), request);
+            return 422;
+        }
+
+        TaskPayloadCodec.Format wireFormat = TaskPayloadCodec.Format.fromName(
+                request.optString(WebAPI.WIRE_FORMAT, TaskPayloadCodec.Format.JSON.toString()));
+        if(wireFormat == null) {
+            response.put(WebAPI.MESSAGE, "Invalid parameter value");
+            log.log(Level.WARNING, "(422) : " + response.getString(WebAPI.MESSAGE), request);
+            return 422;
+        }
 
-        Long jobId = framework.createJob(jobName, jobTime, moduleUrl, moduleData);
+        Long jobId = framework.createJob(jobName, jobTime, moduleUrl, moduleData, jobWeight, wireFormat);
 
         if(jobId < 0) {
             response.put(WebAPI.MESSAGE, "Failed to create job internally");
@@ -211,6 +236,8 @@ public class Web {
      *   {
      *     job_id : int,
      *     job_name : String,
+     *     job_weight : double,
+     *     wire_format : String,
      *     job_starting_time : int,
      *     task_name : String,
      *     task_seconds : int,
@@ -219,9 +246,17 @@ public class Web {
      *     best_energy : double,
      *     num_finished_tasks : int,
      *     num_total_tasks : int,
-     *     energy_history : [
+     *     energy_history : [     // at most 100 values, averaged if the job has more
      *          double
      *     ],
+     *     energy_summary : {
+     *         count : int,
+     *         min : double,
+     *         max : double,
+     *         mean : double,
+     *         from : int,
+     *         to : int
+     *     },
      *     additional_params : {
      *         JSON
      *     }
@@ -250,6 +285,8 @@ public class Web {
      * {
      *     job_id : int,
      *     job_name : String,
+     *     job_weight : double,
+     *     wire_format : String,
      *     job_starting_time : int,
      *     task_name : String,
      *     task_seconds : int,
@@ -258,9 +295,17 @@ public class Web {
      *     best_energy : double,
      *     num_finished_tasks : int,
      *     num_total_tasks : int,
-     *     energy_history : [
+     *     energy_history : [     // at most 100 values, averaged if the job has more
      *          double
      *     ],
+     *     energy_summary : {
+     *         count : int,
+     *         min : double,
+     *         max : double,
+     *         mean : double,
+     *         from : int,
+     *         to : int
+     *     },
      *     additional_params : {
      *         JSON
      *     }
@@ -303,4 +348,170 @@ public class Web {
         log.log(Level.FINE, "Got job details for ID : " + job_id + " status code is " + status , response);
         return status;
     }
+
+    /**
+     * GET /api/job/{job_id}/history?from={from}&to={to}&points={points}
+     *
+     * Energies found by the tasks of a job, downsampled into at most {points} buckets of equal
+     * duration. Buckets without energies are left out.
+     *
+     * from : milliseconds since the epoch. Defaults to the first energy
+     * to : milliseconds since the epoch. Defaults to the last energy
+     * points : maximum number of buckets, 100 by default and at most 1000
+     *
+     * Response(200):
+     * {
+     *     from : int,
+     *     to : int,
+     *     buckets : [
+     *         {
+     *             time : int,       // start of the bucket
+     *             count : int,
+     *             min : double,
+     *             mean : double
+     *         }
+     *     ]
+     * }
+     * // Missing or Invalid parameter
+     * Response(422):
+     * {
+     *     message : String
+     * }
+     */
+    private static String getJobHistory(Request req, Response res) {
+        res.type("application/json");
+        res.header("Access-Control-Allow-Credentials", "false");
+        res.header("Access-Control-Allow-Origin", "*");
+        res.header("Access-Control-Allow-Headers", "X-Requested-With, Content-Type");
+        res.header("Access-Control-Allow-Methods", "GET, POST, DELETE, PUT");
+        log.log(Level.FINE, req.toString(), req);
+
+        JSONObject response = new JSONObject();
+        res.status(getJobHistoryResponse(response,
+                req.params(":" + WebAPI.JOB_ID),
+                req.queryParams(History.FROM),
+                req.queryParams(History.TO),
+                req.queryParams(History.POINTS)));
+        JSONObject ret = (response.optJSONObject(WebAPI.RESPONSE) == null) ? response : response.optJSONObject(WebAPI.RESPONSE);
+        return ret.toString();
+    }
+
+    public static Integer getJobHistoryResponse(JSONObject response, String job_id, String from, String to, String points) {
+        Long jobId;
+        long fromTime;
+        long toTime;
+        int numPoints;
+        try {
+            jobId = Long.parseLong(job_id);
+            fromTime = from == null ? Long.MIN_VALUE : Long.parseLong(from);
+            toTime = to == null ? Long.MAX_VALUE : Long.parseLong(to);
+            numPoints = points == null ? DEFAULT_HISTORY_POINTS : Integer.parseInt(points);
+        } catch (NumberFormatException e) {
+            response.put(WebAPI.MESSAGE, "Invalid parameter value");
+            log.log(Level.WARNING, "(422) : " + response.getString(WebAPI.MESSAGE));
+            return 422;
+        }
+
+        if(numPoints <= 0 || fromTime > toTime) {
+            response.put(WebAPI.MESSAGE, "Invalid parameter value");
+            log.log(Level.WARNING, "(422) : " + response.getString(WebAPI.MESSAGE));
+            return 422;
+        }
+
+        JSONObject history = framework.getJobEnergyHistory(jobId, fromTime, toTime, numPoints);
+        if(history == null) {
+            response.put(WebAPI.MESSAGE, "Job does not exist");
+            log.log(Level.WARNING, "(422) : " + response.getString(WebAPI.MESSAGE));
+            return 422;
+        }
+        response.put(WebAPI.RESPONSE, history);
+        return 200;
+    }
+
+    /**
+     * GET /api/stats
+     *
+     * Request:
+     * {
+     * }
+     *
+     * Response(200):
+     * {
+     *     pending_tasks : int,
+     *     launched_tasks : int,
+     *     offers : {
+     *         offers_received : int,
+     *         offers_used : int,
+     *         offers_declined : int,
+     *         offers_rescinded : int,
+     *         offers_held : int,        // offers Fenzo holds, declined once they expire
+     *         refuse_seconds_total : int,
+     *         idle_hosts : int,
+     *         suppressed : boolean,
+     *         suppress_calls : int,
+     *         revive_calls : int
+     *     },
+     *     launches : {
+     *         in_flight : int,
+     *         host_launches : int,
+     *         tasks_launched : int,
+     *         launch_failures : int,
+     *         avg_launch_millis : double
+     *     },
+     *     status_updates : {
+     *         queue_depth : int,        // updates waiting to be handled
+     *         max_queue_depth : int,
+     *         updates_received : int,
+     *         updates_processed : int,
+     *         updates_ignored : int,    // repeated terminal updates and updates of unknown tasks
+     *         updates_failed : int,
+     *         updates_dropped : int,    // received while shutting down
+     *         avg_queue_millis : double,
+     *         avg_process_millis : double
+     *     },
+     *     kills : {                     // kills of the running tasks of stopped jobs
+     *         queue_depth : int,
+     *         kills_queued : int,
+     *         kills_sent : int,
+     *         kills_skipped : int,      // tasks that ended before their kill was sent
+     *         kill_batches : int
+     *     },
+     *     executors : {
+     *         String : {            // one entry per executor, e.g. jobs, launch, status-0, kill
+     *             pool_size : int,
+     *             max_pool_size : int,
+     *             active_threads : int,
+     *             queue_depth : int,
+     *             queue_remaining : int,
+     *             completed_tasks : int
+     *         }
+     *     },
+     *     startup : {                   // milliseconds since the scheduler started, -1 until reached
+     *         zk_connected_millis : int,
+     *         elected_millis : int,
+     *         restored_millis : int,
+     *         registered_millis : int,
+     *         first_offer_millis : int,
+     *         first_launch_millis : int,
+     *         time_to_first_offer_millis : int,     // since the election
+     *         time_to_first_launch_millis : int
+     *     },
+     *     archive : {                   // jobs that are done or stopped
+     *         archived_jobs : int,
+     *         archived_bytes : int,     // deflated snapshots written so far
+     *         cached_jobs : int,        // archived jobs kept rebuilt for reads
+     *         cache_hits : int,
+     *         cache_misses : int
+     *     }
+     * }
+     */
+    private static String getStats(Request req, Response res) {
+        res.type("application/json");
+        res.header("Access-Control-Allow-Credentials", "false");
+        res.header("Access-Control-Allow-Origin", "*");
+        res.header("Access-Control-Allow-Headers", "X-Requested-With, Content-Type");
+        res.header("Access-Control-Allow-Methods", "GET, POST, DELETE, PUT");
+        log.log(Level.FINE, req.toString(), req);
+        return framework.getStats().toString();
+    }
 }
@@ -8,9 +8,20 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Access to the Zookeeper nodes used by the framework.
+ *
+ * The synchronous methods wait for a round trip each. The asynchronous ones return at once and
+ * complete their future from the event thread of the client. The client sends requests in order
+ * without waiting for earlier replies, so independent operations issued back to back are
+ * pipelined and a batch of them costs about one round trip. Futures of failed operations complete
+ * with the KeeperException of the failure.
+ */
 public class ZookeeperService {
     private ZooKeeper zooKeeper;
     private static final Logger log = Logger.getLogger(ZookeeperService.class.getName());
@@ -31,17 +42,18 @@ public class ZookeeperService {
     public String createNode(final String node, final boolean watch, final boolean ephimeral) {
         String createdNodePath = null;
         try {
-
-            final Stat nodeStat =  zooKeeper.exists(node, watch);
-
-            if(nodeStat == null) {
+            // Creating the node right away saves the round trip of checking for it first
+            try {
                 createdNodePath = zooKeeper.create(node,
                                                     new JSONObject().toString().getBytes("UTF-8"),
                                                     ZooDefs.Ids.OPEN_ACL_UNSAFE,
                                                     (ephimeral ?  CreateMode.EPHEMERAL_SEQUENTIAL : CreateMode.PERSISTENT));
-            } else {
+            } catch (KeeperException.NodeExistsException e) {
                 createdNodePath = node;
             }
+            if(watch) {
+                zooKeeper.exists(node, true);
+            }
 
         } catch (KeeperException | InterruptedException e) {
             log.log(Level.SEVERE, e.getMessage());
@@ -104,12 +116,10 @@ public class ZookeeperService {
      */
     public byte[] getData(final String node){
         try {
-            final Stat nodeStat = zooKeeper.exists(node, false);
-
-            if (nodeStat != null) {
-                return zooKeeper.getData(node, false, null);
-            }
-        }catch (InterruptedException e) {
+            return zooKeeper.getData(node, false, null);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        } catch (InterruptedException e) {
             log.log(Level.SEVERE, e.getMessage());
         } catch (KeeperException e) {
             log.log(Level.SEVERE, e.getMessage());
@@ -128,4 +138,167 @@ public class ZookeeperService {
         zooKeeper.setData(node, data, -1);
     }
 
+    /**
+     * Synchronous call that writes data at a node, creating the node if it does not exist
+     * @param node : Path of node that data needs to be written too
+     * @param data : Byte array data to be written
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    public void putData(final String node, byte[] data) throws KeeperException, InterruptedException {
+        try {
+            zooKeeper.create(node, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            zooKeeper.setData(node, data, -1);
+        }
+    }
+
+    /**
+     * Synchronous call that runs several operations as one transaction. Either all of them
+     * succeed or none of them is applied.
+     * @param ops : operations created with the factory methods of Op
+     * @return the result of each operation
+     * @throws KeeperException if any of the operations fails
+     * @throws InterruptedException
+     */
+    public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+        return zooKeeper.multi(ops);
+    }
+
+    /**
+     * Asynchronously retrieves the data of a node
+     * @param node
+     * @return future of the data, or of null if the node does not exist
+     */
+    public CompletableFuture<byte[]> getDataAsync(final String node) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        zooKeeper.getData(node, false, (rc, path, ctx, data, stat) -> {
+            if(rc == KeeperException.Code.OK.intValue()) {
+                future.complete(data);
+            } else if(rc == KeeperException.Code.NONODE.intValue()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Asynchronously retrieves the children of a node
+     * @param node
+     * @return future of the names of the children
+     */
+    public CompletableFuture<List<String>> getChildrenAsync(final String node) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        zooKeeper.getChildren(node, false, (AsyncCallback.ChildrenCallback) (rc, path, ctx, children) -> {
+            if(rc == KeeperException.Code.OK.intValue()) {
+                future.complete(children);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Asynchronously creates a persistent node. If the node already exists, it is left unchanged.
+     * @param node
+     * @param data
+     * @return future of the path of the node
+     */
+    public CompletableFuture<String> createAsync(final String node, byte[] data) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        zooKeeper.create(node, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, path, ctx, name) -> {
+            if(rc == KeeperException.Code.OK.intValue()) {
+                future.complete(name);
+            } else if(rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                future.complete(path);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Asynchronously writes data at an existing node
+     * @param node
+     * @param data
+     * @return future that completes once the data is written
+     */
+    public CompletableFuture<Void> setDataAsync(final String node, byte[] data) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        zooKeeper.setData(node, data, -1, (rc, path, ctx, stat) -> {
+            if(rc == KeeperException.Code.OK.intValue()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Asynchronously writes data at a node, creating the node if it does not exist. Costs one
+     * round trip if the node does not exist and two if it does.
+     * @param node
+     * @param data
+     * @return future that completes once the data is written
+     */
+    public CompletableFuture<Void> putDataAsync(final String node, final byte[] data) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        zooKeeper.create(node, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, path, ctx, name) -> {
+            if(rc == KeeperException.Code.OK.intValue()) {
+                future.complete(null);
+            } else if(rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                setDataAsync(node, data).whenComplete((v, e) -> {
+                    if(e == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(e);
+                    }
+                });
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Asynchronously runs several operations as one transaction. Either all of them succeed or
+     * none of them is applied.
+     * @param ops : operations created with the factory methods of Op
+     * @return future of the result of each operation
+     */
+    public CompletableFuture<List<OpResult>> multiAsync(Iterable<Op> ops) {
+        CompletableFuture<List<OpResult>> future = new CompletableFuture<>();
+        zooKeeper.multi(ops, (rc, path, ctx, results) -> {
+            if(rc == KeeperException.Code.OK.intValue()) {
+                future.complete(results);
+            } else {
+                future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Waits for an asynchronous operation
+     * @param future
+     * @return the result of the operation
+     * @throws KeeperException if the operation failed
+     * @throws InterruptedException
+     */
+    public static <T> T await(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 }
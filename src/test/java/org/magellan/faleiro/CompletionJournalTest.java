@@ -0,0 +1,199 @@
+package org.magellan.faleiro;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CompletionJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File dir;
+    CompletionJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("journal");
+        journal = new CompletionJournal(dir, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+    }
+
+    /**
+     * Collects the records replayed as strings
+     */
+    private static List<String> replay(CompletionJournal journal) {
+        final List<String> records = new ArrayList<>();
+        journal.replay(new CompletionJournal.Visitor() {
+            @Override
+            public void taskFinished(long jobId, int taskIndex, double fitness, String location, long timeMillis) {
+                records.add(jobId + "_" + taskIndex + ":" + fitness + "@" + location);
+            }
+
+            @Override
+            public void stateChanged(long jobId, MagellanJob.JobState state) {
+                records.add(jobId + ":" + state);
+            }
+        });
+        return records;
+    }
+
+    @Test
+    public void testReplayAfterReopen() throws Exception {
+        assertEquals(0, journal.getLastSequence());
+        assertTrue(journal.stateChanged(3, MagellanJob.JobState.RUNNING));
+        assertTrue(journal.taskFinished(3, 17, 1.5, "here"));
+        assertTrue(journal.stateChanged(3, MagellanJob.JobState.PAUSED));
+        assertEquals(3, journal.getLastSequence());
+        journal.close();
+
+        journal = new CompletionJournal(dir, 4096);
+        List<String> records = replay(journal);
+        assertEquals(3, records.size());
+        assertEquals("3:RUNNING", records.get(0));
+        assertEquals("3_17:1.5@here", records.get(1));
+        assertEquals("3:PAUSED", records.get(2));
+
+        // Sequence numbers continue after a restart
+        journal.taskFinished(4, 0, 2, "there");
+        assertEquals(4, journal.getLastSequence());
+    }
+
+    @Test
+    public void testTermIsKeptAndResetDropsRecords() throws Exception {
+        assertEquals(0, journal.getTerm());
+        journal.setTerm(5);
+        journal.taskFinished(1, 0, 1, "a");
+        journal.taskFinished(1, 1, 1, "b");
+        journal.compact(1);
+        journal.close();
+
+        journal = new CompletionJournal(dir, 4096);
+        assertEquals(5, journal.getTerm());
+        assertEquals(1, replay(journal).size());
+
+        // A leader of another term drops the records, and they stay dropped
+        journal.reset(7);
+        assertTrue(replay(journal).isEmpty());
+        journal.taskFinished(1, 2, 1, "c");
+        journal.close();
+        journal = new CompletionJournal(dir, 4096);
+        assertEquals(7, journal.getTerm());
+        List<String> records = replay(journal);
+        assertEquals(1, records.size());
+        assertEquals("1_2:1.0@c", records.get(0));
+        assertEquals(3, journal.getLastSequence());
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        journal.taskFinished(1, 0, 1, "a");
+        journal.taskFinished(1, 1, 1, "b");
+        long snapshot = journal.getLastSequence();
+        journal.taskFinished(1, 2, 1, "c");
+
+        journal.compact(snapshot);
+        List<String> records = replay(journal);
+        assertEquals(1, records.size());
+        assertEquals("1_2:1.0@c", records.get(0));
+
+        // Records appended after a compaction survive a restart, the dropped ones do not
+        journal.taskFinished(1, 3, 1, "d");
+        journal.close();
+        journal = new CompletionJournal(dir, 4096);
+        records = replay(journal);
+        assertEquals(2, records.size());
+        assertEquals("1_3:1.0@d", records.get(1));
+
+        journal.compact(journal.getLastSequence());
+        assertTrue(replay(journal).isEmpty());
+    }
+
+    @Test
+    public void testFullJournalAsksForFlushAndGrows() throws Exception {
+        File grownDir = folder.newFolder("grown");
+        CompletionJournal grown = new CompletionJournal(grownDir, 4096, 16384);
+        AtomicInteger flushes = new AtomicInteger();
+        grown.setFlushListener(flushes::incrementAndGet);
+
+        int appended = 0;
+        while(grown.getCapacity() == 4096) {
+            assertTrue(grown.taskFinished(1, appended++, 1, "location"));
+        }
+        // Asked once the file was three quarters full, not for every record after that
+        assertEquals(1, flushes.get());
+        assertEquals(8192, grown.getCapacity());
+
+        // Records are only dropped once the journal cannot grow anymore
+        while(grown.taskFinished(1, appended, 1, "location")) {
+            appended++;
+        }
+        assertEquals(16384, grown.getCapacity());
+        assertEquals(1, grown.getDropped());
+        grown.close();
+
+        grown = new CompletionJournal(grownDir, 4096);
+        assertEquals(16384, grown.getCapacity());
+        assertEquals(appended, replay(grown).size());
+
+        // Until a snapshot compacts it, a full journal asks again after every compaction
+        grown.setFlushListener(flushes::incrementAndGet);
+        assertFalse(grown.taskFinished(1, appended, 1, "location"));
+        assertEquals(2, flushes.get());
+        grown.compact(0);
+        assertFalse(grown.taskFinished(1, appended, 1, "location"));
+        assertFalse(grown.taskFinished(1, appended, 1, "location"));
+        assertEquals(3, flushes.get());
+        grown.close();
+    }
+
+    @Test
+    public void testFullJournalDropsRecords() throws Exception {
+        int appended = 0;
+        while(journal.taskFinished(1, appended, 1, "location")) {
+            appended++;
+        }
+        assertTrue(appended > 10);
+        assertEquals(1, journal.getDropped());
+        assertEquals(appended, replay(journal).size());
+
+        // A snapshot frees the space
+        journal.compact(journal.getLastSequence());
+        assertEquals(0, journal.getDropped());
+        assertTrue(journal.taskFinished(1, appended, 1, "location"));
+    }
+
+    @Test
+    public void testTornRecordEndsReplay() throws Exception {
+        journal.taskFinished(1, 0, 1, "a");
+        journal.taskFinished(1, 1, 1, "b");
+        journal.close();
+
+        // Damage the payload of the second record
+        try(RandomAccessFile file = new RandomAccessFile(new File(dir, CompletionJournal.FILE_PREFIX + "0"), "rw")) {
+            // The records start after the 16 byte header and their own 16 byte header
+            file.seek(16);
+            int length = file.readInt();
+            long second = 16 + 16 + length;
+            file.seek(second + 20);
+            file.write(0x55);
+        }
+        journal = new CompletionJournal(dir, 4096);
+        List<String> records = replay(journal);
+        assertEquals(1, records.size());
+        assertEquals("1_0:1.0@a", records.get(0));
+    }
+}
@@ -1,26 +1,54 @@
 package org.magellan.faleiro;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.mockito.stubbing.Answer;
+
 import javax.xml.crypto.Data;
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Persistence;
+import static org.magellan.faleiro.JsonTags.SimpleStatus;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 public class DataMonitorTest {
     ZookeeperService zks = null;
     MagellanFramework mf = null;
     DataMonitor dm;
+    ExecutionEngine engine;
+    int executors = 0;
 
     @Before
     public void setUp() throws Exception {
+        engine = new ExecutionEngine();
         zks = mock(ZookeeperService.class);
         mf = mock(MagellanFramework.class);
         doReturn("").when(zks).createNode(anyString(),anyBoolean(),anyBoolean());
@@ -31,7 +59,11 @@ public class DataMonitorTest {
 
     @After
     public void tearDown() throws Exception {
+        engine.shutdown(1000);
+    }
 
+    private ScheduledExecutorService persistenceExecutor() {
+        return engine.newScheduledExecutor("persistence-" + executors++, 1);
     }
 
     @Test
@@ -43,17 +75,17 @@ public class DataMonitorTest {
 
         //Test null response
         doReturn(null).when(zks).getData(anyString());
-        dm.initialize();
+        dm.initialize(persistenceExecutor());
         assertEquals(dm.getInitialState(), null);
 
         //Test invalid Json
         doReturn(new byte[0]).when(zks).getData(anyString());
-        dm.initialize();
+        dm.initialize(persistenceExecutor());
         assertEquals(dm.getInitialState(), null);
 
         //Test valid Json
         doReturn(test.toString().getBytes()).when(zks).getData(anyString());
-        dm.initialize();
+        dm.initialize(persistenceExecutor());
         assertEquals(dm.getInitialState().get("test"), test.get("test"));
 
     }
@@ -75,7 +107,7 @@ public class DataMonitorTest {
         JSONObject test = new JSONObject();
         test.put("test","test1");
         doReturn(test.toString().getBytes()).when(zks).getData(anyString());
-        dm.initialize();
+        dm.initialize(persistenceExecutor());
         assertFalse(dm.writeState(test));
     }
 
@@ -86,14 +118,460 @@ public class DataMonitorTest {
         JSONObject test = new JSONObject();
         test.put("test","test1");
         doReturn(test.toString().getBytes()).when(zks).getData(anyString());
-        dm.initialize();
+        dm.initialize(persistenceExecutor());
         assertTrue(dm.getLatestStoredState().has("test"));
         assertEquals(dm.getLatestStoredState().get("test"),test.get("test"));
 
     }
 
+    private JSONObject job(long id, int finished) {
+        return new JSONObject().put(SimpleStatus.JOB_ID, id).put(SimpleStatus.NUM_FINISHED_TASKS, finished);
+    }
+
+    private JSONObject systemState(JSONObject... jobs) {
+        JSONArray array = new JSONArray();
+        for(JSONObject j : jobs) {
+            array.put(j);
+        }
+        return new JSONObject().put(Persistence.NUM_CREATED_JOBS, jobs.length).put(Persistence.JOBS, array);
+    }
+
+    /**
+     * Backs the mocked ZookeeperService with a map from paths to data
+     * @param nodes : the nodes
+     * @param writes : receives the path of every node written
+     */
+    private void inMemoryZookeeper(final Map<String, byte[]> nodes, final List<String> writes) throws Exception {
+        zks = mock(ZookeeperService.class);
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            nodes.putIfAbsent(path, "{}".getBytes("UTF-8"));
+            return path;
+        }).when(zks).createNode(anyString(), anyBoolean(), anyBoolean());
+        doAnswer(invocation -> nodes.get((String) invocation.getArguments()[0])).when(zks).getData(anyString());
+        doAnswer(invocation -> CompletableFuture.completedFuture(nodes.get((String) invocation.getArguments()[0])))
+                .when(zks).getDataAsync(anyString());
+        doAnswer(invocation -> {
+            String prefix = invocation.getArguments()[0] + "/";
+            List<String> children = new ArrayList<>();
+            for(String path : nodes.keySet()) {
+                if(path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0) {
+                    children.add(path.substring(prefix.length()));
+                }
+            }
+            return children;
+        }).when(zks).getChildren(anyString(), anyBoolean());
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            if(!nodes.containsKey(path)) {
+                CompletableFuture<List<String>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new org.apache.zookeeper.KeeperException.NoNodeException(path));
+                return failed;
+            }
+            return CompletableFuture.completedFuture(zks.getChildren(path, false));
+        }).when(zks).getChildrenAsync(anyString());
+        Answer<Object> put = invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            nodes.put(path, (byte[]) invocation.getArguments()[1]);
+            writes.add(path);
+            return null;
+        };
+        doAnswer(put).when(zks).setData(anyString(), any(byte[].class));
+        doAnswer(put).when(zks).putData(anyString(), any(byte[].class));
+        Answer<Object> multi = invocation -> {
+            @SuppressWarnings("unchecked")
+            Iterable<Op> ops = invocation.getArgumentAt(0, Iterable.class);
+            for(Op op : ops) {
+                if(op.getType() == ZooDefs.OpCode.setData) {
+                    nodes.put(op.getPath(), ((SetDataRequest) op.toRequestRecord()).getData());
+                    writes.add(op.getPath());
+                } else if(op.getType() == ZooDefs.OpCode.delete) {
+                    nodes.remove(op.getPath());
+                }
+            }
+            return null;
+        };
+        doAnswer(multi).when(zks).multi(anyObject());
+
+        // The asynchronous methods complete at once
+        doAnswer(invocation -> {
+            put.answer(invocation);
+            return CompletableFuture.completedFuture(null);
+        }).when(zks).putDataAsync(anyString(), any(byte[].class));
+        doAnswer(invocation -> {
+            put.answer(invocation);
+            return CompletableFuture.completedFuture(null);
+        }).when(zks).setDataAsync(anyString(), any(byte[].class));
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            nodes.putIfAbsent(path, (byte[]) invocation.getArguments()[1]);
+            return CompletableFuture.completedFuture(path);
+        }).when(zks).createAsync(anyString(), any(byte[].class));
+        doAnswer(invocation -> {
+            multi.answer(invocation);
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }).when(zks).multiAsync(anyObject());
+    }
+
+    private JSONObject readNode(Map<String, byte[]> nodes, String path) throws Exception {
+        SnapshotCodec.Manifest manifest = SnapshotCodec.readManifest(nodes.get(path));
+        List<byte[]> chunks = new ArrayList<>();
+        for(String chunk : manifest.getChunkNames()) {
+            chunks.add(nodes.get(path + "/" + chunk));
+        }
+        return new JSONObject(new String(SnapshotCodec.decode(manifest, chunks), "UTF-8"));
+    }
+
+    @Test
+    public void testOnlyChangedJobsAreWritten() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        dm = new DataMonitor(zks, "/root", mf);
+        assertTrue(dm.writeState(systemState(job(0, 1), job(1, 1))));
+        assertEquals(Arrays.asList("/root/job-0", "/root/job-1", "/root"), writes);
+        // The root node no longer holds the jobs
+        assertFalse(readNode(nodes, "/root").has(Persistence.JOBS));
+        assertEquals(1, readNode(nodes, "/root/job-1").getInt(SimpleStatus.NUM_FINISHED_TASKS));
+
+        writes.clear();
+        assertTrue(dm.writeState(systemState(job(0, 1), job(1, 2))));
+        assertEquals(Arrays.asList("/root/job-1"), writes);
+        assertEquals(2, readNode(nodes, "/root/job-1").getInt(SimpleStatus.NUM_FINISHED_TASKS));
+
+        writes.clear();
+        assertFalse(dm.writeState(systemState(job(0, 1), job(1, 2))));
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void testRestoreFromJobNodes() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        dm = new DataMonitor(zks, "/root", mf);
+        // The legacy root still holds an older state of job 0. The job nodes are plain JSON.
+        nodes.put("/root", systemState(job(0, 1)).toString().getBytes("UTF-8"));
+        nodes.put("/root/job-0", job(0, 5).toString().getBytes("UTF-8"));
+        nodes.put("/root/job-3", job(3, 2).toString().getBytes("UTF-8"));
+        nodes.put("/root/other", "x".getBytes("UTF-8"));
+        dm.initialize(persistenceExecutor());
+
+        JSONObject state = dm.getInitialState();
+        assertEquals(1, state.getInt(Persistence.NUM_CREATED_JOBS));
+        JSONArray jobs = state.getJSONArray(Persistence.JOBS);
+        assertEquals(2, jobs.length());
+        for(int i = 0; i < jobs.length(); i++) {
+            JSONObject j = jobs.getJSONObject(i);
+            assertEquals(j.getLong(SimpleStatus.JOB_ID) == 0 ? 5 : 2, j.getInt(SimpleStatus.NUM_FINISHED_TASKS));
+        }
+
+        // Jobs read back are not written again until they change. The root is converted to the
+        // new layout.
+        dm.writeState(systemState(job(0, 5), job(3, 2)));
+        assertEquals(Arrays.asList("/root"), writes);
+    }
+
+    @Test
+    public void testFinishedJobsAreNotDigested() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        dm = new DataMonitor(zks, "/root", mf);
+        nodes.put("/root/job-0", job(0, 5).put(SimpleStatus.CURRENT_STATE, "RUNNING").toString().getBytes("UTF-8"));
+        nodes.put("/root/job-1", job(1, 5).put(SimpleStatus.CURRENT_STATE, "DONE").toString().getBytes("UTF-8"));
+        dm.initialize(persistenceExecutor());
+        assertEquals(2, dm.getInitialState().getJSONArray(Persistence.JOBS).length());
+
+        // Only the job that can still change is held at version 0. The finished one is archived.
+        assertTrue(dm.isWritten(0, 0));
+        assertFalse(dm.isWritten(1, 0));
+    }
+
+    @Test
+    public void testArchivedJobsAreNotRestored() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        dm = new DataMonitor(zks, "/root", mf);
+        dm.setChunkSize(256);
+        JSONArray divisions = new JSONArray();
+        Random random = new Random(7);
+        for(int i = 0; i < 200; i++) {
+            divisions.put(Long.toHexString(random.nextLong()));
+        }
+        JSONObject done = job(1, 5).put(SimpleStatus.CURRENT_STATE, "DONE").put("divisions", divisions);
+        dm.writeState(systemState(job(0, 1), done));
+        assertTrue(nodes.containsKey("/root/job-1/chunk-1-0"));
+
+        dm.archive(1, done.toString(), job(1, 5));
+        for(String path : nodes.keySet()) {
+            assertFalse(path, path.startsWith("/root/job-1"));
+        }
+        assertTrue(nodes.containsKey("/root/archive/job-1"));
+
+        // A new leader only reads the job that is not archived
+        DataMonitor restored = new DataMonitor(zks, "/root", mf);
+        restored.initialize(persistenceExecutor());
+        JSONArray jobs = restored.getInitialState().getJSONArray(Persistence.JOBS);
+        assertEquals(1, jobs.length());
+        assertEquals(0, jobs.getJSONObject(0).getLong(SimpleStatus.JOB_ID));
+        verify(zks, never()).getData(startsWith("/root/archive/"));
+        verify(zks, never()).getDataAsync(startsWith("/root/archive/"));
+
+        // The archived job is read when asked for
+        JobArchive archive = new JobArchive(null, 2);
+        archive.setStore(restored);
+        assertEquals(Collections.singleton(1L), archive.getJobIds());
+        assertEquals(5, archive.getSimpleStatus(1).getInt(SimpleStatus.NUM_FINISHED_TASKS));
+        verify(zks, never()).getDataAsync("/root/archive/job-1");
+        assertEquals(divisions.toString(), archive.readSnapshot(1).getJSONArray("divisions").toString());
+    }
+
+    @Test
+    public void testLargeStateIsChunked() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        dm = new DataMonitor(zks, "/root", mf);
+        dm.setChunkSize(1024);
+
+        // Random data barely compresses
+        Random random = new Random(3);
+        JSONArray divisions = new JSONArray();
+        for(int i = 0; i < 2000; i++) {
+            divisions.put(Long.toHexString(random.nextLong()));
+        }
+        JSONObject big = job(0, 1).put("divisions", divisions);
+        dm.writeState(systemState(big));
+        int chunks = 0;
+        for(String path : nodes.keySet()) {
+            assertTrue(nodes.get(path).length <= 1024 + 64);
+            if(path.startsWith("/root/job-0/chunk-1-")) {
+                chunks++;
+            }
+        }
+        assertTrue(chunks > 10);
+
+        // A new version replaces the chunks of the previous one
+        big.put(SimpleStatus.NUM_FINISHED_TASKS, 2);
+        dm.writeState(systemState(big));
+        for(String path : nodes.keySet()) {
+            assertFalse(path, path.startsWith("/root/job-0/chunk-1-"));
+        }
+
+        DataMonitor restored = new DataMonitor(zks, "/root", mf);
+        restored.initialize(persistenceExecutor());
+        JSONObject job = restored.getInitialState().getJSONArray(Persistence.JOBS).getJSONObject(0);
+        assertEquals(2, job.getInt(SimpleStatus.NUM_FINISHED_TASKS));
+        assertEquals(divisions.toString(), job.getJSONArray("divisions").toString());
+
+        // The next write of the restored monitor continues the versions
+        writes.clear();
+        big.put(SimpleStatus.NUM_FINISHED_TASKS, 3);
+        restored.setChunkSize(1024);
+        restored.writeState(systemState(big));
+        assertTrue(nodes.containsKey("/root/job-0/chunk-3-0"));
+        assertFalse(nodes.containsKey("/root/job-0/chunk-2-0"));
+    }
+
+    @Test
+    public void testCorruptStateIsNotRestored() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        dm = new DataMonitor(zks, "/root", mf);
+        dm.setChunkSize(256);
+        JSONArray divisions = new JSONArray();
+        Random random = new Random(5);
+        for(int i = 0; i < 200; i++) {
+            divisions.put(Long.toHexString(random.nextLong()));
+        }
+        dm.writeState(systemState(job(0, 1).put("divisions", divisions), job(1, 1)));
+
+        // Flip a byte of a chunk of job 0
+        byte[] chunk = nodes.get("/root/job-0/chunk-1-0");
+        chunk[chunk.length / 2] ^= 0x55;
+
+        DataMonitor restored = new DataMonitor(zks, "/root", mf);
+        restored.initialize(persistenceExecutor());
+        JSONArray jobs = restored.getInitialState().getJSONArray(Persistence.JOBS);
+        assertEquals(1, jobs.length());
+        assertEquals(1, jobs.getJSONObject(0).getLong(SimpleStatus.JOB_ID));
+    }
+
     @Test
     public void testProcess(){
         dm.process(null);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testUnchangedJobsAreNotSerialized() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        Map<Long, Long> versions = new TreeMap<>();
+        versions.put(0L, 1L);
+        versions.put(1L, 1L);
+        doReturn(new JSONObject().put(Persistence.NUM_CREATED_JOBS, 2)).when(mf).getFrameworkState();
+        doReturn(1L).when(mf).getStateVersion();
+        doAnswer(invocation -> new TreeMap<>(versions)).when(mf).getJobVersions();
+        doAnswer(invocation -> job((Long) invocation.getArguments()[0], versions.get(invocation.getArguments()[0]).intValue()))
+                .when(mf).getJobSnapshot(anyLong());
+        dm = new DataMonitor(zks, "/root", mf);
+
+        assertTrue(dm.persistState());
+        // The root goes first, so that no job node is newer than the term it holds
+        assertEquals(Arrays.asList("/root", "/root/job-0", "/root/job-1"), writes);
+
+        // Nothing changed, so nothing is serialized
+        writes.clear();
+        assertFalse(dm.persistState());
+        assertTrue(writes.isEmpty());
+        verify(mf, times(1)).getJobSnapshot(0L);
+        verify(mf, times(1)).getJobSnapshot(1L);
+
+        // Only the job that changed is serialized and written
+        versions.put(1L, 2L);
+        assertTrue(dm.persistState());
+        assertEquals(Arrays.asList("/root/job-1"), writes);
+        verify(mf, times(1)).getJobSnapshot(0L);
+        verify(mf, times(2)).getJobSnapshot(1L);
+        assertEquals(2, readNode(nodes, "/root/job-1").getInt(SimpleStatus.NUM_FINISHED_TASKS));
+    }
+
+    @Test
+    public void testJournalIsCompactedAfterSnapshot() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        Map<Long, Long> versions = new TreeMap<>();
+        versions.put(0L, 1L);
+        doReturn(new JSONObject().put(Persistence.NUM_CREATED_JOBS, 1)).when(mf).getFrameworkState();
+        doAnswer(invocation -> new TreeMap<>(versions)).when(mf).getJobVersions();
+        doAnswer(invocation -> job(0, versions.get(0L).intValue())).when(mf).getJobSnapshot(anyLong());
+        File dir = Files.createTempDirectory("journal").toFile();
+        try(CompletionJournal journal = new CompletionJournal(dir, 64 * 1024)) {
+            journal.taskFinished(0, 0, 1, "a");
+            dm = new DataMonitor(zks, "/root", mf);
+            dm.setJournal(journal);
+            assertTrue(dm.persistState());
+            final List<Long> replayed = new ArrayList<>();
+            CompletionJournal.Visitor visitor = new CompletionJournal.Visitor() {
+                @Override
+                public void taskFinished(long jobId, int taskIndex, double fitness, String location, long timeMillis) {
+                    replayed.add(jobId);
+                }
+
+                @Override
+                public void stateChanged(long jobId, MagellanJob.JobState state) {
+                    replayed.add(jobId);
+                }
+            };
+            assertEquals(0, journal.replay(visitor));
+
+            // A failed write keeps the records
+            journal.taskFinished(0, 1, 1, "b");
+            versions.put(0L, 2L);
+            doAnswer(invocation -> {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new org.apache.zookeeper.KeeperException.ConnectionLossException());
+                return failed;
+            }).when(zks).putDataAsync(anyString(), any(byte[].class));
+            dm.persistState();
+            assertEquals(1, journal.replay(visitor));
+        }
+    }
+
+    @Test
+    public void testJournalIsCompactedUpToFailedWrites() throws Exception {
+        Map<String, byte[]> nodes = new TreeMap<>();
+        List<String> writes = new ArrayList<>();
+        inMemoryZookeeper(nodes, writes);
+        Set<String> failing = new HashSet<>();
+        doAnswer(invocation -> {
+            String path = invocation.getArgumentAt(0, String.class);
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            if(failing.contains(path)) {
+                result.completeExceptionally(new org.apache.zookeeper.KeeperException.ConnectionLossException());
+            } else {
+                nodes.put(path, invocation.getArgumentAt(1, byte[].class));
+                result.complete(null);
+            }
+            return result;
+        }).when(zks).putDataAsync(anyString(), any(byte[].class));
+        Map<Long, Long> versions = new TreeMap<>();
+        versions.put(0L, 1L);
+        versions.put(1L, 1L);
+        doReturn(new JSONObject().put(Persistence.NUM_CREATED_JOBS, 2)).when(mf).getFrameworkState();
+        doAnswer(invocation -> new TreeMap<>(versions)).when(mf).getJobVersions();
+        doAnswer(invocation -> job((Long) invocation.getArguments()[0], versions.get(invocation.getArguments()[0]).intValue()))
+                .when(mf).getJobSnapshot(anyLong());
+        File dir = Files.createTempDirectory("journal").toFile();
+        try(CompletionJournal journal = new CompletionJournal(dir, 64 * 1024)) {
+            final List<Long> replayed = new ArrayList<>();
+            CompletionJournal.Visitor visitor = new CompletionJournal.Visitor() {
+                @Override
+                public void taskFinished(long jobId, int taskIndex, double fitness, String location, long timeMillis) {
+                    replayed.add(jobId);
+                }
+
+                @Override
+                public void stateChanged(long jobId, MagellanJob.JobState state) {
+                    replayed.add(jobId);
+                }
+            };
+            journal.taskFinished(0, 0, 1, "a");
+            journal.taskFinished(1, 0, 1, "b");
+            dm = new DataMonitor(zks, "/root", mf);
+            dm.setJournal(journal);
+            dm.persistState();
+            assertEquals(0, journal.replay(visitor));
+
+            // Job 0 cannot be written. Its records are kept, and the later ones of job 1 with them.
+            failing.add("/root/job-0");
+            journal.taskFinished(0, 1, 1, "c");
+            journal.taskFinished(1, 1, 1, "d");
+            versions.put(0L, 2L);
+            versions.put(1L, 2L);
+            dm.persistState();
+            assertEquals(2, journal.replay(visitor));
+
+            // Job 0 is written again while job 1 fails. The records up to the last write of job 1 go.
+            failing.clear();
+            failing.add("/root/job-1");
+            journal.taskFinished(1, 2, 1, "e");
+            versions.put(1L, 3L);
+            dm.persistState();
+            replayed.clear();
+            assertEquals(1, journal.replay(visitor));
+            assertEquals(Collections.singletonList(1L), replayed);
+        }
+    }
+
+    @Test
+    public void testFlushPolicy() throws Exception {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            doReturn(null).when(zks).getData(anyString());
+            dm.initialize(executor);
+            long delay = dm.getNextFlushDelay();
+            assertTrue(delay > DataMonitor.COMMIT_DELAY && delay <= dm.WRITE_DELAY);
+
+            // Changes are coalesced
+            dm.requestFlush(false);
+            assertTrue(dm.getNextFlushDelay() <= DataMonitor.COMMIT_DELAY);
+
+            // Important changes are written right away and a later change does not delay them
+            dm.requestFlush(true);
+            dm.requestFlush(false);
+            assertTrue(dm.getNextFlushDelay() <= DataMonitor.URGENT_DELAY);
+
+            // Nothing was written, so the monitor checks again later than usual
+            Thread.sleep(DataMonitor.URGENT_DELAY + 500);
+            assertTrue(dm.getNextFlushDelay() > dm.WRITE_DELAY);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
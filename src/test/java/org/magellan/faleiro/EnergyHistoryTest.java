@@ -0,0 +1,112 @@
+package org.magellan.faleiro;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.History;
+
+public class EnergyHistoryTest {
+
+    @Test
+    public void testQueryBucketsMatchRawSamples() throws Exception {
+        EnergyHistory history = new EnergyHistory();
+        // Several chunks so that the chunk and block rollups are used
+        int n = 3 * EnergyHistory.CHUNK_SIZE + 17;
+        for(int i = 0; i < n; i++) {
+            history.add(1000 + i, (i * 37) % 101);
+        }
+        assertEquals(n, history.size());
+
+        long from = 1000 + 5;
+        long to = 1000 + n - 3;
+        int points = 7;
+        JSONObject result = history.query(from, to, points);
+        JSONArray buckets = result.getJSONArray(History.BUCKETS);
+        assertEquals(points, buckets.length());
+
+        int total = 0;
+        for(int b = 0; b < buckets.length(); b++) {
+            JSONObject bucket = buckets.getJSONObject(b);
+            long start = bucket.getLong(History.TIME);
+            int count = bucket.getInt(History.COUNT);
+            double min = Double.MAX_VALUE;
+            double sum = 0;
+            for(int i = (int) (start - 1000); i < start - 1000 + count; i++) {
+                double v = (i * 37) % 101;
+                min = Math.min(min, v);
+                sum += v;
+            }
+            assertEquals(min, bucket.getDouble(History.MIN), 0);
+            assertEquals(sum / count, bucket.getDouble(History.MEAN), 1e-9);
+            total += count;
+        }
+        assertEquals(to - from + 1, total);
+    }
+
+    @Test
+    public void testEmptyBucketsAreLeftOut() throws Exception {
+        EnergyHistory history = new EnergyHistory();
+        history.add(0, 5);
+        history.add(1000, 3);
+        JSONArray buckets = history.query(Long.MIN_VALUE, Long.MAX_VALUE, 10).getJSONArray(History.BUCKETS);
+        assertEquals(2, buckets.length());
+        assertEquals(0, buckets.getJSONObject(0).getLong(History.TIME));
+        assertEquals(3, buckets.getJSONObject(1).getDouble(History.MIN), 0);
+
+        assertEquals(0, new EnergyHistory().query(0, 10, 10).getJSONArray(History.BUCKETS).length());
+    }
+
+    @Test
+    public void testDownsampleAndSummary() throws Exception {
+        EnergyHistory history = new EnergyHistory();
+        for(int i = 0; i < 10; i++) {
+            history.add(i, i);
+        }
+        assertEquals(10, history.downsample(100).length());
+        JSONArray downsampled = history.downsample(5);
+        assertEquals(5, downsampled.length());
+        assertEquals(0.5, downsampled.getDouble(0), 0);
+        assertEquals(8.5, downsampled.getDouble(4), 0);
+
+        JSONObject summary = history.getSummary();
+        assertEquals(10, summary.getInt(History.COUNT));
+        assertEquals(0, summary.getDouble(History.MIN), 0);
+        assertEquals(9, summary.getDouble(History.MAX), 0);
+        assertEquals(4.5, summary.getDouble(History.MEAN), 0);
+        assertEquals(0, new EnergyHistory().getSummary().getInt(History.COUNT));
+    }
+
+    @Test
+    public void testEncodeRoundTrip() throws Exception {
+        EnergyHistory history = new EnergyHistory();
+        for(int i = 0; i < 2000; i++) {
+            history.add(1460000000000L + i * 250, Math.sin(i) * 1000);
+        }
+        // Timestamps never go backwards
+        history.add(0, 1);
+
+        EnergyHistory decoded = EnergyHistory.decode(history.encode());
+        assertEquals(history.size(), decoded.size());
+        assertEquals(history.query(Long.MIN_VALUE, Long.MAX_VALUE, 50).toString(),
+                decoded.query(Long.MIN_VALUE, Long.MAX_VALUE, 50).toString());
+        assertEquals(history.downsample(2001).toString(), decoded.downsample(2001).toString());
+    }
+
+    @Test
+    public void testLegacyArray() throws Exception {
+        JSONArray legacy = new JSONArray();
+        legacy.put(3.5);
+        legacy.put(1.5);
+        EnergyHistory history = EnergyHistory.fromLegacy(legacy, 42);
+        assertEquals(2, history.size());
+        assertEquals(legacy.toString(), history.downsample(10).toString());
+        assertEquals(42, history.getSummary().getLong(History.FROM));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeRejectsGarbage() throws Exception {
+        EnergyHistory.decode("AAAA");
+    }
+}
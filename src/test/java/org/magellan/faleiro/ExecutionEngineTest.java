@@ -0,0 +1,121 @@
+package org.magellan.faleiro;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Stats;
+
+public class ExecutionEngineTest {
+    ExecutionEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new ExecutionEngine();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown(1000);
+    }
+
+    @Test
+    public void testExecutorsAreNamedAndReported() throws Exception {
+        ThreadPoolExecutor jobs = engine.newExecutor("jobs", 2, 8);
+        engine.newScheduledExecutor("persistence", 1);
+
+        CountDownLatch ran = new CountDownLatch(1);
+        String[] threadName = new String[1];
+        jobs.execute(() -> {
+            threadName[0] = Thread.currentThread().getName();
+            ran.countDown();
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(threadName[0].startsWith("magellan-jobs-"));
+
+        JSONObject stats = engine.getStats();
+        assertTrue(stats.has("jobs"));
+        assertTrue(stats.has("persistence"));
+        assertEquals(2, stats.getJSONObject("jobs").getInt(Stats.MAX_POOL_SIZE));
+        assertEquals(8, stats.getJSONObject("jobs").getInt(Stats.QUEUE_REMAINING)
+                + stats.getJSONObject("jobs").getInt(Stats.QUEUE_DEPTH));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExecutorNamesAreUnique() throws Exception {
+        engine.newExecutor("jobs", 1, 1);
+        engine.newExecutor("jobs", 1, 1);
+    }
+
+    @Test
+    public void testFullPoolRunsOnCaller() throws Exception {
+        ThreadPoolExecutor pool = engine.newExecutor("launch", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pool.execute(() -> {});
+
+        // The thread and the queue are busy so the caller runs the task
+        Thread caller = Thread.currentThread();
+        boolean[] ranOnCaller = new boolean[1];
+        pool.execute(() -> ranOnCaller[0] = Thread.currentThread() == caller);
+        release.countDown();
+        assertTrue(ranOnCaller[0]);
+    }
+
+    @Test
+    public void testFullBlockingPoolHoldsCaller() throws Exception {
+        ThreadPoolExecutor pool = engine.newBlockingExecutor("status-0", 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        pool.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pool.execute(() -> {});
+
+        // The thread and the queue are busy so the caller waits, and the task still runs on the pool
+        Thread caller = Thread.currentThread();
+        CountDownLatch ran = new CountDownLatch(1);
+        boolean[] ranOnCaller = new boolean[1];
+        Thread submitter = new Thread(() -> pool.execute(() -> {
+            ranOnCaller[0] = Thread.currentThread() == caller;
+            ran.countDown();
+        }));
+        submitter.start();
+        submitter.join(100);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(ranOnCaller[0]);
+    }
+
+    @Test
+    public void testShutdownStopsEveryExecutor() throws Exception {
+        ThreadPoolExecutor jobs = engine.newExecutor("jobs", 1, 1);
+        ScheduledThreadPoolExecutor persistence = engine.newScheduledExecutor("persistence", 1);
+        persistence.scheduleWithFixedDelay(() -> {}, 10, 10, TimeUnit.MILLISECONDS);
+
+        engine.shutdown(1000);
+        assertTrue(engine.isShutdown());
+        assertTrue(jobs.isTerminated());
+        assertTrue(persistence.isTerminated());
+    }
+}
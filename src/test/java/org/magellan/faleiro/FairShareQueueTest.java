@@ -0,0 +1,135 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FairShareQueueTest {
+    FairShareQueue queue;
+
+    private MagellanTaskRequest task(long jobId, int n) {
+        return new MagellanTaskRequest(jobId + "_" + n, "tester", 1, 32, 0, 0, 0, ByteString.EMPTY);
+    }
+
+    private int countJob(List<MagellanTaskRequest> window, long jobId) {
+        int count = 0;
+        for(MagellanTaskRequest t : window) {
+            if(t.getId().startsWith(jobId + "_")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new FairShareQueue();
+        // Job 0 is a big sweep, job 1 is small
+        for(int i = 0; i < 100; i++) {
+            queue.add(0, task(0, i));
+        }
+        for(int i = 0; i < 3; i++) {
+            queue.add(1, task(1, i));
+        }
+    }
+
+    @Test
+    public void testSmallJobIsNotStarved() throws Exception {
+        List<MagellanTaskRequest> window = queue.nextWindow(6);
+        assertEquals(6, window.size());
+        // Both jobs get an equal share of the window
+        assertEquals(3, countJob(window, 0));
+        assertEquals(3, countJob(window, 1));
+
+        // Once the small job runs out, the rest of the window goes to the big job
+        assertEquals(97, countJob(queue.nextWindow(100), 0));
+    }
+
+    @Test
+    public void testRunningTasksCountAgainstShare() throws Exception {
+        queue.taskLaunched(0);
+        queue.taskLaunched(0);
+        List<MagellanTaskRequest> window = queue.nextWindow(2);
+        assertEquals(2, countJob(window, 1));
+
+        queue.taskFinished(0);
+        queue.taskFinished(0);
+        assertEquals(0, queue.runningTasks(0));
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        for(int i = 3; i < 100; i++) {
+            queue.add(1, task(1, i));
+        }
+        queue.setWeight(1, 3);
+        List<MagellanTaskRequest> window = queue.nextWindow(40);
+        assertEquals(10, countJob(window, 0));
+        assertEquals(30, countJob(window, 1));
+    }
+
+    @Test
+    public void testDominantResource() throws Exception {
+        // Tasks of job 2 use a quarter of the cluster's memory each
+        queue.updateCapacity("host1", 8, 256);
+        for(int i = 0; i < 10; i++) {
+            queue.add(2, new MagellanTaskRequest("2_" + i, "tester", 1, 64, 0, 0, 0, ByteString.EMPTY));
+        }
+        queue.removeJob(1);
+        List<MagellanTaskRequest> window = queue.nextWindow(10);
+        assertEquals(3, countJob(window, 2));
+        assertEquals(7, countJob(window, 0));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        assertEquals(103, queue.size());
+        assertNotNull(queue.remove(0, "0_5"));
+        assertNull(queue.remove(0, "0_5"));
+        assertNull(queue.remove(7, "7_0"));
+        assertEquals(3, queue.removeJob(1).size());
+        assertEquals(99, queue.size());
+        assertEquals(0, queue.size(1));
+        assertEquals(99, queue.nextWindow(1000).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWeight() throws Exception {
+        queue.setWeight(0, 0);
+    }
+
+    @Test
+    public void testForgetJob() throws Exception {
+        queue.setWeight(1, 3);
+        assertFalse(queue.forgetJob(1));
+        queue.removeJob(1);
+        queue.taskLaunched(1);
+        assertFalse(queue.forgetJob(1));
+        queue.taskFinished(1);
+        assertTrue(queue.forgetJob(1));
+        assertEquals(1.0, queue.getWeight(1), 0);
+        assertTrue(queue.forgetJob(7));
+        assertEquals(100, queue.size());
+    }
+
+    @Test
+    public void testPausedJobIsLeftOutOfWindow() throws Exception {
+        // Job 0 has tasks running, so a paused job 1 would rank first
+        for(int i = 0; i < 5; i++) {
+            queue.taskLaunched(0);
+        }
+        queue.setPaused(1, true);
+        List<MagellanTaskRequest> window = queue.nextWindow(10);
+        assertEquals(10, countJob(window, 0));
+        assertEquals(0, countJob(window, 1));
+        // The tasks of the paused job stay pending
+        assertEquals(3, queue.size(1));
+
+        queue.setPaused(1, false);
+        assertEquals(3, countJob(queue.nextWindow(10), 1));
+    }
+}
@@ -0,0 +1,187 @@
+package org.magellan.faleiro;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.SimpleStatus;
+import static org.magellan.faleiro.JsonTags.Stats;
+
+public class JobArchiveTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MagellanJob finishedJob(long id) {
+        MagellanJob j = new MagellanJob(id, "job" + id, 10, "task", new JSONObject().put("n", id));
+        j.stop();
+        return j;
+    }
+
+    private void checkArchive(JobArchive archive) throws Exception {
+        assertNull(archive.get(1));
+        archive.put(finishedJob(1));
+        archive.put(finishedJob(2).getStateSnapshot());
+        archive.put(finishedJob(3));
+
+        assertEquals(3, archive.size());
+        assertTrue(archive.contains(2));
+        assertFalse(archive.contains(4));
+
+        JSONObject snapshot = archive.readSnapshot(2);
+        assertEquals("job2", snapshot.getString(SimpleStatus.JOB_NAME));
+        MagellanJob read = archive.get(2);
+        assertEquals(2, read.getJobID());
+        assertTrue(read.isDone());
+        assertEquals(2, read.getJobAdditionalParam().getLong("n"));
+
+        JSONObject stats = archive.getStats();
+        assertEquals(3, stats.getInt(Stats.ARCHIVED_JOBS));
+        assertTrue(stats.getLong(Stats.ARCHIVED_BYTES) > 0);
+        // Jobs 1 and 3 were cached when archived, job 2 when it was read. Job 1 was evicted.
+        assertEquals(2, stats.getInt(Stats.CACHED_JOBS));
+        assertEquals(1, stats.getLong(Stats.CACHE_MISSES));
+        assertSame(read, archive.get(2));
+        assertNotNull(archive.get(1));
+        assertEquals(1, archive.getStats().getLong(Stats.CACHE_HITS));
+        assertEquals(2, archive.getStats().getLong(Stats.CACHE_MISSES));
+    }
+
+    @Test
+    public void testRestoredJobsAreWrittenLater() throws Exception {
+        File dir = folder.newFolder("archive");
+        JobArchive archive = new JobArchive(dir, 2);
+        // As read back from Zookeeper
+        archive.putLater(new JSONObject(finishedJob(5).getStateSnapshot().toString()));
+
+        // Served from the snapshot until it is written
+        assertTrue(archive.contains(5));
+        assertEquals(0, dir.list().length);
+        assertEquals("job5", archive.getSimpleStatus(5).getString(SimpleStatus.JOB_NAME));
+        assertEquals(5, archive.read(5).getJobID());
+
+        assertEquals(1, archive.writePending());
+        assertEquals(0, archive.writePending());
+        assertTrue(new File(dir, JobArchive.FILE_PREFIX + 5 + JobArchive.FILE_SUFFIX).isFile());
+        JSONObject status = archive.getSimpleStatus(5);
+        assertEquals("job5", status.getString(SimpleStatus.JOB_NAME));
+        assertEquals(MagellanJob.JobState.STOP.name(), status.getString(SimpleStatus.CURRENT_STATE));
+        assertNull(archive.getSimpleStatus(6));
+        // The status is kept aside, so it does not rebuild the job
+        assertEquals(0, archive.getStats().getLong(Stats.CACHE_MISSES));
+    }
+
+    /**
+     * Keeps the jobs in maps and counts the reads
+     */
+    private static class MapStore implements JobArchive.Store {
+        final Map<Long, String> snapshots = new TreeMap<>();
+        final Map<Long, JSONObject> statuses = new TreeMap<>();
+        int lists = 0;
+        int reads = 0;
+
+        @Override
+        public void archive(long jobId, String snapshot, JSONObject status) throws IOException {
+            snapshots.put(jobId, snapshot);
+            statuses.put(jobId, status);
+        }
+
+        @Override
+        public Set<Long> listArchived() throws IOException {
+            lists++;
+            return snapshots.keySet();
+        }
+
+        @Override
+        public Map<Long, JSONObject> readArchivedStatuses(Collection<Long> jobIds) {
+            Map<Long, JSONObject> found = new HashMap<>();
+            for(long jobId : jobIds) {
+                reads++;
+                found.put(jobId, statuses.get(jobId));
+            }
+            return found;
+        }
+
+        @Override
+        public JSONObject readArchivedSnapshot(long jobId) {
+            reads++;
+            return new JSONObject(snapshots.get(jobId));
+        }
+    }
+
+    @Test
+    public void testJobsAreArchivedInStore() throws Exception {
+        MapStore store = new MapStore();
+        JobArchive archive = new JobArchive(null, 2);
+        archive.setStore(store);
+        archive.put(finishedJob(1));
+        archive.put(finishedJob(2).getStateSnapshot());
+        assertEquals(2, store.snapshots.size());
+        assertEquals("job2", store.statuses.get(2L).getString(SimpleStatus.JOB_NAME));
+
+        // The next leader lists the store once, and reads a job only when asked for it
+        JobArchive next = new JobArchive(null, 2);
+        next.setStore(store);
+        assertEquals(0, store.lists);
+        assertEquals(2, next.size());
+        assertTrue(next.contains(1));
+        assertEquals(1, store.lists);
+        assertEquals(0, store.reads);
+        assertEquals("job1", next.getSimpleStatus(1).getString(SimpleStatus.JOB_NAME));
+        assertEquals("job1", next.getSimpleStatus(1).getString(SimpleStatus.JOB_NAME));
+        assertEquals(1, store.reads);
+        assertEquals(2, next.get(2).getJobID());
+        assertEquals(2, store.reads);
+        assertNull(next.getSimpleStatus(3));
+        assertEquals(1, store.lists);
+    }
+
+    @Test
+    public void testNothingIsArchivedIfStoreFails() throws Exception {
+        JobArchive archive = new JobArchive(null, 2);
+        archive.setStore(new MapStore() {
+            @Override
+            public void archive(long jobId, String snapshot, JSONObject status) throws IOException {
+                throw new IOException("down");
+            }
+
+            @Override
+            public Set<Long> listArchived() throws IOException {
+                throw new IOException("down");
+            }
+        });
+        try {
+            archive.put(finishedJob(1));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(archive.contains(1));
+    }
+
+    @Test
+    public void testArchiveInMemory() throws Exception {
+        checkArchive(new JobArchive(null, 2));
+    }
+
+    @Test
+    public void testArchiveOnDisk() throws Exception {
+        File dir = folder.newFolder("archive");
+        checkArchive(new JobArchive(dir, 2));
+        assertTrue(new File(dir, JobArchive.FILE_PREFIX + 3 + JobArchive.FILE_SUFFIX).isFile());
+
+        // The jobs are restored from Zookeeper, not from a previous archive
+        JobArchive reopened = new JobArchive(dir, 2);
+        assertEquals(0, reopened.size());
+        assertEquals(0, dir.list().length);
+    }
+}
@@ -0,0 +1,111 @@
+package org.magellan.faleiro;
+
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Stats;
+import static org.mockito.Mockito.*;
+
+public class KillDispatcherTest {
+    SchedulerDriver driver;
+    ExecutionEngine engine;
+    Set<Long> running;
+
+    private void awaitKills(KillDispatcher dispatcher) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(dispatcher.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, dispatcher.getQueueDepth());
+        // Let the last batch finish
+        Thread.sleep(50);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        driver = mock(SchedulerDriver.class);
+        engine = new ExecutionEngine();
+        running = ConcurrentHashMap.newKeySet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown(1000);
+    }
+
+    @Test
+    public void testKillsAreSentInBatches() throws Exception {
+        KillDispatcher dispatcher = new KillDispatcher(() -> driver, running::contains,
+                engine.newScheduledExecutor("kill", 1), 10, 20);
+        for(int i = 0; i < 35; i++) {
+            running.add(TaskIds.anneal(4, i));
+        }
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 35; i++) {
+            dispatcher.kill(TaskIds.anneal(4, i));
+        }
+        // Queueing does not wait for the kills
+        assertTrue(System.currentTimeMillis() - start < 20);
+        awaitKills(dispatcher);
+
+        ArgumentCaptor<Protos.TaskID> killed = ArgumentCaptor.forClass(Protos.TaskID.class);
+        verify(driver, times(35)).killTask(killed.capture());
+        Set<String> ids = new HashSet<>();
+        for(Protos.TaskID id : killed.getAllValues()) {
+            ids.add(id.getValue());
+        }
+        assertEquals(35, ids.size());
+        assertTrue(ids.contains("4_0"));
+        assertTrue(ids.contains("4_34"));
+
+        JSONObject stats = dispatcher.getStats();
+        assertEquals(35, stats.getLong(Stats.KILLS_SENT));
+        // The first batch may go out while kills are still being queued
+        long batches = stats.getLong(Stats.KILL_BATCHES);
+        assertTrue(batches >= 4);
+        // The batches are an interval apart
+        assertTrue(System.currentTimeMillis() - start >= (batches - 1) * 20);
+    }
+
+    @Test
+    public void testEndedTasksAreSkipped() throws Exception {
+        KillDispatcher dispatcher = new KillDispatcher(() -> driver, running::contains,
+                engine.newScheduledExecutor("kill", 1), 10, 0);
+        running.add(TaskIds.anneal(1, 0));
+        dispatcher.kill(TaskIds.anneal(1, 0));
+        dispatcher.kill(TaskIds.division(1));
+        awaitKills(dispatcher);
+
+        verify(driver).killTask(Protos.TaskID.newBuilder().setValue("1_0").build());
+        verify(driver, never()).killTask(Protos.TaskID.newBuilder().setValue("1_div").build());
+        JSONObject stats = dispatcher.getStats();
+        assertEquals(2, stats.getLong(Stats.KILLS_QUEUED));
+        assertEquals(1, stats.getLong(Stats.KILLS_SKIPPED));
+    }
+
+    @Test
+    public void testKillsWaitForTheDriver() throws Exception {
+        final AtomicReference<SchedulerDriver> current = new AtomicReference<>();
+        KillDispatcher dispatcher = new KillDispatcher(current::get, running::contains,
+                engine.newScheduledExecutor("kill", 1), 10, 10);
+        running.add(TaskIds.anneal(2, 0));
+        dispatcher.kill(TaskIds.anneal(2, 0));
+        Thread.sleep(50);
+        assertEquals(1, dispatcher.getQueueDepth());
+
+        current.set(driver);
+        awaitKills(dispatcher);
+        verify(driver).killTask(Protos.TaskID.newBuilder().setValue("2_0").build());
+    }
+}
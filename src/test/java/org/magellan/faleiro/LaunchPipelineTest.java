@@ -0,0 +1,121 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Stats;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.*;
+
+public class LaunchPipelineTest {
+    SchedulerDriver driver;
+    ExecutionEngine engine;
+    LaunchPipeline launchPipeline;
+    Protos.ExecutorInfo executor;
+    AtomicInteger launchedCount;
+
+    private MagellanTaskRequest task(String id) {
+        return new MagellanTaskRequest(id, "task", 1, 32, 0, 0, 0, ByteString.copyFromUtf8(id));
+    }
+
+    private Protos.OfferID offerId(String id) {
+        return Protos.OfferID.newBuilder().setValue(id).build();
+    }
+
+    private Protos.SlaveID slaveId(String id) {
+        return Protos.SlaveID.newBuilder().setValue(id).build();
+    }
+
+    private void awaitLaunches() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(launchPipeline.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, launchPipeline.getInFlight());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        driver = mock(SchedulerDriver.class);
+        doReturn(Protos.Status.DRIVER_RUNNING).when(driver)
+                .launchTasks(anyCollectionOf(Protos.OfferID.class), anyCollectionOf(Protos.TaskInfo.class));
+        engine = new ExecutionEngine();
+        launchedCount = new AtomicInteger();
+        launchPipeline = new LaunchPipeline(() -> driver, engine.newExecutor("launch", 2, 16), launchedCount::addAndGet);
+        executor = Protos.ExecutorInfo.newBuilder()
+                .setExecutorId(Protos.ExecutorID.newBuilder().setValue("executor"))
+                .setCommand(Protos.CommandInfo.newBuilder().setValue("run"))
+                .build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown(1000);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ArgumentCaptor<Collection<T>> collectionCaptor() {
+        return (ArgumentCaptor<Collection<T>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(Collection.class);
+    }
+
+    @Test
+    public void testLaunchBuildsTaskInfosPerHost() throws Exception {
+        launchPipeline.launch("host1", slaveId("slave1"), Arrays.asList(offerId("o1"), offerId("o2")),
+                Arrays.asList(new LaunchPipeline.Assignment(task("1"), executor),
+                              new LaunchPipeline.Assignment(task("2"), executor)));
+        launchPipeline.launch("host2", slaveId("slave2"), Collections.singletonList(offerId("o3")),
+                Collections.singletonList(new LaunchPipeline.Assignment(task("3"), executor)));
+        awaitLaunches();
+
+        ArgumentCaptor<Collection<Protos.OfferID>> offers = collectionCaptor();
+        ArgumentCaptor<Collection<Protos.TaskInfo>> tasks = collectionCaptor();
+        verify(driver, times(2)).launchTasks(offers.capture(), tasks.capture());
+
+        List<String> launched = new ArrayList<>();
+        for(Collection<Protos.TaskInfo> c : tasks.getAllValues()) {
+            for(Protos.TaskInfo info : c) {
+                launched.add(info.getTaskId().getValue());
+                assertEquals(info.getTaskId().getValue(), info.getData().toStringUtf8());
+                assertEquals(executor.getExecutorId(), info.getExecutor().getExecutorId());
+                assertEquals(info.getTaskId().getValue().equals("3") ? "slave2" : "slave1",
+                        info.getSlaveId().getValue());
+            }
+        }
+        Collections.sort(launched);
+        assertEquals(Arrays.asList("1", "2", "3"), launched);
+
+        JSONObject stats = launchPipeline.getStats();
+        assertEquals(2, stats.getLong(Stats.HOST_LAUNCHES));
+        assertEquals(3, stats.getLong(Stats.TASKS_LAUNCHED));
+        assertEquals(0, stats.getLong(Stats.LAUNCH_FAILURES));
+        assertEquals(3, launchedCount.get());
+    }
+
+    @Test
+    public void testFailedLaunchIsCounted() throws Exception {
+        doReturn(Protos.Status.DRIVER_ABORTED).when(driver)
+                .launchTasks(anyCollectionOf(Protos.OfferID.class), anyCollectionOf(Protos.TaskInfo.class));
+        launchPipeline.launch("host1", slaveId("slave1"), Collections.singletonList(offerId("o1")),
+                Collections.singletonList(new LaunchPipeline.Assignment(task("1"), executor)));
+        awaitLaunches();
+
+        JSONObject stats = launchPipeline.getStats();
+        assertEquals(0, stats.getLong(Stats.HOST_LAUNCHES));
+        assertEquals(0, launchedCount.get());
+        assertEquals(1, stats.getLong(Stats.LAUNCH_FAILURES));
+    }
+}
@@ -0,0 +1,98 @@
+package org.magellan.faleiro;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LongConcurrentMapTest {
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        LongConcurrentMap<String> map = new LongConcurrentMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.putIfAbsent(1, "c"));
+        assertNull(map.putIfAbsent(-5, "d"));
+        assertEquals("b", map.get(1));
+        assertEquals("d", map.get(-5));
+        assertTrue(map.containsKey(1));
+        assertFalse(map.containsKey(2));
+        assertEquals(2, map.size());
+        assertEquals("b", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(1, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testMatchesHashMap() throws Exception {
+        // Few stripes and many collisions exercise growing and the shifting done by remove()
+        LongConcurrentMap<Long> map = new LongConcurrentMap<>(1);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(7);
+        for(int i = 0; i < 100000; i++) {
+            long key = random.nextInt(2000);
+            if(random.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for(long key = 0; key < 2000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        Map<Long, Long> visited = new HashMap<>();
+        map.forEach((key, value) -> visited.put(key, value));
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final LongConcurrentMap<Integer> map = new LongConcurrentMap<>();
+        final int threads = 8;
+        final int perThread = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < perThread; i++) {
+                    long key = TaskIds.anneal(id, i);
+                    map.put(key, i);
+                    // Remove every other entry again
+                    if(i % 2 == 1) {
+                        map.remove(key);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for(Thread w : workers) {
+            w.join();
+        }
+        assertEquals(threads * perThread / 2, map.size());
+        for(int t = 0; t < threads; t++) {
+            for(int i = 0; i < perThread; i++) {
+                assertEquals(i % 2 == 0 ? Integer.valueOf(i) : null, map.get(TaskIds.anneal(t, i)));
+            }
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValue() throws Exception {
+        new LongConcurrentMap<String>().put(1, null);
+    }
+}
@@ -1,6 +1,10 @@
 package org.magellan.faleiro;
 
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
 import org.json.JSONObject;
+
+import java.util.Collections;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
@@ -67,6 +71,10 @@ public class MagellanFrameworkTest {
 
         // Make sure that id numbers are incrementing
         assertEquals(mockFramework.createJob("", 100, "", new JSONObject()),1);
+
+        // Weights must be positive
+        assertEquals(mockFramework.createJob("", 100, "", new JSONObject(), 0),-1);
+        assertEquals(mockFramework.createJob("", 100, "", new JSONObject(), 4),2);
     }
 
     @org.junit.Test
@@ -108,4 +116,104 @@ public class MagellanFrameworkTest {
     public void testGetAllJobStatuses() throws Exception {
 
     }
-}
\ No newline at end of file
+
+    private static JSONObject storedJob(long id, MagellanJob.JobState state) {
+        JSONObject snapshot = new MagellanJob(id, "job" + id, 10, "task", new JSONObject()).getStateSnapshot();
+        snapshot.put(JsonTags.SimpleStatus.CURRENT_STATE, state.name());
+        // As read back from Zookeeper
+        return new JSONObject(snapshot.toString());
+    }
+
+    @org.junit.Test
+    public void testFinishedJobsAreArchivedOnRestore() throws Exception {
+        JSONObject stored = new JSONObject();
+        stored.put(JsonTags.Persistence.NUM_CREATED_JOBS, 3);
+        stored.append(JsonTags.Persistence.JOBS, storedJob(0, MagellanJob.JobState.DONE));
+        stored.append(JsonTags.Persistence.JOBS, storedJob(1, MagellanJob.JobState.RUNNING));
+        stored.append(JsonTags.Persistence.JOBS, storedJob(2, MagellanJob.JobState.STOP));
+
+        assertEquals(MagellanJob.JobState.STOP, MagellanJob.stateOf(stored.getJSONArray(JsonTags.Persistence.JOBS).getJSONObject(2)));
+        mockFramework.restorePreviousState(stored);
+
+        // Only the running job is restored, the others are archived
+        assertEquals(1, mockFramework.getJobVersions().size());
+        assertTrue(mockFramework.getJobVersions().containsKey(1L));
+        assertEquals(1, mockFramework.getVerboseSystemInfo().getJSONArray(JsonTags.Persistence.JOBS).length());
+        assertNull(mockFramework.getJobSnapshot(2));
+        assertEquals(2, mockFramework.getStats().getJSONObject(JsonTags.Stats.ARCHIVE).getInt(JsonTags.Stats.ARCHIVED_JOBS));
+        assertTrue(mockFramework.isDone(0L));
+
+        // but still served
+        JSONObject status = mockFramework.getSimpleJobStatus(0L);
+        assertEquals("job0", status.getString(JsonTags.SimpleStatus.JOB_NAME));
+        assertEquals(3, mockFramework.getSimpleAllJobStatuses().length());
+        assertFalse(mockFramework.getJobVersions().containsKey(0L));
+
+        // New jobs do not reuse their ids
+        assertEquals(3, mockFramework.createJob("", 100, "", new JSONObject()));
+    }
+
+    @org.junit.Test
+    public void testOnlyRestoredJobsAreStartedOnRegistration() throws Exception {
+        JSONObject stored = new JSONObject();
+        stored.put(JsonTags.Persistence.NUM_CREATED_JOBS, 1);
+        stored.append(JsonTags.Persistence.JOBS, storedJob(0, MagellanJob.JobState.RUNNING));
+        mockFramework.restorePreviousState(stored);
+
+        // Created before the driver registered, and started right away
+        assertEquals(1, mockFramework.createJob("", 100, "", new JSONObject()));
+        mockFramework.startRestoredJobs();
+        mockFramework.startRestoredJobs();
+        Thread.sleep(200);
+
+        // Each job queued its division task once
+        assertEquals(1, mockFramework.getJob(0).getPendingTasks().size());
+        assertEquals(1, mockFramework.getJob(1).getPendingTasks().size());
+    }
+
+    @org.junit.Test
+    public void testFinishedJobsAreArchived() throws Exception {
+        long running = mockFramework.createJob("running", 100, "task", new JSONObject());
+        long stopped = mockFramework.createJob("stopped", 100, "task", new JSONObject());
+        mockFramework.stopJob(stopped);
+
+        assertEquals(1, mockFramework.archiveFinishedJobs());
+        assertEquals(0, mockFramework.archiveFinishedJobs());
+        assertEquals(Collections.singleton(running), mockFramework.getJobVersions().keySet());
+        assertEquals(1, mockFramework.getVerboseSystemInfo().getJSONArray(JsonTags.Persistence.JOBS).length());
+
+        // Reads are served from the archive
+        assertTrue(mockFramework.isDone(stopped));
+        JSONObject status = mockFramework.getSimpleJobStatus(stopped);
+        assertEquals("stopped", status.getString(JsonTags.SimpleStatus.JOB_NAME));
+        assertEquals(MagellanJob.JobState.STOP.name(), status.get(JsonTags.SimpleStatus.CURRENT_STATE).toString());
+        assertEquals(2, mockFramework.getSimpleAllJobStatuses().length());
+        // Archived jobs are not changed anymore
+        mockFramework.resumeJob(stopped);
+        assertTrue(mockFramework.isDone(stopped));
+    }
+
+    @org.junit.Test
+    public void testHeldOffersBoundTheSchedulingWait() throws Exception {
+        assertEquals(0, mockFramework.maxSchedulingWaitMillis());
+
+        Protos.Offer offer = Protos.Offer.newBuilder()
+                .setId(Protos.OfferID.newBuilder().setValue("offer1"))
+                .setFrameworkId(Protos.FrameworkID.newBuilder().setValue("faleiro"))
+                .setSlaveId(Protos.SlaveID.newBuilder().setValue("slave1"))
+                .setHostname("host1")
+                .build();
+        mockFramework.new MagellanScheduler().resourceOffers(Mockito.mock(SchedulerDriver.class),
+                Collections.singletonList(offer));
+        // Fenzo holds the offer, so the loop may not sleep past its expiry
+        assertTrue(mockFramework.maxSchedulingWaitMillis() > 0);
+
+        // The offer woke the loop up
+        mockFramework.awaitSchedulingRequest(5000);
+
+        // Nothing else happens. The wait times out and forces a cycle in which Fenzo expires the offer.
+        long start = System.currentTimeMillis();
+        assertTrue(mockFramework.awaitSchedulingRequest(100));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+}
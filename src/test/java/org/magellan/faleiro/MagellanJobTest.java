@@ -8,7 +8,12 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.magellan.faleiro.JsonTags.TaskData;
 import static org.magellan.faleiro.JsonTags.VerboseStatus;
@@ -45,7 +50,7 @@ public class MagellanJobTest {
 
     //@Test
     public void testGetPendingTasks() throws Exception {
-        testBeginning.start();
+        testBeginning.start(Runnable::run);
 
         //Give the job some time to run
         try{Thread.sleep(100);}catch(InterruptedException ie){}
@@ -70,6 +75,355 @@ public class MagellanJobTest {
     }
 
 
+    @Test
+    public void testPendingTasksListener() throws Exception {
+        CountDownLatch queued = new CountDownLatch(1);
+        testBeginning.setPendingTasksListener(queued::countDown);
+        testBeginning.start(Runnable::run);
+
+        // Starting the job queues the division task which must wake up the framework
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+        testBeginning.stop();
+    }
+
+    @Test
+    public void testTasksAreQueuedOnInterruptedThread() throws Exception {
+        Thread.currentThread().interrupt();
+        testBeginning.start(Runnable::run);
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FAILED, "3_div", null);
+
+        // Neither the division task nor its retry is lost, and the interrupt is left alone
+        assertTrue(Thread.interrupted());
+        assertEquals(testBeginning.getPendingTasks().size(), 2);
+    }
+
+    private String divisionResult(int divisions) {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.UID, "3_div");
+        JSONArray parts = new JSONArray();
+        for(int i = 0; i < divisions; i++) {
+            parts.put("part" + i);
+        }
+        j.put(TaskData.RESPONSE_DIVISIONS, parts);
+        return j.toString();
+    }
+
+    private String taskResult(int task, double fitness) {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.UID, "3_" + task);
+        j.put(TaskData.FITNESS_SCORE, fitness);
+        j.put(TaskData.BEST_LOCATION, "location" + task);
+        return j.toString();
+    }
+
+    @Test
+    public void testJobRunsAsStepsOnExecutor() throws Exception {
+        // Run every step on the calling thread. No step may block.
+        testBeginning.start(Runnable::run);
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(300));
+        assertEquals(testBeginning.getPendingTasks().size(), 300);
+        assertEquals(testBeginning.getNumTasksSent(), 300);
+
+        for(int i = 0; i < 300; i++) {
+            assertFalse(testBeginning.isDone());
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_" + i, taskResult(i, 300 - i));
+        }
+        assertEquals(testBeginning.getState(), MagellanJob.JobState.DONE);
+        assertEquals(testBeginning.getBestEnergy(), 1, 0);
+    }
+
+    @Test
+    public void testPausedJobResumesWhereItStopped() throws Exception {
+        testBeginning.start(Runnable::run);
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+
+        testBeginning.pause();
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(10));
+        // Nothing is generated while the job is paused
+        assertEquals(testBeginning.getPendingTasks().size(), 0);
+
+        testBeginning.resume();
+        assertEquals(testBeginning.getPendingTasks().size(), 10);
+    }
+
+    @Test
+    public void testRetryIsDeferredWhilePaused() throws Exception {
+        testBeginning.start(Runnable::run);
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(2));
+        assertEquals(testBeginning.getPendingTasks().size(), 2);
+
+        // A failed task of a paused job is not queued, and the caller is not held up
+        testBeginning.pause();
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FAILED, "3_1", null);
+        assertEquals(testBeginning.getPendingTasks().size(), 0);
+
+        testBeginning.resume();
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+
+        // Stopping a paused job drops its deferred work
+        testBeginning.pause();
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_LOST, "3_0", null);
+        testBeginning.stop();
+        testBeginning.resume();
+        assertEquals(testBeginning.getPendingTasks().size(), 0);
+    }
+
+    @Test
+    public void testAwaitCompletion() throws Exception {
+        testBeginning.start(Runnable::run);
+        assertFalse(testBeginning.awaitCompletion(10, TimeUnit.MILLISECONDS));
+
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(1));
+        Thread finisher = new Thread(() ->
+                testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_0", taskResult(0, 1)));
+        finisher.start();
+        assertTrue(testBeginning.awaitCompletion(5, TimeUnit.SECONDS));
+        assertEquals(testBeginning.getState(), MagellanJob.JobState.DONE);
+
+        // A stopped job stays stopped
+        testBeginning.stop();
+        testBeginning.resume();
+        assertEquals(testBeginning.getState(), MagellanJob.JobState.STOP);
+        assertTrue(testBeginning.awaitCompletion(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testEnergyHistorySurvivesSnapshot() throws Exception {
+        testBeginning.start(Runnable::run);
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(300));
+        for(int i = 0; i < 250; i++) {
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_" + i, taskResult(i, i));
+        }
+
+        // The status only carries a bounded history
+        JSONObject status = testBeginning.getSimpleStatus();
+        assertEquals(status.getJSONArray(SimpleStatus.ENERGY_HISTORY).length(), 84);
+        assertEquals(status.getJSONObject(SimpleStatus.ENERGY_SUMMARY).getInt(JsonTags.History.COUNT), 250);
+
+        // Round trip through the string that is written to zookeeper
+        JSONObject snapshot = testBeginning.getStateSnapshot();
+        snapshot.put(SimpleStatus.ADDITIONAL_PARAMS, new JSONObject());
+        snapshot = new JSONObject(snapshot.toString());
+        MagellanJob restored = new MagellanJob(snapshot);
+        JSONObject all = restored.getEnergyHistory(Long.MIN_VALUE, Long.MAX_VALUE, 1);
+        assertEquals(all.getJSONArray(JsonTags.History.BUCKETS).getJSONObject(0).getInt(JsonTags.History.COUNT), 250);
+
+        // Snapshots written before the history had timestamps
+        snapshot.remove(VerboseStatus.ENERGY_SAMPLES);
+        restored = new MagellanJob(snapshot);
+        assertEquals(restored.getEnergyHistory().toString(), testBeginning.getEnergyHistory().toString());
+    }
+
+    @Test
+    public void testSimpleStatusOfSnapshot() throws Exception {
+        testBeginning.start(Runnable::run);
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(10));
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_0", taskResult(4, 0));
+        testBeginning.stop();
+
+        // As read back from zookeeper, without rebuilding the job
+        JSONObject snapshot = new JSONObject(testBeginning.getStateSnapshot().toString());
+        JSONObject status = MagellanJob.simpleStatusOf(snapshot);
+        JSONObject expected = new JSONObject(testBeginning.getSimpleStatus().toString());
+        assertTrue(status.toString(), expected.similar(status));
+        assertFalse(status.has(VerboseStatus.ENERGY_SAMPLES));
+    }
+
+    private String divisionChunk(String taskId, int offset, int count, int total) {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.UID, taskId);
+        JSONArray parts = new JSONArray();
+        for(int i = offset; i < offset + count; i++) {
+            parts.put(taskId + "-part" + i);
+        }
+        j.put(TaskData.RESPONSE_DIVISIONS, parts);
+        j.put(TaskData.DIVISION_OFFSET, offset);
+        j.put(TaskData.DIVISION_TOTAL, total);
+        return j.toString();
+    }
+
+    @Test
+    public void testDivisionsAreAnnealedAsTheyArrive() throws Exception {
+        testBeginning.start(Runnable::run);
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+
+        // Tasks are created for the first divisions while the division task is still running
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_RUNNING, "3_div", divisionChunk("3_div", 0, 3, 5));
+        assertEquals(testBeginning.getPendingTasks().size(), 3);
+        assertEquals(testBeginning.getNumTotalTasks(), 5);
+
+        // A chunk that is delivered twice does not create tasks twice
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_RUNNING, "3_div", divisionChunk("3_div", 0, 3, 5));
+        assertEquals(testBeginning.getPendingTasks().size(), 0);
+
+        // The job is not done while divisions may still arrive
+        for(int i = 0; i < 3; i++) {
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_" + i, taskResult(i, i));
+        }
+        assertFalse(testBeginning.isDone());
+
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionChunk("3_div", 3, 2, 5));
+        assertEquals(testBeginning.getPendingTasks().size(), 2);
+        for(int i = 3; i < 5; i++) {
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_" + i, taskResult(i, i));
+        }
+        assertEquals(testBeginning.getState(), MagellanJob.JobState.DONE);
+        assertEquals(testBeginning.getNumFinishedTasks(), 5);
+    }
+
+    @Test
+    public void testDivisionReportsWithoutOffsetOrWithGapAreRejected() throws Exception {
+        testBeginning.start(Runnable::run);
+        testBeginning.getPendingTasks();
+
+        // A running task must say where its divisions go
+        JSONObject noOffset = new JSONObject(divisionChunk("3_div", 0, 3, -1));
+        noOffset.remove(TaskData.DIVISION_OFFSET);
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_RUNNING, "3_div", noOffset.toString());
+        assertEquals(testBeginning.getPendingTasks().size(), 0);
+
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_RUNNING, "3_div", divisionChunk("3_div", 0, 2, -1));
+        assertEquals(testBeginning.getPendingTasks().size(), 2);
+
+        // Divisions 2 to 3 are missing, so the final report is dropped and the division task runs again
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionChunk("3_div", 4, 1, -1));
+        List<MagellanTaskRequest> pending = testBeginning.getPendingTasks();
+        assertEquals(pending.size(), 1);
+        assertEquals(pending.get(0).getId(), "3_div");
+        assertEquals(testBeginning.getNumTotalTasks(), 2);
+
+        // A final report without an offset holds the whole part
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", noOffset.toString());
+        pending = testBeginning.getPendingTasks();
+        assertEquals(pending.size(), 1);
+        assertEquals(pending.get(0).getId(), "3_2");
+        assertEquals(testBeginning.getNumTotalTasks(), 3);
+    }
+
+    @Test
+    public void testParallelDivisionTasks() throws Exception {
+        testBeginning.setDivisionParts(2);
+        testBeginning.start(Runnable::run);
+
+        List<MagellanTaskRequest> divisionTasks = testBeginning.getPendingTasks();
+        assertEquals(divisionTasks.size(), 2);
+        for(int part = 0; part < 2; part++) {
+            JSONObject data = new JSONObject(divisionTasks.get(part).getData().toStringUtf8());
+            assertEquals(divisionTasks.get(part).getId(), "3_div" + part);
+            assertEquals(data.getInt(TaskData.DIVISION_PART), part);
+            assertEquals(data.getInt(TaskData.DIVISION_PARTS), 2);
+        }
+
+        // Parts can finish in any order
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div1", divisionChunk("3_div1", 0, 2, -1));
+        assertEquals(testBeginning.getPendingTasks().size(), 2);
+
+        // A failed part is run again on its own
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FAILED, "3_div0", null);
+        List<MagellanTaskRequest> retried = testBeginning.getPendingTasks();
+        assertEquals(retried.size(), 1);
+        assertEquals(retried.get(0).getId(), "3_div0");
+
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div0", divisionChunk("3_div0", 0, 1, -1));
+        assertEquals(testBeginning.getPendingTasks().size(), 1);
+        for(int i = 0; i < 3; i++) {
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_" + i, taskResult(i, i));
+        }
+        assertEquals(testBeginning.getState(), MagellanJob.JobState.DONE);
+    }
+
+    @Test
+    public void testRevivedJobKeepsReceivedDivisions() throws Exception {
+        testBeginning.start(Runnable::run);
+        testBeginning.getPendingTasks();
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_RUNNING, "3_div", divisionChunk("3_div", 0, 3, -1));
+        testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_1", taskResult(1, 1));
+
+        JSONObject snapshot = testBeginning.getStateSnapshot();
+        snapshot.put(SimpleStatus.ADDITIONAL_PARAMS, new JSONObject());
+        MagellanJob restored = new MagellanJob(new JSONObject(snapshot.toString()));
+        restored.start(Runnable::run);
+
+        // The division task runs again and the unfinished divisions received so far are annealed
+        List<MagellanTaskRequest> pending = restored.getPendingTasks();
+        assertEquals(pending.size(), 3);
+        assertEquals(pending.get(0).getId(), "3_div");
+        assertEquals(pending.get(1).getId(), "3_0");
+        assertEquals(pending.get(2).getId(), "3_2");
+
+        // Divisions that were already received are skipped when the division task reports them again
+        restored.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionChunk("3_div", 0, 4, -1));
+        pending = restored.getPendingTasks();
+        assertEquals(pending.size(), 1);
+        assertEquals(pending.get(0).getId(), "3_3");
+        assertEquals(restored.getNumTotalTasks(), 4);
+        assertEquals(restored.getNumFinishedTasks(), 1);
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+        File dir = Files.createTempDirectory("journal").toFile();
+        try(CompletionJournal journal = new CompletionJournal(dir, 64 * 1024)) {
+            testBeginning.start(Runnable::run);
+            testBeginning.getPendingTasks();
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(3));
+            JSONObject snapshot = testBeginning.getStateSnapshot();
+            snapshot.put(SimpleStatus.ADDITIONAL_PARAMS, new JSONObject());
+
+            // Changes made after the snapshot are only in the journal
+            testBeginning.setJournal(journal);
+            long version = testBeginning.getStateVersion();
+            testBeginning.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_1", taskResult(1, -5));
+            testBeginning.pause();
+            assertTrue(testBeginning.getStateVersion() > version);
+
+            final MagellanJob restored = new MagellanJob(new JSONObject(snapshot.toString()));
+            assertEquals(restored.getNumFinishedTasks(), 0);
+            journal.replay(new CompletionJournal.Visitor() {
+                @Override
+                public void taskFinished(long jobId, int taskIndex, double fitness, String location, long timeMillis) {
+                    assertTrue(restored.replayTaskFinished(taskIndex, fitness, location, timeMillis));
+                }
+
+                @Override
+                public void stateChanged(long jobId, MagellanJob.JobState state) {
+                    restored.replayState(state);
+                }
+            });
+            assertEquals(restored.getNumFinishedTasks(), 1);
+            assertEquals(restored.getBestLocation(), "location1");
+            assertEquals(restored.getBestEnergy(), -5, 0);
+            assertEquals(restored.getState(), MagellanJob.JobState.PAUSED);
+            // A task the snapshot already holds is not applied twice
+            assertFalse(restored.replayTaskFinished(1, -5, "location1", System.currentTimeMillis()));
+        }
+    }
+
+    @Test
+    public void testBinaryPayloads() throws Exception {
+        MagellanJob job = new MagellanJob(3, "tester", 10, "task_tester", new JSONObject(),
+                MagellanJob.DEFAULT_WEIGHT, TaskPayloadCodec.Format.BINARY);
+        job.start(Runnable::run);
+
+        List<MagellanTaskRequest> pending = job.getPendingTasks();
+        assertTrue(TaskPayloadCodec.isBinary(pending.get(0).getData()));
+        assertEquals(TaskPayloadCodec.decode(pending.get(0).getData()).getString(TaskData.UID), "3_div");
+
+        job.processIncomingMessages(Protos.TaskState.TASK_FINISHED, "3_div", divisionResult(2));
+        pending = job.getPendingTasks();
+        JSONObject task = TaskPayloadCodec.decode(pending.get(1).getData());
+        assertEquals(task.getString(TaskData.UID), "3_1");
+        assertEquals(task.getString(TaskData.TASK_DATA), "part1");
+
+        // The format survives a failover
+        MagellanJob restored = new MagellanJob(new JSONObject(job.getStateSnapshot().toString()));
+        assertEquals(restored.getPayloadFormat(), TaskPayloadCodec.Format.BINARY);
+    }
+
     @Test
     public void testIsDone() throws Exception {
         assertFalse(testBeginning.isDone());
@@ -0,0 +1,133 @@
+package org.magellan.faleiro;
+
+import com.netflix.fenzo.VirtualMachineLease;
+import org.apache.mesos.Protos;
+import org.apache.mesos.SchedulerDriver;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Stats;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class OfferManagerTest {
+    SchedulerDriver driver;
+    AtomicInteger backlog;
+    OfferManager offerManager;
+
+    private VirtualMachineLease lease(String hostname) {
+        Protos.Offer offer = Protos.Offer.newBuilder()
+                .setId(Protos.OfferID.newBuilder().setValue("offer-" + hostname))
+                .setFrameworkId(Protos.FrameworkID.newBuilder().setValue("faleiro"))
+                .setSlaveId(Protos.SlaveID.newBuilder().setValue("slave-" + hostname))
+                .setHostname(hostname)
+                .build();
+        VirtualMachineLease lease = mock(VirtualMachineLease.class);
+        doReturn(hostname).when(lease).hostname();
+        doReturn(offer).when(lease).getOffer();
+        return lease;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        driver = mock(SchedulerDriver.class);
+        backlog = new AtomicInteger();
+        offerManager = new OfferManager(() -> driver, backlog::get);
+    }
+
+    @Test
+    public void testRefuseSecondsBackOffWhileIdle() throws Exception {
+        double min = offerManager.MIN_REFUSE_SECONDS;
+        assertEquals(min, offerManager.refuseSeconds("host1"), 0);
+        assertEquals(2 * min, offerManager.refuseSeconds("host1"), 0);
+        assertEquals(4 * min, offerManager.refuseSeconds("host1"), 0);
+        // Hosts back off independently
+        assertEquals(min, offerManager.refuseSeconds("host2"), 0);
+
+        for(int i = 0; i < 40; i++) {
+            offerManager.refuseSeconds("host1");
+        }
+        assertEquals(offerManager.MAX_REFUSE_SECONDS, offerManager.refuseSeconds("host1"), 0);
+
+        // Using the host resets its filter
+        offerManager.offersUsed("host1", 1);
+        assertEquals(min, offerManager.refuseSeconds("host1"), 0);
+    }
+
+    @Test
+    public void testRefuseSecondsWithBacklog() throws Exception {
+        backlog.set(10);
+        for(int i = 0; i < 5; i++) {
+            assertEquals(offerManager.MIN_REFUSE_SECONDS, offerManager.refuseSeconds("host1"), 0);
+        }
+    }
+
+    @Test
+    public void testDeclineUsesFilter() throws Exception {
+        offerManager.decline(lease("host1"));
+        verify(driver).declineOffer(eq(Protos.OfferID.newBuilder().setValue("offer-host1").build()),
+                eq(Protos.Filters.newBuilder().setRefuseSeconds(offerManager.MIN_REFUSE_SECONDS).build()));
+        verify(driver, never()).declineOffer(any(Protos.OfferID.class));
+    }
+
+    @Test
+    public void testSuppressAndRevive() throws Exception {
+        // Offers are only revived after they have been suppressed
+        assertFalse(offerManager.reviveIfSuppressed());
+        assertFalse(offerManager.suppressIfIdle(3));
+
+        assertTrue(offerManager.suppressIfIdle(0));
+        assertFalse(offerManager.suppressIfIdle(0));
+        assertTrue(offerManager.isSuppressed());
+        verify(driver, times(1)).suppressOffers();
+
+        assertTrue(offerManager.reviveIfSuppressed());
+        assertFalse(offerManager.reviveIfSuppressed());
+        verify(driver, times(1)).reviveOffers();
+
+        // A new registration receives offers again
+        offerManager.suppressIfIdle(0);
+        offerManager.registered();
+        assertFalse(offerManager.isSuppressed());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        offerManager.offersReceived(3);
+        offerManager.offersUsed("host1", 1);
+        offerManager.offerRescinded();
+        offerManager.decline(lease("host2"));
+
+        JSONObject stats = offerManager.getStats();
+        assertEquals(3, stats.getLong(Stats.OFFERS_RECEIVED));
+        assertEquals(1, stats.getLong(Stats.OFFERS_USED));
+        assertEquals(1, stats.getLong(Stats.OFFERS_RESCINDED));
+        assertEquals(1, stats.getLong(Stats.OFFERS_DECLINED));
+        assertEquals(1, stats.getInt(Stats.IDLE_HOSTS));
+    }
+
+    @Test
+    public void testHeldOffers() throws Exception {
+        offerManager.offerHeld("offer-host1", "slave-host1");
+        offerManager.offerHeld("offer-host2", "slave-host2");
+        offerManager.offerHeld("offer-host3", "slave-host3");
+        offerManager.offerHeld("offer-host4", "slave-host3");
+        assertEquals(4, offerManager.getHeldOffers());
+
+        offerManager.offerReleased("offer-host1");
+        offerManager.decline(lease("host2"));
+        assertEquals(2, offerManager.getHeldOffers());
+        offerManager.slaveLost("slave-host3");
+        assertEquals(0, offerManager.getHeldOffers());
+
+        offerManager.offerHeld("offer-host1", "slave-host1");
+        assertEquals(1, offerManager.getStats().getInt(Stats.OFFERS_HELD));
+        offerManager.registered();
+        assertEquals(0, offerManager.getHeldOffers());
+    }
+}
@@ -0,0 +1,67 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PendingTaskIndexTest {
+    PendingTaskIndex index;
+
+    private MagellanTaskRequest task(String id) {
+        return new MagellanTaskRequest(id, "tester", 1, 32, 0, 0, 0, ByteString.EMPTY);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        index = new PendingTaskIndex();
+        for(int i = 0; i < 5; i++) {
+            index.add(task("0_" + i));
+        }
+    }
+
+    @Test
+    public void testAddAndRemove() throws Exception {
+        assertEquals(5, index.size());
+        assertEquals("0_2", index.get("0_2").getId());
+        assertNotNull(index.remove("0_2"));
+        assertNull(index.remove("0_2"));
+        assertNull(index.get("0_2"));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testWindowRotates() throws Exception {
+        List<MagellanTaskRequest> first = index.nextWindow(2);
+        assertEquals(2, first.size());
+        assertEquals("0_0", first.get(0).getId());
+        assertEquals("0_1", first.get(1).getId());
+
+        // Tasks that were not launched go to the back so the next window sees new tasks
+        List<MagellanTaskRequest> second = index.nextWindow(2);
+        assertEquals("0_2", second.get(0).getId());
+        assertEquals("0_3", second.get(1).getId());
+
+        List<MagellanTaskRequest> third = index.nextWindow(2);
+        assertEquals("0_4", third.get(0).getId());
+        assertEquals("0_0", third.get(1).getId());
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    public void testWindowLargerThanIndex() throws Exception {
+        assertEquals(5, index.nextWindow(100).size());
+        assertEquals(0, new PendingTaskIndex().nextWindow(10).size());
+    }
+
+    @Test
+    public void testRemoveIf() throws Exception {
+        index.add(task("1_0"));
+        assertEquals(5, index.removeIf(t -> t.getId().startsWith("0_")));
+        assertEquals(1, index.size());
+        assertEquals("1_0", index.nextWindow(10).get(0).getId());
+    }
+}
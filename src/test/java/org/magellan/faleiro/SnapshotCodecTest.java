@@ -0,0 +1,106 @@
+package org.magellan.faleiro;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SnapshotCodecTest {
+
+    private byte[] randomHex(int n, long seed) throws Exception {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < n) {
+            sb.append(Long.toHexString(random.nextLong()));
+        }
+        return sb.substring(0, n).getBytes("UTF-8");
+    }
+
+    private byte[] roundTrip(SnapshotCodec.Encoded encoded) {
+        SnapshotCodec.Manifest manifest = SnapshotCodec.readManifest(encoded.getManifest().toByteArray());
+        return SnapshotCodec.decode(manifest, encoded.getChunks());
+    }
+
+    @Test
+    public void testSmallStateIsInline() throws Exception {
+        byte[] data = "{\"job_id\":1}".getBytes("UTF-8");
+        SnapshotCodec.Encoded encoded = SnapshotCodec.encode(data, 7, 1024);
+        assertTrue(encoded.getChunks().isEmpty());
+        assertTrue(SnapshotCodec.isEncoded(encoded.getManifest().toByteArray()));
+        assertArrayEquals(data, roundTrip(encoded));
+        assertEquals(7, SnapshotCodec.readManifest(encoded.getManifest().toByteArray()).getSnapshotVersion());
+    }
+
+    @Test
+    public void testLargeStateIsChunked() throws Exception {
+        byte[] data = randomHex(100000, 1);
+        SnapshotCodec.Encoded encoded = SnapshotCodec.encode(data, 2, 4096);
+        assertTrue(encoded.getChunks().size() > 1);
+        for(byte[] chunk : encoded.getChunks()) {
+            assertTrue(chunk.length <= 4096);
+        }
+        SnapshotCodec.Manifest manifest = SnapshotCodec.readManifest(encoded.getManifest().toByteArray());
+        assertEquals(encoded.getChunks().size(), manifest.getChunks());
+        assertEquals(SnapshotCodec.chunkName(2, 0), manifest.getChunkNames().get(0));
+        assertArrayEquals(data, roundTrip(encoded));
+    }
+
+    @Test
+    public void testRepetitiveStateIsCompressed() throws Exception {
+        byte[] data = new byte[200000];
+        Arrays.fill(data, (byte) 'a');
+        SnapshotCodec.Encoded encoded = SnapshotCodec.encode(data, 1, 4096);
+        assertTrue(encoded.getChunks().isEmpty());
+        assertTrue(encoded.getManifest().toByteArray().length < 4096);
+        assertArrayEquals(data, roundTrip(encoded));
+    }
+
+    @Test
+    public void testCorruptionIsDetected() throws Exception {
+        SnapshotCodec.Encoded encoded = SnapshotCodec.encode(randomHex(20000, 2), 1, 1024);
+        SnapshotCodec.Manifest manifest = SnapshotCodec.readManifest(encoded.getManifest().toByteArray());
+
+        // A chunk is missing
+        List<byte[]> chunks = new ArrayList<>(encoded.getChunks());
+        chunks.set(1, null);
+        try {
+            SnapshotCodec.decode(manifest, chunks);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // The last chunk is missing
+        chunks = new ArrayList<>(encoded.getChunks());
+        chunks.remove(chunks.size() - 1);
+        try {
+            SnapshotCodec.decode(manifest, chunks);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // A byte is flipped
+        chunks = new ArrayList<>(encoded.getChunks());
+        byte[] chunk = chunks.get(2).clone();
+        chunk[10] ^= 0x01;
+        chunks.set(2, chunk);
+        try {
+            SnapshotCodec.decode(manifest, chunks);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPlainJsonIsNotEncoded() throws Exception {
+        assertFalse(SnapshotCodec.isEncoded("{}".getBytes("UTF-8")));
+        assertFalse(SnapshotCodec.isEncoded(new byte[0]));
+        assertFalse(SnapshotCodec.isEncoded(null));
+    }
+}
@@ -0,0 +1,89 @@
+package org.magellan.faleiro;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Stats;
+import static org.magellan.faleiro.StartupTracker.Phase;
+
+public class StartupTrackerTest {
+    StartupTracker tracker;
+    ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        tracker = new StartupTracker();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testPhaseIsReachedOnce() throws Exception {
+        assertFalse(tracker.isReached(Phase.ELECTED));
+        assertEquals(-1, tracker.getMillis(Phase.ELECTED));
+        assertFalse(tracker.await(Phase.ELECTED, 10));
+
+        assertTrue(tracker.reached(Phase.ELECTED));
+        long elected = tracker.getMillis(Phase.ELECTED);
+        assertTrue(elected >= 0);
+        Thread.sleep(5);
+        assertFalse(tracker.reached(Phase.ELECTED));
+        assertEquals(elected, tracker.getMillis(Phase.ELECTED));
+        assertTrue(tracker.await(Phase.ELECTED, 0));
+    }
+
+    @Test
+    public void testAwaitIsReleasedByAnotherThread() throws Exception {
+        executor.execute(() -> tracker.reached(Phase.ZK_CONNECTED));
+        assertTrue(tracker.await(Phase.ZK_CONNECTED, 5000));
+    }
+
+    @Test
+    public void testActionWaitsForEveryPhase() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch ran = new CountDownLatch(1);
+        tracker.whenReached(executor, () -> {
+            runs.incrementAndGet();
+            ran.countDown();
+        }, Phase.RESTORED, Phase.REGISTERED);
+
+        tracker.reached(Phase.REGISTERED);
+        assertFalse(ran.await(50, TimeUnit.MILLISECONDS));
+        tracker.reached(Phase.RESTORED);
+        assertTrue(ran.await(5000, TimeUnit.MILLISECONDS));
+        // Registering again does not run the action again
+        tracker.reached(Phase.REGISTERED);
+        executor.submit(() -> {}).get();
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        JSONObject stats = tracker.getStats();
+        assertEquals(-1, stats.getLong(Stats.FIRST_OFFER_MILLIS));
+        assertEquals(-1, stats.getLong(Stats.TIME_TO_FIRST_OFFER_MILLIS));
+
+        tracker.reached(Phase.ELECTED);
+        Thread.sleep(20);
+        tracker.reached(Phase.FIRST_OFFER);
+        stats = tracker.getStats();
+        assertTrue(stats.getLong(Stats.ELECTED_MILLIS) >= 0);
+        assertEquals(stats.getLong(Stats.FIRST_OFFER_MILLIS) - stats.getLong(Stats.ELECTED_MILLIS),
+                stats.getLong(Stats.TIME_TO_FIRST_OFFER_MILLIS));
+        assertTrue(stats.getLong(Stats.TIME_TO_FIRST_OFFER_MILLIS) >= 20);
+        assertEquals(-1, stats.getLong(Stats.TIME_TO_FIRST_LAUNCH_MILLIS));
+    }
+}
@@ -0,0 +1,140 @@
+package org.magellan.faleiro;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Persistence;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class StateReplicaTest {
+    Map<String, byte[]> nodes;
+    List<String> writes;
+    ZookeeperService zks;
+    MagellanFramework mf;
+    ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        nodes = new TreeMap<>();
+        writes = new ArrayList<>();
+        mf = mock(MagellanFramework.class);
+        executor = Executors.newSingleThreadExecutor();
+
+        // Zookeeper backed by a map. Watches are not recorded, the tests deliver the events.
+        zks = mock(ZookeeperService.class);
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            nodes.putIfAbsent(path, "{}".getBytes("UTF-8"));
+            return path;
+        }).when(zks).createNode(anyString(), anyBoolean(), anyBoolean());
+        doAnswer(invocation -> nodes.containsKey(invocation.getArguments()[0])).when(zks).watchNode(anyString(), anyBoolean());
+        doAnswer(invocation -> nodes.get((String) invocation.getArguments()[0])).when(zks).getData(anyString());
+        doAnswer(invocation -> CompletableFuture.completedFuture(nodes.get((String) invocation.getArguments()[0])))
+                .when(zks).getDataAsync(anyString());
+        doAnswer(invocation -> {
+            String prefix = invocation.getArguments()[0] + "/";
+            List<String> children = new ArrayList<>();
+            for(String path : nodes.keySet()) {
+                if(path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0) {
+                    children.add(path.substring(prefix.length()));
+                }
+            }
+            return children;
+        }).when(zks).getChildren(anyString(), anyBoolean());
+        doAnswer(invocation -> {
+            nodes.put((String) invocation.getArguments()[0], (byte[]) invocation.getArguments()[1]);
+            writes.add((String) invocation.getArguments()[0]);
+            return null;
+        }).when(zks).putData(anyString(), any(byte[].class));
+        doAnswer(invocation -> {
+            nodes.put((String) invocation.getArguments()[0], (byte[]) invocation.getArguments()[1]);
+            writes.add((String) invocation.getArguments()[0]);
+            return CompletableFuture.completedFuture(null);
+        }).when(zks).putDataAsync(anyString(), any(byte[].class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private JSONObject jobSnapshot(long id) {
+        MagellanJob job = new MagellanJob(id, "job" + id, 10, "task", new JSONObject());
+        return job.getStateSnapshot();
+    }
+
+    private JSONObject state(long created, JSONObject... jobs) {
+        JSONArray array = new JSONArray();
+        for(JSONObject j : jobs) {
+            array.put(j);
+        }
+        return new JSONObject().put(Persistence.NUM_CREATED_JOBS, created).put(Persistence.JOBS, array);
+    }
+
+    private static WatchedEvent event(Watcher.Event.EventType type, String path) {
+        return new WatchedEvent(type, Watcher.Event.KeeperState.SyncConnected, path);
+    }
+
+    @Test
+    public void testReplicatesChanges() throws Exception {
+        DataMonitor leader = new DataMonitor(zks, "/root", mf);
+        leader.writeState(state(1, jobSnapshot(0)));
+
+        DataMonitor standby = new DataMonitor(zks, "/root", mf);
+        StateReplica replica = new StateReplica(zks, standby, executor);
+        replica.start();
+
+        // The leader renames job 0 and creates job 1
+        JSONObject renamed = jobSnapshot(0).put(JsonTags.SimpleStatus.JOB_NAME, "renamed");
+        JSONObject created = jobSnapshot(1);
+        leader.writeState(state(2, renamed, created));
+        replica.process(event(Watcher.Event.EventType.NodeDataChanged, "/root/job-0"));
+        replica.process(event(Watcher.Event.EventType.NodeChildrenChanged, "/root"));
+        replica.process(event(Watcher.Event.EventType.NodeDataChanged, "/root"));
+        // Not a job node
+        replica.process(event(Watcher.Event.EventType.NodeDataChanged, "/root/job-0/chunk-1-0"));
+
+        assertTrue(replica.promote(5000));
+        assertEquals(2, replica.getFrameworkState().getLong(Persistence.NUM_CREATED_JOBS));
+        Map<Long, MagellanJob> jobs = new TreeMap<>();
+        for(MagellanJob j : replica.getJobs()) {
+            jobs.put(j.getJobID(), j);
+        }
+        assertEquals(2, jobs.size());
+        assertEquals("renamed", jobs.get(0L).getJobName());
+        assertEquals("job1", jobs.get(1L).getJobName());
+
+        // The promoted monitor does not write back what it replicated
+        writes.clear();
+        assertFalse(standby.writeState(state(2, renamed, created)));
+        assertTrue(writes.isEmpty());
+
+        // Events after the promotion are ignored
+        replica.process(event(Watcher.Event.EventType.NodeDataChanged, "/root/job-0"));
+    }
+
+    @Test
+    public void testFailedReplicaIsNotPromoted() throws Exception {
+        doThrow(new IllegalStateException("connection loss")).when(zks).getChildren(anyString(), anyBoolean());
+        StateReplica replica = new StateReplica(zks, new DataMonitor(zks, "/root", mf), executor);
+        replica.start();
+        assertFalse(replica.promote(5000));
+    }
+}
@@ -0,0 +1,132 @@
+package org.magellan.faleiro;
+
+import org.apache.mesos.Protos;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.Stats;
+
+public class StatusUpdatePipelineTest {
+    ExecutionEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new ExecutionEngine();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.shutdown(1000);
+    }
+
+    private List<ThreadPoolExecutor> partitions(int n) {
+        List<ThreadPoolExecutor> partitions = new ArrayList<>();
+        for(int i = 0; i < n; i++) {
+            partitions.add(engine.newBlockingExecutor("status-" + i, 1, 4));
+        }
+        return partitions;
+    }
+
+    private Protos.TaskStatus status(String taskId, Protos.TaskState state) {
+        return Protos.TaskStatus.newBuilder()
+                .setTaskId(Protos.TaskID.newBuilder().setValue(taskId))
+                .setState(state)
+                .build();
+    }
+
+    private void awaitProcessed(StatusUpdatePipeline pipeline, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pipeline.getStats().getLong(Stats.UPDATES_PROCESSED) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, pipeline.getStats().getLong(Stats.UPDATES_PROCESSED));
+    }
+
+    @Test
+    public void testUpdatesOfAJobKeepTheirOrder() throws Exception {
+        Map<Long, List<String>> handled = new ConcurrentHashMap<>();
+        StatusUpdatePipeline pipeline = new StatusUpdatePipeline(partitions(3), s -> {
+            String taskId = s.getTaskId().getValue();
+            handled.computeIfAbsent(MagellanFramework.jobIdOf(taskId),
+                    k -> Collections.synchronizedList(new ArrayList<>())).add(taskId);
+            return true;
+        });
+
+        // More updates than the queues hold, so the submitter is held up along the way
+        for(int i = 0; i < 100; i++) {
+            for(long job = 0; job < 5; job++) {
+                pipeline.submit(job, status(job + "_" + i, Protos.TaskState.TASK_FINISHED));
+            }
+        }
+        awaitProcessed(pipeline, 500);
+
+        for(long job = 0; job < 5; job++) {
+            List<String> expected = new ArrayList<>();
+            for(int i = 0; i < 100; i++) {
+                expected.add(job + "_" + i);
+            }
+            assertEquals(expected, handled.get(job));
+        }
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testIgnoredAndFailedUpdatesAreCounted() throws Exception {
+        List<String> finished = new CopyOnWriteArrayList<>();
+        StatusUpdatePipeline pipeline = new StatusUpdatePipeline(partitions(2), s -> {
+            if(s.getState() == Protos.TaskState.TASK_ERROR) {
+                throw new IllegalStateException("broken");
+            }
+            // Terminal updates are only handled once per task
+            if(finished.contains(s.getTaskId().getValue())) {
+                return false;
+            }
+            finished.add(s.getTaskId().getValue());
+            return true;
+        });
+
+        pipeline.submit(1, status("1_0", Protos.TaskState.TASK_FINISHED));
+        pipeline.submit(1, status("1_0", Protos.TaskState.TASK_FINISHED));
+        pipeline.submit(1, status("1_1", Protos.TaskState.TASK_ERROR));
+        pipeline.submit(2, status("2_0", Protos.TaskState.TASK_FINISHED));
+        awaitProcessed(pipeline, 4);
+
+        List<String> sorted = new ArrayList<>(finished);
+        Collections.sort(sorted);
+        assertEquals(Arrays.asList("1_0", "2_0"), sorted);
+        JSONObject stats = pipeline.getStats();
+        assertEquals(4, stats.getLong(Stats.UPDATES_RECEIVED));
+        assertEquals(1, stats.getLong(Stats.UPDATES_IGNORED));
+        assertEquals(1, stats.getLong(Stats.UPDATES_FAILED));
+        assertEquals(0, stats.getLong(Stats.UPDATES_DROPPED));
+        assertTrue(stats.getInt(Stats.MAX_QUEUE_DEPTH) >= 1);
+    }
+
+    @Test
+    public void testUpdatesAfterShutdownAreDropped() throws Exception {
+        StatusUpdatePipeline pipeline = new StatusUpdatePipeline(partitions(1), s -> true);
+        engine.shutdown(1000);
+        pipeline.submit(1, status("1_0", Protos.TaskState.TASK_FINISHED));
+        assertEquals(1, pipeline.getStats().getLong(Stats.UPDATES_DROPPED));
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void testJobIdOfTask() throws Exception {
+        assertEquals(12, MagellanFramework.jobIdOf("12_3"));
+        assertEquals(12, MagellanFramework.jobIdOf("12_div1"));
+        assertEquals(0, MagellanFramework.jobIdOf("unknown"));
+    }
+}
@@ -0,0 +1,65 @@
+package org.magellan.faleiro;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TaskIdsTest {
+
+    @Test
+    public void testStringFormIsUnchanged() throws Exception {
+        assertEquals("3_17", TaskIds.toString(TaskIds.anneal(3, 17)));
+        assertEquals("3_div", TaskIds.toString(TaskIds.division(3)));
+        assertEquals("3_div0", TaskIds.toString(TaskIds.division(3, 0)));
+        assertEquals("12_div4", TaskIds.toString(TaskIds.division(12, 4)));
+    }
+
+    @Test
+    public void testParseRoundTrips() throws Exception {
+        String[] ids = {"0_0", "3_17", "3_div", "3_div0", "3_div1", "2147483647_2147483647"};
+        for(String id : ids) {
+            assertEquals(id, TaskIds.toString(TaskIds.parse(id)));
+        }
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        long anneal = TaskIds.parse("7_42");
+        assertEquals(7, TaskIds.jobId(anneal));
+        assertFalse(TaskIds.isDivision(anneal));
+        assertEquals(42, TaskIds.index(anneal));
+        assertEquals(-1, TaskIds.divisionPart(anneal));
+
+        long single = TaskIds.parse("7_div");
+        assertEquals(7, TaskIds.jobId(single));
+        assertTrue(TaskIds.isDivision(single));
+        assertEquals(0, TaskIds.divisionPart(single));
+        assertEquals(-1, TaskIds.index(single));
+
+        long part = TaskIds.parse("7_div3");
+        assertTrue(TaskIds.isDivision(part));
+        assertEquals(3, TaskIds.divisionPart(part));
+        assertNotEquals(single, TaskIds.parse("7_div0"));
+        assertTrue(part >= 0);
+    }
+
+    @Test
+    public void testMalformedIds() throws Exception {
+        String[] malformed = {"", "unknown", "_3", "3_", "3", "3_x", "3_div-1", "-3_1", "3_1_2",
+                "3_divx", "99999999999_1", "3_2147483648"};
+        for(String id : malformed) {
+            assertEquals(id, TaskIds.NONE, TaskIds.valueOf(id));
+            try {
+                TaskIds.parse(id);
+                fail("Parsed " + id);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testJobIdOutOfRange() throws Exception {
+        TaskIds.anneal(1L << 32, 0);
+    }
+}
@@ -0,0 +1,106 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.TaskData;
+
+public class TaskPayloadCodecTest {
+
+    private JSONObject largeProblem() {
+        JSONObject problem = new JSONObject();
+        JSONArray cities = new JSONArray();
+        for(int i = 0; i < 500; i++) {
+            cities.put(new JSONArray().put(i).put(i * 2));
+        }
+        problem.put("cities", cities);
+        return problem;
+    }
+
+    private JSONObject annealTask() {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.UID, "3_7");
+        j.put(TaskData.TASK_NAME, "tsp");
+        j.put(TaskData.TASK_COMMAND, TaskData.TASK_ANNEAL);
+        j.put(TaskData.JOB_DATA, largeProblem());
+        j.put(TaskData.MINUTES_PER_DIVISION, 0.25);
+        j.put(TaskData.TASK_DATA, new JSONArray("[3, 4]"));
+        j.put("custom", new JSONObject().put("a", 1));
+        return j;
+    }
+
+    private void assertRoundTrip(JSONObject payload, TaskPayloadCodec.Format format) {
+        ByteString encoded = TaskPayloadCodec.encode(payload, format);
+        assertEquals(TaskPayloadCodec.isBinary(encoded), format != TaskPayloadCodec.Format.JSON);
+        JSONObject expected = new JSONObject(payload.toString());
+        assertTrue(TaskPayloadCodec.decode(encoded).similar(expected));
+        assertTrue(new JSONObject(TaskPayloadCodec.toJson(encoded)).similar(expected));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for(TaskPayloadCodec.Format format : TaskPayloadCodec.Format.values()) {
+            assertRoundTrip(annealTask(), format);
+
+            JSONObject division = new JSONObject();
+            division.put(TaskData.UID, "3_div1");
+            division.put(TaskData.TASK_DIVISIONS, 0);
+            division.put(TaskData.DIVISION_PART, 1);
+            division.put(TaskData.DIVISION_PARTS, 2);
+            assertRoundTrip(division, format);
+
+            JSONObject result = new JSONObject();
+            result.put(TaskData.UID, "3_div1");
+            result.put(TaskData.RESPONSE_DIVISIONS, new JSONArray("[\"a\", [1, 2], {\"b\": null}]"));
+            result.put(TaskData.DIVISION_OFFSET, 10);
+            result.put(TaskData.DIVISION_TOTAL, 20);
+            assertRoundTrip(result, format);
+
+            JSONObject fitness = new JSONObject();
+            fitness.put(TaskData.UID, "3_7");
+            fitness.put(TaskData.FITNESS_SCORE, 12.5);
+            fitness.put(TaskData.BEST_LOCATION, "[1, 2]");
+            assertRoundTrip(fitness, format);
+        }
+    }
+
+    @Test
+    public void testBinaryFormsAreSmaller() throws Exception {
+        int json = TaskPayloadCodec.encode(annealTask(), TaskPayloadCodec.Format.JSON).size();
+        int binary = TaskPayloadCodec.encode(annealTask(), TaskPayloadCodec.Format.BINARY).size();
+        int deflated = TaskPayloadCodec.encode(annealTask(), TaskPayloadCodec.Format.BINARY_DEFLATE).size();
+        assertTrue(binary < json);
+        assertTrue(deflated < binary / 2);
+    }
+
+    @Test
+    public void testTemplateMatchesEncode() throws Exception {
+        for(TaskPayloadCodec.Format format : TaskPayloadCodec.Format.values()) {
+            JSONObject problem = largeProblem();
+            TaskPayloadTemplate template = new TaskPayloadTemplate("tsp", TaskData.TASK_ANNEAL, problem, format);
+            ByteString payload = template.build("3_7", 0.25, new JSONArray("[3, 4]"));
+            assertEquals(TaskPayloadCodec.isBinary(payload), format != TaskPayloadCodec.Format.JSON);
+
+            JSONObject expected = annealTask();
+            expected.remove("custom");
+            assertTrue(TaskPayloadCodec.decode(payload).similar(new JSONObject(expected.toString())));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedPayload() throws Exception {
+        ByteString valid = TaskPayloadCodec.encode(annealTask(), TaskPayloadCodec.Format.BINARY);
+        TaskPayloadCodec.decode(valid.substring(0, valid.size() / 2));
+    }
+
+    @Test
+    public void testFormatNames() throws Exception {
+        for(TaskPayloadCodec.Format format : TaskPayloadCodec.Format.values()) {
+            assertEquals(TaskPayloadCodec.Format.fromName(format.toString()), format);
+        }
+        assertNull(TaskPayloadCodec.Format.fromName("xml"));
+    }
+}
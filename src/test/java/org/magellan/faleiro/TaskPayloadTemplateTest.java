@@ -0,0 +1,64 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.TaskData;
+
+public class TaskPayloadTemplateTest {
+
+    private JSONObject expected(String uid, double minutes, Object taskData, JSONObject jobData) {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.MINUTES_PER_DIVISION, minutes);
+        j.put(TaskData.TASK_DATA, taskData);
+        j.put(TaskData.UID, uid);
+        j.put(TaskData.TASK_NAME, "tsp");
+        j.put(TaskData.TASK_COMMAND, TaskData.TASK_ANNEAL);
+        j.put(TaskData.JOB_DATA, jobData);
+        // Parsed again so that numbers have the types the parser gives them
+        return new JSONObject(j.toString());
+    }
+
+    @Test
+    public void testPayloadMatchesJsonObject() throws Exception {
+        JSONObject jobData = new JSONObject();
+        jobData.put("cities", new JSONArray("[[1,2],[3,4]]"));
+        jobData.put("name", "caf\u00e9 \"quoted\"");
+        TaskPayloadTemplate template = new TaskPayloadTemplate("tsp", TaskData.TASK_ANNEAL, jobData);
+
+        JSONArray division = new JSONArray("[0, 1, 2]");
+        ByteString payload = template.build("3_7", 0.25, division);
+        JSONObject parsed = new JSONObject(payload.toStringUtf8());
+        assertTrue(parsed.similar(expected("3_7", 0.25, division, jobData)));
+
+        // Divisions can be any json value
+        parsed = new JSONObject(template.build("3_8", 1, "start").toStringUtf8());
+        assertTrue(parsed.similar(expected("3_8", 1, "start", jobData)));
+    }
+
+    @Test
+    public void testPrefixIsShared() throws Exception {
+        TaskPayloadTemplate template = new TaskPayloadTemplate("tsp", TaskData.TASK_ANNEAL, new JSONObject());
+        ByteString first = template.build("3_0", 1, "a");
+        ByteString second = template.build("3_1", 1, "b");
+        assertTrue(first.startsWith(template.getPrefix()));
+        assertTrue(second.startsWith(template.getPrefix()));
+    }
+
+    @Test
+    public void testNullFieldsAreLeftOut() throws Exception {
+        TaskPayloadTemplate template = new TaskPayloadTemplate("tsp", TaskData.TASK_ANNEAL, null);
+        JSONObject parsed = new JSONObject(template.build("3_0", 1, null).toStringUtf8());
+        assertFalse(parsed.has(TaskData.JOB_DATA));
+        assertFalse(parsed.has(TaskData.TASK_DATA));
+        assertTrue(parsed.similar(expected("3_0", 1, null, null)));
+
+        template = new TaskPayloadTemplate(null, null, null);
+        parsed = new JSONObject(template.build("3_0", 1, null).toStringUtf8());
+        assertEquals(parsed.getString(TaskData.UID), "3_0");
+        assertEquals(parsed.length(), 2);
+    }
+}
@@ -0,0 +1,67 @@
+package org.magellan.faleiro;
+
+import com.google.protobuf.ByteString;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.magellan.faleiro.JsonTags.TaskData;
+
+public class TaskResultTest {
+
+    @Test
+    public void testDecodeAnnealResult() throws Exception {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.UID, "3_7");
+        j.put(TaskData.FITNESS_SCORE, 12.5);
+        j.put(TaskData.BEST_LOCATION, "[1, 2, 3]");
+        // Fields the scheduler does not use are skipped
+        j.put(TaskData.JOB_DATA, new JSONObject("{\"cities\": [[1, 2], [3, 4]], \"name\": null}"));
+        j.put("extra", new JSONArray("[true, false, null, 1e3]"));
+
+        TaskResult result = TaskResult.decode(ByteString.copyFromUtf8(j.toString()));
+        assertEquals("3_7", result.getUid());
+        assertEquals(12.5, result.getFitnessScore(), 0);
+        assertEquals("[1, 2, 3]", result.getBestLocation());
+        assertNull(result.getDivisions());
+        assertEquals(-1, result.getDivisionOffset());
+    }
+
+    @Test
+    public void testDecodeDivisions() throws Exception {
+        JSONObject j = new JSONObject();
+        j.put(TaskData.UID, 4);
+        JSONArray divisions = new JSONArray("[\"a\", [1, 2.5], {\"b\": {\"c\": null}}, -3]");
+        j.put(TaskData.RESPONSE_DIVISIONS, divisions);
+        j.put(TaskData.DIVISION_OFFSET, 10);
+        j.put(TaskData.DIVISION_TOTAL, 20);
+
+        for(TaskPayloadCodec.Format format : TaskPayloadCodec.Format.values()) {
+            TaskResult result = TaskResult.decode(TaskPayloadCodec.encode(j, format));
+            assertEquals("4", result.getUid());
+            assertNull(result.getFitnessScore());
+            assertTrue(result.getDivisions().similar(divisions));
+            assertEquals(10, result.getDivisionOffset());
+            assertEquals(20, result.getDivisionTotal());
+        }
+    }
+
+    @Test
+    public void testFitnessAsString() throws Exception {
+        TaskResult result = TaskResult.decode("{\"fitness_score\": \"88843.5\", \"best_location\": \"india\"}");
+        assertEquals(88843.5, result.getFitnessScore(), 0);
+        assertEquals("india", result.getBestLocation());
+        assertNull(result.getUid());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedResult() throws Exception {
+        TaskResult.decode("{\"fitness_score\": ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResultMustBeAnObject() throws Exception {
+        TaskResult.decode("[1, 2]");
+    }
+}
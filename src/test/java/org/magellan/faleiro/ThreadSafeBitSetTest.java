@@ -0,0 +1,87 @@
+package org.magellan.faleiro;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class ThreadSafeBitSetTest {
+
+    @Test
+    public void testSetGetAndCardinality() throws Exception {
+        ThreadSafeBitSet bits = new ThreadSafeBitSet(10);
+        assertEquals(0, bits.cardinality());
+        assertTrue(bits.set(3));
+        assertFalse(bits.set(3));
+        assertTrue(bits.get(3));
+        assertFalse(bits.get(4));
+        // Beyond the initial size and beyond the first segment
+        assertTrue(bits.set(200000));
+        assertTrue(bits.get(200000));
+        assertFalse(bits.get(1000000));
+        assertEquals(2, bits.cardinality());
+    }
+
+    @Test
+    public void testByteLayoutMatchesBitSet() throws Exception {
+        Random random = new Random(42);
+        BitSet expected = new BitSet();
+        ThreadSafeBitSet bits = new ThreadSafeBitSet();
+        for(int i = 0; i < 500; i++) {
+            int bit = random.nextInt(100000);
+            expected.set(bit);
+            bits.set(bit);
+        }
+        assertArrayEquals(expected.toByteArray(), bits.toByteArray());
+        assertEquals(expected.cardinality(), bits.cardinality());
+        assertEquals(expected.toString(), bits.toString());
+
+        // Bitmaps persisted as java.util.BitSet can be read back
+        ThreadSafeBitSet restored = ThreadSafeBitSet.valueOf(expected.toByteArray());
+        assertEquals(expected.cardinality(), restored.cardinality());
+        assertArrayEquals(expected.toByteArray(), restored.toByteArray());
+
+        assertEquals(0, new ThreadSafeBitSet(64).toByteArray().length);
+    }
+
+    @Test
+    public void testConcurrentSetsAreCounted() throws Exception {
+        final int threads = 8;
+        final int bitsPerThread = 20000;
+        final ThreadSafeBitSet bits = new ThreadSafeBitSet(1000);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Interleaved so that threads contend on the same words, every bit is set twice
+                for(int i = 0; i < bitsPerThread; i++) {
+                    bits.set(i * threads + offset);
+                    bits.set(((i + 1) % bitsPerThread) * threads + (threads - 1 - offset));
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        // Snapshots taken while bits are being set always decode to the right number of bits or more
+        for(int i = 0; i < 20; i++) {
+            int before = bits.cardinality();
+            BitSet snapshot = BitSet.valueOf(bits.toByteArray());
+            assertTrue(snapshot.cardinality() >= before);
+        }
+        for(Thread w : workers) {
+            w.join();
+        }
+        assertEquals(threads * bitsPerThread, bits.cardinality());
+        assertEquals(threads * bitsPerThread, BitSet.valueOf(bits.toByteArray()).cardinality());
+    }
+}
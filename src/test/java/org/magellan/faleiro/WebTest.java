@@ -18,12 +18,13 @@ public class WebTest {
 
         doNothing().when(mf).initializeFramework(anyString());
         doNothing().when(mf).startFramework();
-        doReturn(0L).when(mf).createJob(anyString(), anyInt(), anyString(), anyObject());
+        doReturn(0L).when(mf).createJob(anyString(), anyInt(), anyString(), anyObject(), anyDouble(), anyObject());
         doNothing().when(mf).pauseJob(anyLong());
         doNothing().when(mf).resumeJob(anyLong());
         doNothing().when(mf).stopJob(anyLong());
         doReturn(IsJobDone).when(mf).isDone(anyLong());
         doReturn(new JSONObject()).when(mf).getSimpleJobStatus(anyLong());
+        doReturn(new JSONObject()).when(mf).getJobEnergyHistory(anyLong(), anyLong(), anyLong(), anyInt());
 
         Web.initFramework(mf);
     }
@@ -33,7 +34,7 @@ public class WebTest {
 
         doNothing().when(mf).initializeFramework(anyString());
         doNothing().when(mf).startFramework();
-        doReturn(-1L).when(mf).createJob(anyString(), anyInt(), anyString(), anyObject());
+        doReturn(-1L).when(mf).createJob(anyString(), anyInt(), anyString(), anyObject(), anyDouble(), anyObject());
 
         Web.initFramework(mf);
     }
@@ -59,6 +60,22 @@ public class WebTest {
         assertTrue(status == 500);
 
         InitWorkingFramework(false);
+        request.put(WebAPI.JOB_WEIGHT, 0);
+        status = Web.createJobResponse(request, response);
+        assertTrue(status == 422);
+
+        request.put(WebAPI.JOB_WEIGHT, 2.5);
+        status = Web.createJobResponse(request, response);
+        assertTrue(status == 200);
+
+        request.put(WebAPI.WIRE_FORMAT, "xml");
+        status = Web.createJobResponse(request, response);
+        assertTrue(status == 422);
+
+        request.put(WebAPI.WIRE_FORMAT, "binary_deflate");
+        status = Web.createJobResponse(request, response);
+        assertTrue(status == 200);
+
         request = new JSONObject();
         response = new JSONObject();
         status = Web.createJobResponse(request, response);
@@ -112,4 +129,20 @@ public class WebTest {
         status = Web.getJobResponse(response, "0");
         assert(status == 200);
     }
+
+    @Test
+    public void TestGetJobHistory() throws Exception {
+        InitWorkingFramework(false);
+        assertTrue(Web.getJobHistoryResponse(new JSONObject(), "0", null, null, null) == 200);
+        assertTrue(Web.getJobHistoryResponse(new JSONObject(), "0", "10", "20", "5") == 200);
+
+        // Malformed or inconsistent parameters
+        assertTrue(Web.getJobHistoryResponse(new JSONObject(), "0", "abc", null, null) == 422);
+        assertTrue(Web.getJobHistoryResponse(new JSONObject(), "0", null, null, "0") == 422);
+        assertTrue(Web.getJobHistoryResponse(new JSONObject(), "0", "20", "10", null) == 422);
+
+        // Unknown job
+        InitFailedFramework();
+        assertTrue(Web.getJobHistoryResponse(new JSONObject(), "0", null, null, null) == 422);
+    }
 }
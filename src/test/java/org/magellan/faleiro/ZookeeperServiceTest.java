@@ -1,6 +1,9 @@
 package org.magellan.faleiro;
 
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
@@ -9,7 +12,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
@@ -110,4 +115,67 @@ public class ZookeeperServiceTest {
         assertTrue(true);
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetDataAsync() throws Exception {
+        final int[] rc = {KeeperException.Code.OK.intValue()};
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            ((AsyncCallback.DataCallback) invocation.getArguments()[2]).processResult(rc[0], path, null, "test".getBytes(), new Stat());
+            return null;
+        }).when(zk).getData(anyString(), anyBoolean(), any(AsyncCallback.DataCallback.class), any());
+        assertArrayEquals("test".getBytes(), ZookeeperService.await(zks.getDataAsync("/a")));
+
+        // Node doesn't exist
+        rc[0] = KeeperException.Code.NONODE.intValue();
+        assertNull(ZookeeperService.await(zks.getDataAsync("/a")));
+
+        // Failure
+        rc[0] = KeeperException.Code.CONNECTIONLOSS.intValue();
+        CompletableFuture<byte[]> failed = zks.getDataAsync("/a");
+        assertTrue(failed.isCompletedExceptionally());
+        try {
+            ZookeeperService.await(failed);
+            fail();
+        } catch (KeeperException.ConnectionLossException e) {
+            assertEquals("/a", e.getPath());
+        }
+    }
+
+    @Test
+    public void testPutDataAsync() throws Exception {
+        // The node exists, so its data is set
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            ((AsyncCallback.StringCallback) invocation.getArguments()[4]).processResult(KeeperException.Code.NODEEXISTS.intValue(), path, null, null);
+            return null;
+        }).when(zk).create(anyString(), any(byte[].class), anyListOf(org.apache.zookeeper.data.ACL.class), any(CreateMode.class), any(AsyncCallback.StringCallback.class), any());
+        doAnswer(invocation -> {
+            String path = (String) invocation.getArguments()[0];
+            ((AsyncCallback.StatCallback) invocation.getArguments()[3]).processResult(KeeperException.Code.OK.intValue(), path, null, new Stat());
+            return null;
+        }).when(zk).setData(anyString(), any(byte[].class), eq(-1), any(AsyncCallback.StatCallback.class), any());
+
+        CompletableFuture<Void> put = zks.putDataAsync("/a", "test".getBytes());
+        assertTrue(put.isDone());
+        assertFalse(put.isCompletedExceptionally());
+        verify(zk).setData(eq("/a"), eq("test".getBytes()), eq(-1), any(AsyncCallback.StatCallback.class), any());
+
+        // An existing node is left unchanged by createAsync
+        assertEquals("/b", ZookeeperService.await(zks.createAsync("/b", new byte[0])));
+    }
+
+    @Test
+    public void testMultiAsync() throws Exception {
+        doAnswer(invocation -> {
+            ((AsyncCallback.MultiCallback) invocation.getArguments()[1]).processResult(KeeperException.Code.BADVERSION.intValue(), "/a", null, null);
+            return null;
+        }).when(zk).multi(anyObject(), any(AsyncCallback.MultiCallback.class), any());
+        try {
+            ZookeeperService.await(zks.multiAsync(Arrays.asList(Op.setData("/a", new byte[0], 3))));
+            fail();
+        } catch (KeeperException.BadVersionException e) {
+            assertTrue(true);
+        }
+    }
+}